@@ -40,6 +40,9 @@ import hudson.remoting.RemoteInputStream;
 import hudson.util.IOException2;
 import hudson.util.HeadBufferingStream;
 import hudson.util.FormValidation;
+import hudson.util.BlockDeflaterOutputStream;
+import hudson.util.BlockInflaterInputStream;
+import hudson.util.DaemonThreadFactory;
 import static hudson.util.jna.GNUCLibrary.LIBC;
 import static hudson.Util.fixEmpty;
 import static hudson.FilePath.TarCompression.GZIP;
@@ -47,7 +50,6 @@ import hudson.os.PosixAPI;
 import org.apache.tools.ant.BuildException;
 import org.apache.tools.ant.DirectoryScanner;
 import org.apache.tools.ant.Project;
-import org.apache.tools.ant.taskdefs.Copy;
 import org.apache.tools.ant.types.FileSet;
 import org.apache.tools.tar.TarEntry;
 import org.apache.tools.tar.TarOutputStream;
@@ -67,6 +69,7 @@ import java.io.FileOutputStream;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.io.OutputStream;
@@ -74,17 +77,30 @@ import java.io.Serializable;
 import java.io.Writer;
 import java.io.OutputStreamWriter;
 import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
 import java.net.URL;
 import java.net.URLConnection;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.List;
+import java.util.Map;
+import java.util.HashMap;
 import java.util.StringTokenizer;
 import java.util.Arrays;
 import java.util.Comparator;
 import java.util.regex.Pattern;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
+import java.util.zip.Deflater;
 import java.util.zip.GZIPOutputStream;
 import java.util.zip.GZIPInputStream;
 import java.util.zip.ZipInputStream;
@@ -1156,6 +1172,24 @@ public final class FilePath implements Serializable {
         });
     }
 
+    /**
+     * Computes the MD5 digests of many files with one remote call.
+     *
+     * <p>
+     * The files are read in parallel, so this is much faster than calling
+     * {@link #digest()} on each file.
+     *
+     * @param paths
+     *      Files to compute the digests of, relative to this directory, or absolute.
+     * @return
+     *      Map from the given paths to their digests, in the same format as {@link #digest()}.
+     * @since 1.313
+     */
+    public Map<String,String> digest(Collection<String> paths) throws IOException, InterruptedException {
+        if(paths.isEmpty())     return new HashMap<String,String>();
+        return act(new GetDigests(new ArrayList<String>(paths)));
+    }
+
     /**
      * Rename this file/directory to the target filepath.  This FilePath and the target must
      * be on the some host
@@ -1200,6 +1234,20 @@ public final class FilePath implements Serializable {
      * Copies this file to the specified target.
      */
     public void copyTo(FilePath target) throws IOException, InterruptedException {
+        if(channel==target.channel) {
+            // both are on the same machine, so let the OS copy the data without bringing it to us
+            final String dst = target.remote;
+            act(new FileCallable<Void>() {
+                public Void invoke(File f, VirtualChannel channel) throws IOException {
+                    File t = new File(dst).getAbsoluteFile();
+                    t.getParentFile().mkdirs();
+                    transfer(f,t);
+                    return null;
+                }
+            });
+            return;
+        }
+
         OutputStream out = target.write();
         try {
             copyTo(out);
@@ -1229,7 +1277,7 @@ public final class FilePath implements Serializable {
                 FileInputStream fis = null;
                 try {
                     fis = new FileInputStream(f);
-                    Util.copyStream(fis,out);
+                    copy(fis,out);
                     return null;
                 } finally {
                     IOUtils.closeQuietly(fis);
@@ -1271,7 +1319,69 @@ public final class FilePath implements Serializable {
      * @return
      *      the number of files copied.
      */
-    public int copyRecursiveTo(final String fileMask, final String excludes, final FilePath target) throws IOException, InterruptedException {
+    public int copyRecursiveTo(String fileMask, String excludes, FilePath target) throws IOException, InterruptedException {
+        return copyRecursiveTo(fileMask,excludes,null,target);
+    }
+
+    /**
+     * Copies the files that match the given file mask to the specified target, like {@link #copyRecursiveTo(String, String, FilePath)},
+     * except that the files that the target already has with the same contents are left alone, like rsync does.
+     *
+     * <p>
+     * Both sides list the matching files with their sizes and timestamps. A file is sent if the target doesn't
+     * have it, or has it in a different size. If only the timestamps differ, the digests of the file on both sides
+     * are compared. So the files that didn't change don't cross the channel. Files in the target that
+     * aren't in this directory are not deleted.
+     *
+     * @param fileMask
+     *      Ant GLOB pattern.
+     * @param excludes
+     *      Files to be excluded. Can be null.
+     * @return
+     *      the number of files that match the file mask, including the ones that were already up to date.
+     *      Unlike {@link #copyRecursiveTo(String, String, FilePath)}, 0 means that there was nothing to copy.
+     * @since 1.313
+     */
+    public int syncRecursiveTo(String fileMask, String excludes, FilePath target) throws IOException, InterruptedException {
+        Map<String,long[]> src = act(new ListFiles(fileMask,excludes));
+        if(this.channel==target.channel) {
+            // local copy is cheap, and it already skips the files that are up to date
+            copyRecursiveTo(fileMask,excludes,target);
+            return src.size();
+        }
+
+        Map<String,long[]> dst = target.act(new ListFiles(fileMask,excludes));
+
+        List<String> changed = new ArrayList<String>();
+        List<String> suspects = new ArrayList<String>();
+        for (Map.Entry<String,long[]> e : src.entrySet()) {
+            long[] s = e.getValue();
+            long[] d = dst.get(e.getKey());
+            if(d==null || d[0]!=s[0])
+                changed.add(e.getKey());
+            else
+            if(d[1]/1000!=s[1]/1000)    // tar only keeps timestamps in seconds
+                suspects.add(e.getKey());   // rebuilt, but maybe into the same contents
+        }
+
+        if(!suspects.isEmpty()) {
+            Map<String,String> digests = act(new GetDigests(suspects));
+            Map<String,Long> timestamps = new HashMap<String,Long>();
+            for (String f : suspects)
+                timestamps.put(f,src.get(f)[1]);
+            changed.addAll(target.act(new CompareDigests(digests,timestamps)));
+        }
+
+        if(!changed.isEmpty())
+            copyRecursiveTo(fileMask,excludes,changed.toArray(new String[changed.size()]),target);
+        return src.size();
+    }
+
+    /**
+     * @param files
+     *      If non-null, copy these files, instead of the files that match the file mask.
+     */
+    private int copyRecursiveTo(final String fileMask, final String excludes, final String[] files, final FilePath target) throws IOException, InterruptedException {
         if(this.channel==target.channel) {
             // local to local copy.
             return act(new FileCallable<Integer>() {
@@ -1280,32 +1390,11 @@ public final class FilePath implements Serializable {
                     assert target.channel==null;
 
                     try {
-                        class CopyImpl extends Copy {
-                            private int copySize;
-
-                            public CopyImpl() {
-                                setProject(new org.apache.tools.ant.Project());
-                            }
-
-                            protected void doFileOperations() {
-                                copySize = super.fileCopyMap.size();
-                                super.doFileOperations();
-                            }
-
-                            public int getNumCopied() {
-                                return copySize;
-                            }
-                        }
-
-                        CopyImpl copyTask = new CopyImpl();
-                        copyTask.setTodir(new File(target.remote));
-                        copyTask.addFileset(Util.createFileSet(base,fileMask,excludes));
-                        copyTask.setIncludeEmptyDirs(false);
-
-                        copyTask.execute();
-                        return copyTask.getNumCopied();
+                        return copyLocally(base,files!=null ? files : scan(base,fileMask,excludes),new File(target.remote));
                     } catch (BuildException e) {
                         throw new IOException2("Failed to copy "+base+"/"+fileMask+" to "+target,e);
+                    } catch (IOException e) {
+                        throw new IOException2("Failed to copy "+base+"/"+fileMask+" to "+target,e);
                     }
                 }
             });
@@ -1317,14 +1406,15 @@ public final class FilePath implements Serializable {
             Future<Void> future = target.actAsync(new FileCallable<Void>() {
                 public Void invoke(File f, VirtualChannel channel) throws IOException {
                     try {
-                        readFromTar(remote+'/'+fileMask, f,TarCompression.GZIP.extract(pipe.getIn()));
+                        readFromTar(remote+'/'+fileMask, f,new BlockInflaterInputStream(pipe.getIn()));
                         return null;
                     } finally {
                         pipe.getIn().close();
                     }
                 }
             });
-            int r = writeToTar(new File(remote),fileMask,excludes,TarCompression.GZIP.compress(pipe.getOut()));
+            File base = new File(remote);
+            int r = writeToTar(base,files!=null ? files : scan(base,fileMask,excludes),new BlockDeflaterOutputStream(pipe.getOut(),COMPRESSION_LEVEL));
             try {
                 future.get();
             } catch (ExecutionException e) {
@@ -1338,14 +1428,14 @@ public final class FilePath implements Serializable {
             Future<Integer> future = actAsync(new FileCallable<Integer>() {
                 public Integer invoke(File f, VirtualChannel channel) throws IOException {
                     try {
-                        return writeToTar(f,fileMask,excludes,TarCompression.GZIP.compress(pipe.getOut()));
+                        return writeToTar(f,files!=null ? files : scan(f,fileMask,excludes),new BlockDeflaterOutputStream(pipe.getOut(),COMPRESSION_LEVEL));
                     } finally {
                         pipe.getOut().close();
                     }
                 }
             });
             try {
-                readFromTar(remote+'/'+fileMask,new File(target.remote),TarCompression.GZIP.extract(pipe.getIn()));
+                readFromTar(remote+'/'+fileMask,new File(target.remote),new BlockInflaterInputStream(pipe.getIn()));
             } catch (IOException e) {// BuildException or IOException
                 try {
                     future.get(3,TimeUnit.SECONDS);
@@ -1367,16 +1457,260 @@ public final class FilePath implements Serializable {
     }
 
     /**
-     * Writes to a tar stream and stores obtained files to the base dir.
+     * Copies the files from one directory to another on the same machine.
+     * Like Ant's {@link org.apache.tools.ant.taskdefs.Copy}, files that are already up to date
+     * aren't copied, and empty directories aren't created.
      *
      * @return
-     *      number of files/directories that are written.
+     *      number of files copied.
+     */
+    private static int copyLocally(File baseDir, String[] files, File targetDir) throws IOException {
+        int n = 0;
+        for (String f : files) {
+            File src = new File(baseDir,f);
+            File dst = new File(targetDir,f);
+            if(dst.exists() && src.lastModified()-TIMESTAMP_GRANULARITY<=dst.lastModified())
+                continue;   // up to date
+            dst.getParentFile().mkdirs();
+            if(!HARD_LINKS || !link(src,dst))
+                transfer(src,dst);
+            n++;
+        }
+        return n;
+    }
+
+    /**
+     * Lists the files that match the given file mask.
      */
-    private Integer writeToTar(File baseDir, String fileMask, String excludes, OutputStream out) throws IOException {
+    private static String[] scan(File baseDir, String fileMask, String excludes) {
+        if(!baseDir.exists())
+            return new String[0];
         FileSet fs = Util.createFileSet(baseDir,fileMask,excludes);
+        return fs.getDirectoryScanner(new org.apache.tools.ant.Project()).getIncludedFiles();
+    }
+
+    /**
+     * Lists the files that match the given file mask, with their sizes and timestamps.
+     * Path separator is always '/', as the other side may be on a different platform.
+     */
+    private static final class ListFiles implements FileCallable<Map<String,long[]>> {
+        private final String fileMask;
+        private final String excludes;
+
+        ListFiles(String fileMask, String excludes) {
+            this.fileMask = fileMask;
+            this.excludes = excludes;
+        }
 
-        byte[] buf = new byte[8192];
+        public Map<String,long[]> invoke(File base, VirtualChannel channel) throws IOException {
+            Map<String,long[]> r = new HashMap<String,long[]>();
+            for (String f : scan(base,fileMask,excludes)) {
+                File file = new File(base,f);
+                r.put(f.replace('\\','/'),new long[]{file.length(),file.lastModified()});
+            }
+            return r;
+        }
+
+        private static final long serialVersionUID = 1L;
+    }
+
+    /**
+     * Computes the digests of the given files.
+     */
+    private static final class GetDigests implements FileCallable<Map<String,String>> {
+        private final List<String> files;
+
+        GetDigests(List<String> files) {
+            this.files = files;
+        }
+
+        public Map<String,String> invoke(File base, VirtualChannel channel) throws IOException {
+            return digest(base,files);
+        }
+
+        private static final long serialVersionUID = 1L;
+    }
+
+    /**
+     * Finds the files whose contents differ from the given digests. The timestamps of the files
+     * that have the same contents are updated, so that they'll be up to date the next time.
+     */
+    private static final class CompareDigests implements FileCallable<List<String>> {
+        private final Map<String,String> digests;
+        private final Map<String,Long> timestamps;
+
+        CompareDigests(Map<String,String> digests, Map<String,Long> timestamps) {
+            this.digests = digests;
+            this.timestamps = timestamps;
+        }
+
+        public List<String> invoke(File base, VirtualChannel channel) throws IOException {
+            List<String> r = new ArrayList<String>();
+            List<String> existing = new ArrayList<String>();
+            for (String f : digests.keySet()) {
+                if(new File(base,f).exists())
+                    existing.add(f);
+                else
+                    r.add(f);
+            }
+
+            Map<String,String> actual = digest(base,existing);
+            for (String f : existing) {
+                if(actual.get(f).equals(digests.get(f)))
+                    new File(base,f).setLastModified(timestamps.get(f));
+                else
+                    r.add(f);
+            }
+            return r;
+        }
+
+        private static final long serialVersionUID = 1L;
+    }
+
+    /**
+     * Computes the MD5 digests of the given files in parallel on {@link #DIGESTER}.
+     *
+     * @param files
+     *      Relative to the base directory, or absolute.
+     */
+    private static Map<String,String> digest(File base, Collection<String> files) throws IOException {
+        Map<String,java.util.concurrent.Future<String>> futures = new HashMap<String,java.util.concurrent.Future<String>>();
+        try {
+            for (String f : files) {
+                File file = new File(f);
+                if(!file.isAbsolute())
+                    file = new File(base,f);
+                final File target = file;
+                futures.put(f,DIGESTER.submit(new java.util.concurrent.Callable<String>() {
+                    public String call() throws IOException {
+                        try {
+                            return digest(target);
+                        } catch (IOException e) {
+                            throw new IOException2("Failed to compute the digest of "+target,e);
+                        }
+                    }
+                }));
+            }
+
+            Map<String,String> r = new HashMap<String,String>();
+            for (Map.Entry<String,java.util.concurrent.Future<String>> e : futures.entrySet())
+                r.put(e.getKey(),e.getValue().get());
+            return r;
+        } catch (InterruptedException e) {
+            throw (IOException)new InterruptedIOException().initCause(e);
+        } catch (ExecutionException e) {
+            if(e.getCause() instanceof IOException)
+                throw (IOException)e.getCause();
+            throw new IOException2(e.getCause());
+        } finally {
+            for (java.util.concurrent.Future<String> f : futures.values())
+                f.cancel(true);
+        }
+    }
 
+    /**
+     * Computes the MD5 digest of a file.
+     *
+     * <p>
+     * The file is read through a direct buffer, which {@link MessageDigest} consumes
+     * without copying the contents into the Java heap. Each {@link #DIGESTER} thread
+     * reuses its own buffer.
+     */
+    private static String digest(File f) throws IOException {
+        MessageDigest md5;
+        try {
+            md5 = MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException2("MD5 not installed",e);    // impossible
+        }
+
+        ByteBuffer buf = DIGEST_BUFFER.get();
+        FileInputStream in = new FileInputStream(f);
+        try {
+            FileChannel ch = in.getChannel();
+            buf.clear();
+            while(ch.read(buf)>=0) {
+                buf.flip();
+                md5.update(buf);
+                buf.clear();
+            }
+        } finally {
+            in.close();
+        }
+        return Util.toHexString(md5.digest());
+    }
+
+    /**
+     * Direct buffer used by {@link #digest(File)}, one per thread.
+     */
+    private static final ThreadLocal<ByteBuffer> DIGEST_BUFFER = new ThreadLocal<ByteBuffer>() {
+        @Override
+        protected ByteBuffer initialValue() {
+            return ByteBuffer.allocateDirect(BUFFER_SIZE);
+        }
+    };
+
+    /**
+     * Copies a file with {@link FileChannel#transferTo(long, long, WritableByteChannel)},
+     * which lets the OS move the data without copying it through the user space.
+     */
+    private static void transfer(File src, File dst) throws IOException {
+        FileInputStream in = new FileInputStream(src);
+        try {
+            FileOutputStream out = new FileOutputStream(dst);
+            try {
+                FileChannel ic = in.getChannel();
+                FileChannel oc = out.getChannel();
+                long size = ic.size();
+                long pos = 0;
+                while(pos<size) {
+                    long n = ic.transferTo(pos,Math.min(size-pos,TRANSFER_SIZE),oc);
+                    if(n<=0)    break;  // the file got truncated while we are copying it
+                    pos += n;
+                }
+            } finally {
+                out.close();
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Makes the target a hard link to the source, replacing the existing target.
+     *
+     * @return
+     *      false if the link couldn't be created, such as when the two are on different file systems.
+     */
+    private static boolean link(File src, File dst) {
+        if(Functions.isWindows())
+            return false;
+        try {
+            dst.delete();
+            return LIBC.link(src.getPath(),dst.getPath())==0;
+        } catch (LinkageError e) {
+            // JNA isn't available on this platform
+            return false;
+        }
+    }
+
+    /**
+     * Copies a stream with a buffer big enough for the data of a whole file.
+     */
+    private static void copy(InputStream in, OutputStream out) throws IOException {
+        byte[] buf = new byte[BUFFER_SIZE];
+        int len;
+        while((len=in.read(buf))>=0)
+            out.write(buf,0,len);
+    }
+
+    /**
+     * Writes to a tar stream and stores obtained files to the base dir.
+     *
+     * @return
+     *      number of files/directories that are written.
+     */
+    private Integer writeToTar(File baseDir, String[] files, OutputStream out) throws IOException {
         TarOutputStream tar = new TarOutputStream(new BufferedOutputStream(out) {
             // TarOutputStream uses TarBuffer internally,
             // which flushes the stream for each block. this creates unnecessary
@@ -1386,40 +1720,112 @@ public final class FilePath implements Serializable {
             }
         });
         tar.setLongFileMode(TarOutputStream.LONGFILE_GNU);
-        String[] files;
-        if(baseDir.exists()) {
-            DirectoryScanner ds = fs.getDirectoryScanner(new org.apache.tools.ant.Project());
-            files = ds.getIncludedFiles();
-        } else {
-            files = new String[0];
+
+        ReadAhead reader = new ReadAhead(baseDir,files);
+        Thread t = new Thread(reader,"Reading "+baseDir);
+        t.setDaemon(true);
+        t.start();
+        try {
+            Object o;
+            while((o=reader.take())!=ReadAhead.END) {
+                tar.putNextEntry((TarEntry)o);
+                while((o=reader.take())!=ReadAhead.END) {
+                    byte[] chunk = (byte[])o;
+                    tar.write(chunk,0,chunk.length);
+                }
+                tar.closeEntry();
+            }
+        } finally {
+            t.interrupt();
         }
-        for( String f : files) {
-            if(Functions.isWindows())
-                f = f.replace('\\','/');
 
-            File file = new File(baseDir, f);
+        tar.close();
 
-            TarEntry te = new TarEntry(f);
-            te.setModTime(file.lastModified());
-            if(!file.isDirectory())
-                te.setSize(file.length());
+        return files.length;
+    }
 
-            tar.putNextEntry(te);
+    /**
+     * Reads the files to be archived on a separate thread, ahead of the tar stream.
+     *
+     * <p>
+     * For each file, this produces the {@link TarEntry} followed by its contents in chunks
+     * and {@link #END}. Once all the files are read, it produces {@link #END} again.
+     */
+    private static final class ReadAhead implements Runnable {
+        private final File baseDir;
+        private final String[] files;
+        private final BlockingQueue<Object> queue = new ArrayBlockingQueue<Object>(READ_AHEAD);
 
-            if (!file.isDirectory()) {
-                FileInputStream in = new FileInputStream(file);
-                int len;
-                while((len=in.read(buf))>=0)
-                    tar.write(buf,0,len);
-                in.close();
-            }
+        ReadAhead(File baseDir, String[] files) {
+            this.baseDir = baseDir;
+            this.files = files;
+        }
 
-            tar.closeEntry();
+        public void run() {
+            try {
+                try {
+                    for( String f : files ) {
+                        File file = new File(baseDir,f);
+                        if(Functions.isWindows())
+                            f = f.replace('\\','/');
+
+                        TarEntry te = new TarEntry(f);
+                        te.setModTime(file.lastModified());
+                        if(!file.isDirectory())
+                            te.setSize(file.length());
+                        queue.put(te);
+
+                        if (!file.isDirectory()) {
+                            FileInputStream in = new FileInputStream(file);
+                            try {
+                                byte[] buf = new byte[BUFFER_SIZE];
+                                int len;
+                                while((len=in.read(buf))>=0) {
+                                    if(len==buf.length) {
+                                        queue.put(buf);
+                                        buf = new byte[BUFFER_SIZE];
+                                    } else
+                                    if(len>0) {
+                                        byte[] chunk = new byte[len];
+                                        System.arraycopy(buf,0,chunk,0,len);
+                                        queue.put(chunk);
+                                    }
+                                }
+                            } finally {
+                                in.close();
+                            }
+                        }
+                        queue.put(END);
+                    }
+                    queue.put(END);
+                } catch (IOException e) {
+                    queue.put(e);
+                } catch (InterruptedException e) {
+                    throw e;
+                } catch (Throwable e) {
+                    // anything else still needs to wake up the writer, or it blocks forever in take()
+                    queue.put(new IOException2(e));
+                }
+            } catch (InterruptedException e) {
+                // the tar stream is aborted
+            }
         }
 
-        tar.close();
+        /**
+         * Obtains the next item, rethrowing the error in reading a file.
+         */
+        Object take() throws IOException {
+            try {
+                Object o = queue.take();
+                if(o instanceof IOException)
+                    throw new IOException2(((IOException)o).getMessage(),(IOException)o);
+                return o;
+            } catch (InterruptedException e) {
+                throw (IOException)new InterruptedIOException().initCause(e);
+            }
+        }
 
-        return files.length;
+        static final Object END = new Object();
     }
 
     /**
@@ -1439,7 +1845,7 @@ public final class FilePath implements Serializable {
 
                     OutputStream fos = new FileOutputStream(f);
                     try {
-                        IOUtils.copy(t,fos);
+                        copy(t,fos);
                     } finally {
                         fos.close();
                     }
@@ -1754,6 +2160,50 @@ public final class FilePath implements Serializable {
 
     public static int SIDE_BUFFER_SIZE = 1024;
 
+    /**
+     * Size of the buffer used to copy the file contents through the streams.
+     */
+    private static final int BUFFER_SIZE = 64*1024;
+
+    /**
+     * Maximum number of bytes to transfer in one {@link FileChannel#transferTo(long, long, WritableByteChannel)} call.
+     * Some platforms fail on very large transfers.
+     */
+    private static final long TRANSFER_SIZE = 64*1024*1024;
+
+    /**
+     * Same as the default of Ant's {@link org.apache.tools.ant.taskdefs.Copy}, to decide if a target file is up to date.
+     */
+    private static final long TIMESTAMP_GRANULARITY = Functions.isWindows() ? 2000 : 1000;
+
+    /**
+     * If true, {@link #copyRecursiveTo(String, String, FilePath)} makes hard links instead of
+     * copying files within the same machine. This is the fastest, but the copies change along with
+     * the originals if the originals are modified in place, so it's off by default.
+     */
+    public static boolean HARD_LINKS = Boolean.getBoolean(FilePath.class.getName()+".hardLinks");
+
+    /**
+     * Number of files whose digests are computed concurrently by {@link #digest(Collection)}.
+     */
+    private static final int DIGEST_THREADS = Integer.getInteger(FilePath.class.getName()+".digestThreads",
+            Math.max(2,Runtime.getRuntime().availableProcessors()));
+
+    private static final ExecutorService DIGESTER = Executors.newFixedThreadPool(DIGEST_THREADS,new DaemonThreadFactory());
+
+    /**
+     * Compression level of the tar stream that {@link #copyRecursiveTo(String, String, FilePath)} sends
+     * between machines, as in {@link Deflater}. 0 disables the compression, which is often faster on a fast network.
+     * Read on the sending side.
+     */
+    public static int COMPRESSION_LEVEL = Integer.getInteger(FilePath.class.getName()+".compressionLevel",Deflater.DEFAULT_COMPRESSION);
+
+    /**
+     * Number of {@link #BUFFER_SIZE} chunks that {@link #writeToTar(File, String[], OutputStream)} reads ahead
+     * of the tar stream, so that the disk reads overlap with the compression and the network transfer.
+     */
+    private static final int READ_AHEAD = 16;
+
     /**
      * Adapts {@link FileCallable} to {@link Callable}.
      */
@@ -23,10 +23,13 @@
  */
 package hudson;
 
+import hudson.model.Computer;
 import hudson.model.Hudson;
 import hudson.slaves.SlaveComputer;
 import hudson.remoting.Channel;
 import hudson.remoting.Channel.Listener;
+import hudson.remoting.NioChannelHub;
+import hudson.remoting.SocketChannelStream;
 
 import java.io.DataInputStream;
 import java.io.IOException;
@@ -34,8 +37,10 @@ import java.io.OutputStream;
 import java.io.PrintWriter;
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -64,6 +69,12 @@ import java.util.logging.Logger;
  * is generated once and used forever, which makes this whole scheme
  * less secure.
  *
+ * <h2>NIO</h2>
+ * <p>
+ * With {@link #NIO}, slave agents that support it connect with the <tt>JNLP-framed-connect</tt>
+ * protocol, and their channels are serviced by a shared {@link NioChannelHub} instead of
+ * a reader thread per slave.
+ *
  * @author Kohsuke Kawaguchi
  */
 public final class TcpSlaveAgentListener extends Thread {
@@ -79,7 +90,13 @@ public final class TcpSlaveAgentListener extends Thread {
      */
     public TcpSlaveAgentListener(int port) throws IOException {
         super("TCP slave agent listener port="+port);
-        serverSocket = new ServerSocket(port);
+        if(NIO) {
+            // bound through a channel, so that the accepted sockets can be handed to NioChannelHub
+            serverSocket = ServerSocketChannel.open().socket();
+            serverSocket.bind(new InetSocketAddress(port));
+        } else {
+            serverSocket = new ServerSocket(port);
+        }
         this.configuredPort = port;
 
         LOGGER.info("JNLP slave agent listener started on TCP port "+getPort());
@@ -94,6 +111,14 @@ public final class TcpSlaveAgentListener extends Thread {
         return serverSocket.getLocalPort();
     }
 
+    /**
+     * Does this listener service the slave channels with {@link NioChannelHub}?
+     * Used to tell the slave agents to use the <tt>JNLP-framed-connect</tt> protocol.
+     */
+    public boolean isFramingSupported() {
+        return serverSocket.getChannel()!=null;
+    }
+
     private String getSecretKey() {
         return Hudson.getInstance().getSecretKey();
     }
@@ -151,6 +176,9 @@ public final class TcpSlaveAgentListener extends Thread {
                     String protocol = s.substring(9);
                     if(protocol.equals("JNLP-connect")) {
                         runJnlpConnect(in, out);
+                    } else
+                    if(protocol.equals("JNLP-framed-connect") && this.s.getChannel()!=null) {
+                        runJnlpFramedConnect(in, out);
                     } else {
                         error(out, "Unknown protocol:" + s);
                     }
@@ -178,45 +206,82 @@ public final class TcpSlaveAgentListener extends Thread {
          * Handles JNLP slave agent connection request.
          */
         private void runJnlpConnect(DataInputStream in, PrintWriter out) throws IOException, InterruptedException {
+            SlaveComputer computer = authenticate(in, out);
+            if(computer==null)
+                return;
+
+            final OutputStream log = computer.openLogFile();
+            new PrintWriter(log).println("JNLP agent connected from "+ this.s.getInetAddress());
+
+            // without NIO, these are just the streams of the socket
+            computer.setChannel(new BufferedInputStream(SocketChannelStream.in(this.s)), new BufferedOutputStream(SocketChannelStream.out(this.s)), log,
+                createListener(log,true));
+        }
+
+        /**
+         * Handles JNLP slave agent connection request that talks in frames,
+         * and hands the connection over to {@link NioChannelHub}.
+         */
+        private void runJnlpFramedConnect(DataInputStream in, PrintWriter out) throws IOException, InterruptedException {
+            SlaveComputer computer = authenticate(in, out);
+            if(computer==null)
+                return;
+
+            final OutputStream log = computer.openLogFile();
+            new PrintWriter(log).println("JNLP agent connected from "+ this.s.getInetAddress());
+
+            Channel channel = getHub().register(computer.getName(), this.s.getChannel(), Computer.threadPoolForRemoting);
+            // the hub closes the socket once it's done writing
+            computer.setChannel(channel, log, createListener(log,false));
+        }
+
+        /**
+         * Checks the secret key and the slave name sent by the slave agent.
+         *
+         * @return
+         *      null if the connection is rejected.
+         */
+        private SlaveComputer authenticate(DataInputStream in, PrintWriter out) throws IOException {
             if(!getSecretKey().equals(in.readUTF())) {
                 error(out, "Unauthorized access");
-                return;
+                return null;
             }
 
             String nodeName = in.readUTF();
             SlaveComputer computer = (SlaveComputer) Hudson.getInstance().getComputer(nodeName);
             if(computer==null) {
                 error(out, "No such slave: "+nodeName);
-                return;
+                return null;
             }
 
             if(computer.getChannel()!=null) {
                 error(out, nodeName+" is already connected to this master. Rejecting this connection.");
-                return;
+                return null;
             }
 
             out.println("Welcome");
+            return computer;
+        }
 
-            final OutputStream log = computer.openLogFile();
-            new PrintWriter(log).println("JNLP agent connected from "+ this.s.getInetAddress());
-
-            computer.setChannel(new BufferedInputStream(this.s.getInputStream()), new BufferedOutputStream(this.s.getOutputStream()), log,
-                new Listener() {
-                    public void onClosed(Channel channel, IOException cause) {
-                        try {
-                            log.close();
-                        } catch (IOException e) {
-                            e.printStackTrace(); 
-                        }
-                        if(cause!=null)
-                            LOGGER.log(Level.WARNING, "Connection #"+id+" terminated",cause);
-                        try {
-                            ConnectionHandler.this.s.close();
-                        } catch (IOException e) {
-                            // ignore
-                        }
+        private Listener createListener(final OutputStream log, final boolean closeSocket) {
+            return new Listener() {
+                public void onClosed(Channel channel, IOException cause) {
+                    try {
+                        log.close();
+                    } catch (IOException e) {
+                        e.printStackTrace(); 
                     }
-                });
+                    if(cause!=null)
+                        LOGGER.log(Level.WARNING, "Connection #"+id+" terminated",cause);
+                    if(!closeSocket)
+                        return;
+                    try {
+                        ConnectionHandler.this.s.close();
+                    } catch (IOException e) {
+                        // ignore
+                    }
+                }
+            };
         }
 
         private void error(PrintWriter out, String msg) throws IOException {
@@ -228,6 +293,24 @@ public final class TcpSlaveAgentListener extends Thread {
 
     private static int iotaGen=1;
 
+    private static NioChannelHub hub;
+
+    /**
+     * Gets the hub shared by all the listeners, so that connections outlive the listener
+     * when the port is reconfigured.
+     */
+    private static synchronized NioChannelHub getHub() throws IOException {
+        if(hub==null)
+            hub = new NioChannelHub();
+        return hub;
+    }
+
+    /**
+     * Whether to service JNLP slave agents with {@link NioChannelHub}, which uses a few threads for all the slaves,
+     * instead of a thread per slave. Older slave agents keep connecting in the usual way.
+     */
+    public static boolean NIO = Boolean.getBoolean(TcpSlaveAgentListener.class.getName()+".nio");
+
     private static final Logger LOGGER = Logger.getLogger(TcpSlaveAgentListener.class.getName());
 }
 
@@ -0,0 +1,456 @@
+/*
+ * The MIT License
+ * 
+ * Copyright (c) 2004-2009, Sun Microsystems, Inc., Kohsuke Kawaguchi
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson;
+
+import hudson.util.AtomicFileWriter;
+import hudson.util.DaemonThreadFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.text.MessageFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Write-behind persistence for {@link XmlFile}.
+ *
+ * <p>
+ * When enabled (by setting {@link #DELAY} to a positive value), {@link XmlFile#writeBehind(Object)}
+ * serializes the object right away, just like {@link XmlFile#write(Object)} does, but the disk I/O
+ * is deferred up to {@link #DELAY} milliseconds. If the same file is saved again in the mean time,
+ * only the latest contents are written, and all the files written in one batch are fsync-ed
+ * together before they are renamed into place.
+ *
+ * <p>
+ * Because the object is serialized when {@code save()} is called, {@link BulkChange} and
+ * the synchronization of the {@code save()} methods work exactly as before. Pending writes
+ * are flushed when Hudson shuts down, and before the file is read back through {@link XmlFile}.
+ * Code that deletes or moves a directory behind the back of {@link XmlFile} needs to
+ * call {@link #discard(File)} or {@link #flush(File)} first, or else a pending write
+ * would bring the file back.
+ *
+ * @since 1.313
+ */
+public final class WriteBehind {
+    private WriteBehind() {}
+
+    private static final class Entry {
+        final File key;
+        final XmlFile file;
+        /**
+         * Serialized form of the latest save.
+         */
+        String xml;
+        /**
+         * When the first save that's not on the disk yet was requested.
+         */
+        final long queued = System.currentTimeMillis();
+        /**
+         * The earlier write to the same file that was still in progress when this one was taken
+         * out of {@link #pending}. This one isn't committed before that one is done.
+         */
+        Entry prev;
+        private boolean done;
+
+        Entry(File key, XmlFile file, String xml) {
+            this.key = key;
+            this.file = file;
+            this.xml = xml;
+        }
+
+        synchronized void finished() {
+            done = true;
+            notifyAll();
+        }
+
+        /**
+         * Waits for the write to complete, successfully or not.
+         */
+        synchronized void await() {
+            boolean interrupted = false;
+            while(!done) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if(interrupted)
+                Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Writes that haven't hit the disk yet, keyed by the absolute file name.
+     * Guarded by itself.
+     */
+    private static final Map<File,Entry> pending = new LinkedHashMap<File,Entry>();
+
+    /**
+     * True if the flusher is already scheduled to run. Guarded by {@link #pending}.
+     */
+    private static boolean scheduled;
+
+    /**
+     * Entries that were taken out of {@link #pending} and are being written, keyed by the absolute file name.
+     * Each file maps to the latest of them, which {@link Entry#prev chains} to the earlier ones,
+     * so that the writes to the same file are never reordered. Guarded by {@link #pending}.
+     */
+    private static final Map<File,Entry> writing = new HashMap<File,Entry>();
+
+    private static final ScheduledExecutorService flusher = Executors.newSingleThreadScheduledExecutor(
+        new DaemonThreadFactory(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r);
+                t.setName("XmlFile write-behind thread");
+                return t;
+            }
+        }));
+
+    public static boolean isEnabled() {
+        return DELAY>0;
+    }
+
+    /**
+     * Schedules the serialized XML to be written to the given file.
+     */
+    /*package*/ static void schedule(XmlFile file, String xml) {
+        requested.incrementAndGet();
+        File key = file.getFile().getAbsoluteFile();
+        synchronized (pending) {
+            Entry e = pending.get(key);
+            if(e!=null) {
+                // the previous save hasn't made it to the disk yet. just replace it
+                e.xml = xml;
+                avoided.incrementAndGet();
+                return;
+            }
+            pending.put(key,new Entry(key,file,xml));
+            if(!scheduled) {
+                scheduled = true;
+                flusher.schedule(new Runnable() {
+                    public void run() {
+                        synchronized (pending) {
+                            scheduled = false;
+                        }
+                        flush();
+                    }
+                },DELAY,TimeUnit.MILLISECONDS);
+            }
+        }
+    }
+
+    /**
+     * Writes all the pending changes to the disk.
+     *
+     * <p>
+     * Called periodically from the flusher thread, and when Hudson shuts down.
+     */
+    public static void flush() {
+        List<Entry> batch;
+        synchronized (pending) {
+            batch = new ArrayList<Entry>(pending.size());
+            for (Entry e : pending.values())
+                batch.add(startWriting(e));
+            pending.clear();
+        }
+        write(batch);
+    }
+
+    /**
+     * Writes the pending changes to the given file, or to the files in the given directory.
+     */
+    public static void flush(File fileOrDir) {
+        if(!isEnabled())    return;
+        List<Entry> batch, busy;
+        synchronized (pending) {
+            busy = inProgress(fileOrDir);
+            batch = take(fileOrDir);
+            for (Entry e : batch)
+                startWriting(e);
+        }
+        write(batch);
+        awaitAll(busy);
+    }
+
+    /**
+     * Writes the pending change to the given file, and waits for the write of it that's in progress, if any.
+     * Unlike {@link #flush(File)}, this only looks up the file itself, so it's cheap
+     * enough to be done before every read.
+     */
+    /*package*/ static void flushFile(File file) {
+        if(!isEnabled())    return;
+        File key = file.getAbsoluteFile();
+        Entry e, busy;
+        synchronized (pending) {
+            busy = writing.get(key);
+            e = pending.remove(key);
+            if(e!=null)
+                startWriting(e);
+        }
+        if(e!=null)
+            write(Collections.singletonList(e));
+        if(busy!=null)
+            busy.await();
+    }
+
+    /**
+     * Drops the pending changes to the given file, or to the files in the given directory,
+     * without writing them. Used when they are about to be deleted.
+     */
+    public static void discard(File fileOrDir) {
+        if(!isEnabled())    return;
+        List<Entry> busy;
+        synchronized (pending) {
+            busy = inProgress(fileOrDir);
+            take(fileOrDir);
+        }
+        // so that they don't bring the files back after the caller deletes them
+        awaitAll(busy);
+    }
+
+    /**
+     * Drops the pending change to the given file, like {@link #discard(File)} but only looking up the file itself.
+     */
+    /*package*/ static void discardFile(File file) {
+        if(!isEnabled())    return;
+        File key = file.getAbsoluteFile();
+        Entry busy;
+        synchronized (pending) {
+            busy = writing.get(key);
+            pending.remove(key);
+        }
+        if(busy!=null)
+            busy.await();
+    }
+
+    /**
+     * Takes the pending entries of the given file or directory out of {@link #pending}.
+     * Must be called while holding the lock of {@link #pending}.
+     */
+    private static List<Entry> take(File fileOrDir) {
+        List<Entry> r = new ArrayList<Entry>();
+        if(pending.isEmpty())   return r;
+        String path = fileOrDir.getAbsolutePath();
+        for (Iterator<Map.Entry<File,Entry>> itr = pending.entrySet().iterator(); itr.hasNext();) {
+            Map.Entry<File,Entry> e = itr.next();
+            if(isIn(e.getKey(),path)) {
+                r.add(e.getValue());
+                itr.remove();
+            }
+        }
+        return r;
+    }
+
+    /**
+     * Lists the entries of the given file or directory that are being written.
+     * Must be called while holding the lock of {@link #pending}.
+     */
+    private static List<Entry> inProgress(File fileOrDir) {
+        List<Entry> r = new ArrayList<Entry>();
+        if(writing.isEmpty())   return r;
+        String path = fileOrDir.getAbsolutePath();
+        for (Entry e : writing.values())
+            if(isIn(e.key,path))
+                r.add(e);
+        return r;
+    }
+
+    private static boolean isIn(File key, String path) {
+        String p = key.getPath();
+        return p.equals(path) || (p.startsWith(path) && p.charAt(path.length())==File.separatorChar);
+    }
+
+    /**
+     * Marks the entry as being written. Must be called while holding the lock of {@link #pending}.
+     */
+    private static Entry startWriting(Entry e) {
+        e.prev = writing.put(e.key,e);
+        return e;
+    }
+
+    private static void awaitAll(List<Entry> entries) {
+        for (Entry e : entries)
+            e.await();
+    }
+
+    /**
+     * Writes all the entries, {@link #MAX_OPEN_FILES} at a time.
+     */
+    private static void write(List<Entry> batch) {
+        if(batch.isEmpty()) return;
+        try {
+            int n = Math.max(1,MAX_OPEN_FILES);
+            for( int i=0; i<batch.size(); i+=n )
+                writeChunk(batch.subList(i,Math.min(i+n,batch.size())));
+            batches.incrementAndGet();
+        } finally {
+            synchronized (pending) {
+                for (Entry e : batch)
+                    if(writing.get(e.key)==e)
+                        writing.remove(e.key);
+            }
+            for (Entry e : batch) {
+                e.prev = null;
+                e.finished();
+            }
+        }
+    }
+
+    /**
+     * Writes the entries to temporary files, fsync them in one go, then renames them into place.
+     * Each temporary file stays open until it's renamed, so the caller limits the number of entries.
+     */
+    private static void writeChunk(List<Entry> batch) {
+        // the earlier writes to the same files go first
+        for (Entry e : batch)
+            if(e.prev!=null)
+                e.prev.await();
+
+        List<AtomicFileWriter> writers = new ArrayList<AtomicFileWriter>(batch.size());
+        List<Entry> entries = new ArrayList<Entry>(batch.size());
+        for (Entry e : batch) {
+            try {
+                writers.add(e.file.writeUncommitted(e.xml));
+                entries.add(e);
+            } catch (IOException x) {
+                failures.incrementAndGet();
+                LOGGER.log(Level.WARNING, "Failed to save "+e.file, x);
+            }
+        }
+
+        if(SYNC) {
+            for (int i=0; i<writers.size(); i++) {
+                try {
+                    writers.get(i).sync();
+                } catch (IOException x) {
+                    // still better to have the data in the page cache than nowhere
+                    LOGGER.log(Level.WARNING, "Failed to sync "+entries.get(i).file, x);
+                }
+            }
+        }
+
+        long now = System.currentTimeMillis();
+        for (int i=0; i<writers.size(); i++) {
+            Entry e = entries.get(i);
+            try {
+                writers.get(i).commit();
+                written.incrementAndGet();
+                long latency = now-e.queued;
+                totalLatency.addAndGet(latency);
+                while(true) {
+                    long max = maxLatency.get();
+                    if(latency<=max || maxLatency.compareAndSet(max,latency))
+                        break;
+                }
+            } catch (IOException x) {
+                failures.incrementAndGet();
+                LOGGER.log(Level.WARNING, "Failed to save "+e.file, x);
+            }
+        }
+        LOGGER.fine("Wrote "+writers.size()+" files in one batch");
+    }
+
+    public static void resetPerformanceStats() {
+        requested.set(0);
+        avoided.set(0);
+        written.set(0);
+        failures.set(0);
+        batches.set(0);
+        totalLatency.set(0);
+        maxLatency.set(0);
+    }
+
+    /**
+     * Gets the short summary of performance statistics.
+     */
+    public static String getPerformanceStats() {
+        long w = written.get();
+        long b = batches.get();
+        return MessageFormat.format("requested={0} avoided={1} written={2} failure={3} batchSize={4} avgLatency={5}ms maxLatency={6}ms",
+                requested.get(), avoided.get(), w, failures.get(),
+                b==0 ? 0 : w/b, w==0 ? 0 : totalLatency.get()/w, maxLatency.get());
+    }
+
+    /**
+     * Number of times {@link XmlFile#writeBehind(Object)} deferred a write.
+     */
+    public static final AtomicLong requested = new AtomicLong();
+    /**
+     * Number of writes that were avoided because a newer save of the same file replaced them.
+     */
+    public static final AtomicLong avoided = new AtomicLong();
+    /**
+     * Number of files actually written.
+     */
+    public static final AtomicLong written = new AtomicLong();
+    /**
+     * Number of writes that failed.
+     */
+    public static final AtomicLong failures = new AtomicLong();
+    /**
+     * Number of batches written.
+     */
+    public static final AtomicLong batches = new AtomicLong();
+    /**
+     * Sum of the time from the first deferred save to the rename on the disk, in milliseconds,
+     * of all the {@link #written} files.
+     */
+    public static final AtomicLong totalLatency = new AtomicLong();
+    /**
+     * The longest time from the first deferred save to the rename on the disk, in milliseconds.
+     */
+    public static final AtomicLong maxLatency = new AtomicLong();
+
+    /**
+     * Maximum number of milliseconds a save can stay in memory before it's written.
+     * 0 to disable the write-behind and save synchronously, which is the default.
+     */
+    public static long DELAY = Long.getLong(WriteBehind.class.getName()+".delay",0);
+
+    /**
+     * Whether the files written in a batch are fsync-ed before they are renamed into place.
+     */
+    public static boolean SYNC = !Boolean.getBoolean(WriteBehind.class.getName()+".noSync");
+
+    /**
+     * Maximum number of files kept open at the same time while a batch is written.
+     * Bigger batches are written in chunks of this size.
+     */
+    public static int MAX_OPEN_FILES = Integer.getInteger(WriteBehind.class.getName()+".maxOpenFiles",64);
+
+    private static final Logger LOGGER = Logger.getLogger(WriteBehind.class.getName());
+}
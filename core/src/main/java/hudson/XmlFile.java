@@ -121,6 +121,7 @@ public final class XmlFile {
      */
     public Object read() throws IOException {
         LOGGER.fine("Reading "+file);
+        WriteBehind.flushFile(file);
         Reader r = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
         try {
             return xs.fromXML(r);
@@ -141,6 +142,7 @@ public final class XmlFile {
      *      if the XML representation if completely new.
      */
     public Object unmarshal( Object o ) throws IOException {
+        WriteBehind.flushFile(file);
         Reader r = new BufferedReader(new InputStreamReader(new FileInputStream(file),"UTF-8"));
         try {
             return xs.unmarshal(new XppReader(r),o);
@@ -154,10 +156,12 @@ public final class XmlFile {
     }
 
     public void write( Object o ) throws IOException {
+        // this supersedes whatever is still pending
+        WriteBehind.discardFile(file);
         mkdirs();
         AtomicFileWriter w = new AtomicFileWriter(file);
         try {
-            w.write("<?xml version='1.0' encoding='UTF-8'?>\n");
+            w.write(HEADER);
             xs.toXML(o,w);
             w.commit();
         } catch(StreamException e) {
@@ -167,11 +171,58 @@ public final class XmlFile {
         }
     }
 
+    /**
+     * Writes the object just like {@link #write(Object)}, except that the disk I/O
+     * may be deferred and coalesced with the later writes to the same file
+     * if {@link WriteBehind} is enabled.
+     *
+     * <p>
+     * The object is serialized before this method returns, so the caller
+     * can keep modifying it.
+     *
+     * @since 1.313
+     */
+    public void writeBehind( Object o ) throws IOException {
+        if(!WriteBehind.isEnabled()) {
+            write(o);
+            return;
+        }
+        StringWriter w = new StringWriter();
+        w.write(HEADER);
+        try {
+            xs.toXML(o,w);
+        } catch(StreamException e) {
+            throw new IOException2(e);
+        }
+        WriteBehind.schedule(this,w.toString());
+    }
+
+    /**
+     * Writes the serialized XML to a temporary file next to this file,
+     * and returns the writer so that the caller can commit it.
+     */
+    /*package*/ AtomicFileWriter writeUncommitted(String xml) throws IOException {
+        mkdirs();
+        AtomicFileWriter w = new AtomicFileWriter(file);
+        boolean success = false;
+        try {
+            w.write(xml);
+            w.flush();
+            success = true;
+            return w;
+        } finally {
+            if(!success)
+                w.abort();
+        }
+    }
+
     public boolean exists() {
+        WriteBehind.flushFile(file);
         return file.exists();
     }
 
     public void delete() {
+        WriteBehind.discardFile(file);
         file.delete();
     }
     
@@ -189,6 +240,7 @@ public final class XmlFile {
      * not just the system default encoding.
      */
     public Reader readRaw() throws IOException {
+        WriteBehind.flushFile(file);
         return new InputStreamReader(new FileInputStream(file),sniffEncoding());
     }
 
@@ -275,6 +327,8 @@ public final class XmlFile {
      */
     private static final XStream DEFAULT_XSTREAM = new XStream2();
 
+    private static final String HEADER = "<?xml version='1.0' encoding='UTF-8'?>\n";
+
     private static final Logger LOGGER = Logger.getLogger(XmlFile.class.getName());
 
     private static final SAXParserFactory JAXP = SAXParserFactory.newInstance();
@@ -0,0 +1,52 @@
+/*
+ * The MIT License
+ * 
+ * Copyright (c) 2004-2009, Sun Microsystems, Inc., Kohsuke Kawaguchi
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.cli;
+
+import hudson.AbortException;
+import hudson.Extension;
+import hudson.model.FingerprintStorage;
+import hudson.model.LogFingerprintStorage;
+import hudson.util.StreamTaskListener;
+
+/**
+ * Moves the fingerprints from the XML files into {@link LogFingerprintStorage}.
+ *
+ * @since 1.313
+ */
+@Extension
+public class MigrateFingerprintsCommand extends CLICommand {
+    public String getShortDescription() {
+        return "Moves fingerprints from the XML files into the fingerprint log";
+    }
+
+    protected int run() throws Exception {
+        FingerprintStorage storage = FingerprintStorage.get();
+        if(!(storage instanceof LogFingerprintStorage))
+            throw new AbortException("The fingerprint log isn't in use. Start Hudson with -D"
+                    +FingerprintStorage.class.getName()+"="+LogFingerprintStorage.class.getSimpleName());
+
+        ((LogFingerprintStorage)storage).migrate(new StreamTaskListener(stdout));
+        return 0;
+    }
+}
@@ -23,6 +23,7 @@
  */
 package hudson.model;
 
+import hudson.WriteBehind;
 import hudson.XmlFile;
 import hudson.Util;
 import hudson.Functions;
@@ -276,6 +277,7 @@ public abstract class AbstractItem extends Actionable implements Item, HttpDelet
      * Does the real job of deleting the item.
      */
     protected void performDelete() throws IOException, InterruptedException {
+        WriteBehind.discard(getRootDir());
         Util.deleteRecursive(getRootDir());
     }
 
@@ -105,6 +105,11 @@ public abstract class AbstractProject<P extends AbstractProject<P,R>,R extends A
      */
     protected transient /*almost final*/ RunMap<R> builds = new RunMap<R>();
 
+    /**
+     * Summary of {@link #builds}, created on demand.
+     */
+    private transient volatile BuildSummaryIndex buildSummaryIndex;
+
     /**
      * The quiet period. Null to delegate to the system default.
      */
@@ -189,6 +194,7 @@ public abstract class AbstractProject<P extends AbstractProject<P,R>,R extends A
                 return loadBuild(dir);
             }
         });
+        this.buildSummaryIndex = null;
 
         if(triggers==null)
             // it didn't exist in < 1.28
@@ -613,6 +619,19 @@ public abstract class AbstractProject<P extends AbstractProject<P,R>,R extends A
         this.builds.remove(run);
     }
 
+    @Override
+    public BuildSummaryIndex getBuildSummaryIndex() {
+        BuildSummaryIndex index = buildSummaryIndex;
+        if(index==null) {
+            synchronized (this) {
+                index = buildSummaryIndex;
+                if(index==null)
+                    buildSummaryIndex = index = BuildSummaryIndex.load(this);
+            }
+        }
+        return index;
+    }
+
     /**
      * Determines Class&lt;R>.
      */
@@ -0,0 +1,383 @@
+/*
+ * The MIT License
+ * 
+ * Copyright (c) 2004-2009, Sun Microsystems, Inc., Kohsuke Kawaguchi
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.model;
+
+import hudson.Extension;
+import hudson.model.listeners.RunListener;
+import hudson.util.AtomicFileWriter;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Compact summary of the completed builds of a {@link Job}, kept so that
+ * permalinks like {@link Job#getLastSuccessfulBuild()} can be resolved
+ * without walking (and loading) the build history.
+ *
+ * <p>
+ * The index is updated from {@link RunListener} as builds complete or get deleted,
+ * and persisted as an append-only text file, one line per change.
+ *
+ * @see Job#getBuildSummaryIndex()
+ */
+public final class BuildSummaryIndex {
+    /**
+     * Summary of one completed build.
+     */
+    public static final class Summary {
+        public final int number;
+        public final Result result;
+        public final long timestamp;
+        public final long duration;
+
+        public Summary(int number, Result result, long timestamp, long duration) {
+            this.number = number;
+            this.result = result;
+            this.timestamp = timestamp;
+            this.duration = duration;
+        }
+
+        /*package*/ Summary(Run<?,?> r) {
+            this(r.getNumber(),r.getResult(),r.getTimeInMillis(),r.getDuration());
+        }
+
+        private boolean sameAs(Summary that) {
+            return number==that.number && result==that.result
+                && timestamp==that.timestamp && duration==that.duration;
+        }
+
+        public String toString() {
+            return number+" "+result+" "+timestamp+" "+duration;
+        }
+    }
+
+    /**
+     * Kinds of builds that permalinks point to.
+     */
+    public enum Kind {
+        COMPLETED {
+            boolean matches(Result r) {
+                return true;
+            }
+        },
+        SUCCESSFUL {
+            boolean matches(Result r) {
+                return r!=null && r.isBetterOrEqualTo(Result.UNSTABLE);
+            }
+        },
+        STABLE {
+            boolean matches(Result r) {
+                return r!=null && !r.isWorseThan(Result.SUCCESS);
+            }
+        },
+        FAILED {
+            boolean matches(Result r) {
+                return r==Result.FAILURE;
+            }
+        };
+
+        abstract boolean matches(Result r);
+
+        /**
+         * Does the given build qualify as this kind?
+         */
+        public boolean matches(Run<?,?> r) {
+            return !r.isBuilding() && matches(r.getResult());
+        }
+    }
+
+    private final Job<?,?> job;
+
+    /**
+     * Build number to summary, newest first.
+     */
+    private final TreeMap<Integer,Summary> summaries = new TreeMap<Integer,Summary>(RunMap.COMPARATOR);
+
+    /**
+     * The newest build of each {@link Kind}, or null.
+     */
+    private final Summary[] last = new Summary[Kind.values().length];
+
+    /**
+     * Number of lines in the file that are superseded by later lines.
+     */
+    private int garbage;
+
+    private BuildSummaryIndex(Job<?,?> job) {
+        this.job = job;
+    }
+
+    /**
+     * The file is looked up every time, as the job can be renamed.
+     */
+    private File getFile() {
+        return new File(job.getBuildDir(),"summary.log");
+    }
+
+    /**
+     * Number of the newest build in this index, or 0 if the index is empty.
+     *
+     * Every completed build of the job up to this number is in the index.
+     */
+    public synchronized int getNewest() {
+        return summaries.isEmpty() ? 0 : summaries.firstKey();
+    }
+
+    /**
+     * Gets the summary of the given build, or null if it's not indexed.
+     */
+    public synchronized Summary get(int number) {
+        return summaries.get(number);
+    }
+
+    /**
+     * Gets the newest build of the given kind, or null if there's none.
+     */
+    public synchronized Summary getLast(Kind kind) {
+        return last[kind.ordinal()];
+    }
+
+    /**
+     * Gets all the summaries, newest first.
+     */
+    public synchronized List<Summary> getSummaries() {
+        return new ArrayList<Summary>(summaries.values());
+    }
+
+    /**
+     * Records a completed build.
+     */
+    public synchronized void add(Run<?,?> r) {
+        Summary s = new Summary(r);
+        Summary old = summaries.get(s.number);
+        if(old!=null && old.sameAs(s))
+            return;     // nothing changed
+
+        put(s);
+        if(old!=null)
+            recompute();    // the result might have changed
+        append(s.toString());
+    }
+
+    /**
+     * Removes the record of a deleted build.
+     */
+    public synchronized void remove(int number) {
+        if(summaries.remove(number)==null)
+            return;
+        garbage++;
+        recompute();
+
+        if(garbage>COMPACTION_THRESHOLD && garbage>summaries.size())
+            compact();
+        else
+            append("-"+number);
+    }
+
+    private void put(Summary s) {
+        if(summaries.put(s.number,s)!=null)
+            garbage++;
+        for (Kind k : Kind.values()) {
+            Summary l = last[k.ordinal()];
+            if(k.matches(s.result) && (l==null || l.number<=s.number))
+                last[k.ordinal()] = s;
+        }
+    }
+
+    private void recompute() {
+        for (Kind k : Kind.values()) {
+            last[k.ordinal()] = null;
+            for (Summary s : summaries.values()) {
+                if(k.matches(s.result)) {
+                    last[k.ordinal()] = s;
+                    break;
+                }
+            }
+        }
+    }
+
+    /**
+     * Brings the index in sync with the builds that actually exist.
+     */
+    private synchronized void reconcile(SortedMap<Integer,? extends Run<?,?>> runs) {
+        Set<Integer> numbers = runs.keySet();
+        boolean modified = false;
+
+        for (Integer n : new ArrayList<Integer>(summaries.keySet())) {
+            if(!numbers.contains(n)) {
+                summaries.remove(n);
+                modified = true;
+            }
+        }
+
+        for (Integer n : numbers) {
+            if(summaries.containsKey(n))
+                continue;
+            // this only happens for builds that completed before the index was created
+            Run<?,?> r = runs.get(n);
+            if(r!=null && !r.isBuilding()) {
+                put(new Summary(r));
+                modified = true;
+            }
+        }
+
+        if(modified) {
+            recompute();
+            compact();
+        }
+    }
+
+    private void load() throws IOException {
+        File file = getFile();
+        if(!file.exists())
+            return;
+
+        BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(file),"UTF-8"));
+        try {
+            String line;
+            while((line=in.readLine())!=null) {
+                try {
+                    if(line.startsWith("-")) {
+                        summaries.remove(Integer.parseInt(line.substring(1)));
+                        garbage++;
+                    } else {
+                        String[] tokens = line.split(" ");
+                        if(tokens.length!=4) {
+                            LOGGER.warning("Ignoring a malformed line in "+file+": "+line);
+                            continue;
+                        }
+                        put(new Summary(Integer.parseInt(tokens[0]),Result.fromString(tokens[1]),
+                                Long.parseLong(tokens[2]),Long.parseLong(tokens[3])));
+                    }
+                } catch (NumberFormatException e) {
+                    LOGGER.warning("Ignoring a malformed line in "+file+": "+line);
+                }
+            }
+        } finally {
+            in.close();
+        }
+        recompute();
+
+        if(garbage>COMPACTION_THRESHOLD && garbage>summaries.size())
+            compact();
+    }
+
+    private void append(String line) {
+        File file = getFile();
+        try {
+            file.getParentFile().mkdirs();
+            Writer w = new OutputStreamWriter(new FileOutputStream(file,true),"UTF-8");
+            try {
+                w.write(line+'\n');
+            } finally {
+                w.close();
+            }
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Failed to update "+file,e);
+        }
+    }
+
+    /**
+     * Rewrites the file so that it only contains the live summaries.
+     */
+    private void compact() {
+        File file = getFile();
+        try {
+            file.getParentFile().mkdirs();
+            AtomicFileWriter w = new AtomicFileWriter(file);
+            try {
+                // oldest first, so that the replay produces the same ordering of changes
+                List<Summary> all = new ArrayList<Summary>(summaries.values());
+                for (int i=all.size()-1; i>=0; i--)
+                    w.write(all.get(i).toString()+'\n');
+                w.commit();
+                garbage = 0;
+            } catch (IOException e) {
+                w.abort();
+                throw e;
+            }
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Failed to update "+file,e);
+        }
+    }
+
+    /**
+     * Loads the index of the given job, and synchronizes it with the builds the job actually has.
+     */
+    /*package*/ static BuildSummaryIndex load(Job<?,?> job) {
+        BuildSummaryIndex index = new BuildSummaryIndex(job);
+        try {
+            index.load();
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Failed to load "+index.getFile()+". Rebuilding it",e);
+            index.summaries.clear();
+        }
+        index.reconcile(job._getRuns());
+        return index;
+    }
+
+    /**
+     * Keeps the indices up to date.
+     */
+    @Extension
+    public static final class RunListenerImpl extends RunListener<Run> {
+        public RunListenerImpl() {
+            super(Run.class);
+        }
+
+        @Override
+        public void onCompleted(Run r, TaskListener listener) {
+            BuildSummaryIndex index = r.getParent().getBuildSummaryIndex();
+            if(index!=null)
+                index.add(r);
+        }
+
+        @Override
+        public void onDeleted(Run r) {
+            BuildSummaryIndex index = r.getParent().getBuildSummaryIndex();
+            if(index!=null)
+                index.remove(r.getNumber());
+        }
+    }
+
+    /**
+     * Don't bother compacting the file until this many lines become garbage.
+     */
+    private static final int COMPACTION_THRESHOLD = 100;
+
+    private static final Logger LOGGER = Logger.getLogger(BuildSummaryIndex.class.getName());
+}
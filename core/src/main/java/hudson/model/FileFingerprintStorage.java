@@ -0,0 +1,166 @@
+/*
+ * The MIT License
+ * 
+ * Copyright (c) 2004-2009, Sun Microsystems, Inc., Kohsuke Kawaguchi
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.model;
+
+import hudson.Extension;
+import hudson.Util;
+import hudson.WriteBehind;
+import hudson.util.Iterators.FlattenIterator;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * {@link FingerprintStorage} that stores each {@link Fingerprint} in its own XML file
+ * under <tt>$HUDSON_HOME/fingerprints/xx/yy/</tt>, where <tt>xxyy</tt> are the first
+ * 4 hex digits of the MD5.
+ *
+ * <p>
+ * This is the traditional format and the default.
+ *
+ * @since 1.313
+ */
+@Extension
+public class FileFingerprintStorage extends FingerprintStorage {
+    /**
+     * Null to use <tt>$HUDSON_HOME/fingerprints</tt>.
+     */
+    private final File root;
+
+    public FileFingerprintStorage() {
+        this(null);
+    }
+
+    public FileFingerprintStorage(File root) {
+        this.root = root;
+    }
+
+    /**
+     * Directory that contains the fingerprint files.
+     */
+    public File getRootDir() {
+        return root!=null ? root : new File(Hudson.getInstance().getRootDir(),"fingerprints");
+    }
+
+    public Fingerprint load(byte[] md5sum) throws IOException {
+        return Fingerprint.load(getFingerprintFile(md5sum));
+    }
+
+    public void save(Fingerprint fp) throws IOException {
+        Fingerprint.getConfigFile(getFingerprintFile(fp.getMD5())).writeBehind(fp);
+    }
+
+    public void delete(byte[] md5sum) {
+        File f = getFingerprintFile(md5sum);
+        WriteBehind.discard(f);
+        f.delete();
+    }
+
+    public boolean isReady() {
+        return getRootDir().exists();
+    }
+
+    public Iterator<byte[]> keys() {
+        return new FlattenIterator<byte[],File>(list(getRootDir(),LENGTH2DIR_FILTER)) {
+            protected Iterator<byte[]> expand(File file1) {
+                return new FlattenIterator<byte[],File>(list(file1,LENGTH2DIR_FILTER)) {
+                    protected Iterator<byte[]> expand(File file2) {
+                        List<byte[]> r = new ArrayList<byte[]>();
+                        for (File file3 : list(file2,FINGERPRINTFILE_FILTER)) {
+                            String hex = file2.getParentFile().getName()+file2.getName()+file3.getName().substring(0,28);
+                            r.add(toByteArray(hex));
+                        }
+                        return r.iterator();
+                    }
+                };
+            }
+        };
+    }
+
+    /**
+     * Deletes the directories that no longer have any fingerprint.
+     */
+    public void compact() {
+        for (File file1 : list(getRootDir(),LENGTH2DIR_FILTER)) {
+            for (File file2 : list(file1,LENGTH2DIR_FILTER))
+                deleteIfEmpty(file2);
+            deleteIfEmpty(file1);
+        }
+    }
+
+    /**
+     * Determines the file name from md5sum.
+     */
+    /*package*/ File getFingerprintFile(byte[] md5sum) {
+        assert md5sum.length==16;
+        return new File( getRootDir(),
+            Util.toHexString(md5sum,0,1)+'/'+Util.toHexString(md5sum,1,1)+'/'+Util.toHexString(md5sum,2,md5sum.length-2)+".xml");
+    }
+
+    private static List<File> list(File dir, FileFilter filter) {
+        File[] files = dir.listFiles(filter);
+        if(files==null)     return Collections.emptyList();   // can happen in a rare occasion
+        return Arrays.asList(files);
+    }
+
+    /**
+     * Deletes a directory if it's empty.
+     */
+    private static void deleteIfEmpty(File dir) {
+        String[] r = dir.list();
+        if(r==null)     return; // can happen in a rare occasion
+        if(r.length==0)
+            dir.delete();
+    }
+
+    private static byte[] toByteArray(String md5sum) {
+        byte[] data = new byte[16];
+        for( int i=0; i<md5sum.length(); i+=2 )
+            data[i/2] = (byte)Integer.parseInt(md5sum.substring(i,i+2),16);
+        return data;
+    }
+
+    private static final FileFilter LENGTH2DIR_FILTER = new FileFilter() {
+        private final Pattern PATTERN = Pattern.compile("[0-9a-f]{2}");
+
+        public boolean accept(File f) {
+            return f.isDirectory() && PATTERN.matcher(f.getName()).matches();
+        }
+    };
+
+    private static final FileFilter FINGERPRINTFILE_FILTER = new FileFilter() {
+        private final Pattern PATTERN = Pattern.compile("[0-9a-f]{28}\\.xml");
+
+        public boolean accept(File f) {
+            return f.isFile() && PATTERN.matcher(f.getName()).matches();
+        }
+    };
+}
@@ -39,9 +39,12 @@ import hudson.util.XStream2;
 import org.kohsuke.stapler.export.Exported;
 import org.kohsuke.stapler.export.ExportedBean;
 
+import java.io.DataInput;
+import java.io.DataOutput;
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Date;
 import java.util.Hashtable;
@@ -247,15 +250,39 @@ public class Fingerprint implements ModelObject, Saveable {
      */
     @ExportedBean(defaultVisibility=3)
     public static final class RangeSet {
-        // sorted
-        private final List<Range> ranges;
+        /**
+         * Sorted ranges that neither overlap nor touch each other, stored as
+         * <tt>start0,end0,start1,end1,...</tt> in the first <tt>size*2</tt> elements.
+         *
+         * <p>
+         * A primitive array takes a fraction of the memory of {@link Range} objects,
+         * and lets us find the range for a number by a binary search.
+         */
+        private int[] ranges;
+        /**
+         * Number of ranges.
+         */
+        private int size;
 
         public RangeSet() {
-            this(new ArrayList<Range>());
+            this(EMPTY,0);
         }
 
+        private RangeSet(int[] ranges, int size) {
+            this.ranges = ranges;
+            this.size = size;
+        }
+
+        /**
+         * Creates a set from ranges that may be out of order, or overlap.
+         */
         private RangeSet(List<Range> data) {
-            this.ranges = data;
+            int[] pairs = new int[data.size()*2];
+            for( int i=0; i<data.size(); i++ ) {
+                pairs[i*2  ] = data.get(i).start;
+                pairs[i*2+1] = data.get(i).end;
+            }
+            normalize(pairs,data.size());
         }
 
         /**
@@ -314,7 +341,10 @@ public class Fingerprint implements ModelObject, Saveable {
          */
         @Exported
         public synchronized List<Range> getRanges() {
-            return new ArrayList<Range>(ranges);
+            List<Range> r = new ArrayList<Range>(size);
+            for( int i=0; i<size; i++ )
+                r.add(new Range(ranges[i*2],ranges[i*2+1]));
+            return r;
         }
 
         /**
@@ -322,95 +352,147 @@ public class Fingerprint implements ModelObject, Saveable {
          * If the set already includes this number, this will be a no-op.
          */
         public synchronized void add(int n) {
-            for( int i=0; i<ranges.size(); i++ ) {
-                Range r = ranges.get(i);
-                if(r.includes(n))   return; // already included
-                if(r.end==n) {
-                    ranges.set(i,r.expandRight());
-                    checkCollapse(i);
-                    return;
-                }
-                if(r.start==n+1) {
-                    ranges.set(i,r.expandLeft());
-                    checkCollapse(i-1);
+            int i = search(n);
+            if(i<size) {
+                int start = ranges[i*2], end = ranges[i*2+1];
+                if(start<=n && n<end)   return; // already included
+                if(end==n) {
+                    // expand right, and join the next range if they now touch
+                    if(i+1<size && ranges[i*2+2]==n+1) {
+                        ranges[i*2+1] = ranges[i*2+3];
+                        remove(i+1);
+                    } else {
+                        ranges[i*2+1] = n+1;
+                    }
                     return;
                 }
-                if(r.isBiggerThan(n)) {
-                    // needs to insert a single-value Range
-                    ranges.add(i,new Range(n,n+1));
+                if(start==n+1) {
+                    ranges[i*2] = n;    // expand left
                     return;
                 }
             }
 
-            ranges.add(new Range(n,n+1));
+            // needs to insert a single-value Range
+            insert(i,n,n+1);
         }
 
-        private void checkCollapse(int i) {
-            if(i<0 || i==ranges.size()-1)     return;
-            Range lhs = ranges.get(i);
-            Range rhs = ranges.get(i+1);
-            if(lhs.isAdjacentTo(rhs)) {
-                // collapsed
-                Range r = new Range(lhs.start,rhs.end);
-                ranges.set(i,r);
-                ranges.remove(i+1);
+        /**
+         * Finds the first range whose end is equal to or bigger than the given number,
+         * which is the range that includes the number, or a range that the number can be added to,
+         * or where a new range needs to be inserted.
+         */
+        private int search(int n) {
+            int lo=0, hi=size;
+            while(lo<hi) {
+                int mid = (lo+hi)>>>1;
+                if(ranges[mid*2+1]<n)
+                    lo = mid+1;
+                else
+                    hi = mid;
             }
+            return lo;
         }
 
-        public synchronized boolean includes(int i) {
-            for (Range r : ranges) {
-                if(r.includes(i))
-                    return true;
+        private void insert(int i, int start, int end) {
+            if(ranges.length<(size+1)*2) {
+                int[] r = new int[Math.max(4,ranges.length*2)];
+                System.arraycopy(ranges,0,r,0,size*2);
+                ranges = r;
             }
-            return false;
+            System.arraycopy(ranges,i*2,ranges,i*2+2,(size-i)*2);
+            ranges[i*2  ] = start;
+            ranges[i*2+1] = end;
+            size++;
         }
 
-        public synchronized void add(RangeSet that) {
-            int lhs=0,rhs=0;
-            while(lhs<this.ranges.size() && rhs<that.ranges.size()) {
-                Range lr = this.ranges.get(lhs);
-                Range rr = that.ranges.get(rhs);
+        private void remove(int i) {
+            System.arraycopy(ranges,i*2+2,ranges,i*2,(size-i-1)*2);
+            size--;
+        }
 
-                // no overlap
-                if(lr.end<rr.start) {
-                    lhs++;
-                    continue;
-                }
-                if(rr.end<lr.start) {
-                    ranges.add(lhs,rr);
-                    lhs++;
-                    rhs++;
-                    continue;
-                }
+        public synchronized boolean includes(int i) {
+            int idx = search(i);
+            return idx<size && ranges[idx*2]<=i && i<ranges[idx*2+1];
+        }
 
-                // overlap. merge two
-                Range m = lr.combine(rr);
-                rhs++;
+        public void add(RangeSet that) {
+            if(that==this)  return;
 
-                // since ranges[lhs] is expanded, it might overlap with others in this.ranges
-                while(lhs+1<this.ranges.size() && !m.isIndependent(this.ranges.get(lhs+1))) {
-                    m = m.combine(this.ranges.get(lhs+1));
-                    this.ranges.remove(lhs+1);
+            // take a snapshot, so that we don't need to lock both
+            int[] r;
+            int n;
+            synchronized(that) {
+                n = that.size;
+                r = new int[n*2];
+                System.arraycopy(that.ranges,0,r,0,n*2);
+            }
+            if(n==0)    return;
+
+            synchronized(this) {
+                // merge two sorted lists of ranges
+                int[] m = new int[(size+n)*2];
+                int len=0, lhs=0, rhs=0;
+                while(lhs<size || rhs<n) {
+                    int start, end;
+                    if(rhs==n || (lhs<size && ranges[lhs*2]<=r[rhs*2])) {
+                        start = ranges[lhs*2];
+                        end = ranges[lhs*2+1];
+                        lhs++;
+                    } else {
+                        start = r[rhs*2];
+                        end = r[rhs*2+1];
+                        rhs++;
+                    }
+                    if(len>0 && start<=m[len*2-1]) {
+                        // overlaps or touches the last range
+                        m[len*2-1] = Math.max(m[len*2-1],end);
+                    } else {
+                        m[len*2  ] = start;
+                        m[len*2+1] = end;
+                        len++;
+                    }
                 }
-
-                this.ranges.set(lhs,m);
+                ranges = m;
+                size = len;
             }
+        }
 
-            // if anything is left in that.ranges, add them all
-            this.ranges.addAll(that.ranges.subList(rhs,that.ranges.size()));
+        /**
+         * Sets the ranges given as <tt>start,end</tt> pairs in any order, combining those that overlap.
+         */
+        private void normalize(int[] pairs, int n) {
+            // sort by the start, then the end
+            long[] sorted = new long[n];
+            for( int i=0; i<n; i++ )
+                sorted[i] = ((long)pairs[i*2]<<32) | (pairs[i*2+1]&0xFFFFFFFFL);
+            Arrays.sort(sorted);
+
+            int len = 0;
+            for (long l : sorted) {
+                int start = (int)(l>>32), end = (int)l;
+                if(len>0 && start<=pairs[len*2-1]) {
+                    pairs[len*2-1] = Math.max(pairs[len*2-1],end);
+                } else {
+                    pairs[len*2  ] = start;
+                    pairs[len*2+1] = end;
+                    len++;
+                }
+            }
+            this.ranges = pairs;
+            this.size = len;
         }
 
         public synchronized String toString() {
-            StringBuffer buf = new StringBuffer();
-            for (Range r : ranges) {
+            StringBuilder buf = new StringBuilder();
+            for( int i=0; i<size; i++ ) {
                 if(buf.length()>0)  buf.append(',');
-                buf.append(r);
+                buf.append('[').append(ranges[i*2]).append(',').append(ranges[i*2+1]).append(')');
             }
             return buf.toString();
         }
 
         public synchronized boolean isEmpty() {
-            return ranges.isEmpty();
+            return size==0;
         }
 
         /**
@@ -419,7 +501,8 @@ public class Fingerprint implements ModelObject, Saveable {
          * If this range is empty, this method throws an exception.
          */
         public synchronized int min() {
-            return ranges.get(0).start;
+            if(size==0)     throw new IndexOutOfBoundsException();
+            return ranges[0];
         }
 
         /**
@@ -428,7 +511,8 @@ public class Fingerprint implements ModelObject, Saveable {
          * If this range is empty, this method throws an exception.
          */
         public synchronized int max() {
-            return ranges.get(ranges.size()-1).end;
+            if(size==0)     throw new IndexOutOfBoundsException();
+            return ranges[size*2-1];
         }
 
         /**
@@ -439,11 +523,44 @@ public class Fingerprint implements ModelObject, Saveable {
          * Note that {} is smaller than any n.
          */
         public synchronized boolean isSmallerThan(int n) {
-            if(ranges.isEmpty())    return true;
+            if(size==0)    return true;
 
-            return ranges.get(ranges.size() - 1).isSmallerThan(n);
+            return ranges[size*2-1]<=n;
+        }
+
+        /**
+         * Writes this set in a compact binary form, where each range is encoded as
+         * the variable-length gap from the previous range and its length.
+         */
+        /*package*/ synchronized void writeTo(DataOutput out) throws IOException {
+            writeVarInt(out,size);
+            int prev = 0;
+            for( int i=0; i<size; i++ ) {
+                writeVarInt(out,zigzag(ranges[i*2]-prev));
+                writeVarInt(out,ranges[i*2+1]-ranges[i*2]-1);
+                prev = ranges[i*2+1];
+            }
         }
 
+        /**
+         * Reads what's written by {@link #writeTo(DataOutput)}.
+         */
+        /*package*/ static RangeSet readFrom(DataInput in) throws IOException {
+            int size = readVarInt(in);
+            int[] ranges = new int[size*2];
+            int prev = 0;
+            for( int i=0; i<size; i++ ) {
+                int start = prev+unzigzag(readVarInt(in));
+                int end = start+readVarInt(in)+1;
+                ranges[i*2  ] = start;
+                ranges[i*2+1] = end;
+                prev = end;
+            }
+            return new RangeSet(ranges,size);
+        }
+
+        private static final int[] EMPTY = new int[0];
+
         static final class ConverterImpl implements Converter {
             private final Converter collectionConv; // used to convert ArrayList in it
 
@@ -458,13 +575,17 @@ public class Fingerprint implements ModelObject, Saveable {
             public void marshal(Object source, HierarchicalStreamWriter writer, MarshallingContext context) {
                 RangeSet src = (RangeSet) source;
 
-                StringBuilder buf = new StringBuilder(src.ranges.size()*10);
-                for (Range r : src.ranges) {
-                    if(buf.length()>0)  buf.append(',');
-                    if(r.isSingle())
-                        buf.append(r.start);
-                    else
-                        buf.append(r.start).append('-').append(r.end-1);
+                StringBuilder buf;
+                synchronized(src) {
+                    buf = new StringBuilder(src.size*10);
+                    for( int i=0; i<src.size; i++ ) {
+                        int start = src.ranges[i*2], end = src.ranges[i*2+1];
+                        if(buf.length()>0)  buf.append(',');
+                        if(end-1==start)
+                            buf.append(start);
+                        else
+                            buf.append(start).append('-').append(end-1);
+                    }
                 }
                 writer.setValue(buf.toString());
             }
@@ -479,23 +600,30 @@ public class Fingerprint implements ModelObject, Saveable {
                      */
                     return new RangeSet((List<Range>)(collectionConv.unmarshal(reader,context)));
                 } else {
-                    RangeSet rs = new RangeSet();
-                    for (String s : Util.tokenize(reader.getValue(),",")) {
+                    String[] tokens = Util.tokenize(reader.getValue(),",");
+                    int[] pairs = new int[tokens.length*2];
+                    int n = 0;
+                    for (String s : tokens) {
                         s = s.trim();
                         // s is either single number or range "x-y".
                         // note that the end range is inclusive in this notation, but not in the Range class
                         try {
                             if(s.contains("-")) {
-                                String[] tokens = Util.tokenize(s,"-");
-                                rs.ranges.add(new Range(Integer.parseInt(tokens[0]),Integer.parseInt(tokens[1])+1));
+                                String[] t = Util.tokenize(s,"-");
+                                pairs[n*2  ] = Integer.parseInt(t[0]);
+                                pairs[n*2+1] = Integer.parseInt(t[1])+1;
                             } else {
-                                int n = Integer.parseInt(s);
-                                rs.ranges.add(new Range(n,n+1));
+                                pairs[n*2  ] = Integer.parseInt(s);
+                                pairs[n*2+1] = pairs[n*2]+1;
                             }
+                            if(pairs[n*2]<pairs[n*2+1])
+                                n++;
                         } catch (NumberFormatException e) {
                             // ignore malformed text
                         }
                     }
+                    RangeSet rs = new RangeSet();
+                    rs.normalize(pairs,n);
                     return rs;
                 }
             }
@@ -520,11 +648,18 @@ public class Fingerprint implements ModelObject, Saveable {
     private final Hashtable<String,RangeSet> usages = new Hashtable<String,RangeSet>();
 
     public Fingerprint(Run build, String fileName, byte[] md5sum) throws IOException {
-        this.original = build==null ? null : new BuildPtr(build);
+        this(build==null ? null : new BuildPtr(build), fileName, md5sum, new Date());
+        save();
+    }
+
+    /**
+     * Creates a fingerprint without saving it, for {@link FingerprintStorage}s to restore the persisted data.
+     */
+    /*package*/ Fingerprint(BuildPtr original, String fileName, byte[] md5sum, Date timestamp) {
+        this.original = original;
         this.md5sum = md5sum;
         this.fileName = fileName;
-        this.timestamp = new Date();
-        save();
+        this.timestamp = timestamp;
     }
 
     /**
@@ -563,6 +698,13 @@ public class Fingerprint implements ModelObject, Saveable {
         return Util.toHexString(md5sum);
     }
 
+    /**
+     * Gets the MD5 hash of the file.
+     */
+    /*package*/ byte[] getMD5() {
+        return md5sum;
+    }
+
     /**
      * Gets the timestamp when this record is created.
      */
@@ -678,7 +820,7 @@ public class Fingerprint implements ModelObject, Saveable {
     }
 
     /**
-     * Save the settings to a file.
+     * Save the settings to the {@link FingerprintStorage}.
      */
     public synchronized void save() throws IOException {
         if(BulkChange.contains(this))   return;
@@ -687,11 +829,10 @@ public class Fingerprint implements ModelObject, Saveable {
         if(logger.isLoggable(Level.FINE))
             start = System.currentTimeMillis();
 
-        File file = getFingerprintFile(md5sum);
-        getConfigFile(file).write(this);
+        FingerprintStorage.get().save(this);
 
         if(logger.isLoggable(Level.FINE))
-            logger.fine("Saving fingerprint "+file+" took "+(System.currentTimeMillis()-start)+"ms");
+            logger.fine("Saving fingerprint "+getHashString()+" took "+(System.currentTimeMillis()-start)+"ms");
     }
 
     public Api getApi() {
@@ -699,27 +840,92 @@ public class Fingerprint implements ModelObject, Saveable {
     }
 
     /**
-     * The file we save our configuration.
+     * Writes this fingerprint in a compact binary form.
+     * Used by {@link FingerprintStorage}s that don't store XML.
      */
-    private static XmlFile getConfigFile(File file) {
-        return new XmlFile(XSTREAM,file);
+    /*package*/ synchronized void writeTo(DataOutput out) throws IOException {
+        out.writeLong(timestamp.getTime());
+        out.writeBoolean(original!=null);
+        if(original!=null) {
+            out.writeUTF(original.name);
+            writeVarInt(out,original.number);
+        }
+        out.writeUTF(fileName);
+        synchronized(usages) {
+            writeVarInt(out,usages.size());
+            for (Entry<String,RangeSet> e : usages.entrySet()) {
+                out.writeUTF(e.getKey());
+                e.getValue().writeTo(out);
+            }
+        }
     }
 
     /**
-     * Determines the file name from md5sum.
+     * Reads what's written by {@link #writeTo(DataOutput)}.
      */
-    private static File getFingerprintFile(byte[] md5sum) {
-        assert md5sum.length==16;
-        return new File( Hudson.getInstance().getRootDir(),
-            "fingerprints/"+ Util.toHexString(md5sum,0,1)+'/'+Util.toHexString(md5sum,1,1)+'/'+Util.toHexString(md5sum,2,md5sum.length-2)+".xml");
+    /*package*/ static Fingerprint readFrom(byte[] md5sum, DataInput in) throws IOException {
+        Date timestamp = new Date(in.readLong());
+        BuildPtr original = null;
+        if(in.readBoolean()) {
+            String name = in.readUTF();
+            original = new BuildPtr(name,readVarInt(in));
+        }
+        Fingerprint fp = new Fingerprint(original,in.readUTF(),md5sum,timestamp);
+        int size = readVarInt(in);
+        for( int i=0; i<size; i++ ) {
+            String job = in.readUTF();
+            fp.usages.put(job,RangeSet.readFrom(in));
+        }
+        return fp;
+    }
+
+    private static void writeVarInt(DataOutput out, int i) throws IOException {
+        while((i&~0x7F)!=0) {
+            out.writeByte((i&0x7F)|0x80);
+            i >>>= 7;
+        }
+        out.writeByte(i);
+    }
+
+    private static int readVarInt(DataInput in) throws IOException {
+        int r = 0;
+        for( int shift=0; shift<32; shift+=7 ) {
+            int b = in.readByte();
+            r |= (b&0x7F)<<shift;
+            if((b&0x80)==0)
+                return r;
+        }
+        throw new IOException("Malformed variable-length integer");
     }
 
     /**
-     * Loads a {@link Fingerprint} from a file in the image.
+     * Maps signed integers to unsigned ones so that numbers close to 0 get short encodings.
+     */
+    private static int zigzag(int i) {
+        return (i<<1)^(i>>31);
+    }
+
+    private static int unzigzag(int i) {
+        return (i>>>1)^-(i&1);
+    }
+
+    /**
+     * The file we save our configuration.
+     */
+    /*package*/ static XmlFile getConfigFile(File file) {
+        return new XmlFile(XSTREAM,file);
+    }
+
+    /**
+     * Loads a {@link Fingerprint} from the {@link FingerprintStorage}.
      */
     /*package*/ static Fingerprint load(byte[] md5sum) throws IOException {
-        return load(getFingerprintFile(md5sum));
+        return FingerprintStorage.get().load(md5sum);
     }
+
+    /**
+     * Loads a {@link Fingerprint} from an XML file.
+     */
     /*package*/ static Fingerprint load(File file) throws IOException {
         XmlFile configFile = getConfigFile(file);
         if(!configFile.exists())
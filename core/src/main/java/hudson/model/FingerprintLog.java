@@ -0,0 +1,729 @@
+/*
+ * The MIT License
+ * 
+ * Copyright (c) 2004-2009, Sun Microsystems, Inc., Kohsuke Kawaguchi
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.model;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Random;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only log of records keyed by 16 byte keys, and an on-disk hash index
+ * that points to the latest record of each key.
+ *
+ * <p>
+ * The log starts with a header <tt>[int magic][int version][long id]</tt>, followed by records
+ * <tt>[int length][int crc32][16 byte key][data]</tt>, where the length covers the key and the data.
+ * A record without data marks the deletion of the key.
+ *
+ * <p>
+ * The index is an open-addressing hash table with linear probing, whose slots are
+ * <tt>[16 byte key][long offset of the record]</tt>. Its header records the ID of the log
+ * it indexes and how far the log is indexed, so that the records appended after that
+ * are replayed into the index when the log is opened. If the index is missing or doesn't
+ * match the log, it's rebuilt from the log. A partially written record at the end of the log,
+ * as left by a crash, is discarded.
+ *
+ * <p>
+ * Before the index header is updated, both files are forced to the disk, so the header never claims
+ * records that a crash could lose. To keep the writes cheap, this is only done every
+ * {@link #SYNC_INTERVAL} milliseconds and when the log is closed, and the records appended since
+ * are replayed after a crash. The header also records whether the log was closed cleanly.
+ * If not, the slots updated since the last sync might point to records that never made it to
+ * the disk, so every slot is checked against the log when it's opened, and the index is
+ * rebuilt if any of them is bad.
+ *
+ * <p>
+ * The files are read and written with positional I/O, and nothing is kept in memory
+ * per record, so this scales to millions of keys. All the operations are synchronized.
+ *
+ * @see LogFingerprintStorage
+ */
+final class FingerprintLog {
+    private final File logFile, indexFile;
+
+    private FileChannel log, index;
+    /**
+     * Identifies the log file, so that a stale index is never applied to a compacted log.
+     */
+    private long id;
+    /**
+     * Size of the valid portion of the log. New records are appended here.
+     */
+    private long logEnd;
+    /**
+     * Number of slots in the index. Power of 2.
+     */
+    private int capacity;
+    /**
+     * Number of slots that are not empty, including the ones whose key is deleted.
+     */
+    private int used;
+    /**
+     * Number of slots that point to a record.
+     */
+    private int live;
+    /**
+     * When the index header was last written.
+     */
+    private long lastSync;
+
+    FingerprintLog(File logFile, File indexFile) throws IOException {
+        this.logFile = logFile;
+        this.indexFile = indexFile;
+        open();
+    }
+
+    private void open() throws IOException {
+        restore(logFile);
+        restore(indexFile);
+        log = new RandomAccessFile(logFile,"rw").getChannel();
+        if(log.size()<LOG_HEADER) {
+            // new, or the creation didn't complete
+            log.truncate(0);
+            id = new Random().nextLong();
+            ByteBuffer h = ByteBuffer.allocate(LOG_HEADER);
+            h.putInt(LOG_MAGIC).putInt(VERSION).putLong(id).flip();
+            writeFully(log,h,0);
+        } else {
+            ByteBuffer h = readFully(log,0,LOG_HEADER);
+            if(h.getInt()!=LOG_MAGIC || h.getInt()!=VERSION) {
+                log.close();
+                throw new IOException(logFile+" isn't a fingerprint log");
+            }
+            id = h.getLong();
+        }
+        logEnd = log.size();
+
+        if(openIndex()) {
+            ByteBuffer h = readFully(index,INDEX_HEADER-20,20);
+            boolean clean = h.getInt()!=0;
+            h.getLong();
+            long indexed = h.getLong();
+            if((clean || validateIndex()) && !replay(indexed)) {
+                writeIndexHeader();
+                return;
+            }
+            // the index points to records that were discarded or never made it to the disk
+            index.close();
+        }
+
+        if(logEnd>LOG_HEADER)
+            LOGGER.info("Rebuilding the index of "+logFile);
+        index = createIndex(indexFile,INITIAL_CAPACITY);
+        replay(LOG_HEADER);
+        writeIndexHeader();
+    }
+
+    /**
+     * Opens the existing index if it's usable.
+     */
+    private boolean openIndex() throws IOException {
+        if(!indexFile.exists())     return false;
+        index = new RandomAccessFile(indexFile,"rw").getChannel();
+        try {
+            if(index.size()>=INDEX_HEADER) {
+                ByteBuffer h = readFully(index,0,INDEX_HEADER);
+                if(h.getInt()==INDEX_MAGIC && h.getInt()==VERSION) {
+                    capacity = h.getInt();
+                    used = h.getInt();
+                    live = h.getInt();
+                    h.getInt();
+                    long logId = h.getLong();
+                    long indexed = h.getLong();
+                    if(logId==id && indexed<=logEnd && Integer.bitCount(capacity)==1
+                    && index.size()==INDEX_HEADER+(long)capacity*SLOT)
+                        return true;
+                }
+            }
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Failed to read "+indexFile, e);
+        }
+        index.close();
+        return false;
+    }
+
+    /**
+     * Checks that every slot of an index that wasn't closed cleanly points to a record in the log,
+     * and recounts the slots, as the counts in the header might be out of date.
+     *
+     * @return
+     *      false if the index points to a record that's not in the log.
+     */
+    private boolean validateIndex() throws IOException {
+        int used=0, live=0;
+        for( int s=0; s<capacity; s+=BATCH ) {
+            int count = Math.min(BATCH,capacity-s);
+            ByteBuffer b = readFully(index,slotPos(s),count*SLOT);
+            for( int i=0; i<count; i++ ) {
+                b.position(i*SLOT+KEY);
+                long offset = b.getLong();
+                if(offset==EMPTY)   continue;
+                used++;
+                if(offset==DELETED) continue;
+                if(offset<LOG_HEADER || offset+8+KEY>logEnd) {
+                    LOGGER.warning("The index of "+logFile+" points to a missing record at "+offset);
+                    return false;
+                }
+                ByteBuffer r = readFully(log,offset,8+KEY);
+                int len = r.getInt();
+                r.getInt();
+                if(len<=KEY || offset+8+len>logEnd || !equals(r.array(),8,b.array(),i*SLOT)) {
+                    LOGGER.warning("The index of "+logFile+" points to a missing record at "+offset);
+                    return false;
+                }
+                live++;
+            }
+        }
+        this.used = used;
+        this.live = live;
+        return true;
+    }
+
+    /**
+     * Creates an empty index.
+     */
+    private FileChannel createIndex(File f, int capacity) throws IOException {
+        f.delete();
+        FileChannel ch = new RandomAccessFile(f,"rw").getChannel();
+        // extend the file to its full size, which reads as empty slots
+        writeFully(ch,ByteBuffer.allocate(1),INDEX_HEADER+(long)capacity*SLOT-1);
+        this.capacity = capacity;
+        this.used = 0;
+        this.live = 0;
+        return ch;
+    }
+
+    /**
+     * Records the state of the index, after making sure that everything it refers to is on the disk.
+     */
+    private void writeIndexHeader() throws IOException {
+        writeIndexHeader(false);
+    }
+
+    private void writeIndexHeader(boolean clean) throws IOException {
+        log.force(false);
+        index.force(false);
+        ByteBuffer h = ByteBuffer.allocate(INDEX_HEADER);
+        h.putInt(INDEX_MAGIC).putInt(VERSION).putInt(capacity).putInt(used).putInt(live).putInt(clean?1:0)
+         .putLong(id).putLong(logEnd).flip();
+        writeFully(index,h,0);
+        if(clean)
+            index.force(false);
+        lastSync = System.currentTimeMillis();
+    }
+
+    /**
+     * Writes the index header if it hasn't been written for a while.
+     */
+    private void syncIfDue() throws IOException {
+        if(System.currentTimeMillis()-lastSync>=SYNC_INTERVAL)
+            writeIndexHeader();
+    }
+
+    /**
+     * Applies the records in the log from the given position to the index.
+     *
+     * @return
+     *      true if a corrupted record was found and the log was truncated there.
+     */
+    private boolean replay(long pos) throws IOException {
+        FileInputStream fin = new FileInputStream(logFile);
+        try {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(fin,64*1024));
+            skipFully(in,pos);
+            byte[] key = new byte[KEY];
+            while(pos<logEnd) {
+                try {
+                    if(pos+8>logEnd)    throw new EOFException();
+                    int len = in.readInt();
+                    int crc = in.readInt();
+                    if(len<KEY || pos+8+len>logEnd)   throw new EOFException();
+                    byte[] rec = new byte[len];
+                    in.readFully(rec);
+                    if(crc(rec,0,len)!=crc)   throw new EOFException();
+
+                    System.arraycopy(rec,0,key,0,KEY);
+                    if(len==KEY)
+                        unindex(key);
+                    else
+                        index(key,pos);
+                    pos += 8+len;
+                } catch (EOFException e) {
+                    LOGGER.warning("Discarding "+(logEnd-pos)+" bytes of corrupted records at the end of "+logFile);
+                    log.truncate(pos);
+                    logEnd = pos;
+                    return true;
+                }
+            }
+            return false;
+        } finally {
+            fin.close();
+        }
+    }
+
+    /**
+     * Gets the latest data stored for the key.
+     *
+     * @return
+     *      null if the key doesn't exist.
+     */
+    public synchronized byte[] get(byte[] key) throws IOException {
+        int slot = find(key);
+        if(slot<0)  return null;
+        long offset = readOffset(slot);
+
+        ByteBuffer h = readFully(log,offset,8);
+        int len = h.getInt();
+        int crc = h.getInt();
+        if(len<=KEY || offset+8+len>logEnd)
+            throw new IOException("Corrupted record at "+offset+" in "+logFile);
+        byte[] rec = readFully(log,offset+8,len).array();
+        if(crc(rec,0,len)!=crc || !equals(rec,key))
+            throw new IOException("Corrupted record at "+offset+" in "+logFile);
+
+        byte[] data = new byte[len-KEY];
+        System.arraycopy(rec,KEY,data,0,data.length);
+        return data;
+    }
+
+    /**
+     * Stores the data for the key, replacing the previous data.
+     */
+    public synchronized void put(byte[] key, byte[] data) throws IOException {
+        if(data.length==0)
+            throw new IllegalArgumentException("Data can't be empty");
+        long offset = append(key,data);
+        index(key,offset);
+        syncIfDue();
+    }
+
+    /**
+     * Removes the key, if it exists.
+     */
+    public synchronized void remove(byte[] key) throws IOException {
+        if(find(key)<0)     return;
+        append(key,new byte[0]);
+        unindex(key);
+        syncIfDue();
+    }
+
+    /**
+     * Number of keys.
+     */
+    public synchronized int size() {
+        return live;
+    }
+
+    /**
+     * Size of the log file, including the obsolete records.
+     */
+    public synchronized long getLogSize() {
+        return logEnd;
+    }
+
+    /**
+     * Lists the keys at the time of the invocation.
+     */
+    public synchronized Iterator<byte[]> keys() throws IOException {
+        ByteArrayOutputStream buf = new ByteArrayOutputStream(live*KEY);
+        for( int s=0; s<capacity; s+=BATCH ) {
+            int count = Math.min(BATCH,capacity-s);
+            ByteBuffer b = readFully(index,slotPos(s),count*SLOT);
+            for( int i=0; i<count; i++ ) {
+                b.position(i*SLOT+KEY);
+                if(b.getLong()>0)
+                    buf.write(b.array(),i*SLOT,KEY);
+            }
+        }
+        final byte[] keys = buf.toByteArray();
+        final int size = keys.length/KEY;
+        return new Iterator<byte[]>() {
+            int i=0;
+            public boolean hasNext() {
+                return i<size;
+            }
+
+            public byte[] next() {
+                if(!hasNext())  throw new NoSuchElementException();
+                byte[] key = new byte[KEY];
+                System.arraycopy(keys,(i++)*KEY,key,0,KEY);
+                return key;
+            }
+
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    /**
+     * Rewrites the log with just the latest record of each key.
+     */
+    public synchronized void compact() throws IOException {
+        File newLogFile = new File(logFile.getPath()+".tmp");
+        File newIndexFile = new File(indexFile.getPath()+".tmp");
+
+        FileChannel oldLog = log, oldIndex = index;
+        int oldCapacity = capacity;
+        long oldLogEnd = logEnd;
+        long oldId = id;
+        int oldUsed = used, oldLive = live;
+
+        newLogFile.delete();
+        log = null;
+        index = null;
+        try {
+            log = new RandomAccessFile(newLogFile,"rw").getChannel();
+            index = createIndex(newIndexFile,sizeFor(live+1));
+            id = new Random().nextLong();
+            ByteBuffer h = ByteBuffer.allocate(LOG_HEADER);
+            h.putInt(LOG_MAGIC).putInt(VERSION).putLong(id).flip();
+            writeFully(log,h,0);
+            logEnd = LOG_HEADER;
+
+            for( int s=0; s<oldCapacity; s+=BATCH ) {
+                int count = Math.min(BATCH,oldCapacity-s);
+                ByteBuffer b = readFully(oldIndex,INDEX_HEADER+(long)s*SLOT,count*SLOT);
+                for( int i=0; i<count; i++ ) {
+                    b.position(i*SLOT+KEY);
+                    long offset = b.getLong();
+                    if(offset<=0)   continue;
+
+                    // copy the record as is
+                    int len = readFully(oldLog,offset,4).getInt();
+                    if(offset+8+len>oldLogEnd)
+                        throw new IOException("Corrupted record at "+offset+" in "+logFile);
+                    ByteBuffer rec = readFully(oldLog,offset,8+len);
+                    long pos = logEnd;
+                    writeFully(log,rec,pos);
+                    logEnd += 8+len;
+
+                    byte[] key = new byte[KEY];
+                    System.arraycopy(b.array(),i*SLOT,key,0,KEY);
+                    index(key,pos);
+                }
+            }
+            writeIndexHeader();
+        } catch (IOException e) {
+            // roll back to the old files
+            if(log!=null)   log.close();
+            if(index!=null) index.close();
+            newLogFile.delete();
+            newIndexFile.delete();
+            log = oldLog;
+            index = oldIndex;
+            capacity = oldCapacity;
+            logEnd = oldLogEnd;
+            id = oldId;
+            used = oldUsed;
+            live = oldLive;
+            throw e;
+        }
+
+        // switch to the new files. the new log has a new ID,
+        // so a crash in between causes the index to be rebuilt, but doesn't lose data.
+        log.close();
+        index.close();
+        oldLog.close();
+        oldIndex.close();
+        rename(newLogFile,logFile);
+        rename(newIndexFile,indexFile);
+        log = new RandomAccessFile(logFile,"rw").getChannel();
+        index = new RandomAccessFile(indexFile,"rw").getChannel();
+    }
+
+    public synchronized void close() throws IOException {
+        try {
+            writeIndexHeader(true);
+        } finally {
+            log.close();
+            index.close();
+        }
+    }
+
+    /**
+     * Appends a record to the log.
+     *
+     * @return
+     *      the offset of the record.
+     */
+    private long append(byte[] key, byte[] data) throws IOException {
+        int len = KEY+data.length;
+        ByteBuffer b = ByteBuffer.allocate(8+len);
+        b.putInt(len).putInt(0).put(key).put(data);
+        b.putInt(4,crc(b.array(),8,len));
+        b.flip();
+
+        long offset = logEnd;
+        writeFully(log,b,offset);
+        logEnd += b.limit();
+        return offset;
+    }
+
+    /**
+     * Points the key to the record at the given offset.
+     */
+    private void index(byte[] key, long offset) throws IOException {
+        if((used+1)*4L>capacity*3L)
+            rehash();
+
+        int deleted = -1;
+        for( int slot=hash(key); ; slot=(slot+1)&(capacity-1) ) {
+            ByteBuffer b = readFully(index,slotPos(slot),SLOT);
+            b.position(KEY);
+            long o = b.getLong();
+            if(o==EMPTY) {
+                if(deleted>=0) {
+                    slot = deleted;     // reuse the slot of a deleted key
+                } else {
+                    used++;
+                }
+                writeSlot(slot,key,offset);
+                live++;
+                return;
+            }
+            if(o==DELETED) {
+                if(deleted<0)   deleted = slot;
+                continue;
+            }
+            if(equals(b.array(),key)) {
+                writeSlot(slot,key,offset);
+                return;
+            }
+        }
+    }
+
+    /**
+     * Removes the key from the index.
+     */
+    private void unindex(byte[] key) throws IOException {
+        int slot = find(key);
+        if(slot<0)  return;
+        writeSlot(slot,key,DELETED);
+        live--;
+    }
+
+    /**
+     * Finds the slot that points to a record of the key.
+     *
+     * @return -1 if not found.
+     */
+    private int find(byte[] key) throws IOException {
+        for( int slot=hash(key); ; slot=(slot+1)&(capacity-1) ) {
+            ByteBuffer b = readFully(index,slotPos(slot),SLOT);
+            b.position(KEY);
+            long o = b.getLong();
+            if(o==EMPTY)
+                return -1;
+            if(o!=DELETED && equals(b.array(),key))
+                return slot;
+        }
+    }
+
+    private long readOffset(int slot) throws IOException {
+        return readFully(index,slotPos(slot)+KEY,8).getLong();
+    }
+
+    private void writeSlot(int slot, byte[] key, long offset) throws IOException {
+        ByteBuffer b = ByteBuffer.allocate(SLOT);
+        b.put(key).putLong(offset).flip();
+        writeFully(index,b,slotPos(slot));
+    }
+
+    /**
+     * Rebuilds the index into a bigger table, which also clears the slots of the deleted keys.
+     */
+    private void rehash() throws IOException {
+        File newIndexFile = new File(indexFile.getPath()+".tmp");
+        FileChannel oldIndex = index;
+        int oldCapacity = capacity;
+
+        index = createIndex(newIndexFile,sizeFor(live+1));
+        for( int s=0; s<oldCapacity; s+=BATCH ) {
+            int count = Math.min(BATCH,oldCapacity-s);
+            ByteBuffer b = readFully(oldIndex,INDEX_HEADER+(long)s*SLOT,count*SLOT);
+            for( int i=0; i<count; i++ ) {
+                b.position(i*SLOT+KEY);
+                long offset = b.getLong();
+                if(offset>0) {
+                    byte[] key = new byte[KEY];
+                    System.arraycopy(b.array(),i*SLOT,key,0,KEY);
+                    index(key,offset);
+                }
+            }
+        }
+        writeIndexHeader();
+
+        index.close();
+        oldIndex.close();
+        rename(newIndexFile,indexFile);
+        index = new RandomAccessFile(indexFile,"rw").getChannel();
+    }
+
+    /**
+     * Capacity of the index that holds the given number of keys at about half full.
+     */
+    private static int sizeFor(int keys) {
+        int c = INITIAL_CAPACITY;
+        while(c<keys*2)
+            c *= 2;
+        return c;
+    }
+
+    private int hash(byte[] key) {
+        // keys are MD5 hashes, so any 4 bytes are evenly distributed
+        int h = ((key[0]&0xFF)<<24) | ((key[1]&0xFF)<<16) | ((key[2]&0xFF)<<8) | (key[3]&0xFF);
+        return h&(capacity-1);
+    }
+
+    private static long slotPos(int slot) {
+        return INDEX_HEADER+(long)slot*SLOT;
+    }
+
+    private static boolean equals(byte[] rec, byte[] key) {
+        return equals(rec,0,key,0);
+    }
+
+    private static boolean equals(byte[] a, int aStart, byte[] b, int bStart) {
+        for( int i=0; i<KEY; i++ )
+            if(a[aStart+i]!=b[bStart+i])
+                return false;
+        return true;
+    }
+
+    private static int crc(byte[] buf, int start, int len) {
+        CRC32 crc = new CRC32();
+        crc.update(buf,start,len);
+        return (int)crc.getValue();
+    }
+
+    private static ByteBuffer readFully(FileChannel ch, long pos, int len) throws IOException {
+        ByteBuffer b = ByteBuffer.allocate(len);
+        while(b.hasRemaining()) {
+            int n = ch.read(b,pos+b.position());
+            if(n<0)     throw new EOFException();
+        }
+        b.flip();
+        return b;
+    }
+
+    private static void writeFully(FileChannel ch, ByteBuffer b, long pos) throws IOException {
+        while(b.hasRemaining())
+            ch.write(b,pos+b.position());
+    }
+
+    private static void skipFully(DataInputStream in, long n) throws IOException {
+        while(n>0) {
+            long s = in.skip(n);
+            if(s<=0)    throw new EOFException();
+            n -= s;
+        }
+    }
+
+    /**
+     * Replaces a file with another.
+     *
+     * <p>
+     * On Windows, a file can't be renamed over an existing one. The old file is then moved
+     * out of the way to a backup first, which {@link #restore(File)} puts back if we crash
+     * before the new file takes its place.
+     */
+    private static void rename(File from, File to) throws IOException {
+        if(from.renameTo(to))
+            return;
+        File backup = backupOf(to);
+        backup.delete();
+        if(!to.renameTo(backup))
+            throw new IOException("Failed to rename "+to+" to "+backup);
+        if(!from.renameTo(to)) {
+            backup.renameTo(to);
+            throw new IOException("Failed to rename "+from+" to "+to);
+        }
+        backup.delete();
+    }
+
+    /**
+     * Puts back the backup left by an interrupted {@link #rename(File, File)}.
+     */
+    private static void restore(File f) throws IOException {
+        File backup = backupOf(f);
+        if(!backup.exists())
+            return;
+        if(f.exists()) {
+            backup.delete();    // the rename completed
+            return;
+        }
+        LOGGER.warning("Restoring "+f+" from "+backup);
+        if(!backup.renameTo(f))
+            throw new IOException("Failed to rename "+backup+" to "+f);
+    }
+
+    private static File backupOf(File f) {
+        return new File(f.getPath()+".bak");
+    }
+
+    private static final int LOG_MAGIC = 0x48464C47;    // "HFLG"
+    private static final int INDEX_MAGIC = 0x48464958;  // "HFIX"
+    private static final int VERSION = 1;
+
+    private static final int LOG_HEADER = 16;
+    private static final int INDEX_HEADER = 40;
+    private static final int KEY = 16;
+    private static final int SLOT = KEY+8;
+    /**
+     * Number of index slots read at once when scanning the whole index.
+     */
+    private static final int BATCH = 4096;
+    private static final int INITIAL_CAPACITY = 1024;
+
+    /**
+     * Offset of a slot that's never been used, which is what a newly extended file reads as.
+     */
+    private static final long EMPTY = 0;
+    /**
+     * Offset of a slot whose key is deleted. The probing continues past such a slot.
+     */
+    private static final long DELETED = -1;
+
+    /**
+     * How often in milliseconds the index header is brought up to date, which forces the log and
+     * the index to the disk. The records appended since then are replayed after a crash.
+     */
+    public static long SYNC_INTERVAL = Long.getLong(FingerprintLog.class.getName()+".syncInterval",5000);
+
+    private static final Logger LOGGER = Logger.getLogger(FingerprintLog.class.getName());
+}
@@ -0,0 +1,113 @@
+/*
+ * The MIT License
+ * 
+ * Copyright (c) 2004-2009, Sun Microsystems, Inc., Kohsuke Kawaguchi
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.model;
+
+import hudson.ExtensionList;
+import hudson.ExtensionPoint;
+import hudson.Util;
+
+import java.io.IOException;
+import java.util.Iterator;
+
+/**
+ * Persists {@link Fingerprint}s.
+ *
+ * <p>
+ * {@link FingerprintMap} takes care of caching and of making sure that there's only one
+ * {@link Fingerprint} object for any MD5, so implementations only need to read and write
+ * the data. Implementations need to be thread-safe.
+ *
+ * <p>
+ * The storage in use is {@link FileFingerprintStorage}, unless the
+ * <tt>hudson.model.FingerprintStorage</tt> system property names the class of another
+ * implementation, such as {@link LogFingerprintStorage}.
+ *
+ * @since 1.313
+ * @see FingerprintMap
+ */
+public abstract class FingerprintStorage implements ExtensionPoint {
+    /**
+     * Loads the fingerprint of the given MD5.
+     *
+     * @return
+     *      null if there's no such fingerprint.
+     */
+    public abstract Fingerprint load(byte[] md5sum) throws IOException;
+
+    /**
+     * Writes the current state of the fingerprint, replacing the one stored before.
+     */
+    public abstract void save(Fingerprint fp) throws IOException;
+
+    /**
+     * Removes the fingerprint of the given MD5, if any.
+     */
+    public abstract void delete(byte[] md5sum) throws IOException;
+
+    /**
+     * Returns true if there's some data in this storage.
+     */
+    public abstract boolean isReady();
+
+    /**
+     * Lists the MD5s of all the stored fingerprints.
+     *
+     * <p>
+     * The iteration doesn't hold any lock for long, so fingerprints added or deleted
+     * during the iteration may or may not be reported.
+     */
+    public abstract Iterator<byte[]> keys() throws IOException;
+
+    /**
+     * Reclaims the space left by deleted or updated fingerprints.
+     * Called by {@link FingerprintCleanupThread} after it deletes old fingerprints.
+     */
+    public void compact() throws IOException {
+    }
+
+    /**
+     * Returns all the registered {@link FingerprintStorage}s.
+     */
+    public static ExtensionList<FingerprintStorage> all() {
+        return Hudson.getInstance().getExtensionList(FingerprintStorage.class);
+    }
+
+    /**
+     * Returns the {@link FingerprintStorage} in use.
+     */
+    public static FingerprintStorage get() {
+        String type = Util.fixEmpty(TYPE);
+        if(type!=null) {
+            for (FingerprintStorage s : all())
+                if(s.getClass().getName().equals(type) || s.getClass().getSimpleName().equals(type))
+                    return s;
+        }
+        return all().get(FileFingerprintStorage.class);
+    }
+
+    /**
+     * Class name, or the simple class name, of the {@link FingerprintStorage} to use.
+     */
+    public static String TYPE = System.getProperty(FingerprintStorage.class.getName());
+}
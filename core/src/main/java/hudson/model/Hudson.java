@@ -39,6 +39,7 @@ import hudson.Util;
 import static hudson.Util.fixEmpty;
 import static hudson.Util.fixNull;
 import hudson.WebAppMain;
+import hudson.WriteBehind;
 import hudson.XmlFile;
 import hudson.UDPBroadcastThread;
 import hudson.ExtensionList;
@@ -173,6 +174,7 @@ import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
@@ -433,6 +435,16 @@ public final class Hudson extends Node implements ItemGroup<TopLevelItem>, Stapl
     private transient volatile Set<Label> labelSet;
     private transient volatile Set<Label> dynamicLabels = null;
 
+    /**
+     * Labels assigned to each {@link Node} (including Hudson itself) as of the last
+     * time the label index was updated. This is the reverse of {@link Label#getNodes()},
+     * and the two are kept in sync by {@link #updateLabelIndex()} and {@link #updateLabelIndex(Node)}.
+     *
+     * Keyed by identity, since a reconfigured {@link Slave} is equal to its old instance.
+     * Guarded by itself.
+     */
+    private transient final Map<Node,Set<Label>> nodeLabels = new IdentityHashMap<Node,Set<Label>>();
+
     /**
      * Load statistics of the entire system.
      */
@@ -1378,6 +1390,7 @@ public final class Hudson extends Node implements ItemGroup<TopLevelItem>, Stapl
                 throw new IllegalArgumentException(n.getNodeName()+" is defined more than once");
         this.slaves = new NodeList(nodes);
         updateComputerList();
+        updateLabelIndex();
         trimLabels();
         save();
     }
@@ -1390,6 +1403,65 @@ public final class Hudson extends Node implements ItemGroup<TopLevelItem>, Stapl
     	return globalNodeProperties;
     }
 
+    /**
+     * Brings the label index in sync with the current set of nodes.
+     *
+     * <p>
+     * Nodes that are no longer a part of Hudson are dropped first, then
+     * the labels of the remaining nodes are updated. Only the labels that were
+     * actually added or removed get touched.
+     */
+    private void updateLabelIndex() {
+        // compute labels outside the lock, as dynamic labels can require a remote call
+        Map<Node,Set<Label>> live = new IdentityHashMap<Node,Set<Label>>();
+        live.put(this,getAssignedLabels());
+        for (Node n : slaves)
+            live.put(n,n.getAssignedLabels());
+
+        synchronized (nodeLabels) {
+            for (Iterator<Entry<Node,Set<Label>>> itr = nodeLabels.entrySet().iterator(); itr.hasNext();) {
+                Entry<Node,Set<Label>> e = itr.next();
+                if(!live.containsKey(e.getKey())) {
+                    for (Label l : e.getValue())
+                        l.removeNode(e.getKey());
+                    itr.remove();
+                }
+            }
+
+            for (Entry<Node,Set<Label>> e : live.entrySet())
+                updateLabels(e.getKey(), e.getValue());
+        }
+    }
+
+    /**
+     * Updates the label index for a single node whose labels might have changed,
+     * for example because its dynamic labels got recomputed.
+     *
+     * Nodes that aren't a part of Hudson are ignored.
+     */
+    /*package*/ void updateLabelIndex(Node n) {
+        Set<Label> assigned = n.getAssignedLabels();
+        synchronized (nodeLabels) {
+            if(nodeLabels.containsKey(n))
+                updateLabels(n, assigned);
+        }
+    }
+
+    private void updateLabels(Node n, Set<Label> assigned) {
+        Set<Label> old = nodeLabels.get(n);
+        if(old==assigned)
+            return; // nodes recompute the set when it changes, so this is the common case
+        if(old==null)
+            old = Collections.emptySet();
+        for (Label l : old)
+            if(!assigned.contains(l))
+                l.removeNode(n);
+        for (Label l : assigned)
+            if(!old.contains(l))
+                l.addNode(n);
+        nodeLabels.put(n,assigned);
+    }
+
     /**
      * Resets all labels and remove invalid ones.
      */
@@ -1439,6 +1511,31 @@ public final class Hudson extends Node implements ItemGroup<TopLevelItem>, Stapl
         }
     }
 
+    /**
+     * Dynamic labels are recomputed when a computer connects, so update the label index
+     * for that node, instead of rescanning everything.
+     *
+     * @see hudson.tasks.LabelFinder
+     */
+    @Extension
+    public static final class LabelIndexUpdater extends ComputerListener {
+        @Override
+        public void onOnline(Computer c, TaskListener listener) {
+            update(c);
+        }
+
+        @Override
+        public void onOffline(Computer c) {
+            update(c);
+        }
+
+        private void update(Computer c) {
+            Node n = c.getNode();
+            if(n!=null)
+                Hudson.getInstance().updateLabelIndex(n);
+        }
+    }
+
     /**
      * Gets the system default quiet period.
      */
@@ -1966,6 +2063,7 @@ public final class Hudson extends Node implements ItemGroup<TopLevelItem>, Stapl
             }
         });
         items.clear();
+        final StartupSnapshot snapshot = STARTUP_SNAPSHOT ? StartupSnapshot.open(new File(root,"jobs.snapshot")) : null;
         if(PARALLEL_LOAD) {
             // load jobs in parallel for better performance
             LOGGER.info("Loading in "+TWICE_CPU_NUM+" parallel threads");
@@ -1978,7 +2076,7 @@ public final class Hudson extends Node implements ItemGroup<TopLevelItem>, Stapl
                         t.setName("Loading "+subdir);
                         try {
                             long start = System.currentTimeMillis();
-                            TopLevelItem item = (TopLevelItem) Items.load(Hudson.this, subdir);
+                            TopLevelItem item = (TopLevelItem) Items.load(Hudson.this, subdir, snapshot);
                             if(LOG_STARTUP_PERFORMANCE)
                                 LOGGER.info("Loaded "+item.getName()+" in "+(System.currentTimeMillis()-start)+"ms by "+name);
                             return item;
@@ -2003,7 +2101,7 @@ public final class Hudson extends Node implements ItemGroup<TopLevelItem>, Stapl
             for (File subdir : subdirs) {
                 try {
                     long start = System.currentTimeMillis();
-                    TopLevelItem item = (TopLevelItem)Items.load(this,subdir);
+                    TopLevelItem item = (TopLevelItem)Items.load(this,subdir,snapshot);
                     if(LOG_STARTUP_PERFORMANCE)
                         LOGGER.info("Loaded "+item.getName()+" in "+(System.currentTimeMillis()-start)+"ms");
                     items.put(item.getName(), item);
@@ -2016,13 +2114,12 @@ public final class Hudson extends Node implements ItemGroup<TopLevelItem>, Stapl
                 }
             }
         }
+        if(snapshot!=null)
+            snapshot.save();
         rebuildDependencyGraph();
 
-        {// recompute label objects
-            for (Node slave : slaves)
-                slave.getAssignedLabels();
-            getAssignedLabels();
-        }
+        // recompute label objects
+        updateLabelIndex();
 
         // initialize views by inserting the default view if necessary
         // this is both for clean Hudson and for backward compatibility.
@@ -2105,6 +2202,8 @@ public final class Hudson extends Node implements ItemGroup<TopLevelItem>, Stapl
             // don't try to save. Issue #536
             getQueue().save();
 
+        WriteBehind.flush();
+
         threadPoolForLoad.shutdown();
         for (Future<?> f : pending)
             try {
@@ -2213,6 +2312,7 @@ public final class Hudson extends Node implements ItemGroup<TopLevelItem>, Stapl
 
             label = fixNull(req.getParameter("_.labelString"));
             labelSet=null;
+            updateLabelIndex(this);
 
             quietPeriod = Integer.parseInt(req.getParameter("quiet_period"));
 
@@ -3408,6 +3508,13 @@ public final class Hudson extends Node implements ItemGroup<TopLevelItem>, Stapl
     public static boolean PARALLEL_LOAD = !"false".equals(System.getProperty(Hudson.class.getName()+".parallelLoad"));
     public static boolean KILL_AFTER_LOAD = Boolean.getBoolean(Hudson.class.getName()+".killAfterLoad");
     public static boolean LOG_STARTUP_PERFORMANCE = Boolean.getBoolean(Hudson.class.getName()+".logStartupPerformance");
+    /**
+     * If true, job configurations are read through a binary snapshot kept in <tt>$HUDSON_HOME/jobs.snapshot</tt>,
+     * so that the unchanged <tt>config.xml</tt> files don't have to be parsed on every boot.
+     *
+     * @since 1.313
+     */
+    public static boolean STARTUP_SNAPSHOT = Boolean.getBoolean(Hudson.class.getName()+".startupSnapshot");
     private static final boolean CONSISTENT_HASH = true; // Boolean.getBoolean(Hudson.class.getName()+".consistentHash");
 
     private static final Logger LOGGER = Logger.getLogger(Hudson.class.getName());
@@ -108,6 +108,17 @@ public class Items {
         return item;
     }
 
+    /**
+     * Loads a {@link Item} from a config file, through the {@link StartupSnapshot}.
+     */
+    /*package*/ static Item load(ItemGroup parent, File dir, StartupSnapshot snapshot) throws IOException {
+        if(snapshot==null)
+            return load(parent,dir);
+        Item item = (Item)snapshot.read(dir.getName(),getConfigFile(dir).getFile(),XSTREAM);
+        item.onLoad(parent,dir.getName());
+        return item;
+    }
+
     /**
      * The file we save our configuration.
      */
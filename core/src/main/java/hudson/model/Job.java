@@ -26,6 +26,7 @@ package hudson.model;
 import static javax.servlet.http.HttpServletResponse.SC_BAD_REQUEST;
 import hudson.ExtensionPoint;
 import hudson.Util;
+import hudson.WriteBehind;
 import hudson.XmlFile;
 import hudson.PermalinkList;
 import hudson.model.Descriptor.FormException;
@@ -469,6 +470,9 @@ public abstract class Job<JobT extends Job<JobT, RunT>, RunT extends Run<JobT, R
 
                 boolean success = false;
 
+                // builds that haven't been written yet need to move with the rest
+                WriteBehind.flush(oldRoot);
+
                 try {// rename data files
                     boolean interrupted = false;
                     boolean renamed = false;
@@ -702,13 +706,7 @@ public abstract class Job<JobT extends Job<JobT, RunT>, RunT extends Run<JobT, R
     @Exported
     @QuickSilver
     public RunT getLastSuccessfulBuild() {
-        RunT r = getLastBuild();
-        // temporary hack till we figure out what's causing this bug
-        while (r != null
-                && (r.isBuilding() || r.getResult() == null || r.getResult()
-                        .isWorseThan(Result.UNSTABLE)))
-            r = r.getPreviousBuild();
-        return r;
+        return getLastBuild(BuildSummaryIndex.Kind.SUCCESSFUL);
     }
 
     /**
@@ -718,11 +716,7 @@ public abstract class Job<JobT extends Job<JobT, RunT>, RunT extends Run<JobT, R
     @Exported
     @QuickSilver
     public RunT getLastStableBuild() {
-        RunT r = getLastBuild();
-        while (r != null
-                && (r.isBuilding() || r.getResult().isWorseThan(Result.SUCCESS)))
-            r = r.getPreviousBuild();
-        return r;
+        return getLastBuild(BuildSummaryIndex.Kind.STABLE);
     }
 
     /**
@@ -731,10 +725,7 @@ public abstract class Job<JobT extends Job<JobT, RunT>, RunT extends Run<JobT, R
     @Exported
     @QuickSilver
     public RunT getLastFailedBuild() {
-        RunT r = getLastBuild();
-        while (r != null && (r.isBuilding() || r.getResult() != Result.FAILURE))
-            r = r.getPreviousBuild();
-        return r;
+        return getLastBuild(BuildSummaryIndex.Kind.FAILED);
     }
 
     /**
@@ -743,10 +734,51 @@ public abstract class Job<JobT extends Job<JobT, RunT>, RunT extends Run<JobT, R
     @Exported
     @QuickSilver
     public RunT getLastCompletedBuild() {
+        return getLastBuild(BuildSummaryIndex.Kind.COMPLETED);
+    }
+
+    /**
+     * Returns the newest build of the given kind.
+     *
+     * <p>
+     * If this job has a {@link #getBuildSummaryIndex() summary index}, only the builds
+     * newer than the index are examined, and the rest is resolved through the index.
+     */
+    private RunT getLastBuild(BuildSummaryIndex.Kind kind) {
+        BuildSummaryIndex index = getBuildSummaryIndex();
+        int newest = index!=null ? index.getNewest() : 0;
+
         RunT r = getLastBuild();
-        while (r != null && r.isBuilding())
+        // builds that aren't in the index yet, such as the ones in progress
+        while (r != null && (index==null || r.getNumber() > newest)) {
+            if (kind.matches(r))
+                return r;
             r = r.getPreviousBuild();
-        return r;
+        }
+        if (r == null)
+            return null;
+
+        while (true) {
+            BuildSummaryIndex.Summary s = index.getLast(kind);
+            if (s == null)
+                return null;
+            RunT b = getBuildByNumber(s.number);
+            if (b != null)
+                return b;
+            // the build is gone without us noticing
+            index.remove(s.number);
+        }
+    }
+
+    /**
+     * Gets the summary index of the completed builds of this job, if any.
+     *
+     * @return
+     *      null if this job doesn't maintain such an index, in which case
+     *      permalinks are resolved by walking the build history.
+     */
+    public BuildSummaryIndex getBuildSummaryIndex() {
+        return null;
     }
 
     /**
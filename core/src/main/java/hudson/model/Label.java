@@ -53,7 +53,11 @@ import com.thoughtworks.xstream.io.HierarchicalStreamReader;
 @ExportedBean
 public class Label implements Comparable<Label>, ModelObject {
     private final String name;
-    private volatile Set<Node> nodes;
+    /**
+     * {@link Node}s that have this label, maintained by {@link Hudson}'s label index.
+     * Copy on write.
+     */
+    private volatile Set<Node> nodes = Collections.emptySet();
     private volatile Set<Cloud> clouds;
 
     public final LoadStatistics loadStatistics;
@@ -104,20 +108,27 @@ public class Label implements Comparable<Label>, ModelObject {
      */
     @Exported
     public Set<Node> getNodes() {
-        if(nodes==null) {
-            Set<Node> r = new HashSet<Node>();
-            Hudson h = Hudson.getInstance();
-            if(h.getAssignedLabels().contains(this))
-                r.add(h);
-            for (Node n : h.getNodes()) {
-                if(n.getAssignedLabels().contains(this))
-                    r.add(n);
-            }
-            nodes = Collections.unmodifiableSet(r);
-        }
         return nodes;
     }
 
+    /**
+     * Called by {@link Hudson} when the given node gets this label.
+     */
+    /*package*/ synchronized void addNode(Node n) {
+        Set<Node> r = new HashSet<Node>(nodes);
+        r.add(n);
+        nodes = Collections.unmodifiableSet(r);
+    }
+
+    /**
+     * Called by {@link Hudson} when the given node loses this label.
+     */
+    /*package*/ synchronized void removeNode(Node n) {
+        Set<Node> r = new HashSet<Node>(nodes);
+        r.remove(n);
+        nodes = Collections.unmodifiableSet(r);
+    }
+
     /**
      * Gets all {@link Cloud}s that can launch for this label.
      */
@@ -284,7 +295,6 @@ public class Label implements Comparable<Label>, ModelObject {
     }
     
     /*package*/ void reset() {
-        nodes = null;
         clouds = null;
     }
 
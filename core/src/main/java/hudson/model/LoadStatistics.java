@@ -42,7 +42,6 @@ import org.kohsuke.stapler.QueryParameter;
 
 import java.awt.*;
 import java.io.IOException;
-import java.util.List;
 
 /**
  * Utilization statistics for a node or a set of nodes.
@@ -185,32 +184,22 @@ public abstract class LoadStatistics {
 
         protected void doRun() {
             Hudson h = Hudson.getInstance();
-            List<hudson.model.Queue.BuildableItem> bis = h.getQueue().getBuildableItems();
+            Queue queue = h.getQueue();
 
             // update statistics on slaves
             for( Label l : h.getLabels() ) {
                 l.loadStatistics.totalExecutors.update(l.getTotalExecutors());
                 l.loadStatistics.busyExecutors .update(l.getBusyExecutors());
-
-                int q=0;
-                for (hudson.model.Queue.BuildableItem bi : bis) {
-                    if(bi.task.getAssignedLabel()==l)
-                        q++;
-                }
-                l.loadStatistics.queueLength.update(q);
+                // the queue keeps buildable items indexed by labels, so this is cheap
+                l.loadStatistics.queueLength.update(queue.countBuildableItemsFor(l));
             }
 
             // update statistics of the entire system
             ComputerSet cs = h.getComputer();
             h.overallLoad.totalExecutors.update(cs.getTotalExecutors());
             h.overallLoad.busyExecutors .update(cs.getBusyExecutors());
-            int q=0;
-            for (hudson.model.Queue.BuildableItem bi : bis) {
-                if(bi.task.getAssignedLabel()==null)
-                    q++;
-            }
-            h.overallLoad.queueLength.update(q);
-            h.overallLoad.totalQueueLength.update(bis.size());
+            h.overallLoad.queueLength.update(queue.countBuildableItemsFor(null));
+            h.overallLoad.totalQueueLength.update(queue.getBuildableItems().size());
         }
     }
 }
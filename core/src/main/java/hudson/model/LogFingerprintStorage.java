@@ -0,0 +1,216 @@
+/*
+ * The MIT License
+ * 
+ * Copyright (c) 2004-2009, Sun Microsystems, Inc., Kohsuke Kawaguchi
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.model;
+
+import hudson.Extension;
+import hudson.util.Iterators.FlattenIterator;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * {@link FingerprintStorage} that appends fingerprints in a compact binary form to
+ * <tt>$HUDSON_HOME/fingerprints.log</tt>, and looks them up through the hash index
+ * in <tt>$HUDSON_HOME/fingerprints.idx</tt>.
+ *
+ * <p>
+ * Compared to {@link FileFingerprintStorage}, updating a fingerprint is an append
+ * rather than rewriting an XML file, and there's no directory tree with a file per fingerprint.
+ * The space taken by the old versions is reclaimed by {@link #compact()}, which
+ * {@link FingerprintCleanupThread} runs daily.
+ *
+ * <p>
+ * To use this storage, start Hudson with <tt>-Dhudson.model.FingerprintStorage=LogFingerprintStorage</tt>.
+ * Fingerprints that only exist in the XML files are moved here when they are first loaded,
+ * and the <tt>migrate-fingerprints</tt> CLI command moves all of them at once.
+ *
+ * @since 1.313
+ * @see FingerprintLog
+ */
+@Extension
+public class LogFingerprintStorage extends FingerprintStorage {
+    /**
+     * Null to use <tt>$HUDSON_HOME</tt>.
+     */
+    private final File root;
+    /**
+     * Where the fingerprints used to be stored. Null to not look for the old data.
+     */
+    private final FileFingerprintStorage legacy;
+
+    private FingerprintLog log;
+
+    public LogFingerprintStorage() {
+        this(null,new FileFingerprintStorage());
+    }
+
+    public LogFingerprintStorage(File root, FileFingerprintStorage legacy) {
+        this.root = root;
+        this.legacy = legacy;
+    }
+
+    private File getRootDir() {
+        return root!=null ? root : Hudson.getInstance().getRootDir();
+    }
+
+    /**
+     * Opens the log lazily, as the extension is instantiated whether it's used or not.
+     */
+    private synchronized FingerprintLog getLog() throws IOException {
+        if(log==null)
+            log = new FingerprintLog(new File(getRootDir(),"fingerprints.log"),new File(getRootDir(),"fingerprints.idx"));
+        return log;
+    }
+
+    public Fingerprint load(byte[] md5sum) throws IOException {
+        byte[] data = getLog().get(md5sum);
+        if(data!=null)
+            return Fingerprint.readFrom(md5sum,new DataInputStream(new ByteArrayInputStream(data)));
+        if(legacy!=null)
+            return importLegacy(md5sum);
+        return null;
+    }
+
+    /**
+     * Moves the fingerprint from the XML file that the old version of Hudson wrote, if any.
+     */
+    private synchronized Fingerprint importLegacy(byte[] md5sum) throws IOException {
+        byte[] data = getLog().get(md5sum);
+        if(data!=null)  // imported by another thread since we checked
+            return Fingerprint.readFrom(md5sum,new DataInputStream(new ByteArrayInputStream(data)));
+
+        Fingerprint fp = legacy.load(md5sum);
+        if(fp!=null) {
+            save(fp);
+            legacy.delete(md5sum);
+        }
+        return fp;
+    }
+
+    /**
+     * Moves all the fingerprints from the XML files into the log.
+     *
+     * @param listener
+     *      Receives the progress report.
+     * @return
+     *      number of fingerprints moved.
+     */
+    public int migrate(TaskListener listener) throws IOException {
+        if(legacy==null)    return 0;
+
+        int n = 0;
+        for (Iterator<byte[]> itr = legacy.keys(); itr.hasNext(); ) {
+            byte[] md5sum = itr.next();
+            synchronized (this) {
+                // if a crash left the fingerprint in both, the one in the log is newer
+                if(getLog().get(md5sum)==null) {
+                    Fingerprint fp = legacy.load(md5sum);
+                    if(fp==null)    continue;   // deleted since then
+                    save(fp);
+                    n++;
+                    if(n%10000==0)
+                        listener.getLogger().println("Migrated "+n+" fingerprints");
+                }
+                legacy.delete(md5sum);
+            }
+        }
+        legacy.compact();
+        listener.getLogger().println("Migrated "+n+" fingerprints");
+        return n;
+    }
+
+    public void save(Fingerprint fp) throws IOException {
+        ByteArrayOutputStream buf = new ByteArrayOutputStream(256);
+        DataOutputStream out = new DataOutputStream(buf);
+        fp.writeTo(out);
+        out.close();
+        getLog().put(fp.getMD5(),buf.toByteArray());
+    }
+
+    public void delete(byte[] md5sum) throws IOException {
+        getLog().remove(md5sum);
+        if(legacy!=null)
+            legacy.delete(md5sum);
+    }
+
+    public boolean isReady() {
+        try {
+            return getLog().size()>0 || (legacy!=null && legacy.isReady());
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Failed to open the fingerprint log", e);
+            return false;
+        }
+    }
+
+    /**
+     * Lists the fingerprints in the log, followed by those that are still in the XML files.
+     * A fingerprint in both is listed twice.
+     */
+    public Iterator<byte[]> keys() throws IOException {
+        Iterator<byte[]> keys = getLog().keys();
+        if(legacy==null)
+            return keys;
+        return new FlattenIterator<byte[],Iterator<byte[]>>(Arrays.asList(keys,legacy.keys())) {
+            protected Iterator<byte[]> expand(Iterator<byte[]> itr) {
+                return itr;
+            }
+        };
+    }
+
+    /**
+     * Rewrites the log without the old versions of the fingerprints.
+     * This blocks the access to the fingerprints while it runs.
+     * Also deletes the directories of the XML files that no longer have any fingerprint.
+     */
+    public void compact() throws IOException {
+        FingerprintLog log = getLog();
+        long before = log.getLogSize();
+        long start = System.currentTimeMillis();
+        log.compact();
+        LOGGER.info("Compacted the fingerprint log from "+before+" to "+log.getLogSize()+" bytes in "
+                +(System.currentTimeMillis()-start)+"ms");
+        if(legacy!=null)
+            legacy.compact();   // the directories emptied by the migration or the cleanup
+    }
+
+    /**
+     * Closes the log files. The storage reopens them when it's used again.
+     */
+    public synchronized void close() throws IOException {
+        if(log!=null) {
+            log.close();
+            log = null;
+        }
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(LogFingerprintStorage.class.getName());
+}
@@ -43,8 +43,12 @@ import java.lang.ref.WeakReference;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Calendar;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.GregorianCalendar;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
@@ -118,6 +122,24 @@ public class Queue extends ResourceController implements Saveable {
      */
     private final ItemList<BuildableItem> buildables = new ItemList<BuildableItem>();
 
+    /**
+     * Immutable copy of {@link #waitingList}, {@link #blockedProjects}, and {@link #buildables},
+     * or null if they have been modified since the last copy. See {@link #snapshot()}.
+     *
+     * <p>
+     * Read operations use this instead of the live data structures, so that
+     * rendering the queue doesn't have to wait for executors and schedulers
+     * that hold the queue lock.
+     */
+    private volatile Snapshot snapshot = new Snapshot();
+
+    /**
+     * Set when something happened that can unblock {@link #blockedProjects},
+     * such as a completion of a build or a configuration change, so that
+     * the next maintenance re-evaluates them. Guarded by the queue lock.
+     */
+    private boolean blockedProjectsDirty = true;
+
     /**
      * Data structure created for each idle {@link Executor}.
      * This is a job offer from the queue to an executor.
@@ -189,6 +211,18 @@ public class Queue extends ResourceController implements Saveable {
 
     private volatile transient LoadBalancer loadBalancer;
 
+    /**
+     * Changes made since the queue was last {@linkplain #save() saved} in full.
+     * Created on demand, as {@link Hudson#getRootDir()} isn't available when the queue is created.
+     * Guarded by the queue lock.
+     */
+    private QueueJournal journal;
+
+    /**
+     * Serializes {@link #save()} and {@link #load()}. Always acquired before the queue lock.
+     */
+    private final Object saveLock = new Object();
+
     public Queue(LoadBalancer loadBalancer) {
         this.loadBalancer =  loadBalancer.sanitize();
         // if all the executors are busy doing something, then the queue won't be maintained in
@@ -206,97 +240,227 @@ public class Queue extends ResourceController implements Saveable {
     }
 
     /**
-     * Loads the queue contents that was {@link #save() saved}.
+     * Loads the queue contents that was {@link #save() saved}, and the changes
+     * {@linkplain QueueJournal journaled} after that.
+     *
+     * <p>
+     * The journal is only replayed if it's left by the previous run. Changes journaled by this
+     * queue describe the in-memory state that this method is replacing, so they are discarded.
      */
-    public synchronized void load() {
-        try {
-            // first try the old format
-            File queueFile = getQueueFile();
-            if (queueFile.exists()) {
-                BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(queueFile)));
-                String line;
-                while ((line = in.readLine()) != null) {
-                    AbstractProject j = Hudson.getInstance().getItemByFullName(line, AbstractProject.class);
-                    if (j != null)
-                        j.scheduleBuild();
-                }
-                in.close();
-                // discard the queue file now that we are done
-                queueFile.delete();
-            } else {
-                queueFile = getXMLQueueFile();
-                if (queueFile.exists()) {
-                    List list = (List) new XmlFile(XSTREAM, queueFile).read();
-                    int maxId = 0;
-                    for (Object o : list) {
-                        if (o instanceof Task) {
-                            // backward compatiblity
-                            schedule((Task)o, 0);
-                        } else if (o instanceof Item) {
-                            Item item = (Item)o;
-                            if(item.task==null)
-                                continue;   // botched persistence. throw this one away
-
-                            maxId = Math.max(maxId, item.id);
-                            if (item instanceof WaitingItem) {
-                                waitingList.add((WaitingItem) item);
-                            } else if (item instanceof BlockedItem) {
-                                blockedProjects.put(item.task, (BlockedItem) item);
-                            } else if (item instanceof BuildableItem) {
-                                buildables.add((BuildableItem) item);
-                            } else {
-                                throw new IllegalStateException("Unknown item type! " + item);
+    public void load() {
+        synchronized (saveLock) {
+            synchronized (this) {
+                boolean replay = !journal().isUsed();
+                try {
+                    // first try the old format
+                    File queueFile = getQueueFile();
+                    if (queueFile.exists()) {
+                        BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(queueFile)));
+                        String line;
+                        while ((line = in.readLine()) != null) {
+                            AbstractProject j = Hudson.getInstance().getItemByFullName(line, AbstractProject.class);
+                            if (j != null)
+                                j.scheduleBuild();
+                        }
+                        in.close();
+                        // discard the queue file now that we are done
+                        queueFile.delete();
+                    } else {
+                        queueFile = getXMLQueueFile();
+                        if (queueFile.exists()) {
+                            List list = (List) new XmlFile(XSTREAM, queueFile).read();
+                            int maxId = 0;
+                            for (Object o : list) {
+                                if (o instanceof Task) {
+                                    // backward compatiblity
+                                    schedule((Task)o, 0);
+                                } else if (o instanceof Item) {
+                                    Item item = (Item)o;
+                                    if(item.task==null)
+                                        continue;   // botched persistence. throw this one away
+
+                                    maxId = Math.max(maxId, item.id);
+                                    addLoaded(item);
+                                } // this conveniently ignores null
                             }
-                        } // this conveniently ignores null
+                            WaitingItem.COUNTER.set(maxId);
+                            updateSnapshot();
+
+                            // I just had an incident where all the executors are dead at AbstractProject._getRuns()
+                            // because runs is null. Debugger revealed that this is caused by a MatrixConfiguration
+                            // object that doesn't appear to be de-serialized properly.
+                            // I don't know how this problem happened, but to diagnose this problem better
+                            // when it happens again, save the old queue file for introspection.
+                            // it's copied, not renamed, so that the journal always has a base to apply to.
+                            File bk = new File(queueFile.getPath() + ".bak");
+                            bk.delete();
+                            Util.copyFile(queueFile,bk);
+                        }
+                    }
+                } catch (IOException e) {
+                    LOGGER.log(Level.WARNING, "Failed to load the queue file " + getQueueFile(), e);
+                }
+
+                if (replay) {
+                    try {
+                        replayJournal();
+                    } catch (IOException e) {
+                        LOGGER.log(Level.WARNING, "Failed to load the queue journal " + journal().getFile(), e);
                     }
-                    WaitingItem.COUNTER.set(maxId);
-
-                    // I just had an incident where all the executors are dead at AbstractProject._getRuns()
-                    // because runs is null. Debugger revealed that this is caused by a MatrixConfiguration
-                    // object that doesn't appear to be de-serialized properly.
-                    // I don't know how this problem happened, but to diagnose this problem better
-                    // when it happens again, save the old queue file for introspection.
-                    File bk = new File(queueFile.getPath() + ".bak");
-                    bk.delete();
-                    queueFile.renameTo(bk);
-                    queueFile.delete();
+                }
+
+                // start a new journal on top of what we just loaded
+                try {
+                    journal().beginCheckpoint(getPersistentItems());
+                    journal().endCheckpoint(getXMLQueueFile());
+                } catch (IOException e) {
+                    LOGGER.log(Level.WARNING, "Failed to write out the queue file " + getXMLQueueFile(), e);
                 }
             }
-        } catch (IOException e) {
-            LOGGER.log(Level.WARNING, "Failed to load the queue file " + getQueueFile(), e);
         }
     }
 
+    /**
+     * Applies the records in the journal left by the previous run.
+     */
+    private void replayJournal() throws IOException {
+        int maxId = WaitingItem.COUNTER.get();
+        for (QueueJournal.Record r : journal().replay()) {
+            switch (r.op) {
+            case QueueJournal.PUT:
+                Item item = (Item)r.item;
+                if(item.task==null)
+                    continue;   // botched persistence. throw this one away
+                removeLoaded(item.id);
+                addLoaded(item);
+                maxId = Math.max(maxId, item.id);
+                break;
+            case QueueJournal.REMOVE:
+                removeLoaded(r.id);
+                break;
+            case QueueJournal.CLEAR:
+                waitingList.clear();
+                blockedProjects.clear();
+                buildables.clear();
+                break;
+            }
+        }
+        WaitingItem.COUNTER.set(maxId);
+        updateSnapshot();
+    }
+
+    /**
+     * Puts a deserialized item into the right stage.
+     */
+    private void addLoaded(Item item) {
+        if (item instanceof WaitingItem) {
+            waitingList.add((WaitingItem) item);
+        } else if (item instanceof BlockedItem) {
+            blockedProjects.put(item.task, (BlockedItem) item);
+        } else if (item instanceof BuildableItem) {
+            buildables.add((BuildableItem) item);
+        } else {
+            throw new IllegalStateException("Unknown item type! " + item);
+        }
+    }
+
+    private void removeLoaded(int id) {
+        for (Iterator<? extends Item> itr = waitingList.iterator(); itr.hasNext();)
+            if (itr.next().id==id)  itr.remove();
+        for (Iterator<? extends Item> itr = blockedProjects.iterator(); itr.hasNext();)
+            if (itr.next().id==id)  itr.remove();
+        for (Iterator<? extends Item> itr = buildables.iterator(); itr.hasNext();)
+            if (itr.next().id==id)  itr.remove();
+    }
+
     /**
      * Persists the queue contents to the disk.
+     *
+     * <p>
+     * Changes made after that are {@linkplain QueueJournal journaled} as they happen,
+     * and this method is called again once the journal gets long enough.
      */
-    public synchronized void save() {
+    public void save() {
         if(BulkChange.contains(this))  return;
-        
-        // write out the tasks on the queue
+
+        synchronized (saveLock) {
+            try {
+                QueueJournal j;
+                synchronized (this) {
+                    // the items are serialized here, as they keep changing once we release the lock
+                    j = journal();
+                    j.beginCheckpoint(getPersistentItems());
+                }
+                // the actual I/O happens outside the queue lock
+                j.endCheckpoint(getXMLQueueFile());
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Failed to write out the queue file " + getQueueFile(), e);
+            }
+        }
+    }
+
+    /**
+     * Items to be written out by {@link #save()}.
+     * Must be called with the queue lock held, so that it matches the journal.
+     */
+    private ArrayList<Item> getPersistentItems() {
     	ArrayList<Queue.Item> items = new ArrayList<Queue.Item>();
-    	for (Item item: getItems()) {
+    	for (Item item: snapshot().getItems()) {
             if(item.task instanceof TransientTask)  continue;
     	    items.add(item);
     	}
+        return items;
+    }
 
-        try {
-            new XmlFile(XSTREAM, getXMLQueueFile()).write(items);
-        } catch (IOException e) {
-            LOGGER.log(Level.WARNING, "Failed to write out the queue file " + getQueueFile(), e);
+    /**
+     * Gets the journal, creating it on demand.
+     * Must be called with the queue lock held.
+     */
+    private QueueJournal journal() {
+        if (journal==null) {
+            journal = new QueueJournal(new File(Hudson.getInstance().getRootDir(), "queue.journal"), XSTREAM) {
+                protected void compact() {
+                    save();
+                }
+            };
         }
+        return journal;
+    }
+
+    /**
+     * Journals the addition or the change of an item.
+     * Must be called with the queue lock held.
+     */
+    private void journalPut(Item item) {
+        if(item.task instanceof TransientTask)  return;
+        if(item instanceof BlockedItem)
+            // blocked items hold a reference to the queue, so journal it as buildable.
+            // it goes back to blocked at the first maintenance after load.
+            item = new BuildableItem((BlockedItem)item);
+        journal().put(item);
+    }
+
+    /**
+     * Journals the removal of an item.
+     * Must be called with the queue lock held.
+     */
+    private void journalRemove(Item item) {
+        if(item.task instanceof TransientTask)  return;
+        journal().remove(item.id);
     }
 
     /**
      * Wipes out all the items currently in the queue, as if all of them are cancelled at once.
      */
     public synchronized void clear() {
+        journal().clear();
         for (WaitingItem i : waitingList)
             i.onCancelled();
         waitingList.clear();
         blockedProjects.cancelAll();
         buildables.cancelAll();
-        scheduleMaintenance();
+        updateSnapshot();
+        wakeUpExecutor();
     }
 
     private File getQueueFile() {
@@ -396,6 +560,8 @@ public class Queue extends ResourceController implements Saveable {
 
     		// put the item in the queue
     		waitingList.add(added=new WaitingItem(due,p,actions));
+    		updateSnapshot();
+    		journalPut(added);
     	} else {
     		// the requested build is already queued, so will not be added
     		List<WaitingItem> waitingDuplicates = new ArrayList<WaitingItem>();
@@ -407,6 +573,8 @@ public class Queue extends ResourceController implements Saveable {
     			}
     			if ((item instanceof WaitingItem))
     				waitingDuplicates.add((WaitingItem)item);
+    			else if (!actions.isEmpty())
+    				journalPut(item);	// folded actions need to be persisted
     		}
     		if(duplicatesInQueue.size() == 0) {
     			// all duplicates in the queue are already in the blocked or 
@@ -433,9 +601,15 @@ public class Queue extends ResourceController implements Saveable {
     			wi.timestamp = due;
     			waitingList.add(wi);
     		}
+    		for(WaitingItem wi : waitingDuplicates)
+    			journalPut(wi);
+    		// the snapshot shares the items, so the new timestamps are already visible there,
+    		// but it also needs to see the new ordering
+    		if(!waitingDuplicates.isEmpty())
+    		    updateSnapshot();
 
     	}
-    	scheduleMaintenance();   // let an executor know that a new item is in the queue.
+    	wakeUpExecutor();   // let an executor know that a new item is in the queue.
     	return added;
     }
     
@@ -476,24 +650,35 @@ public class Queue extends ResourceController implements Saveable {
             if (item.task.equals(p)) {
                 itr.remove();
                 item.onCancelled();
+                updateSnapshot();
+                journalRemove(item);
                 return true;
             }
         }
-        // use bitwise-OR to make sure that both branches get evaluated all the time
-        return blockedProjects.cancel(p)!=null | buildables.cancel(p)!=null;
+        Item b = blockedProjects.cancel(p);
+        Item x = buildables.cancel(p);
+        if(b!=null)     journalRemove(b);
+        if(x!=null)     journalRemove(x);
+        boolean r = b!=null || x!=null;
+        if(r)
+            updateSnapshot();
+        return r;
     }
     
     public synchronized boolean cancel(Item item) {
         LOGGER.fine("Cancelling " + item.task.getFullDisplayName() + " item#" + item.id);
         // use bitwise-OR to make sure that all the branches get evaluated all the time
         boolean r = (item instanceof WaitingItem && waitingList.remove(item)) | blockedProjects.remove(item) | buildables.remove(item);
-        if(r)
+        if(r) {
             item.onCancelled();
+            updateSnapshot();
+            journalRemove(item);
+        }
         return r;
     }
 
-    public synchronized boolean isEmpty() {
-        return waitingList.isEmpty() && blockedProjects.isEmpty() && buildables.isEmpty();
+    public boolean isEmpty() {
+        return snapshot().isEmpty();
     }
 
     private synchronized WaitingItem peek() {
@@ -504,57 +689,55 @@ public class Queue extends ResourceController implements Saveable {
      * Gets a snapshot of items in the queue.
      */
     @Exported(inline=true)
-    public synchronized Item[] getItems() {
-        Item[] r = new Item[waitingList.size() + blockedProjects.size() + buildables.size()];
-        waitingList.toArray(r);
-        int idx = waitingList.size();
-        for (BlockedItem p : blockedProjects.values())
-            r[idx++] = p;
-        for (BuildableItem p : buildables.values())
-            r[idx++] = p;
-        return r;
+    public Item[] getItems() {
+        return snapshot().getItems();
     }
     
-    public synchronized Item getItem(int id) {
-    	for (Item item: waitingList) if (item.id == id) return item;
-    	for (Item item: blockedProjects) if (item.id == id) return item;
-    	for (Item item: buildables) if (item.id == id) return item;
+    public Item getItem(int id) {
+        Snapshot s = snapshot();
+    	for (Item item: s.waitingList) if (item.id == id) return item;
+    	for (Item item: s.blockedProjects) if (item.id == id) return item;
+    	for (Item item: s.buildables) if (item.id == id) return item;
     	return null;
     }
 
     /**
      * Gets all the {@link BuildableItem}s that are waiting for an executor in the given {@link Computer}.
      */
-    public synchronized List<BuildableItem> getBuildableItems(Computer c) {
+    public List<BuildableItem> getBuildableItems(Computer c) {
+        Snapshot s = snapshot();
+        Node n = c.getNode();
         List<BuildableItem> result = new ArrayList<BuildableItem>();
-        for (BuildableItem p : buildables.values()) {
-            Label l = p.task.getAssignedLabel();
+        int groups = 0;
+        // check each label once, instead of once for every item
+        for (Entry<Label,List<BuildableItem>> e : s.getBuildablesByLabel().entrySet()) {
+            Label l = e.getKey();
             if (l != null) {
                 // if a project has assigned label, it can be only built on it
-                if (!l.contains(c.getNode()))
+                if (!l.contains(n))
                     continue;
             }
-            result.add(p);
+            result.addAll(e.getValue());
+            groups++;
         }
+        if (groups>1)
+            Collections.sort(result,s.buildablesOrder());
         return result;
     }
 
     /**
      * Gets the snapshot of {@link #buildables}.
      */
-    public synchronized List<BuildableItem> getBuildableItems() {
-        return new ArrayList<BuildableItem>(buildables.values());
+    public List<BuildableItem> getBuildableItems() {
+        return new ArrayList<BuildableItem>(snapshot().buildables);
     }
 
     /**
      * How many {@link BuildableItem}s are assigned for the given label?
      */
-    public synchronized int countBuildableItemsFor(Label l) {
-        int r = 0;
-        for (BuildableItem bi : buildables.values())
-            if(bi.task.getAssignedLabel()==l)
-                r++;
-        return r;
+    public int countBuildableItemsFor(Label l) {
+        List<BuildableItem> items = snapshot().getBuildablesByLabel().get(l);
+        return items!=null ? items.size() : 0;
     }
 
     /**
@@ -562,19 +745,9 @@ public class Queue extends ResourceController implements Saveable {
      *
      * @return null if the project is not in the queue.
      */
-    public synchronized Item getItem(Task t) {
-        BlockedItem bp = blockedProjects.get(t);
-        if (bp!=null)
-            return bp;
-        BuildableItem bi = buildables.get(t);
-        if(bi!=null)
-            return bi;
-
-        for (Item item : waitingList) {
-            if (item.task == t)
-                return item;
-        }
-        return null;
+    public Item getItem(Task t) {
+        List<Item> items = snapshot().getItems(t);
+        return items.isEmpty() ? null : items.get(0);
     }
 
     /**
@@ -582,15 +755,8 @@ public class Queue extends ResourceController implements Saveable {
      *
      * @return null if the project is not in the queue.
      */
-    public synchronized List<Item> getItems(Task t) {
-    	List<Item> result =new ArrayList<Item>();
-    	result.addAll(blockedProjects.getAll(t));
-    	result.addAll(buildables.getAll(t));
-        for (Item item : waitingList) {
-            if (item.task == t)
-                result.add(item);
-        }
-        return result;
+    public List<Item> getItems(Task t) {
+        return new ArrayList<Item>(snapshot().getItems(t));
     }
 
     /**
@@ -605,14 +771,8 @@ public class Queue extends ResourceController implements Saveable {
     /**
      * Returns true if this queue contains the said project.
      */
-    public synchronized boolean contains(Task t) {
-        if (blockedProjects.containsKey(t) || buildables.containsKey(t))
-            return true;
-        for (Item item : waitingList) {
-            if (item.task == t)
-                return true;
-        }
-        return false;
+    public boolean contains(Task t) {
+        return !snapshot().getItems(t).isEmpty();
     }
 
     /**
@@ -636,9 +796,10 @@ public class Queue extends ResourceController implements Saveable {
                     // reuse executor thread to do a queue maintenance.
                     // at the end of this we get all the buildable jobs
                     // in the buildables field.
-                    maintain();
+                    maintain(false);
 
                     // allocate buildable jobs to executors
+                    boolean modified = false;
                     Iterator<BuildableItem> itr = buildables.iterator();
                     while (itr.hasNext()) {
                         BuildableItem p = itr.next();
@@ -647,6 +808,7 @@ public class Queue extends ResourceController implements Saveable {
                         if (isBuildBlocked(p.task)) {
                             itr.remove();
                             blockedProjects.put(p.task,new BlockedItem(p));
+                            modified = true;
                             continue;
                         }
 
@@ -662,7 +824,11 @@ public class Queue extends ResourceController implements Saveable {
                         // found a matching executor. use it.
                         runner.set(p);
                         itr.remove();
+                        journalRemove(p);
+                        modified = true;
                     }
+                    if (modified)
+                        updateSnapshot();
 
                     // we went over all the buildable projects and awaken
                     // all the executors that got work to do. now, go to sleep
@@ -708,15 +874,18 @@ public class Queue extends ResourceController implements Saveable {
                     // note that while this thread is waiting for CPU
                     // someone else can schedule this build again,
                     // so check the contains method first.
-                    if (!contains(offer.item.task))
+                    if (!contains(offer.item.task)) {
                         buildables.put(offer.item.task,offer.item);
+                        updateSnapshot();
+                        journalPut(offer.item);
+                    }
                 }
 
                 // since this executor might have been chosen for
                 // maintenance, schedule another one. Worst case
                 // we'll just run a pointless maintenance, and that's
                 // fine.
-                scheduleMaintenance();
+                wakeUpExecutor();
             }
         }
     }
@@ -787,6 +956,17 @@ public class Queue extends ResourceController implements Saveable {
      * This wakes up one {@link Executor} so that it will maintain a queue.
      */
     public synchronized void scheduleMaintenance() {
+        // the change can affect whether the blocked items are still blocked
+        blockedProjectsDirty = true;
+        wakeUpExecutor();
+    }
+
+    /**
+     * Wakes up one {@link Executor} so that it will maintain a queue,
+     * for changes that only involve the queue itself (such as a new item),
+     * and therefore have no effect on {@link #blockedProjects}.
+     */
+    private synchronized void wakeUpExecutor() {
         // this code assumes that after this method is called
         // no more executors will be offered job except by
         // the pop() code.
@@ -798,6 +978,22 @@ public class Queue extends ResourceController implements Saveable {
         }
     }
 
+    /**
+     * {@inheritDoc}
+     *
+     * <p>
+     * Once the execution completes, its resources are released and the task
+     * is no longer in progress, either of which can unblock other items.
+     */
+    @Override
+    public void execute(Runnable task, ResourceActivity activity) throws InterruptedException {
+        try {
+            super.execute(task, activity);
+        } finally {
+            scheduleMaintenance();
+        }
+    }
+
     /**
      * Checks if the given task is blocked.
      */
@@ -813,17 +1009,33 @@ public class Queue extends ResourceController implements Saveable {
      * appropriately.
      */
     public synchronized void maintain() {
+        maintain(true);
+    }
+
+    /**
+     * @param full
+     *      If false, {@link #blockedProjects} are only re-evaluated when something
+     *      that can unblock them has happened since the last maintenance.
+     *      Items in {@link #waitingList} are only looked at when they are due either way.
+     */
+    private synchronized void maintain(boolean full) {
         if (LOGGER.isLoggable(Level.FINE))
             LOGGER.fine("Queue maintenance started " + this);
 
-        Iterator<BlockedItem> itr = blockedProjects.values().iterator();
-        while (itr.hasNext()) {
-            BlockedItem p = itr.next();
-            if (!isBuildBlocked(p.task)) {
-                // ready to be executed
-                LOGGER.fine(p.task.getFullDisplayName() + " no longer blocked");
-                itr.remove();
-                buildables.put(p.task,new BuildableItem(p));
+        boolean modified = false;
+
+        if (full || blockedProjectsDirty) {
+            blockedProjectsDirty = false;
+            Iterator<BlockedItem> itr = blockedProjects.values().iterator();
+            while (itr.hasNext()) {
+                BlockedItem p = itr.next();
+                if (!isBuildBlocked(p.task)) {
+                    // ready to be executed
+                    LOGGER.fine(p.task.getFullDisplayName() + " no longer blocked");
+                    itr.remove();
+                    buildables.put(p.task,new BuildableItem(p));
+                    modified = true;
+                }
             }
         }
 
@@ -831,7 +1043,7 @@ public class Queue extends ResourceController implements Saveable {
             WaitingItem top = peek();
 
             if (!top.timestamp.before(new GregorianCalendar()))
-                return; // finished moving all ready items from queue
+                break; // finished moving all ready items from queue
 
             Task p = top.task;
             if (!isBuildBlocked(p)) {
@@ -846,6 +1058,148 @@ public class Queue extends ResourceController implements Saveable {
                 LOGGER.fine(p.getFullDisplayName() + " is blocked");
                 blockedProjects.put(p,new BlockedItem(top));
             }
+            modified = true;
+        }
+
+        if (modified)
+            updateSnapshot();
+    }
+
+    /**
+     * Marks the snapshot stale, so that the next read takes a new copy.
+     * Must be called with the queue lock held, after the queue is modified.
+     *
+     * <p>
+     * The copy is taken lazily, so that a burst of modifications only costs one copy.
+     */
+    private void updateSnapshot() {
+        snapshot = null;
+    }
+
+    /**
+     * Gets the current snapshot, taking a new copy if the queue was modified since the last one.
+     * Only that takes the queue lock.
+     */
+    private Snapshot snapshot() {
+        Snapshot s = snapshot;
+        if (s!=null)    return s;
+        synchronized (this) {
+            s = snapshot;
+            if (s==null)
+                snapshot = s = new Snapshot(waitingList,blockedProjects,buildables);
+            return s;
+        }
+    }
+
+    /**
+     * Immutable copy of the queue contents.
+     */
+    private static final class Snapshot {
+        final List<WaitingItem> waitingList;
+        final List<BlockedItem> blockedProjects;
+        final List<BuildableItem> buildables;
+
+        /**
+         * Items keyed by their tasks, in the same order as {@link #getItems(Task)}.
+         * Lazily computed, as most snapshots are never looked up by tasks.
+         */
+        private volatile Map<Task,List<Item>> byTask;
+
+        /**
+         * {@link #buildables} keyed by their assigned labels, where the null key is for
+         * the items that can run anywhere. Lazily computed.
+         */
+        private volatile Map<Label,List<BuildableItem>> buildablesByLabel;
+
+        /**
+         * Comparator for {@link #buildablesOrder()}. Lazily computed.
+         */
+        private volatile Comparator<BuildableItem> buildablesOrder;
+
+        Snapshot() {
+            this(Collections.<WaitingItem>emptySet(),Collections.<BlockedItem>emptyList(),Collections.<BuildableItem>emptyList());
+        }
+
+        Snapshot(Collection<WaitingItem> waitingList, Collection<BlockedItem> blockedProjects, Collection<BuildableItem> buildables) {
+            this.waitingList = Collections.unmodifiableList(new ArrayList<WaitingItem>(waitingList));
+            this.blockedProjects = Collections.unmodifiableList(new ArrayList<BlockedItem>(blockedProjects));
+            this.buildables = Collections.unmodifiableList(new ArrayList<BuildableItem>(buildables));
+        }
+
+        boolean isEmpty() {
+            return waitingList.isEmpty() && blockedProjects.isEmpty() && buildables.isEmpty();
+        }
+
+        Item[] getItems() {
+            Item[] r = new Item[waitingList.size() + blockedProjects.size() + buildables.size()];
+            int idx = 0;
+            for (WaitingItem p : waitingList)
+                r[idx++] = p;
+            for (BlockedItem p : blockedProjects)
+                r[idx++] = p;
+            for (BuildableItem p : buildables)
+                r[idx++] = p;
+            return r;
+        }
+
+        /**
+         * Blocked items first, then buildables, then waiting items.
+         */
+        List<Item> getItems(Task t) {
+            Map<Task,List<Item>> m = byTask;
+            if (m==null) {
+                // tasks are compared by their identity throughout the queue
+                m = new IdentityHashMap<Task,List<Item>>();
+                index(m,blockedProjects);
+                index(m,buildables);
+                index(m,waitingList);
+                byTask = m;
+            }
+            List<Item> r = m.get(t);
+            return r!=null ? r : Collections.<Item>emptyList();
+        }
+
+        Map<Label,List<BuildableItem>> getBuildablesByLabel() {
+            Map<Label,List<BuildableItem>> m = buildablesByLabel;
+            if (m==null) {
+                m = new HashMap<Label,List<BuildableItem>>();
+                for (BuildableItem bi : buildables) {
+                    Label l = bi.task.getAssignedLabel();
+                    List<BuildableItem> items = m.get(l);
+                    if (items==null)
+                        m.put(l,items=new ArrayList<BuildableItem>());
+                    items.add(bi);
+                }
+                buildablesByLabel = m;
+            }
+            return m;
+        }
+
+        /**
+         * Orders {@link BuildableItem}s in the order of {@link #buildables}.
+         */
+        Comparator<BuildableItem> buildablesOrder() {
+            Comparator<BuildableItem> c = buildablesOrder;
+            if (c==null) {
+                final Map<BuildableItem,Integer> positions = new IdentityHashMap<BuildableItem,Integer>();
+                for (BuildableItem bi : buildables)
+                    positions.put(bi,positions.size());
+                buildablesOrder = c = new Comparator<BuildableItem>() {
+                    public int compare(BuildableItem o1, BuildableItem o2) {
+                        return positions.get(o1)-positions.get(o2);
+                    }
+                };
+            }
+            return c;
+        }
+
+        private static void index(Map<Task,List<Item>> m, List<? extends Item> items) {
+            for (Item item : items) {
+                List<Item> l = m.get(item.task);
+                if (l==null)
+                    m.put(item.task,l=new ArrayList<Item>(1));
+                l.add(item);
+            }
         }
     }
 
@@ -1260,6 +1614,11 @@ public class Queue extends ResourceController implements Saveable {
 
     private static final Logger LOGGER = Logger.getLogger(Queue.class.getName());
 
+    /**
+     * Number of changes {@linkplain QueueJournal journaled} before the queue is saved in full again.
+     */
+    public static int JOURNAL_COMPACTION_THRESHOLD = Integer.getInteger(Queue.class.getName()+".journalCompactionThreshold",1000);
+
     /**
      * This {@link XStream} instance is used to persist {@link Task}s.
      */
@@ -1317,6 +1676,10 @@ public class Queue extends ResourceController implements Saveable {
     /**
      * Regularly invokes {@link Queue#maintain()} and clean itself up when
      * {@link Queue} gets GC-ed.
+     *
+     * <p>
+     * This also serves as a safety net for {@link Task#isBuildBlocked()} implementations
+     * whose state changes without anyone calling {@link Queue#scheduleMaintenance()}.
      */
     private static class MaintainTask extends SafeTimerTask {
         private final WeakReference<Queue> queue;
@@ -0,0 +1,416 @@
+/*
+ * The MIT License
+ * 
+ * Copyright (c) 2004-2009, Sun Microsystems, Inc., Kohsuke Kawaguchi
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.model;
+
+import com.thoughtworks.xstream.XStream;
+import hudson.util.AtomicFileWriter;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.IOException2;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only journal of the changes made to the {@link Queue} since it was last saved in full.
+ *
+ * <p>
+ * The queue calls {@link #put(Queue.Item)}, {@link #remove(int)} and {@link #clear()} while holding
+ * the queue lock. That serializes the item right away, since it keeps changing afterward,
+ * but only records the change in memory. The records are appended to the journal file
+ * on a separate thread, so the disk I/O stays off the scheduling lock. When the journal grows past
+ * {@link Queue#JOURNAL_COMPACTION_THRESHOLD} records, or twice the number of items in the last full save
+ * if that's bigger, {@link #compact()} is called so that the queue is saved in full and the journal
+ * starts over. So the amortized cost of the full saves is constant per operation, too.
+ *
+ * <p>
+ * Records are <tt>[int length][int crc32][byte op][int item id][XML of the item]</tt>,
+ * where the length covers everything after the checksum. A partially written record
+ * at the end of the journal, as left by a crash, is ignored.
+ *
+ * <p>
+ * Replaying a record is idempotent: {@link #PUT} replaces the item of the same ID,
+ * and {@link #REMOVE} of a missing item is a no-op. So it's harmless if the journal
+ * contains records that are already reflected in the full save.
+ */
+abstract class QueueJournal {
+    /**
+     * An item is added, or its state changed.
+     */
+    static final byte PUT = 'P';
+    /**
+     * An item left the queue, because it's cancelled or started executing.
+     */
+    static final byte REMOVE = 'R';
+    /**
+     * All the items are cancelled.
+     */
+    static final byte CLEAR = 'C';
+
+    /**
+     * One change to the queue.
+     */
+    static final class Record {
+        final byte op;
+        final int id;
+        /**
+         * {@link Queue.Item} for {@link #PUT} read by {@link #replay()}. Null otherwise.
+         */
+        final Object item;
+        /**
+         * XML of the item for {@link #PUT} to be written. Null otherwise.
+         */
+        final String xml;
+
+        Record(byte op, int id, Object item, String xml) {
+            this.op = op;
+            this.id = id;
+            this.item = item;
+            this.xml = xml;
+        }
+    }
+
+    private final File file;
+    private final XStream xs;
+
+    /**
+     * Records that are not written to the file yet. Guarded by itself.
+     */
+    private final List<Record> pending = new ArrayList<Record>();
+    /**
+     * True if the flusher is already scheduled to run. Guarded by {@link #pending}.
+     */
+    private boolean scheduled;
+    /**
+     * True if this object recorded anything. Guarded by {@link #pending}.
+     */
+    private boolean used;
+
+    /**
+     * Guards the journal file. The queue lock is always acquired before this lock.
+     */
+    private final ReentrantLock fileLock = new ReentrantLock();
+    private DataOutputStream out;
+    /**
+     * Number of bytes of {@link #out} already counted in {@link #length}.
+     */
+    private int written;
+    /**
+     * Length of the journal file up to the end of the last complete record we wrote,
+     * or -1 if we haven't touched the file yet.
+     */
+    private long length = -1;
+    /**
+     * Number of records in the journal file.
+     */
+    private int size;
+    /**
+     * Number of items in the last full save.
+     */
+    private int baseSize;
+
+    /**
+     * Records dropped by {@link #beginCheckpoint(List)}, in case the full save fails.
+     */
+    private List<Record> checkpointed;
+    /**
+     * XML of the queue taken by {@link #beginCheckpoint(List)}, and the number of items in it.
+     */
+    private String checkpointXml;
+    private int checkpointSize;
+
+    QueueJournal(File file, XStream xs) {
+        this.file = file;
+        this.xs = xs;
+    }
+
+    File getFile() {
+        return file;
+    }
+
+    /**
+     * Saves the queue in full, which calls {@link #beginCheckpoint(List)} and {@link #endCheckpoint(File)}.
+     * Called from the flusher thread when the journal gets too long.
+     */
+    protected abstract void compact();
+
+    void put(Queue.Item item) {
+        String xml;
+        try {
+            xml = xs.toXML(item);
+        } catch (RuntimeException e) {
+            // an item that fails to serialize shouldn't stop the rest
+            LOGGER.log(Level.WARNING, "Failed to write the queue item #"+item.id+" to the journal "+file, e);
+            return;
+        }
+        append(new Record(PUT,item.id,null,xml));
+    }
+
+    void remove(int id) {
+        append(new Record(REMOVE,id,null,null));
+    }
+
+    void clear() {
+        append(new Record(CLEAR,0,null,null));
+    }
+
+    /**
+     * True if anything was recorded by this object, as opposed to just being
+     * left in the file by the previous run.
+     */
+    boolean isUsed() {
+        synchronized (pending) {
+            return used;
+        }
+    }
+
+    private void append(Record r) {
+        synchronized (pending) {
+            pending.add(r);
+            used = true;
+            if(!scheduled) {
+                scheduled = true;
+                flusher.submit(new Runnable() {
+                    public void run() {
+                        synchronized (pending) {
+                            scheduled = false;
+                        }
+                        if(flush())
+                            compact();
+                    }
+                });
+            }
+        }
+    }
+
+    /**
+     * Writes all the pending records to the file.
+     *
+     * @return
+     *      true if the journal is long enough to be compacted.
+     */
+    boolean flush() {
+        fileLock.lock();
+        try {
+            List<Record> batch;
+            synchronized (pending) {
+                if(pending.isEmpty())   return false;
+                batch = new ArrayList<Record>(pending);
+                pending.clear();
+            }
+
+            try {
+                if(out==null) {
+                    FileOutputStream fos = new FileOutputStream(file,true);
+                    if(length<0)
+                        length = fos.getChannel().size();
+                    else if(fos.getChannel().size()>length)
+                        // drop whatever a failed write left after the last complete record,
+                        // or else the records appended after it would be unreadable
+                        fos.getChannel().truncate(length);
+                    out = new DataOutputStream(new BufferedOutputStream(fos));
+                }
+                ByteArrayOutputStream buf = new ByteArrayOutputStream();
+                DataOutputStream data = new DataOutputStream(buf);
+                CRC32 crc = new CRC32();
+                for (Record r : batch) {
+                    buf.reset();
+                    data.writeByte(r.op);
+                    data.writeInt(r.id);
+                    if(r.xml!=null)
+                        data.write(r.xml.getBytes("UTF-8"));
+                    data.flush();
+                    crc.reset();
+                    crc.update(buf.toByteArray());
+                    out.writeInt(buf.size());
+                    out.writeInt((int)crc.getValue());
+                    buf.writeTo(out);
+                }
+                out.flush();
+                length += out.size()-written;
+                written = out.size();
+                size += batch.size();
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Failed to write to the queue journal "+file, e);
+                closeQuietly();
+                // try again later. replaying the records that did make it twice is harmless
+                synchronized (pending) {
+                    pending.addAll(0,batch);
+                }
+            }
+            return size>=Math.max(Queue.JOURNAL_COMPACTION_THRESHOLD,baseSize*2);
+        } finally {
+            fileLock.unlock();
+        }
+    }
+
+    /**
+     * Starts the full save of the queue. Called with the queue lock held, with the
+     * queue contents to be saved, so that everything recorded so far is covered by
+     * the full save. The items are serialized here, while they can't change.
+     * If this returns normally, it must be followed by {@link #endCheckpoint(File)}.
+     */
+    void beginCheckpoint(List<?> items) throws IOException {
+        String xml;
+        try {
+            xml = xs.toXML(items);
+        } catch (RuntimeException e) {
+            throw new IOException2("Failed to serialize the queue",e);
+        }
+        fileLock.lock();
+        checkpointXml = xml;
+        checkpointSize = items.size();
+        synchronized (pending) {
+            checkpointed = new ArrayList<Record>(pending);
+            pending.clear();
+        }
+    }
+
+    /**
+     * Writes the full contents of the queue taken by {@link #beginCheckpoint(List)} to the given file,
+     * then starts a new journal. This doesn't need the queue lock.
+     */
+    void endCheckpoint(File base) throws IOException {
+        try {
+            boolean success = false;
+            try {
+                base.getParentFile().mkdirs();
+                AtomicFileWriter w = new AtomicFileWriter(base);
+                try {
+                    w.write("<?xml version='1.0' encoding='UTF-8'?>\n");
+                    w.write(checkpointXml);
+                    w.commit();
+                } finally {
+                    w.close();
+                }
+                closeQuietly();
+                if(file.exists() && !file.delete())
+                    throw new IOException("Unable to delete "+file);
+                length = 0;
+                size = 0;
+                baseSize = checkpointSize;
+                success = true;
+            } finally {
+                if(!success) {
+                    // keep the journal going, so that we don't lose anything
+                    synchronized (pending) {
+                        pending.addAll(0,checkpointed);
+                    }
+                }
+                checkpointed = null;
+                checkpointXml = null;
+            }
+        } finally {
+            fileLock.unlock();
+        }
+    }
+
+    /**
+     * Reads all the records in the journal file.
+     * Records that can no longer be deserialized, for example because the job is gone, are skipped.
+     */
+    List<Record> replay() throws IOException {
+        List<Record> r = new ArrayList<Record>();
+        if(!file.exists())  return r;
+
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            CRC32 crc = new CRC32();
+            while(true) {
+                byte[] buf;
+                try {
+                    int len = in.readInt();
+                    int checksum = in.readInt();
+                    if(len<5 || len>file.length())
+                        break;  // garbage
+                    buf = new byte[len];
+                    in.readFully(buf);
+                    crc.reset();
+                    crc.update(buf);
+                    if((int)crc.getValue()!=checksum)
+                        break;  // torn write
+                } catch (EOFException e) {
+                    break;  // partially written record
+                }
+
+                byte op = buf[0];
+                int id = ((buf[1]&0xFF)<<24) | ((buf[2]&0xFF)<<16) | ((buf[3]&0xFF)<<8) | (buf[4]&0xFF);
+                Object item = null;
+                if(op==PUT) {
+                    try {
+                        item = xs.fromXML(new String(buf,5,buf.length-5,"UTF-8"));
+                    } catch (RuntimeException e) {
+                        LOGGER.log(Level.WARNING, "Skipping a record of the queue item #"+id+" in "+file, e);
+                        continue;
+                    }
+                }
+                r.add(new Record(op,id,item,null));
+            }
+        } finally {
+            in.close();
+        }
+        return r;
+    }
+
+    private void closeQuietly() {
+        if(out==null)   return;
+        try {
+            out.close();
+        } catch (IOException e) {
+            // ignore
+        }
+        out = null;
+        written = 0;
+    }
+
+    /**
+     * Appends the records in the background. Shared by all the queues, as there's usually only one.
+     */
+    private static final ExecutorService flusher = Executors.newSingleThreadExecutor(
+        new DaemonThreadFactory(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r);
+                t.setName("Queue journal writer");
+                return t;
+            }
+        }));
+
+    private static final Logger LOGGER = Logger.getLogger(QueueJournal.class.getName());
+}
@@ -120,6 +120,19 @@ public final class Result implements Serializable, CustomExportedBean {
         return name;
     }
 
+    /**
+     * Parses the string representation of {@link Result}, as returned by {@link #toString()}.
+     *
+     * @return
+     *      {@link #FAILURE} if the string is not recognized.
+     */
+    public static Result fromString(String s) {
+        for (Result r : all)
+            if (s.equals(r.name))
+                return r;
+        return FAILURE;
+    }
+
     private static final long serialVersionUID = 1L;
 
     private static final Result[] all = new Result[] {SUCCESS,UNSTABLE,FAILURE,NOT_BUILT,ABORTED};
@@ -130,10 +143,7 @@ public final class Result implements Serializable, CustomExportedBean {
         }
 
         protected Object fromString(String s) {
-            for (Result r : all)
-                if (s.equals(r.name))
-                    return r;
-            return FAILURE;
+            return Result.fromString(s);
         }
     };
 }
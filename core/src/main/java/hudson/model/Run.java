@@ -32,6 +32,7 @@ import hudson.ExtensionPoint;
 import hudson.FeedAdapter;
 import hudson.FilePath;
 import hudson.Util;
+import hudson.WriteBehind;
 import hudson.XmlFile;
 import hudson.matrix.MatrixBuild;
 import hudson.matrix.MatrixRun;
@@ -44,7 +45,9 @@ import hudson.security.PermissionGroup;
 import hudson.tasks.LogRotator;
 import hudson.tasks.Mailer;
 import hudson.tasks.test.AbstractTestResultAction;
+import hudson.util.BlockCompressedFile;
 import hudson.util.IOException2;
+import hudson.util.LineEndNormalizingWriter;
 import hudson.util.LogTaskListener;
 import hudson.util.XStream2;
 import hudson.util.ProcessTreeKiller;
@@ -52,13 +55,15 @@ import hudson.util.ProcessTreeKiller;
 import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
-import java.io.FileReader;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.PrintStream;
 import java.io.PrintWriter;
 import java.io.Reader;
+import java.io.StringWriter;
 import java.io.Writer;
 import java.nio.charset.Charset;
 import java.text.DateFormat;
@@ -75,6 +80,7 @@ import java.util.LinkedList;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
+import java.util.SortedMap;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.zip.GZIPInputStream;
@@ -119,7 +125,8 @@ public abstract class Run <JobT extends Job<JobT,RunT>,RunT extends Run<JobT,Run
 
     /**
      * Previous build. Can be null.
-     * These two fields are maintained and updated by {@link RunMap}.
+     * These two fields are maintained and updated by {@link RunMap},
+     * except when it's {@link RunMap#LAZY lazy}.
      */
     protected volatile transient RunT previousBuild;
     /**
@@ -383,6 +390,13 @@ public abstract class Run <JobT extends Job<JobT,RunT>,RunT extends Run<JobT,Run
         return c;
     }
 
+    /**
+     * Same as {@link #getTimestamp()} but in a different type.
+     */
+    public final long getTimeInMillis() {
+        return timestamp;
+    }
+
     @Exported
     public String getDescription() {
         return description;
@@ -483,10 +497,11 @@ public abstract class Run <JobT extends Job<JobT,RunT>,RunT extends Run<JobT,Run
 
         // a new build is in progress
         BallColor baseColor;
-        if(previousBuild==null)
+        RunT pb = getPreviousBuild();
+        if(pb==null)
             baseColor = BallColor.GREY;
         else
-            baseColor = previousBuild.getIconColor();
+            baseColor = pb.getIconColor();
 
         return baseColor.anime();
     }
@@ -517,6 +532,11 @@ public abstract class Run <JobT extends Job<JobT,RunT>,RunT extends Run<JobT,Run
     }
 
     public RunT getPreviousBuild() {
+        if(RunMap.LAZY) {
+            // links are not maintained, so look up the nearest older build
+            SortedMap<Integer,? extends RunT> m = project._getRuns().tailMap(number-1);
+            return m.isEmpty() ? null : m.get(m.firstKey());
+        }
         return previousBuild;
     }
 
@@ -524,9 +544,9 @@ public abstract class Run <JobT extends Job<JobT,RunT>,RunT extends Run<JobT,Run
      * Returns the last build that didn't fail before this build.
      */
     public RunT getPreviousNotFailedBuild() {
-        RunT r=previousBuild;
+        RunT r=getPreviousBuild();
         while( r!=null && r.getResult()==Result.FAILURE )
-            r=r.previousBuild;
+            r=r.getPreviousBuild();
         return r;
     }
 
@@ -534,13 +554,18 @@ public abstract class Run <JobT extends Job<JobT,RunT>,RunT extends Run<JobT,Run
      * Returns the last failed build before this build.
      */
     public RunT getPreviousFailedBuild() {
-        RunT r=previousBuild;
+        RunT r=getPreviousBuild();
         while( r!=null && r.getResult()!=Result.FAILURE )
-            r=r.previousBuild;
+            r=r.getPreviousBuild();
         return r;
     }
 
     public RunT getNextBuild() {
+        if(RunMap.LAZY) {
+            // links are not maintained, so look up the nearest newer build
+            SortedMap<Integer,? extends RunT> m = project._getRuns().headMap(number);
+            return m.isEmpty() ? null : m.get(m.lastKey());
+        }
         return nextBuild;
     }
 
@@ -767,23 +792,75 @@ public abstract class Run <JobT extends Job<JobT,RunT>,RunT extends Run<JobT,Run
 
     /**
      * Returns the log file.
+     *
+     * <p>
+     * Once the build is completed, the file may have been compressed and removed
+     * (see {@link #COMPRESS_LOGS}), so use {@link #getLogReader()} or {@link #getLog(int)}
+     * to read the log.
      */
     public File getLogFile() {
         return new File(getRootDir(),"log");
     }
 
+    /**
+     * The log of a completed build, compressed by blocks.
+     */
+    private BlockCompressedFile getCompressedLog() {
+        return new BlockCompressedFile(new File(getRootDir(),"log.blk"));
+    }
+
+    /**
+     * Opens the uncompressed log.
+     *
+     * <p>
+     * The compression only deletes the log once the compressed file is in place,
+     * so if this returns null, the compressed file is there to read (if the log exists at all).
+     * Checking if the log exists before opening it would race with the compression.
+     *
+     * @return null if the log isn't there.
+     */
+    private FileInputStream openLogFile() {
+        try {
+            return new FileInputStream(getLogFile());
+        } catch (FileNotFoundException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Returns the length of the log in bytes, whether it's compressed or not.
+     *
+     * @since 1.313
+     */
+    public long getLogLength() throws IOException {
+        File logFile = getLogFile();
+        long length = logFile.length();
+        if(length>0 || logFile.exists())
+            return length;
+        BlockCompressedFile compressed = getCompressedLog();
+        if(compressed.exists())
+            return compressed.length();
+        return 0;
+    }
+
     /**
      * Returns a Reader that reads from the log file.
-     * It will use a gzip-compressed log file (log.gz) if that exists.
+     * It will use a compressed log file (log.blk or log.gz) if that exists.
      * @throws IOException 
      * @return a reader from the log file, or null if none exists
      */
     public Reader getLogReader() throws IOException {
     	File logFile = getLogFile();
-    	if (logFile.exists() ) {
-    		return new FileReader(logFile);
+    	FileInputStream in = openLogFile();
+    	if (in!=null) {
+    		return new InputStreamReader(in);
     	} 
 
+        BlockCompressedFile blockCompressedLog = getCompressedLog();
+        if (blockCompressedLog.exists()) {
+            return new InputStreamReader(blockCompressedLog.read(0));
+        }
+
     	File compressedLogFile = new File(logFile.getParentFile(), logFile.getName()+ ".gz");
     	if (compressedLogFile.exists()) {
     		return new InputStreamReader(
@@ -793,6 +870,32 @@ public abstract class Run <JobT extends Job<JobT,RunT>,RunT extends Run<JobT,Run
     	
     	return null;
     }
+
+    /**
+     * Returns a Reader that reads from the given byte offset of the log file.
+     * Unlike skipping the reader returned from {@link #getLogReader()},
+     * this doesn't decompress the skipped portion of a block compressed log.
+     *
+     * @return a reader from the log file, or null if none exists
+     * @since 1.313
+     */
+    public Reader getLogReader(long offset) throws IOException {
+        offset = Math.max(0,offset);
+        FileInputStream in = openLogFile();
+        if (in!=null) {
+            in.getChannel().position(Math.min(offset,in.getChannel().size()));
+            return new InputStreamReader(in);
+        }
+
+        BlockCompressedFile compressed = getCompressedLog();
+        if (compressed.exists())
+            return new InputStreamReader(compressed.read(offset));
+
+        Reader r = getLogReader();
+        if (r!=null)
+            r.skip(offset);
+        return r;
+    }
     
     protected SearchIndexBuilder makeSearchIndex() {
         SearchIndexBuilder builder = super.makeSearchIndex()
@@ -836,6 +939,7 @@ public abstract class Run <JobT extends Job<JobT,RunT>,RunT extends Run<JobT,Run
         link.delete();
 
         File rootDir = getRootDir();
+        WriteBehind.discard(rootDir);
         File tmp = new File(rootDir.getParentFile(),'.'+rootDir.getName());
         
         boolean renamingSucceeded = rootDir.renameTo(tmp);
@@ -994,6 +1098,9 @@ public abstract class Run <JobT extends Job<JobT,RunT>,RunT extends Run<JobT,Run
         } finally {
             onEndBuilding();
         }
+
+        if(COMPRESS_LOGS && getLogFile().exists())
+            getCompressedLog().scheduleCompression(getLogFile());
     }
 
     /**
@@ -1041,7 +1148,7 @@ public abstract class Run <JobT extends Job<JobT,RunT>,RunT extends Run<JobT,Run
      */
     public synchronized void save() throws IOException {
         if(BulkChange.contains(this))   return;
-        getDataFile().write(this);
+        getDataFile().writeBehind(this);
     }
 
     private XmlFile getDataFile() {
@@ -1056,7 +1163,21 @@ public abstract class Run <JobT extends Job<JobT,RunT>,RunT extends Run<JobT,Run
      */
     @Deprecated
     public String getLog() throws IOException {
-        return Util.loadFile(getLogFile(),getCharset());
+        InputStream in = openLogFile();
+        if(in==null) {
+            BlockCompressedFile compressed = getCompressedLog();
+            if(!compressed.exists())
+                return "";
+            in = compressed.read(0);
+        }
+        Reader r = new InputStreamReader(in,getCharset());
+        try {
+            StringWriter w = new StringWriter();
+            Util.copyStream(r,w);
+            return w.toString();
+        } finally {
+            r.close();
+        }
     }
 
     /**
@@ -1071,7 +1192,21 @@ public abstract class Run <JobT extends Job<JobT,RunT>,RunT extends Run<JobT,Run
     public List<String> getLog(int maxLines) throws IOException {
         int lineCount = 0;
         List<String> logLines = new LinkedList<String>();
-        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(getLogFile()),getCharset()));
+        BufferedReader reader;
+        FileInputStream in = openLogFile();
+        BlockCompressedFile compressed = getCompressedLog();
+        if(in!=null) {
+            reader = new BufferedReader(new InputStreamReader(in,getCharset()));
+        } else
+        if(compressed.exists()) {
+            // only decompress the blocks that contain the last lines,
+            // and use the index to count the lines before them
+            long start = compressed.findTail(maxLines);
+            lineCount = (int)compressed.countLines(start);
+            reader = new BufferedReader(new InputStreamReader(compressed.read(start),getCharset()));
+        } else {
+            throw new FileNotFoundException(getLogFile().getPath());
+        }
         try {
             for (String line = reader.readLine(); line != null; line = reader.readLine()) {
                 logLines.add(line);
@@ -1203,6 +1338,33 @@ public abstract class Run <JobT extends Job<JobT,RunT>,RunT extends Run<JobT,Run
      * Handles incremental log output.
      */
     public void doProgressiveLog( StaplerRequest req, StaplerResponse rsp) throws IOException {
+        BlockCompressedFile compressed = getCompressedLog();
+        if(!getLogFile().exists() && compressed.exists()) {
+            // the log is only compressed after the build is completed, so just send the rest of it.
+            // this follows what LargeText does for a completed file
+            rsp.setContentType("text/plain");
+            rsp.setCharacterEncoding("UTF-8");
+            rsp.setStatus(HttpServletResponse.SC_OK);
+
+            long start = 0;
+            String s = req.getParameter("start");
+            if(s!=null)
+                start = Long.parseLong(s);
+            long length = compressed.length();
+            if(length < start)
+                start = 0;  // text rolled over
+
+            rsp.addHeader("X-Text-Size",String.valueOf(length));
+            Writer w = new LineEndNormalizingWriter(length-start>4096 ? rsp.getCompressedWriter(req) : rsp.getWriter());
+            Reader r = new InputStreamReader(compressed.read(start),getCharset());
+            try {
+                Util.copyStream(r,w);
+            } finally {
+                r.close();
+                w.close();
+            }
+            return;
+        }
         new LargeText(getLogFile(),getCharset(),!isLogUpdated()).doProgressText(req,rsp);
     }
 
@@ -1350,6 +1512,15 @@ public abstract class Run <JobT extends Job<JobT,RunT>,RunT extends Run<JobT,Run
         XSTREAM.registerConverter(Result.conv);
     }
 
+    /**
+     * If true, the console output of a completed build is compressed in the background
+     * into a block compressed file, which can still be read from an arbitrary offset.
+     * Off by default, since some code reads {@link #getLogFile()} directly.
+     *
+     * @since 1.313
+     */
+    public static boolean COMPRESS_LOGS = Boolean.getBoolean(Run.class.getName()+".compressLogs");
+
     private static final Logger LOGGER = Logger.getLogger(Run.class.getName());
 
     /**
@@ -23,16 +23,35 @@
  */
 package hudson.model;
 
+import hudson.XmlFile;
+import org.xml.sax.Attributes;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.DefaultHandler;
+
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.parsers.SAXParserFactory;
 import java.io.File;
 import java.io.FilenameFilter;
 import java.io.IOException;
+import java.io.Reader;
+import java.lang.ref.SoftReference;
+import java.util.AbstractCollection;
 import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.Set;
 import java.util.SortedMap;
 import java.util.TreeMap;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.text.SimpleDateFormat;
 import java.text.ParseException;
@@ -45,12 +64,27 @@ import java.text.ParseException;
  * and it also updates the bi-directional links within {@link Run}
  * accordingly.
  *
+ * <p>
+ * When {@link #LAZY} is set, {@link #load(Job, Constructor)} only indexes
+ * build numbers, and {@link Run}s are loaded from the disk when they are
+ * first accessed. Completed builds are only softly reachable from this map,
+ * so they can be garbage collected and then reloaded when needed again.
+ * In this mode the links within {@link Run} are not maintained, and
+ * {@link Run#getPreviousBuild()} and {@link Run#getNextBuild()} consult
+ * this map instead.
+ *
  * @author Kohsuke Kawaguchi
  */
 public final class RunMap<R extends Run<?,R>> extends AbstractMap<Integer,R> implements SortedMap<Integer,R> {
     // copy-on-write map
-    private transient volatile SortedMap<Integer,R> builds =
-        new TreeMap<Integer,R>(COMPARATOR);
+    private transient volatile SortedMap<Integer,BuildReference> builds =
+        new TreeMap<Integer,BuildReference>(COMPARATOR);
+
+    /**
+     * Used to load builds on demand.
+     * Non-null only when this map is loaded {@link #LAZY lazily}.
+     */
+    private transient volatile Constructor<R> cons;
 
     /**
      * Read-only view of this map.
@@ -59,7 +93,31 @@ public final class RunMap<R extends Run<?,R>> extends AbstractMap<Integer,R> imp
 
     public Set<Entry<Integer,R>> entrySet() {
         // since the map is copy-on-write, make sure no one modifies it
-        return Collections.unmodifiableSet(builds.entrySet());
+        return all().entrySet();
+    }
+
+    public Set<Integer> keySet() {
+        return all().keySet();
+    }
+
+    public Collection<R> values() {
+        return all().values();
+    }
+
+    public R get(Object key) {
+        return all().get(key);
+    }
+
+    public boolean containsKey(Object key) {
+        return all().containsKey(key);
+    }
+
+    public int size() {
+        return builds.size();
+    }
+
+    public boolean isEmpty() {
+        return builds.isEmpty();
     }
 
     public synchronized R put(R value) {
@@ -68,7 +126,7 @@ public final class RunMap<R extends Run<?,R>> extends AbstractMap<Integer,R> imp
 
     public synchronized R put(Integer key, R value) {
         // copy-on-write update
-        TreeMap<Integer,R> m = new TreeMap<Integer,R>(builds);
+        TreeMap<Integer,BuildReference> m = new TreeMap<Integer,BuildReference>(builds);
 
         R r = update(m, key, value);
 
@@ -78,7 +136,7 @@ public final class RunMap<R extends Run<?,R>> extends AbstractMap<Integer,R> imp
 
     public synchronized void putAll(Map<? extends Integer,? extends R> rhs) {
         // copy-on-write update
-        TreeMap<Integer,R> m = new TreeMap<Integer,R>(builds);
+        TreeMap<Integer,BuildReference> m = new TreeMap<Integer,BuildReference>(builds);
 
         for (Map.Entry<? extends Integer,? extends R> e : rhs.entrySet())
             update(m, e.getKey(), e.getValue());
@@ -86,14 +144,20 @@ public final class RunMap<R extends Run<?,R>> extends AbstractMap<Integer,R> imp
         this.builds = m;
     }
 
-    private R update(TreeMap<Integer, R> m, Integer key, R value) {
+    private R update(TreeMap<Integer,BuildReference> m, Integer key, R value) {
+        if(LAZY) {
+            // links are not maintained in the lazy mode
+            BuildReference old = m.put(key, new BuildReference(value));
+            return old!=null ? old.peek() : null;
+        }
+
         // things are bit tricky because this map is order so that the newest one comes first,
         // yet 'nextBuild' refers to the newer build.
-        R first = m.isEmpty() ? null : m.get(m.firstKey());
-        R r = m.put(key, value);
-        SortedMap<Integer,R> head = m.headMap(key);
+        R first = m.isEmpty() ? null : m.get(m.firstKey()).peek();
+        BuildReference old = m.put(key, new BuildReference(value));
+        SortedMap<Integer,BuildReference> head = m.headMap(key);
         if(!head.isEmpty()) {
-            R prev = m.get(head.lastKey());
+            R prev = m.get(head.lastKey()).peek();
             value.previousBuild = prev.previousBuild;
             value.nextBuild = prev;
             if(value.previousBuild!=null)
@@ -105,25 +169,38 @@ public final class RunMap<R extends Run<?,R>> extends AbstractMap<Integer,R> imp
             if(first!=null)
                 first.nextBuild = value;
         }
-        return r;
+        return old!=null ? old.peek() : null;
     }
 
     public synchronized boolean remove(R run) {
         if(run.nextBuild!=null)
             run.nextBuild.previousBuild = run.previousBuild;
         if(run.previousBuild!=null)
-            run.previousBuild.nextBuild = run.nextBuild; 
+            run.previousBuild.nextBuild = run.nextBuild;
 
         // copy-on-write update
-        TreeMap<Integer,R> m = new TreeMap<Integer,R>(builds);
-        R r = m.remove(run.getNumber());
+        TreeMap<Integer,BuildReference> m = new TreeMap<Integer,BuildReference>(builds);
+        BuildReference r = m.remove(run.getNumber());
         this.builds = m;
 
         return r!=null;
     }
 
+    /**
+     * Drops a build that failed to load from the index.
+     */
+    private synchronized void removeBroken(BuildReference ref) {
+        if(builds.get(ref.number)!=ref)
+            return; // already replaced
+
+        // copy-on-write update
+        TreeMap<Integer,BuildReference> m = new TreeMap<Integer,BuildReference>(builds);
+        m.remove(ref.number);
+        this.builds = m;
+    }
+
     public synchronized void reset(TreeMap<Integer,R> builds) {
-        this.builds = new TreeMap<Integer,R>(COMPARATOR);
+        this.builds = new TreeMap<Integer,BuildReference>(COMPARATOR);
         putAll(builds);
     }
 
@@ -134,6 +211,10 @@ public final class RunMap<R extends Run<?,R>> extends AbstractMap<Integer,R> imp
         return view;
     }
 
+    private SortedMap<Integer,R> all() {
+        return new Materializer(builds);
+    }
+
 //
 // SortedMap delegation
 //
@@ -142,15 +223,15 @@ public final class RunMap<R extends Run<?,R>> extends AbstractMap<Integer,R> imp
     }
 
     public SortedMap<Integer, R> subMap(Integer fromKey, Integer toKey) {
-        return builds.subMap(fromKey, toKey);
+        return all().subMap(fromKey, toKey);
     }
 
     public SortedMap<Integer, R> headMap(Integer toKey) {
-        return builds.headMap(toKey);
+        return all().headMap(toKey);
     }
 
     public SortedMap<Integer, R> tailMap(Integer fromKey) {
-        return builds.tailMap(fromKey);
+        return all().tailMap(fromKey);
     }
 
     public Integer firstKey() {
@@ -182,11 +263,13 @@ public final class RunMap<R extends Run<?,R>> extends AbstractMap<Integer,R> imp
      * @param cons
      *      Used to create new instance of {@link Run}.
      */
-    public synchronized void load(Job job, Constructor<R> cons) {
+    public void load(Job job, Constructor<R> cons) {
+        load(job.getBuildDir(),cons);
+    }
+
+    /*package*/ synchronized void load(File buildDir, Constructor<R> cons) {
         final SimpleDateFormat formatter = Run.ID_FORMATTER.get();
 
-        TreeMap<Integer,R> builds = new TreeMap<Integer,R>(RunMap.COMPARATOR);
-        File buildDir = job.getBuildDir();
         buildDir.mkdirs();
         String[] buildDirs = buildDir.list(new FilenameFilter() {
             public boolean accept(File dir, String name) {
@@ -211,9 +294,15 @@ public final class RunMap<R extends Run<?,R>> extends AbstractMap<Integer,R> imp
             }
         });
 
+        if(LAZY) {
+            index(buildDir, buildDirs, cons);
+            return;
+        }
+
+        TreeMap<Integer,R> builds = new TreeMap<Integer,R>(RunMap.COMPARATOR);
         for( String build : buildDirs ) {
             File d = new File(buildDir,build);
-            if(new File(d,"build.xml").exists()) {
+            if(new XmlFile(new File(d,"build.xml")).exists()) {
                 // if the build result file isn't in the directory, ignore it.
                 try {
                     R b = cons.create(d);
@@ -229,5 +318,411 @@ public final class RunMap<R extends Run<?,R>> extends AbstractMap<Integer,R> imp
         reset(builds);
     }
 
+    /**
+     * Builds the index of build numbers without loading any {@link Run}.
+     *
+     * <p>
+     * Build numbers are taken from the "number to ID" symlinks that {@link Run}
+     * creates, and only when those are missing (such as on Windows), from build.xml.
+     */
+    private void index(File buildDir, String[] buildDirs, Constructor<R> cons) {
+        Map<String,Integer> numbers = new HashMap<String,Integer>();
+        String[] names = buildDir.list();
+        if(names!=null) {
+            for (String name : names) {
+                int n;
+                try {
+                    n = Integer.parseInt(name);
+                } catch (NumberFormatException e) {
+                    continue;   // not a symlink
+                }
+                try {
+                    numbers.put(new File(buildDir,name).getCanonicalFile().getName(),n);
+                } catch (IOException e) {
+                    LOGGER.log(Level.FINE, "Failed to resolve "+new File(buildDir,name),e);
+                }
+            }
+        }
+
+        TreeMap<Integer,BuildReference> index = new TreeMap<Integer,BuildReference>(COMPARATOR);
+        for( String build : buildDirs ) {
+            File d = new File(buildDir,build);
+            XmlFile xml = new XmlFile(new File(d,"build.xml"));
+            if(!xml.exists())
+                continue;   // if the build result file isn't in the directory, ignore it.
+
+            Integer n = numbers.get(build);
+            if(n==null) {
+                try {
+                    n = readBuildNumber(xml);
+                } catch (IOException e) {
+                    LOGGER.log(Level.WARNING, "Failed to read the build number from "+xml,e);
+                    continue;
+                }
+            }
+            index.put(n,new BuildReference(n,d));
+        }
+
+        this.cons = cons;
+        this.builds = index;
+    }
+
+    /**
+     * Lets go of all the builds that can be reloaded from the disk,
+     * as if they were garbage collected.
+     */
+    /*package*/ void clearSoftReferences() {
+        for (BuildReference ref : builds.values()) {
+            SoftReference<R> s = ref.soft;
+            if(s!=null)     s.clear();
+        }
+    }
+
+    /**
+     * Reads the build number out of build.xml, without unmarshalling the whole build record.
+     */
+    private static int readBuildNumber(XmlFile xml) throws IOException {
+        class Eureka extends SAXException {
+            final String number;
+            public Eureka(String number) {
+                this.number = number;
+            }
+        }
+        Reader r = xml.readRaw();
+        try {
+            JAXP.newSAXParser().parse(new InputSource(r),new DefaultHandler() {
+                private int depth;
+                private StringBuilder number;
+
+                public void startElement(String uri, String localName, String qName, Attributes attributes) {
+                    // <number> is a child of the root element
+                    if(++depth==2 && qName.equals("number"))
+                        number = new StringBuilder();
+                }
+
+                public void characters(char[] ch, int start, int length) {
+                    if(number!=null)
+                        number.append(ch,start,length);
+                }
+
+                public void endElement(String uri, String localName, String qName) throws SAXException {
+                    if(number!=null)
+                        throw new Eureka(number.toString());
+                    depth--;
+                }
+            });
+            throw new IOException("No build number in "+xml);
+        } catch (Eureka e) {
+            try {
+                return Integer.parseInt(e.number.trim());
+            } catch (NumberFormatException x) {
+                throw new IOException("Invalid build number "+e.number+" in "+xml);
+            }
+        } catch (SAXException e) {
+            throw new IOException("Failed to parse "+xml+": "+e);
+        } catch (ParserConfigurationException e) {
+            throw new AssertionError(e);    // impossible
+        } finally {
+            r.close();
+        }
+    }
+
+    /**
+     * Holds on to a {@link Run} in this map.
+     *
+     * <p>
+     * Builds are strongly referenced until they are completed. After that,
+     * and only if the map knows how to load them back, they are softly referenced.
+     */
+    private final class BuildReference {
+        final int number;
+        private volatile File dir;
+        private volatile R strong;
+        private volatile SoftReference<R> soft;
+
+        BuildReference(R r) {
+            this.number = r.getNumber();
+            this.strong = r;
+        }
+
+        BuildReference(int number, File dir) {
+            this.number = number;
+            this.dir = dir;
+        }
+
+        /**
+         * Gets the build if it's in memory, without loading it.
+         */
+        R peek() {
+            R r = strong;
+            if(r!=null)     return r;
+            SoftReference<R> s = soft;
+            return s!=null ? s.get() : null;
+        }
+
+        /**
+         * Gets the build, loading it if necessary.
+         *
+         * @return
+         *      null if the build failed to load.
+         */
+        R get() {
+            R r = strong;
+            if(r!=null) {
+                if(cons!=null && !r.isLogUpdated()) {
+                    // the build is completed and persisted, so it can be reloaded from now on
+                    dir = r.getRootDir();
+                    soft = new SoftReference<R>(r);
+                    strong = null;
+                }
+                return r;
+            }
+
+            r = peek();
+            if(r!=null)     return r;
+
+            synchronized (this) {
+                r = peek();     // someone else might have loaded it
+                if(r==null)
+                    r = load();
+                return r;
+            }
+        }
+
+        private R load() {
+            Constructor<R> c = cons;
+            if(c==null || dir==null)
+                return null;
+
+            try {
+                R r = c.create(dir);
+                if(r.getNumber()==number) {
+                    soft = new SoftReference<R>(r);
+                    return r;
+                }
+                LOGGER.warning("Expected build #"+number+" in "+dir+" but found #"+r.getNumber());
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Failed to load "+dir,e);
+            } catch (InstantiationError e) {
+                LOGGER.log(Level.WARNING, "Failed to load "+dir,e);
+            }
+            removeBroken(this);
+            return null;
+        }
+    }
+
+    /**
+     * Read-only {@link SortedMap} view of a portion of the index,
+     * which loads {@link Run}s as they are accessed.
+     *
+     * <p>
+     * Builds that fail to load are skipped during the iteration.
+     */
+    private final class Materializer extends AbstractMap<Integer,R> implements SortedMap<Integer,R> {
+        private final SortedMap<Integer,BuildReference> index;
+
+        Materializer(SortedMap<Integer,BuildReference> index) {
+            this.index = index;
+        }
+
+        public R get(Object key) {
+            if(!(key instanceof Integer))
+                return null;
+            BuildReference ref = index.get(key);
+            return ref!=null ? ref.get() : null;
+        }
+
+        public boolean containsKey(Object key) {
+            return key instanceof Integer && index.containsKey(key);
+        }
+
+        public int size() {
+            return index.size();
+        }
+
+        public boolean isEmpty() {
+            return index.isEmpty();
+        }
+
+        public Set<Integer> keySet() {
+            // no need to load builds just to list their numbers
+            return Collections.unmodifiableSet(index.keySet());
+        }
+
+        public Set<Entry<Integer,R>> entrySet() {
+            return new AbstractSet<Entry<Integer,R>>() {
+                public Iterator<Entry<Integer,R>> iterator() {
+                    return new EntryIterator(index.values().iterator());
+                }
+
+                public int size() {
+                    return index.size();
+                }
+
+                // the iterator may return fewer elements than size() when builds fail to load
+                public Object[] toArray() {
+                    return copy(this).toArray();
+                }
+
+                public <T> T[] toArray(T[] a) {
+                    return copy(this).toArray(a);
+                }
+            };
+        }
+
+        public Collection<R> values() {
+            return new AbstractCollection<R>() {
+                public Iterator<R> iterator() {
+                    final Iterator<Entry<Integer,R>> itr = new EntryIterator(index.values().iterator());
+                    return new Iterator<R>() {
+                        public boolean hasNext() {
+                            return itr.hasNext();
+                        }
+
+                        public R next() {
+                            return itr.next().getValue();
+                        }
+
+                        public void remove() {
+                            throw new UnsupportedOperationException();
+                        }
+                    };
+                }
+
+                public int size() {
+                    return index.size();
+                }
+
+                public Object[] toArray() {
+                    return copy(this).toArray();
+                }
+
+                public <T> T[] toArray(T[] a) {
+                    return copy(this).toArray(a);
+                }
+            };
+        }
+
+        public Comparator<? super Integer> comparator() {
+            return index.comparator();
+        }
+
+        public SortedMap<Integer,R> subMap(Integer fromKey, Integer toKey) {
+            return new Materializer(index.subMap(fromKey,toKey));
+        }
+
+        public SortedMap<Integer,R> headMap(Integer toKey) {
+            return new Materializer(index.headMap(toKey));
+        }
+
+        public SortedMap<Integer,R> tailMap(Integer fromKey) {
+            return new Materializer(index.tailMap(fromKey));
+        }
+
+        public Integer firstKey() {
+            return index.firstKey();
+        }
+
+        public Integer lastKey() {
+            return index.lastKey();
+        }
+    }
+
+    /**
+     * Iterates over the loaded builds of the index, skipping those that fail to load.
+     */
+    private final class EntryIterator implements Iterator<Entry<Integer,R>> {
+        private final Iterator<BuildReference> base;
+        private Entry<Integer,R> next;
+
+        EntryIterator(Iterator<BuildReference> base) {
+            this.base = base;
+            fetch();
+        }
+
+        private void fetch() {
+            next = null;
+            while(next==null && base.hasNext()) {
+                BuildReference ref = base.next();
+                R r = ref.get();
+                if(r!=null)
+                    next = new RunEntry<R>(ref.number,r);
+            }
+        }
+
+        public boolean hasNext() {
+            return next!=null;
+        }
+
+        public Entry<Integer,R> next() {
+            if(next==null)
+                throw new NoSuchElementException();
+            Entry<Integer,R> r = next;
+            fetch();
+            return r;
+        }
+
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    /**
+     * Immutable {@link Entry}.
+     */
+    private static final class RunEntry<V> implements Entry<Integer,V> {
+        private final Integer key;
+        private final V value;
+
+        RunEntry(Integer key, V value) {
+            this.key = key;
+            this.value = value;
+        }
+
+        public Integer getKey() {
+            return key;
+        }
+
+        public V getValue() {
+            return value;
+        }
+
+        public V setValue(V value) {
+            throw new UnsupportedOperationException();
+        }
+
+        public boolean equals(Object o) {
+            if (!(o instanceof Entry))
+                return false;
+            Entry that = (Entry) o;
+            return key.equals(that.getKey()) && (value==null ? that.getValue()==null : value.equals(that.getValue()));
+        }
+
+        public int hashCode() {
+            return key.hashCode() ^ (value==null ? 0 : value.hashCode());
+        }
+
+        public String toString() {
+            return key+"="+value;
+        }
+    }
+
+    private static <T> List<T> copy(Collection<T> c) {
+        List<T> r = new ArrayList<T>();
+        for (T t : c)
+            r.add(t);
+        return r;
+    }
+
+    /**
+     * If true, builds are indexed at the start up and loaded on demand,
+     * which reduces the start up time and the memory footprint for jobs with long history.
+     * Enabled with the <tt>hudson.model.RunMap.lazy</tt> system property. Tests in this package
+     * switch it directly.
+     */
+    /*package*/ static boolean LAZY = Boolean.getBoolean(RunMap.class.getName()+".lazy");
+
+    private static final SAXParserFactory JAXP = SAXParserFactory.newInstance();
+
     private static final Logger LOGGER = Logger.getLogger(RunMap.class.getName());
 }
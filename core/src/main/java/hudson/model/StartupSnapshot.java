@@ -0,0 +1,280 @@
+/*
+ * The MIT License
+ * 
+ * Copyright (c) 2004-2009, Sun Microsystems, Inc., Kohsuke Kawaguchi
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.model;
+
+import com.thoughtworks.xstream.XStream;
+import com.thoughtworks.xstream.converters.ConversionException;
+import com.thoughtworks.xstream.io.StreamException;
+import com.thoughtworks.xstream.io.binary.BinaryStreamReader;
+import com.thoughtworks.xstream.io.binary.BinaryStreamWriter;
+import com.thoughtworks.xstream.io.copy.HierarchicalStreamCopier;
+import com.thoughtworks.xstream.io.xml.XppReader;
+import hudson.util.IOException2;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Binary cache of the XML configuration files read during the start up,
+ * so that the unchanged ones don't have to be parsed again on the next boot.
+ *
+ * <p>
+ * Each entry keeps the XML file as a stream of {@link BinaryStreamWriter} tokens, which is
+ * the same sequence of elements, attributes, and values that XStream sees when it parses the XML,
+ * only without the character decoding and the parsing. Since it's a faithful copy of the XML
+ * and not of the unmarshalled objects, the entries stay valid across the upgrades of Hudson and plugins.
+ *
+ * <p>
+ * An entry is used only if the MD5 checksum of the XML file matches the recorded one.
+ * Time stamps are not trusted, as an edit can keep both the size and the time stamp
+ * of a file within the resolution of the file system. Reading the file to compute the checksum
+ * is still much cheaper than parsing it. If the checksum differs, the XML is parsed, and the entry is replaced.
+ *
+ * <p>
+ * The file is <tt>[int magic][int version][int count]</tt> followed by <tt>count</tt> entries of
+ * <tt>[UTF key][16 bytes MD5][int length][tokens]</tt>.
+ * {@link #read(String, File, XStream)} can be called from multiple threads concurrently.
+ *
+ * @see Hudson#STARTUP_SNAPSHOT
+ */
+final class StartupSnapshot {
+    private static final class Entry {
+        final byte[] digest;
+        final byte[] tokens;
+
+        Entry(byte[] digest, byte[] tokens) {
+            this.digest = digest;
+            this.tokens = tokens;
+        }
+    }
+
+    private final File file;
+    /**
+     * Entries read from the file.
+     */
+    private final Map<String,Entry> loaded;
+    /**
+     * Entries used in this run, which will be written by {@link #save()}.
+     */
+    private final Map<String,Entry> used = new ConcurrentHashMap<String,Entry>();
+
+    /**
+     * Number of files read from the snapshot, and parsed as XML.
+     */
+    private final AtomicInteger hits = new AtomicInteger(), misses = new AtomicInteger();
+
+    private StartupSnapshot(File file, Map<String,Entry> loaded) {
+        this.file = file;
+        this.loaded = loaded;
+    }
+
+    /**
+     * Opens the snapshot file. If the file doesn't exist or is broken, starts from an empty snapshot.
+     */
+    static StartupSnapshot open(File file) {
+        Map<String,Entry> entries = new HashMap<String,Entry>();
+        if(file.exists()) {
+            try {
+                DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+                try {
+                    if(in.readInt()==MAGIC && in.readInt()==VERSION) {
+                        int count = in.readInt();
+                        for (int i=0; i<count; i++) {
+                            String key = in.readUTF();
+                            byte[] digest = new byte[DIGEST_LENGTH];
+                            in.readFully(digest);
+                            byte[] tokens = new byte[in.readInt()];
+                            in.readFully(tokens);
+                            entries.put(key,new Entry(digest,tokens));
+                        }
+                    }
+                } finally {
+                    in.close();
+                }
+            } catch (EOFException e) {
+                LOGGER.log(Level.WARNING, file+" is truncated. Parsing all the configuration files", e);
+                entries.clear();
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Failed to read "+file+". Parsing all the configuration files", e);
+                entries.clear();
+            }
+        }
+        return new StartupSnapshot(file,entries);
+    }
+
+    /**
+     * Reads the given XML file, from the snapshot if it's up to date.
+     *
+     * @param key
+     *      Identifies the file within the snapshot.
+     */
+    Object read(String key, File xml, XStream xs) throws IOException {
+        byte[] data = readAll(xml);
+        byte[] digest = checksum(data);
+
+        Entry e = loaded.get(key);
+        if(e!=null && Arrays.equals(e.digest,digest)) {
+            hits.incrementAndGet();
+        } else {
+            e = new Entry(digest,toTokens(xml,data));
+            misses.incrementAndGet();
+        }
+
+        try {
+            Object o = xs.unmarshal(new BinaryStreamReader(new ByteArrayInputStream(e.tokens)));
+            used.put(key,e);
+            return o;
+        } catch(StreamException x) {
+            throw new IOException2("Unable to read "+xml,x);
+        } catch(ConversionException x) {
+            throw new IOException2("Unable to read "+xml,x);
+        }
+    }
+
+    int getHits() {
+        return hits.get();
+    }
+
+    int getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * Converts XML into the binary tokens.
+     */
+    private static byte[] toTokens(File xml, byte[] data) throws IOException {
+        try {
+            ByteArrayOutputStream baos = new ByteArrayOutputStream(data.length/2);
+            BinaryStreamWriter w = new BinaryStreamWriter(baos);
+            new HierarchicalStreamCopier().copy(
+                    new XppReader(new InputStreamReader(new ByteArrayInputStream(data),"UTF-8")), w);
+            w.flush();
+            return baos.toByteArray();
+        } catch(StreamException x) {
+            throw new IOException2("Unable to read "+xml,x);
+        }
+    }
+
+    /**
+     * Writes the entries used in this run back to the disk.
+     * Entries of the files that were not read this time are dropped.
+     */
+    void save() {
+        LOGGER.info(hits+" configuration files were read from the startup snapshot, "+misses+" were parsed");
+        if(misses.get()==0 && used.size()==loaded.size())
+            return;     // nothing changed
+
+        File tmp = new File(file.getPath()+".tmp");
+        try {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+            try {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeInt(used.size());
+                for (Map.Entry<String,Entry> me : used.entrySet()) {
+                    Entry e = me.getValue();
+                    out.writeUTF(me.getKey());
+                    out.write(e.digest);
+                    out.writeInt(e.tokens.length);
+                    out.write(e.tokens);
+                }
+            } finally {
+                out.close();
+            }
+            if(file.exists() && !file.delete())
+                throw new IOException("Unable to delete "+file);
+            if(!tmp.renameTo(file))
+                throw new IOException("Unable to rename "+tmp+" to "+file);
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Failed to write "+file, e);
+            tmp.delete();
+        }
+    }
+
+    private static byte[] readAll(File f) throws IOException {
+        InputStream in = new FileInputStream(f);
+        try {
+            byte[] buf = new byte[(int)f.length()];
+            int len = 0;
+            while(true) {
+                if(len==buf.length) {
+                    // the file grew
+                    int b = in.read();
+                    if(b<0) return buf;
+                    byte[] n = new byte[buf.length*2+1];
+                    System.arraycopy(buf,0,n,0,len);
+                    buf = n;
+                    buf[len++] = (byte)b;
+                }
+                int n = in.read(buf,len,buf.length-len);
+                if(n<0) break;
+                len += n;
+            }
+            if(len==buf.length)
+                return buf;
+            byte[] r = new byte[len];
+            System.arraycopy(buf,0,r,0,len);
+            return r;
+        } finally {
+            in.close();
+        }
+    }
+
+    private static byte[] checksum(byte[] data) throws IOException {
+        try {
+            return MessageDigest.getInstance("MD5").digest(data);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException2("MD5 not installed",e);    // impossible
+        }
+    }
+
+    private static final int MAGIC = 0x48534e50;   // 'HSNP'
+    /**
+     * Version 1 validated entries by time stamps, and is ignored.
+     */
+    private static final int VERSION = 2;
+    private static final int DIGEST_LENGTH = 16;
+
+    private static final Logger LOGGER = Logger.getLogger(StartupSnapshot.class.getName());
+}
@@ -27,6 +27,7 @@ import com.thoughtworks.xstream.XStream;
 import hudson.CopyOnWrite;
 import hudson.FeedAdapter;
 import hudson.Util;
+import hudson.WriteBehind;
 import hudson.XmlFile;
 import hudson.BulkChange;
 import hudson.tasks.Mailer;
@@ -393,7 +394,7 @@ public class User extends AbstractModelObject implements AccessControlled, Savea
      */
     public synchronized void save() throws IOException {
         if(BulkChange.contains(this))   return;
-        getConfigFile().write(this);
+        getConfigFile().writeBehind(this);
     }
 
     /**
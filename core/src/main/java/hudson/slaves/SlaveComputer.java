@@ -24,6 +24,7 @@
 package hudson.slaves;
 
 import hudson.model.*;
+import hudson.remoting.CallableStatistics;
 import hudson.remoting.Channel;
 import hudson.remoting.VirtualChannel;
 import hudson.remoting.Callable;
@@ -55,6 +56,8 @@ import java.security.Security;
 
 import org.kohsuke.stapler.StaplerRequest;
 import org.kohsuke.stapler.StaplerResponse;
+import org.kohsuke.stapler.export.Exported;
+import org.kohsuke.stapler.export.ExportedBean;
 
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletResponse;
@@ -271,11 +274,27 @@ public class SlaveComputer extends Computer {
         if(this.channel!=null)
             throw new IllegalStateException("Already connected");
 
+        Channel channel = new Channel(nodeName,threadPoolForRemoting, Channel.Mode.NEGOTIATE,
+            in,out, launchLog);
+        setChannel(channel,launchLog,listener);
+    }
+
+    /**
+     * Sets up the slave with a {@link Channel} that's already connected to it,
+     * such as one created by {@link hudson.remoting.NioChannelHub}.
+     *
+     * @param launchLog
+     *      Receives the messages about the slave getting online.
+     * @param listener
+     *      Gets a notification when the channel closes, to perform clean up. Can be null.
+     */
+    public void setChannel(Channel channel, OutputStream launchLog, Channel.Listener listener) throws IOException, InterruptedException {
+        if(this.channel!=null)
+            throw new IllegalStateException("Already connected");
+
         final TaskListener taskListener = new StreamTaskListener(launchLog);
         PrintStream log = taskListener.getLogger();
 
-        Channel channel = new Channel(nodeName,threadPoolForRemoting, Channel.Mode.NEGOTIATE,
-            in,out, launchLog);
         channel.addListener(new Channel.Listener() {
             public void onClosed(Channel c,IOException cause) {
                 SlaveComputer.this.channel = null;
@@ -342,6 +361,33 @@ public class SlaveComputer extends Computer {
             });
     }
 
+    /**
+     * Statistics of the calls made to this slave, one for each type of {@link Callable},
+     * the most time consuming first. Useful for finding out what's keeping the slave busy.
+     */
+    @Exported
+    public List<CallStatistics> getCallStatistics() {
+        Channel c = channel;
+        if(c==null)
+            return Collections.emptyList();
+        List<CallStatistics> r = new ArrayList<CallStatistics>();
+        for (CallableStatistics s : c.getCallableStatistics())
+            r.add(new CallStatistics(s));
+        return r;
+    }
+
+    /**
+     * Starts collecting the call statistics from scratch.
+     */
+    public void doResetCallStatistics(StaplerRequest req, StaplerResponse rsp) throws IOException, ServletException {
+        checkPermission(Hudson.ADMINISTER);
+        requirePOST();
+        Channel c = channel;
+        if(c!=null)
+            c.resetPerformanceCounters();
+        rsp.sendRedirect("callStatistics");
+    }
+
     public void doDoDisconnect(StaplerResponse rsp) throws IOException, ServletException {
         checkPermission(Hudson.ADMINISTER);
         disconnect();
@@ -452,6 +498,73 @@ public class SlaveComputer extends Computer {
         return ((Slave)node).getLauncher();
     }
 
+    /**
+     * {@link CallableStatistics} for the remote API.
+     */
+    @ExportedBean(defaultVisibility=2)
+    public static final class CallStatistics {
+        private final CallableStatistics stats;
+
+        private CallStatistics(CallableStatistics stats) {
+            this.stats = stats;
+        }
+
+        @Exported
+        public String getName() {
+            return stats.getName();
+        }
+
+        @Exported
+        public long getCalls() {
+            return stats.getCalls();
+        }
+
+        @Exported
+        public long getFailures() {
+            return stats.getFailures();
+        }
+
+        @Exported
+        public int getInFlight() {
+            return stats.getInFlight();
+        }
+
+        @Exported
+        public long getTotalTime() {
+            return stats.getTotalTime();
+        }
+
+        @Exported
+        public double getAverageTime() {
+            return stats.getAverageTime();
+        }
+
+        @Exported
+        public long getMaxTime() {
+            return stats.getMaxTime();
+        }
+
+        @Exported
+        public long getRequestBytes() {
+            return stats.getRequestBytes();
+        }
+
+        @Exported
+        public long getResponseBytes() {
+            return stats.getResponseBytes();
+        }
+
+        @Exported
+        public long[] getHistogramBounds() {
+            return stats.getHistogramBounds();
+        }
+
+        @Exported
+        public long[] getHistogram() {
+            return stats.getHistogram();
+        }
+    }
+
     private static final Logger logger = Logger.getLogger(SlaveComputer.class.getName());
 
     private static final class DetectOS implements Callable<Boolean,IOException> {
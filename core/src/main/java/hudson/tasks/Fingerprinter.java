@@ -52,6 +52,7 @@ import java.io.IOException;
 import java.io.Serializable;
 import java.lang.ref.WeakReference;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
@@ -162,7 +163,17 @@ public class Fingerprinter extends Recorder implements Serializable {
                 FileSet src = Util.createFileSet(baseDir,targets);
 
                 DirectoryScanner ds = src.getDirectoryScanner();
-                for( String f : ds.getIncludedFiles() ) {
+                String[] files = ds.getIncludedFiles();
+
+                // compute all the digests at once, which reads files in parallel
+                Map<String,String> digests;
+                try {
+                    digests = new FilePath(baseDir).digest(Arrays.asList(files));
+                } catch (InterruptedException e) {
+                    throw new IOException2(Messages.Fingerprinter_Aborted(),e);
+                }
+
+                for( String f : files ) {
                     File file = new File(baseDir,f);
 
                     // consider the file to be produced by this build only if the timestamp
@@ -170,13 +181,7 @@ public class Fingerprinter extends Recorder implements Serializable {
                     // 2000ms is an error margin since since VFAT only retains timestamp at 2sec precision
                     boolean produced = buildTimestamp <= file.lastModified()+2000;
 
-                    try {
-                        results.add(new Record(produced,f,file.getName(),new FilePath(file).digest()));
-                    } catch (IOException e) {
-                        throw new IOException2(Messages.Fingerprinter_DigestFailed(file),e);
-                    } catch (InterruptedException e) {
-                        throw new IOException2(Messages.Fingerprinter_Aborted(),e);
-                    }
+                    results.add(new Record(produced,f,file.getName(),digests.get(f)));
                 }
 
                 return results;
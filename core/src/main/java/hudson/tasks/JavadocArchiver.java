@@ -90,7 +90,9 @@ public class JavadocArchiver extends Recorder {
         FilePath target = new FilePath(keepAll ? getJavadocDir(build) : getJavadocDir(build.getProject()));
 
         try {
-            if (javadoc.copyRecursiveTo("**/*",target)==0) {
+            // the project-level javadoc is overwritten by every build, so only send what's changed
+            int n = keepAll ? javadoc.copyRecursiveTo("**/*",target) : javadoc.syncRecursiveTo("**/*",null,target);
+            if (n==0) {
                 if(build.getResult().isBetterOrEqualTo(Result.UNSTABLE)) {
                     // If the build failed, don't complain that there was no javadoc.
                     // The build probably didn't even get to the point where it produces javadoc.
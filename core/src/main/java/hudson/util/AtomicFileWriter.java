@@ -43,13 +43,15 @@ import java.io.Writer;
 public class AtomicFileWriter extends Writer {
 
     private final Writer core;
+    private final FileOutputStream out;
     private final File tmpFile;
     private final File destFile;
 
     public AtomicFileWriter(File f) throws IOException {
         tmpFile = File.createTempFile("atomic",null,f.getParentFile());
         destFile = f;
-        core = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tmpFile),"UTF-8"));
+        out = new FileOutputStream(tmpFile);
+        core = new BufferedWriter(new OutputStreamWriter(out,"UTF-8"));
     }
 
     public void write(int c) throws IOException {
@@ -68,6 +70,17 @@ public class AtomicFileWriter extends Writer {
         core.flush();
     }
 
+    /**
+     * Forces the data written so far to the disk, so that it survives an OS crash
+     * once {@link #commit() committed}.
+     *
+     * @since 1.313
+     */
+    public void sync() throws IOException {
+        core.flush();
+        out.getFD().sync();
+    }
+
     public void close() throws IOException {
         core.close();
     }
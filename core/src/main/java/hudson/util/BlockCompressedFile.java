@@ -0,0 +1,410 @@
+/*
+ * The MIT License
+ * 
+ * Copyright (c) 2004-2009, Sun Microsystems, Inc., Kohsuke Kawaguchi
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.util;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.Deflater;
+
+/**
+ * Write-once file compressed in independent blocks, with an index that allows
+ * reading from an arbitrary offset without decompressing everything before it.
+ * This is used for the console output of completed builds.
+ *
+ * <p>
+ * The file consists of the blocks written by {@link BlockDeflaterOutputStream},
+ * so the whole file can also be read by {@link BlockInflaterInputStream}, followed by the index
+ * and the trailer:
+ *
+ * <pre>
+ * index   := ( [long rawOffset][long fileOffset][int newlines] )*
+ * trailer := [long indexOffset][long rawLength][int blocks][int lastByte][int MAGIC]
+ * </pre>
+ *
+ * where <tt>newlines</tt> is the number of '\n' in the block, which lets us find
+ * the last N lines by only decompressing the blocks that contain them.
+ *
+ * @see CompressedFile
+ */
+public class BlockCompressedFile {
+    /**
+     * The compressed file.
+     */
+    private final File file;
+
+    private Index index;
+
+    public BlockCompressedFile(File file) {
+        this.file = file;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public boolean exists() {
+        return file.exists();
+    }
+
+    /**
+     * Length of the uncompressed data.
+     */
+    public long length() throws IOException {
+        return index().rawLength;
+    }
+
+    /**
+     * Reads the uncompressed data from the given offset.
+     * Only the block that contains the offset and those after it are decompressed.
+     */
+    public InputStream read(long start) throws IOException {
+        Index idx = index();
+        if(start>=idx.rawLength)
+            return new ByteArrayInputStream(new byte[0]);
+        if(start<0)     start = 0;
+
+        int b = idx.blockOf(start);
+        FileInputStream fin = new FileInputStream(file);
+        try {
+            fin.getChannel().position(idx.fileOffsets[b]);
+            InputStream in = new BlockInflaterInputStream(new BufferedInputStream(fin));
+            skipFully(in,start-idx.rawOffsets[b]);
+            return in;
+        } catch (IOException e) {
+            fin.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Finds the offset where the last <tt>lines</tt> lines start,
+     * counting the lines as {@link java.io.BufferedReader#readLine()} would for '\n'-terminated lines.
+     *
+     * @return
+     *      0 if the whole file has no more lines than that.
+     */
+    public long findTail(int lines) throws IOException {
+        Index idx = index();
+        if(lines<=0)    return idx.rawLength;
+
+        long total = idx.totalNewlines();
+        if(idx.lastByte>=0 && idx.lastByte!='\n')
+            total++;    // the last line isn't terminated
+        long skip = total-lines;
+        if(skip<=0)     return 0;
+
+        // find the block that contains the skip-th newline
+        long seen = 0;
+        int b = 0;
+        while(seen+idx.newlines[b]<skip)
+            seen += idx.newlines[b++];
+
+        InputStream in = read(idx.rawOffsets[b]);
+        try {
+            byte[] buf = new byte[8192];
+            long pos = idx.rawOffsets[b];
+            int len;
+            while((len=in.read(buf))>=0) {
+                for( int i=0; i<len; i++ )
+                    if(buf[i]=='\n' && ++seen==skip)
+                        return pos+i+1;
+                pos += len;
+            }
+        } finally {
+            in.close();
+        }
+        throw new IOException("Corrupted index in "+file);
+    }
+
+    /**
+     * Counts the number of '\n' before the given offset.
+     */
+    public long countLines(long offset) throws IOException {
+        Index idx = index();
+        if(offset>=idx.rawLength)
+            return idx.totalNewlines();
+
+        int b = idx.blockOf(offset);
+        long seen = 0;
+        for( int i=0; i<b; i++ )
+            seen += idx.newlines[i];
+
+        InputStream in = read(idx.rawOffsets[b]);
+        try {
+            byte[] buf = new byte[8192];
+            long remaining = offset-idx.rawOffsets[b];
+            while(remaining>0) {
+                int len = in.read(buf,0,(int)Math.min(buf.length,remaining));
+                if(len<0)   break;
+                for( int i=0; i<len; i++ )
+                    if(buf[i]=='\n')
+                        seen++;
+                remaining -= len;
+            }
+        } finally {
+            in.close();
+        }
+        return seen;
+    }
+
+    /**
+     * Compresses the given file into this file, then deletes the original.
+     *
+     * <p>
+     * The compressed file is written under a temporary name first, so readers
+     * see either the original or the complete compressed file.
+     */
+    public void compress(File src) throws IOException {
+        File tmp = new File(file.getPath()+".tmp");
+        long[] newlines = new long[16];
+        int lastByte = -1;
+        long rawLength = 0;
+
+        InputStream in = new FileInputStream(src);
+        try {
+            OutputStream out = new BlockDeflaterOutputStream(new FileOutputStream(tmp),Deflater.DEFAULT_COMPRESSION);
+            try {
+                byte[] buf = new byte[8192];
+                int len;
+                while((len=in.read(buf))>=0) {
+                    for( int i=0; i<len; i++ ) {
+                        if(buf[i]=='\n') {
+                            int b = (int)((rawLength+i)/BlockDeflaterOutputStream.BLOCK_SIZE);
+                            if(b>=newlines.length) {
+                                long[] a = new long[Math.max(b+1,newlines.length*2)];
+                                System.arraycopy(newlines,0,a,0,newlines.length);
+                                newlines = a;
+                            }
+                            newlines[b]++;
+                        }
+                    }
+                    if(len>0)
+                        lastByte = buf[len-1]&0xFF;
+                    rawLength += len;
+                    out.write(buf,0,len);
+                }
+            } finally {
+                out.close();
+            }
+        } finally {
+            in.close();
+        }
+
+        try {
+            writeIndex(tmp,rawLength,lastByte,newlines);
+        } catch (IOException e) {
+            tmp.delete();
+            throw e;
+        }
+
+        if(!tmp.renameTo(file)) {
+            // on Windows, a file can't be renamed over an existing one
+            file.delete();
+            if(!tmp.renameTo(file)) {
+                tmp.delete();
+                throw new IOException("Failed to rename "+tmp+" to "+file);
+            }
+        }
+        index = null;
+        // only now that the compressed file is in place. readers that fail to open the original
+        // fall back to it. if this fails, for example because someone is still reading it on Windows,
+        // the original remains and keeps being used
+        src.delete();
+    }
+
+    /**
+     * Walks the block headers of the compressed data and appends the index.
+     */
+    private static void writeIndex(File f, long rawLength, int lastByte, long[] newlines) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(f,"rw");
+        try {
+            int blocks = (int)((rawLength+BlockDeflaterOutputStream.BLOCK_SIZE-1)/BlockDeflaterOutputStream.BLOCK_SIZE);
+            long[] fileOffsets = new long[blocks];
+            long pos = 0;
+            for( int i=0; i<blocks; i++ ) {
+                raf.seek(pos);
+                int raw = raf.readInt();
+                int size = raf.readInt();
+                // every block but the last is full, which is what the newline counts are based on
+                long expected = Math.min(BlockDeflaterOutputStream.BLOCK_SIZE,rawLength-(long)i*BlockDeflaterOutputStream.BLOCK_SIZE);
+                if(raw!=expected)
+                    throw new IOException("Unexpected block size "+raw+" at "+pos+" in "+f);
+                fileOffsets[i] = pos;
+                pos += 8+(size<0 ? raw : size);
+            }
+
+            long indexOffset = pos+8;   // after the end-of-stream block
+            ByteArrayOutputStream buf = new ByteArrayOutputStream((blocks+1)*ENTRY_SIZE);
+            DataOutputStream dos = new DataOutputStream(buf);
+            for( int i=0; i<blocks; i++ ) {
+                dos.writeLong((long)i*BlockDeflaterOutputStream.BLOCK_SIZE);
+                dos.writeLong(fileOffsets[i]);
+                dos.writeInt(i<newlines.length ? (int)newlines[i] : 0);
+            }
+            dos.writeLong(indexOffset);
+            dos.writeLong(rawLength);
+            dos.writeInt(blocks);
+            dos.writeInt(lastByte);
+            dos.writeInt(MAGIC);
+
+            raf.seek(indexOffset);
+            raf.write(buf.toByteArray());
+            raf.setLength(raf.getFilePointer());
+            raf.getFD().sync();
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Asynchronously schedules the compression of the given file into this file.
+     *
+     * @see #compress(File)
+     */
+    public void scheduleCompression(final File src) {
+        compressionThread.submit(new Runnable() {
+            public void run() {
+                if(!src.exists())
+                    return; // deleted in the mean time
+                try {
+                    compress(src);
+                } catch (IOException e) {
+                    LOGGER.log(Level.WARNING, "Failed to compress "+src,e);
+                    new File(file.getPath()+".tmp").delete(); // in case a processing is left in the middle
+                }
+            }
+        });
+    }
+
+    private Index index() throws IOException {
+        if(index==null)
+            index = new Index(file);
+        return index;
+    }
+
+    private static void skipFully(InputStream in, long n) throws IOException {
+        while(n>0) {
+            long r = in.skip(n);
+            if(r<=0) {
+                if(in.read()<0)
+                    throw new IOException("Unexpected end of the compressed stream");
+                r = 1;
+            }
+            n -= r;
+        }
+    }
+
+    /**
+     * The index and the trailer, loaded from the end of the file.
+     */
+    private static final class Index {
+        final long rawLength;
+        final int lastByte;
+        final long[] rawOffsets;
+        final long[] fileOffsets;
+        final int[] newlines;
+
+        Index(File f) throws IOException {
+            if(!f.exists())
+                throw new FileNotFoundException(f.getPath());
+            RandomAccessFile raf = new RandomAccessFile(f,"r");
+            try {
+                long len = raf.length();
+                if(len<TRAILER_SIZE)
+                    throw new IOException(f+" isn't a block compressed file");
+                raf.seek(len-TRAILER_SIZE);
+                long indexOffset = raf.readLong();
+                rawLength = raf.readLong();
+                int blocks = raf.readInt();
+                lastByte = raf.readInt();
+                if(raf.readInt()!=MAGIC || blocks<0 || indexOffset+(long)blocks*ENTRY_SIZE!=len-TRAILER_SIZE)
+                    throw new IOException(f+" isn't a block compressed file");
+
+                rawOffsets = new long[blocks];
+                fileOffsets = new long[blocks];
+                newlines = new int[blocks];
+                raf.seek(indexOffset);
+                DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(raf.getFD())));
+                for( int i=0; i<blocks; i++ ) {
+                    rawOffsets[i] = in.readLong();
+                    fileOffsets[i] = in.readLong();
+                    newlines[i] = in.readInt();
+                }
+            } finally {
+                raf.close();
+            }
+        }
+
+        /**
+         * Index of the block that contains the given offset.
+         */
+        int blockOf(long offset) {
+            int lo=0, hi=rawOffsets.length-1;
+            while(lo<hi) {
+                int mid = (lo+hi+1)>>>1;
+                if(rawOffsets[mid]<=offset)     lo = mid;
+                else                            hi = mid-1;
+            }
+            return lo;
+        }
+
+        long totalNewlines() {
+            long r = 0;
+            for (int n : newlines)
+                r += n;
+            return r;
+        }
+    }
+
+    private static final int MAGIC = 0x48424c4b;  // "HBLK"
+    private static final int ENTRY_SIZE = 8+8+4;
+    private static final int TRAILER_SIZE = 8+8+4+4+4;
+
+    /**
+     * Executor used for compression. Limited up to one thread since
+     * this should be a fairly low-priority task.
+     */
+    private static final ExecutorService compressionThread = new ThreadPoolExecutor(
+        0, 1, 5L, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+        new ExceptionCatchingThreadFactory(new DaemonThreadFactory()));
+
+    private static final Logger LOGGER = Logger.getLogger(BlockCompressedFile.class.getName());
+}
@@ -0,0 +1,235 @@
+/*
+ * The MIT License
+ * 
+ * Copyright (c) 2004-2009, Sun Microsystems, Inc., Kohsuke Kawaguchi
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.LinkedList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.Deflater;
+
+/**
+ * {@link OutputStream} that splits the data into fixed size blocks and deflates them
+ * independently on multiple threads, so that compression doesn't become the bottleneck
+ * of a transfer on multi-core machines.
+ *
+ * <p>
+ * Each block is written as <tt>[int rawLength][int compressedLength][data]</tt>,
+ * where a negative compressed length means the block is stored uncompressed.
+ * The stream ends with a block whose raw length is 0. Blocks are written
+ * in order, so the output can be read back by {@link BlockInflaterInputStream}.
+ *
+ * <p>
+ * Since the blocks are compressed independently, the compression ratio is slightly
+ * worse than a single deflate stream.
+ *
+ * @see BlockInflaterInputStream
+ */
+public class BlockDeflaterOutputStream extends OutputStream {
+    private final OutputStream out;
+    private final int level;
+    private final ExecutorService executor;
+    /**
+     * Maximum number of blocks that are being compressed at the same time.
+     * Bounds the memory usage when the compression is slower than the input.
+     */
+    private final int maxPending;
+    /**
+     * Blocks that are submitted for compression, in the order they need to be written.
+     */
+    private final LinkedList<Future<byte[]>> pending = new LinkedList<Future<byte[]>>();
+
+    private byte[] buf = new byte[BLOCK_SIZE];
+    private int len;
+    private boolean closed;
+
+    /**
+     * @param level
+     *      Compression level as in {@link Deflater}. 0 stores the data uncompressed.
+     */
+    public BlockDeflaterOutputStream(OutputStream out, int level) {
+        this(out,level,EXECUTOR,THREADS);
+    }
+
+    /**
+     * @param parallelism
+     *      Number of blocks compressed concurrently.
+     */
+    public BlockDeflaterOutputStream(OutputStream out, int level, ExecutorService executor, int parallelism) {
+        this.out = out;
+        this.level = level;
+        this.executor = executor;
+        this.maxPending = Math.max(1,parallelism)*2;
+    }
+
+    public void write(int b) throws IOException {
+        buf[len++] = (byte)b;
+        if(len==buf.length)
+            submit();
+    }
+
+    public void write(byte[] b, int off, int l) throws IOException {
+        while(l>0) {
+            int n = Math.min(l,buf.length-len);
+            System.arraycopy(b,off,buf,len,n);
+            len += n;
+            off += n;
+            l -= n;
+            if(len==buf.length)
+                submit();
+        }
+    }
+
+    /**
+     * Sends the current block to compression.
+     */
+    private void submit() throws IOException {
+        if(len==0)  return;
+        final byte[] block = buf;
+        final int size = len;
+        buf = new byte[BLOCK_SIZE];
+        len = 0;
+
+        while(pending.size()>=maxPending)
+            writeNext();
+        pending.add(executor.submit(new Callable<byte[]>() {
+            public byte[] call() throws IOException {
+                return compress(block,size,level);
+            }
+        }));
+    }
+
+    /**
+     * Waits for the oldest block to be compressed and writes it out.
+     */
+    private void writeNext() throws IOException {
+        Future<byte[]> f = pending.removeFirst();
+        try {
+            out.write(f.get());
+        } catch (InterruptedException e) {
+            throw (IOException)new InterruptedIOException().initCause(e);
+        } catch (ExecutionException e) {
+            throw new IOException2("Failed to compress",e.getCause());
+        }
+    }
+
+    /**
+     * Writes all the data written so far, including a partial block.
+     */
+    public void flush() throws IOException {
+        submit();
+        while(!pending.isEmpty())
+            writeNext();
+        out.flush();
+    }
+
+    public void close() throws IOException {
+        if(closed)  return;
+        closed = true;
+        try {
+            flush();
+            DataOutputStream dos = new DataOutputStream(out);
+            dos.writeInt(0);
+            dos.writeInt(0);
+        } finally {
+            for (Future<byte[]> f : pending)
+                f.cancel(true);
+            out.close();
+        }
+    }
+
+    /**
+     * Compresses one block into its frame.
+     */
+    private static byte[] compress(byte[] block, int size, int level) throws IOException {
+        ByteArrayOutputStream frame = new ByteArrayOutputStream(size/2+16);
+        DataOutputStream dos = new DataOutputStream(frame);
+        dos.writeInt(size);
+        dos.writeInt(0);    // placeholder
+
+        if(level!=0) {
+            Deflater d = new Deflater(level,true);
+            try {
+                d.setInput(block,0,size);
+                d.finish();
+                byte[] b = new byte[8192];
+                while(!d.finished()) {
+                    int n = d.deflate(b);
+                    frame.write(b,0,n);
+                    if(frame.size()>=size+8)
+                        break;  // incompressible. store it as is
+                }
+                if(d.finished() && frame.size()<size+8) {
+                    byte[] r = frame.toByteArray();
+                    setInt(r,4,r.length-8);
+                    return r;
+                }
+            } finally {
+                d.end();
+            }
+        }
+
+        frame.reset();
+        dos.writeInt(size);
+        dos.writeInt(-1);
+        dos.write(block,0,size);
+        return frame.toByteArray();
+    }
+
+    private static void setInt(byte[] b, int pos, int v) {
+        b[pos  ] = (byte)(v>>>24);
+        b[pos+1] = (byte)(v>>>16);
+        b[pos+2] = (byte)(v>>> 8);
+        b[pos+3] = (byte) v;
+    }
+
+    /**
+     * Size of the blocks that are compressed independently.
+     */
+    public static final int BLOCK_SIZE = 128*1024;
+
+    /**
+     * Number of blocks compressed concurrently by default.
+     */
+    public static int THREADS = Integer.getInteger(BlockDeflaterOutputStream.class.getName()+".threads",
+            Runtime.getRuntime().availableProcessors());
+
+    /**
+     * Shared by all the streams, and limited to {@link #THREADS} threads.
+     * When all of them are busy, the writing thread compresses the block by itself,
+     * which also slows down the writers instead of piling up blocks in memory.
+     */
+    private static final ExecutorService EXECUTOR = new ThreadPoolExecutor(
+        0, Math.max(1,THREADS), 5L, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(),
+        new DaemonThreadFactory(), new ThreadPoolExecutor.CallerRunsPolicy());
+}
@@ -0,0 +1,135 @@
+/*
+ * The MIT License
+ * 
+ * Copyright (c) 2004-2009, Sun Microsystems, Inc., Kohsuke Kawaguchi
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.util;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Reads the stream written by {@link BlockDeflaterOutputStream}.
+ *
+ * @see BlockDeflaterOutputStream
+ */
+public class BlockInflaterInputStream extends InputStream {
+    private final DataInputStream in;
+    private final Inflater inflater = new Inflater(true);
+
+    private byte[] compressed = new byte[0];
+    private byte[] block = new byte[0];
+    private int pos,len;
+    private boolean eof;
+
+    public BlockInflaterInputStream(InputStream in) {
+        this.in = new DataInputStream(in);
+    }
+
+    public int read() throws IOException {
+        if(!fill()) return -1;
+        return block[pos++]&0xFF;
+    }
+
+    public int read(byte[] b, int off, int l) throws IOException {
+        if(l==0)    return 0;
+        if(!fill()) return -1;
+        int n = Math.min(l,len-pos);
+        System.arraycopy(block,pos,b,off,n);
+        pos += n;
+        return n;
+    }
+
+    public int available() throws IOException {
+        return len-pos;
+    }
+
+    public void close() throws IOException {
+        inflater.end();
+        in.close();
+    }
+
+    /**
+     * Makes sure that there's data to read in the current block.
+     *
+     * @return false if the end of the stream is reached.
+     */
+    private boolean fill() throws IOException {
+        while(pos==len) {
+            if(eof) return false;
+            readBlock();
+        }
+        return true;
+    }
+
+    private void readBlock() throws IOException {
+        int raw, size;
+        try {
+            raw = in.readInt();
+            size = in.readInt();
+        } catch (EOFException e) {
+            throw new IOException2("Unexpected end of the compressed stream",e);
+        }
+        if(raw==0) {
+            eof = true;
+            return;
+        }
+        if(raw<0)
+            throw new IOException("Corrupted compressed stream: block size "+raw);
+
+        if(block.length<raw)
+            block = new byte[raw];
+        pos = 0;
+        len = raw;
+
+        if(size<0) {
+            // stored as is
+            in.readFully(block,0,raw);
+            return;
+        }
+
+        // with nowrap, the inflater needs an extra dummy byte at the end of the input
+        if(compressed.length<size+1)
+            compressed = new byte[size+1];
+        in.readFully(compressed,0,size);
+        compressed[size] = 0;
+
+        inflater.reset();
+        inflater.setInput(compressed,0,size+1);
+        try {
+            int n = 0;
+            while(n<raw && !inflater.finished()) {
+                int r = inflater.inflate(block,n,raw-n);
+                if(r==0 && (inflater.needsInput() || inflater.needsDictionary()))
+                    break;
+                n += r;
+            }
+            if(n!=raw)
+                throw new IOException("Corrupted compressed stream: expected "+raw+" bytes but got "+n);
+        } catch (DataFormatException e) {
+            throw new IOException2("Corrupted compressed stream",e);
+        }
+    }
+}
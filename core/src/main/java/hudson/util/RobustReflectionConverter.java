@@ -42,12 +42,14 @@ import com.thoughtworks.xstream.mapper.Mapper;
 import com.thoughtworks.xstream.mapper.CannotResolveClassException;
 
 import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
 import java.util.Iterator;
 import java.util.Map;
 import java.util.Set;
 import java.util.HashSet;
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.logging.Logger;
 import java.util.logging.Level;
 
@@ -61,6 +63,11 @@ import java.util.logging.Level;
  *     instead of causing an error.
  * </ul>
  *
+ * <p>
+ * When unmarshalling, how each child element maps to a field (the field itself, its type,
+ * and the default implementation) is resolved once per class and element name, and reused afterward.
+ * This assumes that field aliases, implicit collections, and default implementations of the
+ * {@link Mapper} are configured before the class is unmarshalled for the first time.
  */
 public class RobustReflectionConverter implements Converter {
 
@@ -69,6 +76,11 @@ public class RobustReflectionConverter implements Converter {
     protected transient SerializationMethodInvoker serializationMethodInvoker;
     private transient ReflectionProvider pureJavaReflectionProvider;
 
+    /**
+     * {@link FieldPlan}s keyed by the class, then by the element name.
+     */
+    private transient ConcurrentHashMap<Class,ConcurrentHashMap<String,FieldPlan>> plans = new ConcurrentHashMap<Class,ConcurrentHashMap<String,FieldPlan>>();
+
     public RobustReflectionConverter(Mapper mapper, ReflectionProvider reflectionProvider) {
         this.mapper = mapper;
         this.reflectionProvider = reflectionProvider;
@@ -205,10 +217,29 @@ public class RobustReflectionConverter implements Converter {
         }
 
         Map implicitCollectionsForCurrentObject = null;
+        Map<String,FieldPlan> classPlans = null;
         while (reader.hasMoreChildren()) {
             reader.moveDown();
 
             try {
+                FieldPlan plan = null;
+                if (reader.getAttribute(mapper.aliasForAttribute("defined-in"))==null) {
+                    // the usual case. the element is a field of this class or its super classes.
+                    if (classPlans==null)
+                        classPlans = getPlans(result.getClass());
+                    String nodeName = reader.getNodeName();
+                    plan = classPlans.get(nodeName);
+                    if (plan==null) {
+                        plan = createPlan(result.getClass(),nodeName);
+                        classPlans.put(nodeName,plan);
+                    }
+                }
+                if (plan!=null && plan!=FieldPlan.NONE) {
+                    unmarshalField(plan, result, reader, context, seenFields);
+                    reader.moveUp();
+                    continue;
+                }
+
                 String fieldName = mapper.realMember(result.getClass(), reader.getNodeName());
                 boolean implicitCollectionHasSameName = mapper.getImplicitCollectionDefForFieldName(result.getClass(), reader.getNodeName()) != null;
 
@@ -252,6 +283,97 @@ public class RobustReflectionConverter implements Converter {
         return result;
     }
 
+    /**
+     * Same as the generic code path in {@link #doUnmarshal(Object, HierarchicalStreamReader, UnmarshallingContext)}
+     * for a field, except that all the look ups are already done.
+     */
+    private void unmarshalField(FieldPlan plan, Object result, HierarchicalStreamReader reader, UnmarshallingContext context, SeenFields seenFields) {
+        Class type = plan.defaultType;
+        String classAttribute = reader.getAttribute(mapper.aliasForAttribute("class"));
+        if (classAttribute != null) {
+            Class specifiedType = mapper.realClass(classAttribute);
+            if(plan.type.isAssignableFrom(specifiedType))
+                // make sure that the specified type in XML is compatible with the field type.
+                type = specifiedType;
+        }
+
+        Object value = unmarshallField(context, result, type, plan.field);
+        if (!plan.type.isPrimitive()) {
+            type = plan.type;
+        }
+
+        if (value != null && !type.isAssignableFrom(value.getClass())) {
+            LOGGER.warning("Cannot convert type " + value.getClass().getName() + " to type " + type.getName());
+            // behave as if we didn't see this element
+        } else {
+            try {
+                plan.field.set(result, value);
+            } catch (IllegalAccessException e) {
+                throw new ObjectAccessException("Could not set field " + plan.field, e);
+            }
+            seenFields.add(null, plan.field.getName());
+        }
+    }
+
+    private ConcurrentHashMap<String,FieldPlan> getPlans(Class c) {
+        ConcurrentHashMap<String,FieldPlan> m = plans.get(c);
+        if (m==null) {
+            m = new ConcurrentHashMap<String,FieldPlan>();
+            ConcurrentHashMap<String,FieldPlan> prev = plans.putIfAbsent(c,m);
+            if (prev!=null) m = prev;
+        }
+        return m;
+    }
+
+    /**
+     * Resolves how the given element maps to a field of the given class.
+     *
+     * @return
+     *      {@link FieldPlan#NONE} if the element needs the generic code path,
+     *      such as when it's an implicit collection or not a field at all.
+     */
+    private FieldPlan createPlan(Class c, String nodeName) {
+        try {
+            if (mapper.getImplicitCollectionDefForFieldName(c, nodeName) != null)
+                return FieldPlan.NONE;
+            String fieldName = mapper.realMember(c, nodeName);
+            Field field = reflectionProvider.getFieldOrNull(c, fieldName);
+            if (field==null || Modifier.isStatic(field.getModifiers()))
+                return FieldPlan.NONE;
+            field.setAccessible(true);
+            return new FieldPlan(field, mapper.defaultImplementationOf(field.getType()));
+        } catch (RuntimeException e) {
+            // let the generic code path deal with it
+            return FieldPlan.NONE;
+        }
+    }
+
+    /**
+     * How a child element is unmarshalled into a field, resolved once and then reused.
+     */
+    private static final class FieldPlan {
+        final Field field;
+        /**
+         * Declared type of the field.
+         */
+        final Class type;
+        /**
+         * Type to unmarshal into if the XML doesn't say otherwise.
+         */
+        final Class defaultType;
+
+        FieldPlan(Field field, Class defaultType) {
+            this.field = field;
+            this.type = field==null ? null : field.getType();
+            this.defaultType = defaultType;
+        }
+
+        /**
+         * Marks the elements that take the generic code path.
+         */
+        static final FieldPlan NONE = new FieldPlan(null,null);
+    }
+
     private boolean fieldDefinedInClass(Object result, String attrName) {
         // during unmarshalling, unmarshal into transient fields like XStream 1.1.3
         //boolean fieldExistsInClass = reflectionProvider.fieldDefinedInClass(attrName, result.getClass());
@@ -346,6 +468,7 @@ public class RobustReflectionConverter implements Converter {
 
     private Object readResolve() {
         serializationMethodInvoker = new SerializationMethodInvoker();
+        plans = new ConcurrentHashMap<Class,ConcurrentHashMap<String,FieldPlan>>();
         return this;
     }
 
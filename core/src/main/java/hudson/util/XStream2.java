@@ -38,6 +38,7 @@ import hudson.matrix.AxisList;
 
 import java.lang.reflect.Constructor;
 import java.lang.reflect.InvocationTargetException;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * {@link XStream} enhanced for additional Java5 support and improved robustness.
@@ -88,15 +89,31 @@ public class XStream2 extends XStream {
      */
     private static final class AssociatedConverterImpl implements Converter {
         private final XStream xstream;
+        /**
+         * Converters found so far, so that we don't load the class and instantiate the converter
+         * every time an object of that type is marshalled or unmarshalled.
+         * Types without a converter aren't cached here, as {@link #canConvert(Class)} is already cached by XStream.
+         */
+        private final ConcurrentHashMap<Class,Converter> cache = new ConcurrentHashMap<Class,Converter>();
 
         private AssociatedConverterImpl(XStream xstream) {
             this.xstream = xstream;
         }
 
         private Converter findConverter(Class t) {
+            if(t==null || t.getClassLoader()==null)
+                return null;
+            Converter c = cache.get(t);
+            if(c==null) {
+                c = createConverter(t);
+                if(c!=null)
+                    cache.put(t,c);
+            }
+            return c;
+        }
+
+        private Converter createConverter(Class t) {
             try {
-                if(t==null || t.getClassLoader()==null)
-                    return null;
                 Class<?> cl = t.getClassLoader().loadClass(t.getName() + "$ConverterImpl");
                 Constructor<?> c = cl.getConstructors()[0];
 
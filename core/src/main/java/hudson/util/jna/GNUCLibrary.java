@@ -67,6 +67,7 @@ public interface GNUCLibrary extends Library {
 
     int chown(String fileName, int uid, int gid);
     int chmod(String fileName, int i);
+    int link(String oldpath, String newpath);
 
 
     // this is listed in http://developer.apple.com/DOCUMENTATION/Darwin/Reference/ManPages/man3/sysctlbyname.3.html
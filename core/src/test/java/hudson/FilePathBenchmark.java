@@ -0,0 +1,176 @@
+/*
+ * The MIT License
+ * 
+ * Copyright (c) 2004-2009, Sun Microsystems, Inc., Kohsuke Kawaguchi
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson;
+
+import hudson.remoting.Channel;
+import org.apache.tools.ant.taskdefs.Copy;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Measures the throughput of archiving a workspace with {@link FilePath#copyRecursiveTo(String, FilePath)},
+ * on the same machine and over a channel, against the Ant {@link Copy} that the local copy used to use.
+ *
+ * <p>
+ * Usage: FilePathBenchmark [total MB (2048)] [MB per file (16)]
+ */
+public class FilePathBenchmark {
+    public static void main(String[] args) throws Exception {
+        int totalMB = args.length>0 ? Integer.parseInt(args[0]) : 2048;
+        int fileMB = args.length>1 ? Integer.parseInt(args[1]) : 16;
+
+        File ws = Util.createTempDir();
+        File archive = Util.createTempDir();
+        ExecutorService executors = Executors.newCachedThreadPool();
+        try {
+            System.out.println("Creating a "+totalMB+"MB workspace in "+ws);
+            createWorkspace(ws,totalMB,fileMB);
+
+            // so that the first measurement doesn't pay for the page cache
+            measure("warm up",ws,archive,new Ant());
+
+            measure("Ant copy",ws,archive,new Ant());
+            measure("local copyRecursiveTo",ws,archive,new Local());
+
+            Channel[] channels = connect(executors);
+            try {
+                measure("remote copyRecursiveTo",ws,archive,new Remote(channels[1]));
+            } finally {
+                channels[0].close();
+                channels[0].join();
+                channels[1].join();
+            }
+        } finally {
+            executors.shutdown();
+            Util.deleteRecursive(ws);
+            Util.deleteRecursive(archive);
+        }
+    }
+
+    interface Archiver {
+        void archive(File ws, File archive) throws Exception;
+    }
+
+    /**
+     * What the local copy used to do.
+     */
+    static class Ant implements Archiver {
+        public void archive(File ws, File archive) {
+            Copy copy = new Copy();
+            copy.setProject(new org.apache.tools.ant.Project());
+            copy.setTodir(archive);
+            copy.addFileset(Util.createFileSet(ws,"**/*",null));
+            copy.setIncludeEmptyDirs(false);
+            copy.execute();
+        }
+    }
+
+    static class Local implements Archiver {
+        public void archive(File ws, File archive) throws Exception {
+            new FilePath(ws).copyRecursiveTo("**/*",new FilePath(archive));
+        }
+    }
+
+    static class Remote implements Archiver {
+        private final Channel channel;
+
+        Remote(Channel channel) {
+            this.channel = channel;
+        }
+
+        public void archive(File ws, File archive) throws Exception {
+            new FilePath(ws).copyRecursiveTo("**/*",new FilePath(channel,archive.getPath()));
+        }
+    }
+
+    private static void measure(String name, File ws, File archive, Archiver a) throws Exception {
+        Util.deleteContentsRecursive(archive);
+        long size = size(ws);
+        long start = System.nanoTime();
+        a.archive(ws,archive);
+        long time = System.nanoTime()-start;
+        if(size(archive)!=size)
+            throw new IllegalStateException(name+" didn't copy everything");
+        System.out.printf("%-24s %6dms %8.1fMB/s%n", name, time/1000000, size*1000.0/time);
+    }
+
+    private static void createWorkspace(File ws, int totalMB, int fileMB) throws IOException {
+        Random r = new Random(0);
+        byte[] buf = new byte[1024*1024];
+        for( int i=0; i*fileMB<totalMB; i++ ) {
+            File f = new File(ws,"module"+(i%8)+"/target/file"+i+".bin");
+            f.getParentFile().mkdirs();
+            FileOutputStream out = new FileOutputStream(f);
+            try {
+                for( int j=0; j<fileMB; j++ ) {
+                    r.nextBytes(buf);
+                    out.write(buf);
+                }
+            } finally {
+                out.close();
+            }
+        }
+    }
+
+    private static long size(File f) {
+        if(f.isFile())  return f.length();
+        long r = 0;
+        File[] children = f.listFiles();
+        if(children!=null)
+            for (File c : children)
+                r += size(c);
+        return r;
+    }
+
+    /**
+     * Two channels connected to each other in the same JVM.
+     */
+    private static Channel[] connect(final ExecutorService executors) throws Exception {
+        final PipedInputStream p1i = new PipedInputStream();
+        final PipedInputStream p2i = new PipedInputStream();
+        final PipedOutputStream p1o = new PipedOutputStream(p1i);
+        final PipedOutputStream p2o = new PipedOutputStream(p2i);
+
+        Future<Channel> f1 = executors.submit(new Callable<Channel>() {
+            public Channel call() throws Exception {
+                return new Channel("master", executors, p1i, p2o);
+            }
+        });
+        Future<Channel> f2 = executors.submit(new Callable<Channel>() {
+            public Channel call() throws Exception {
+                return new Channel("slave", executors, p2i, p1o);
+            }
+        });
+        return new Channel[]{f1.get(),f2.get()};
+    }
+}
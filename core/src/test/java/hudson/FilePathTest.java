@@ -30,6 +30,9 @@ import hudson.util.NullStream;
 import java.io.PipedInputStream;
 import java.io.PipedOutputStream;
 import java.io.File;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Map;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Callable;
@@ -102,4 +105,100 @@ public class FilePathTest extends TestCase {
             Assert.assertTrue("could not delete target " + tmp2.getPath(), tmp2.delete());
         }
     }
+
+    /**
+     * Copies within the same machine go through the local fast path.
+     */
+    public void testLocalCopy() throws Exception {
+        File src = Util.createTempDir();
+        File dst = Util.createTempDir();
+        try {
+            FilePath s = new FilePath(src);
+            s.child("a.txt").write("aaa",null);
+            s.child("sub/b.txt").write("bbb",null);
+            s.child("sub/c.log").write("ccc",null);
+
+            FilePath d = new FilePath(dst);
+            assertEquals(2,s.copyRecursiveTo("**/*.txt",d));
+            assertEquals("aaa",d.child("a.txt").readToString());
+            assertEquals("bbb",d.child("sub/b.txt").readToString());
+            assertFalse(d.child("sub/c.log").exists());
+
+            // up to date files aren't copied again
+            assertEquals(0,s.copyRecursiveTo("**/*.txt",d));
+
+            s.child("sub/c.log").copyTo(d.child("logs/c.log"));
+            assertEquals("ccc",d.child("logs/c.log").readToString());
+        } finally {
+            Util.deleteRecursive(src);
+            Util.deleteRecursive(dst);
+        }
+    }
+
+    /**
+     * Only the changed files are sent by {@link FilePath#syncRecursiveTo(String, String, FilePath)}.
+     */
+    public void testSync() throws Exception {
+        File src = Util.createTempDir();
+        File dst = Util.createTempDir();
+        try {
+            FilePath s = new FilePath(src);
+            s.child("a.txt").write("aaa",null);
+            s.child("sub/b.txt").write("bbb",null);
+
+            FilePath d = new FilePath(british,dst.getPath());
+            assertEquals(2,s.syncRecursiveTo("**/*",null,d));
+            assertEquals("aaa",d.child("a.txt").readToString());
+            assertEquals("bbb",d.child("sub/b.txt").readToString());
+
+            // modify the target copy behind our back, to see which files get overwritten
+            d.child("a.txt").write("xxx",null);
+            d.child("a.txt").touch(new File(src,"a.txt").lastModified());
+            d.child("sub/b.txt").write("yyy",null);
+            d.child("sub/b.txt").touch(new File(src,"sub/b.txt").lastModified()+5000);
+
+            assertEquals(2,s.syncRecursiveTo("**/*",null,d));
+            // same size and timestamp, so it's taken to be up to date
+            assertEquals("xxx",d.child("a.txt").readToString());
+            // different timestamp, so the digest gets compared
+            assertEquals("bbb",d.child("sub/b.txt").readToString());
+
+            // same contents with a different timestamp isn't copied, but the timestamp is fixed
+            d.child("a.txt").write("aaa",null);
+            assertEquals(2,s.syncRecursiveTo("**/*",null,d));
+            assertEquals(new File(src,"a.txt").lastModified()/1000,new File(dst,"a.txt").lastModified()/1000);
+
+            s.child("a.txt").write("aaaa",null);
+            assertEquals(2,s.syncRecursiveTo("**/*",null,d));
+            assertEquals("aaaa",d.child("a.txt").readToString());
+        } finally {
+            Util.deleteRecursive(src);
+            Util.deleteRecursive(dst);
+        }
+    }
+
+    public void testDigests() throws Exception {
+        File dir = Util.createTempDir();
+        try {
+            FilePath d = new FilePath(british,dir.getPath());
+            d.child("a.txt").write("aaa",null);
+            d.child("sub/b.txt").write("bbb",null);
+            // large enough to be memory-mapped
+            OutputStream os = d.child("big.bin").write();
+            byte[] buf = new byte[1000];
+            for (int i=0; i<3000; i++) {
+                Arrays.fill(buf,(byte)i);
+                os.write(buf);
+            }
+            os.close();
+
+            Map<String,String> digests = d.digest(Arrays.asList("a.txt","sub/b.txt","big.bin",new File(dir,"a.txt").getPath()));
+            assertEquals(4,digests.size());
+            for (Map.Entry<String,String> e : digests.entrySet())
+                assertEquals(e.getKey(),new FilePath(dir).child(e.getKey()).digest(),e.getValue());
+            assertEquals(Util.getDigestOf("aaa"),digests.get("a.txt"));
+        } finally {
+            Util.deleteRecursive(dir);
+        }
+    }
 }
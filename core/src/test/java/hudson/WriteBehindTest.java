@@ -0,0 +1,159 @@
+/*
+ * The MIT License
+ * 
+ * Copyright (c) 2004-2009, Sun Microsystems, Inc., Kohsuke Kawaguchi
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+public class WriteBehindTest extends TestCase {
+    private File dir;
+
+    protected void setUp() throws Exception {
+        dir = File.createTempFile("writebehind","");
+        dir.delete();
+        dir.mkdirs();
+        // long enough that the flusher thread won't get in the way
+        WriteBehind.DELAY = 60*1000;
+        WriteBehind.resetPerformanceStats();
+    }
+
+    protected void tearDown() throws Exception {
+        WriteBehind.flush();
+        WriteBehind.DELAY = 0;
+        Util.deleteRecursive(dir);
+    }
+
+    /**
+     * Repeated saves are coalesced into one write of the latest state.
+     */
+    public void testCoalesce() throws Exception {
+        XmlFile f = new XmlFile(new File(dir,"sub/data.xml"));
+        f.writeBehind("one");
+        f.writeBehind("two");
+        f.writeBehind("three");
+        assertFalse(f.getFile().exists());
+
+        WriteBehind.flush();
+        assertTrue(f.getFile().exists());
+        assertEquals("three",f.read());
+        assertEquals(3,WriteBehind.requested.get());
+        assertEquals(2,WriteBehind.avoided.get());
+        assertEquals(1,WriteBehind.written.get());
+    }
+
+    /**
+     * Reading the file back sees the pending write.
+     */
+    public void testReadFlushes() throws Exception {
+        XmlFile f = new XmlFile(new File(dir,"data.xml"));
+        f.write("old");
+        f.writeBehind("new");
+        assertEquals("new",f.read());
+    }
+
+    /**
+     * Reading the file back sees the write that another thread is in the middle of flushing.
+     */
+    public void testReadWhileFlushing() throws Exception {
+        final XmlFile f = new XmlFile(new File(dir,"data.xml"));
+        final AtomicBoolean done = new AtomicBoolean();
+        Thread flusher = new Thread() {
+            public void run() {
+                while(!done.get())
+                    WriteBehind.flush();
+            }
+        };
+        flusher.start();
+        try {
+            for (int i=0; i<500; i++) {
+                f.writeBehind("v"+i);
+                assertEquals("v"+i,f.read());
+            }
+        } finally {
+            done.set(true);
+            flusher.join();
+        }
+    }
+
+    /**
+     * A synchronous write supersedes the pending one.
+     */
+    public void testWriteSupersedes() throws Exception {
+        XmlFile f = new XmlFile(new File(dir,"data.xml"));
+        f.writeBehind("old");
+        f.write("new");
+        WriteBehind.flush();
+        assertEquals("new",f.read());
+    }
+
+    /**
+     * Pending writes in a deleted directory don't bring it back.
+     */
+    public void testDiscard() throws Exception {
+        File sub = new File(dir,"sub");
+        XmlFile f = new XmlFile(new File(sub,"data.xml"));
+        XmlFile g = new XmlFile(new File(dir,"subway.xml"));
+        f.writeBehind("x");
+        g.writeBehind("y");
+        WriteBehind.discard(sub);
+        WriteBehind.flush();
+        assertFalse(sub.exists());
+        assertEquals("y",g.read());
+    }
+
+    /**
+     * A batch bigger than the number of files that can be open at once is written in chunks.
+     */
+    public void testChunks() throws Exception {
+        int old = WriteBehind.MAX_OPEN_FILES;
+        WriteBehind.MAX_OPEN_FILES = 3;
+        try {
+            XmlFile[] files = new XmlFile[10];
+            for (int i=0; i<files.length; i++) {
+                files[i] = new XmlFile(new File(dir,"data"+i+".xml"));
+                files[i].writeBehind("x"+i);
+            }
+            WriteBehind.flush();
+            for (int i=0; i<files.length; i++)
+                assertEquals("x"+i,files[i].read());
+            assertEquals(10,WriteBehind.written.get());
+            assertEquals(1,WriteBehind.batches.get());
+        } finally {
+            WriteBehind.MAX_OPEN_FILES = old;
+        }
+    }
+
+    /**
+     * With the write-behind disabled, the write happens right away.
+     */
+    public void testDisabled() throws Exception {
+        WriteBehind.DELAY = 0;
+        XmlFile f = new XmlFile(new File(dir,"data.xml"));
+        f.writeBehind("x");
+        assertTrue(f.getFile().exists());
+        assertEquals(0,WriteBehind.requested.get());
+    }
+}
@@ -0,0 +1,278 @@
+/*
+ * The MIT License
+ * 
+ * Copyright (c) 2004-2009, Sun Microsystems, Inc., Kohsuke Kawaguchi
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.model;
+
+import hudson.Util;
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.security.MessageDigest;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Set;
+
+public class FingerprintLogTest extends TestCase {
+    private File dir;
+    private File logFile, indexFile;
+
+    protected void setUp() throws Exception {
+        dir = Util.createTempDir();
+        logFile = new File(dir,"fingerprints.log");
+        indexFile = new File(dir,"fingerprints.idx");
+    }
+
+    protected void tearDown() throws Exception {
+        Util.deleteRecursive(dir);
+    }
+
+    public void testBasic() throws Exception {
+        FingerprintLog log = new FingerprintLog(logFile,indexFile);
+        assertNull(log.get(key(1)));
+
+        log.put(key(1),data("one"));
+        log.put(key(2),data("two"));
+        assertEquals("one",string(log.get(key(1))));
+        assertEquals("two",string(log.get(key(2))));
+        assertEquals(2,log.size());
+
+        log.put(key(1),data("uno"));
+        assertEquals("uno",string(log.get(key(1))));
+        assertEquals(2,log.size());
+
+        log.remove(key(2));
+        assertNull(log.get(key(2)));
+        assertEquals(1,log.size());
+        log.remove(key(3));     // no-op
+
+        // deleted keys can be added again
+        log.put(key(2),data("dos"));
+        assertEquals("dos",string(log.get(key(2))));
+        log.close();
+
+        // the data survives reopening, with or without the index
+        log = new FingerprintLog(logFile,indexFile);
+        assertEquals("uno",string(log.get(key(1))));
+        assertEquals("dos",string(log.get(key(2))));
+        log.close();
+
+        indexFile.delete();
+        log = new FingerprintLog(logFile,indexFile);
+        assertEquals("uno",string(log.get(key(1))));
+        assertEquals("dos",string(log.get(key(2))));
+        assertEquals(2,log.size());
+        log.close();
+    }
+
+    /**
+     * Many keys make the index grow.
+     */
+    public void testGrow() throws Exception {
+        FingerprintLog log = new FingerprintLog(logFile,indexFile);
+        for( int i=0; i<10000; i++ )
+            log.put(key(i),data("v"+i));
+        for( int i=0; i<10000; i+=2 )
+            log.remove(key(i));
+        assertEquals(5000,log.size());
+        for( int i=0; i<10000; i++ )
+            assertEquals(i%2==0 ? null : "v"+i, string(log.get(key(i))));
+
+        Set<String> keys = new HashSet<String>();
+        for (Iterator<byte[]> itr = log.keys(); itr.hasNext(); )
+            keys.add(Util.toHexString(itr.next()));
+        assertEquals(5000,keys.size());
+        assertTrue(keys.contains(Util.toHexString(key(1))));
+        log.close();
+    }
+
+    /**
+     * Records appended after the index was last written are replayed.
+     */
+    public void testReplay() throws Exception {
+        FingerprintLog log = new FingerprintLog(logFile,indexFile);
+        log.put(key(1),data("one"));
+        log.close();
+        byte[] oldIndex = read(indexFile);
+
+        log = new FingerprintLog(logFile,indexFile);
+        log.put(key(2),data("two"));
+        log.put(key(1),data("uno"));
+        log.close();
+
+        // as if the updates to the index were lost in a crash
+        write(indexFile,oldIndex);
+        log = new FingerprintLog(logFile,indexFile);
+        assertEquals("uno",string(log.get(key(1))));
+        assertEquals("two",string(log.get(key(2))));
+        log.close();
+    }
+
+    /**
+     * A partially written record at the end is discarded.
+     */
+    public void testTornWrite() throws Exception {
+        FingerprintLog log = new FingerprintLog(logFile,indexFile);
+        log.put(key(1),data("one"));
+        long size = log.getLogSize();
+        log.put(key(2),data("two"));
+        log.close();
+
+        RandomAccessFile raf = new RandomAccessFile(logFile,"rw");
+        raf.setLength(logFile.length()-2);
+        raf.close();
+
+        log = new FingerprintLog(logFile,indexFile);
+        assertEquals("one",string(log.get(key(1))));
+        assertNull(log.get(key(2)));
+        assertEquals(size,log.getLogSize());
+
+        // and the log is usable after that
+        log.put(key(2),data("dos"));
+        log.close();
+        log = new FingerprintLog(logFile,indexFile);
+        assertEquals("dos",string(log.get(key(2))));
+        log.close();
+    }
+
+    /**
+     * Between the syncs, the updates to the index can reach the disk before the records they point to.
+     */
+    public void testCrashBetweenSyncs() throws Exception {
+        long interval = FingerprintLog.SYNC_INTERVAL;
+        FingerprintLog.SYNC_INTERVAL = Long.MAX_VALUE;
+        try {
+            FingerprintLog log = new FingerprintLog(logFile,indexFile);
+            log.put(key(1),data("one"));
+            byte[] oldLog = read(logFile);
+            log.put(key(1),data("uno"));
+            log.put(key(2),data("two"));
+            byte[] newLog = read(logFile);
+            byte[] newIndex = read(indexFile);
+            log.close();
+
+            // the index made it to the disk, but the last records didn't
+            write(logFile,oldLog);
+            write(indexFile,newIndex);
+            log = new FingerprintLog(logFile,indexFile);
+            assertEquals("one",string(log.get(key(1))));
+            assertNull(log.get(key(2)));
+            assertEquals(1,log.size());
+            log.compact();
+            assertEquals("one",string(log.get(key(1))));
+            log.close();
+
+            // everything made it to the disk, but the header wasn't updated
+            write(logFile,newLog);
+            write(indexFile,newIndex);
+            log = new FingerprintLog(logFile,indexFile);
+            assertEquals("uno",string(log.get(key(1))));
+            assertEquals("two",string(log.get(key(2))));
+            assertEquals(2,log.size());
+            log.close();
+        } finally {
+            FingerprintLog.SYNC_INTERVAL = interval;
+        }
+    }
+
+    public void testCompact() throws Exception {
+        FingerprintLog log = new FingerprintLog(logFile,indexFile);
+        for( int j=0; j<10; j++ )
+            for( int i=0; i<100; i++ )
+                log.put(key(i),data("v"+i+"-"+j));
+        for( int i=0; i<50; i++ )
+            log.remove(key(i));
+        long before = log.getLogSize();
+
+        log.compact();
+        assertTrue(log.getLogSize()<before/10);
+        assertEquals(50,log.size());
+        for( int i=0; i<100; i++ )
+            assertEquals(i<50 ? null : "v"+i+"-9", string(log.get(key(i))));
+
+        log.put(key(0),data("zero"));
+        log.close();
+
+        log = new FingerprintLog(logFile,indexFile);
+        assertEquals("zero",string(log.get(key(0))));
+        assertEquals("v99-9",string(log.get(key(99))));
+        assertEquals(51,log.size());
+        log.close();
+    }
+
+    /**
+     * A crash in the middle of replacing the files on Windows leaves the old file as a backup.
+     */
+    public void testInterruptedSwap() throws Exception {
+        FingerprintLog log = new FingerprintLog(logFile,indexFile);
+        log.put(key(1),data("one"));
+        log.close();
+
+        File backup = new File(logFile.getPath()+".bak");
+        assertTrue(logFile.renameTo(backup));
+        log = new FingerprintLog(logFile,indexFile);
+        assertEquals("one",string(log.get(key(1))));
+        assertFalse(backup.exists());
+        log.close();
+
+        // if the new file made it in place, the backup is just deleted
+        copy(logFile,backup);
+        log = new FingerprintLog(logFile,indexFile);
+        assertEquals("one",string(log.get(key(1))));
+        assertFalse(backup.exists());
+        log.close();
+    }
+
+    private static void copy(File from, File to) throws Exception {
+        RandomAccessFile raf = new RandomAccessFile(to,"rw");
+        raf.write(read(from));
+        raf.close();
+    }
+
+    private static byte[] key(int i) throws Exception {
+        return MessageDigest.getInstance("MD5").digest(String.valueOf(i).getBytes());
+    }
+
+    private static byte[] data(String s) {
+        return s.getBytes();
+    }
+
+    private static String string(byte[] b) {
+        return b==null ? null : new String(b);
+    }
+
+    private static byte[] read(File f) throws Exception {
+        RandomAccessFile raf = new RandomAccessFile(f,"r");
+        byte[] b = new byte[(int)raf.length()];
+        raf.readFully(b);
+        raf.close();
+        return b;
+    }
+
+    private static void write(File f, byte[] b) throws Exception {
+        RandomAccessFile raf = new RandomAccessFile(f,"rw");
+        raf.setLength(0);
+        raf.write(b);
+        raf.close();
+    }
+}
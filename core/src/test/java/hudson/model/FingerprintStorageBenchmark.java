@@ -0,0 +1,103 @@
+/*
+ * The MIT License
+ * 
+ * Copyright (c) 2004-2009, Sun Microsystems, Inc., Kohsuke Kawaguchi
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.model;
+
+import hudson.Util;
+import hudson.model.Fingerprint.BuildPtr;
+import hudson.model.Fingerprint.RangeSet;
+
+import java.io.File;
+import java.security.MessageDigest;
+import java.util.Date;
+import java.util.Random;
+
+/**
+ * Measures the throughput of adding, updating and looking up fingerprints
+ * with {@link FileFingerprintStorage} and {@link LogFingerprintStorage}.
+ *
+ * <p>
+ * Usage: FingerprintStorageBenchmark [number of fingerprints (100000)] [updates per fingerprint (5)]
+ */
+public class FingerprintStorageBenchmark {
+    public static void main(String[] args) throws Exception {
+        int count = args.length>0 ? Integer.parseInt(args[0]) : 100000;
+        int updates = args.length>1 ? Integer.parseInt(args[1]) : 5;
+
+        File dir = Util.createTempDir();
+        try {
+            measure("XML files",new FileFingerprintStorage(new File(dir,"xml")),count,updates);
+            new File(dir,"log").mkdirs();
+            LogFingerprintStorage log = new LogFingerprintStorage(new File(dir,"log"),null);
+            measure("log",log,count,updates);
+
+            long start = System.nanoTime();
+            log.compact();
+            System.out.printf("%-10s compact %6dms%n","log",(System.nanoTime()-start)/1000000);
+            log.close();
+        } finally {
+            Util.deleteRecursive(dir);
+        }
+    }
+
+    private static void measure(String name, FingerprintStorage storage, int count, int updates) throws Exception {
+        MessageDigest md5 = MessageDigest.getInstance("MD5");
+        Fingerprint[] fps = new Fingerprint[count];
+
+        long start = System.nanoTime();
+        for( int i=0; i<count; i++ ) {
+            fps[i] = new Fingerprint(new BuildPtr("job"+i%100,i),"artifact"+i+".jar",
+                    md5.digest(String.valueOf(i).getBytes()),new Date());
+            storage.save(fps[i]);
+        }
+        report(name,"add",count,start);
+
+        // each build that uses a fingerprint updates it
+        start = System.nanoTime();
+        for( int u=0; u<updates; u++ ) {
+            for( int i=0; i<count; i++ ) {
+                String job = "downstream"+(i+u)%10;
+                RangeSet rs = fps[i].getUsages().get(job);
+                if(rs==null)
+                    fps[i].getUsages().put(job,rs=new RangeSet());
+                rs.add(u+1);
+                storage.save(fps[i]);
+            }
+        }
+        report(name,"update",count*updates,start);
+
+        Random r = new Random(0);
+        start = System.nanoTime();
+        for( int i=0; i<count; i++ ) {
+            byte[] key = md5.digest(String.valueOf(r.nextInt(count)).getBytes());
+            if(storage.load(key)==null)
+                throw new IllegalStateException("Lost a fingerprint");
+        }
+        report(name,"lookup",count,start);
+    }
+
+    private static void report(String name, String op, int n, long start) {
+        long time = System.nanoTime()-start;
+        System.out.printf("%-10s %-7s %6dms %10.0f ops/s%n", name, op, time/1000000, n*1e9/time);
+    }
+}
@@ -26,6 +26,11 @@ package hudson.model;
 import junit.framework.TestCase;
 import hudson.model.Fingerprint.RangeSet;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+
 /**
  * @author Kohsuke Kawaguchi
  */
@@ -113,4 +118,43 @@ public class FingerprintTest extends TestCase {
         x.add(y);
         assertEquals("[1,2),[3,4),[5,6),[7,8)",x.toString());
     }
+
+    public void testMerge4() {
+        RangeSet x = new RangeSet();
+        x.add(1);
+        x.add(2);
+        x.add(10);
+
+        RangeSet y = new RangeSet();
+        y.add(3);
+        y.add(8);
+        y.add(9);
+        y.add(20);
+
+        // touching ranges are combined
+        x.add(y);
+        assertEquals("[1,4),[8,11),[20,21)",x.toString());
+        assertEquals("[3,4),[8,10),[20,21)",y.toString());
+
+        x.add(x);
+        assertEquals("[1,4),[8,11),[20,21)",x.toString());
+        assertTrue(x.includes(9));
+        assertFalse(x.includes(11));
+        assertEquals(1,x.min());
+        assertEquals(21,x.max());
+    }
+
+    public void testBinaryForm() throws Exception {
+        RangeSet x = new RangeSet();
+        for (int i : new int[]{1,2,3,100,5000,5001,1000000})
+            x.add(i);
+
+        ByteArrayOutputStream buf = new ByteArrayOutputStream();
+        x.writeTo(new DataOutputStream(buf));
+        // 1 byte for the count, and a few bytes for each range
+        assertEquals(13,buf.size());
+
+        RangeSet y = RangeSet.readFrom(new DataInputStream(new ByteArrayInputStream(buf.toByteArray())));
+        assertEquals(x.toString(),y.toString());
+    }
 }
@@ -0,0 +1,185 @@
+/*
+ * The MIT License
+ * 
+ * Copyright (c) 2004-2009, Sun Microsystems, Inc., Kohsuke Kawaguchi
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.model;
+
+import com.thoughtworks.xstream.XStream;
+import hudson.Util;
+import hudson.XmlFile;
+import hudson.util.XStream2;
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Collections;
+import java.util.GregorianCalendar;
+import java.util.List;
+
+public class QueueJournalTest extends TestCase {
+    private File dir;
+    private File file;
+    private final XStream xs = new XStream2();
+    private int compacted;
+
+    protected void setUp() throws Exception {
+        dir = Util.createTempDir();
+        file = new File(dir,"queue.journal");
+    }
+
+    protected void tearDown() throws Exception {
+        Util.deleteRecursive(dir);
+    }
+
+    public void testReplay() throws Exception {
+        QueueJournal j = create();
+        assertFalse(j.isUsed());
+        Queue.WaitingItem a = item("a"), b = item("b");
+        j.put(a);
+        j.put(b);
+        j.remove(a.id);
+        j.clear();
+        assertTrue(j.isUsed());
+        j.flush();
+
+        QueueJournal k = create();
+        assertFalse(k.isUsed());
+        List<QueueJournal.Record> records = k.replay();
+        assertEquals(4,records.size());
+        assertEquals(QueueJournal.PUT,records.get(0).op);
+        assertEquals(a.id,records.get(0).id);
+        Queue.WaitingItem b2 = (Queue.WaitingItem)records.get(1).item;
+        assertEquals(b.id,b2.id);
+        assertEquals("b",b2.task.getName());
+        assertEquals(b.timestamp.getTimeInMillis(),b2.timestamp.getTimeInMillis());
+        assertEquals(QueueJournal.REMOVE,records.get(2).op);
+        assertEquals(a.id,records.get(2).id);
+        assertEquals(QueueJournal.CLEAR,records.get(3).op);
+    }
+
+    /**
+     * A partially written record at the end is ignored.
+     */
+    public void testTornWrite() throws Exception {
+        QueueJournal j = create();
+        j.put(item("a"));
+        j.put(item("b"));
+        j.flush();
+
+        RandomAccessFile raf = new RandomAccessFile(file,"rw");
+        raf.setLength(raf.length()-3);
+        raf.close();
+
+        List<QueueJournal.Record> records = create().replay();
+        assertEquals(1,records.size());
+        assertEquals("a",((Queue.Item)records.get(0).item).task.getName());
+    }
+
+    /**
+     * The full save starts a new journal, which keeps the changes made after the checkpoint.
+     */
+    public void testCheckpoint() throws Exception {
+        QueueJournal j = create();
+        Queue.WaitingItem a = item("a");
+        j.put(a);
+        j.flush();
+
+        File base = new File(dir,"queue.xml");
+        j.beginCheckpoint(Collections.singletonList(a));
+        j.put(item("b"));
+        j.endCheckpoint(base);
+        List saved = (List)new XmlFile(xs,base).read();
+        assertEquals(1,saved.size());
+        assertEquals(a.id,((Queue.Item)saved.get(0)).id);
+        j.flush();
+
+        List<QueueJournal.Record> records = create().replay();
+        assertEquals(1,records.size());
+        assertEquals("b",((Queue.Item)records.get(0).item).task.getName());
+    }
+
+    /**
+     * The item is recorded as it was when it was put, even if it changes before the journal is written.
+     */
+    public void testPutTakesSnapshot() throws Exception {
+        QueueJournal j = create();
+        Queue.WaitingItem a = item("a");
+        long t = a.timestamp.getTimeInMillis();
+        j.put(a);
+        a.timestamp.setTimeInMillis(0);
+        j.flush();
+
+        List<QueueJournal.Record> records = create().replay();
+        assertEquals(1,records.size());
+        assertEquals(t,((Queue.WaitingItem)records.get(0).item).timestamp.getTimeInMillis());
+    }
+
+    public void testCompaction() throws Exception {
+        int old = Queue.JOURNAL_COMPACTION_THRESHOLD;
+        Queue.JOURNAL_COMPACTION_THRESHOLD = 3;
+        try {
+            QueueJournal j = create();
+            boolean due = false;
+            for (int i=0; i<3; i++) {
+                j.put(item("a"));
+                due |= j.flush();
+            }
+            // the background writer might have beaten us to it
+            for (int i=0; i<50 && !due && compacted==0; i++)
+                Thread.sleep(100);
+            assertTrue(due || compacted>0);
+        } finally {
+            Queue.JOURNAL_COMPACTION_THRESHOLD = old;
+        }
+    }
+
+    private QueueJournal create() {
+        return new QueueJournal(file,xs) {
+            protected void compact() {
+                compacted++;
+            }
+        };
+    }
+
+    private static Queue.WaitingItem item(String name) {
+        return new Queue.WaitingItem(new GregorianCalendar(),new TestTask(name),Collections.<Action>emptyList());
+    }
+
+    private static final class TestTask implements Queue.Task {
+        private final String name;
+        TestTask(String name) { this.name = name; }
+        public Label getAssignedLabel() { return null; }
+        public Node getLastBuiltOn() { return null; }
+        public boolean isBuildBlocked() { return false; }
+        public String getWhyBlocked() { return null; }
+        public String getName() { return name; }
+        public String getFullDisplayName() { return name; }
+        public String getDisplayName() { return name; }
+        public long getEstimatedDuration() { return -1; }
+        public void checkAbortPermission() {}
+        public boolean hasAbortPermission() { return true; }
+        public String getUrl() { return name+'/'; }
+        public ResourceList getResourceList() { return new ResourceList(); }
+        public Queue.Executable createExecutable() throws IOException { return null; }
+    }
+}
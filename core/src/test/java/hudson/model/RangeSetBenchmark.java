@@ -0,0 +1,85 @@
+/*
+ * The MIT License
+ * 
+ * Copyright (c) 2004-2009, Sun Microsystems, Inc., Kohsuke Kawaguchi
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.model;
+
+import hudson.model.Fingerprint.RangeSet;
+
+import java.util.Random;
+
+/**
+ * Measures {@link RangeSet#add(int)}, {@link RangeSet#includes(int)} and {@link RangeSet#add(RangeSet)}
+ * on the range sets of a file used by many builds.
+ *
+ * <p>
+ * Usage: RangeSetBenchmark [number of builds (100000)] [repeat (5)]
+ */
+public class RangeSetBenchmark {
+    public static void main(String[] args) {
+        int builds = args.length>0 ? Integer.parseInt(args[0]) : 100000;
+        int repeat = args.length>1 ? Integer.parseInt(args[1]) : 5;
+
+        for( int i=0; i<repeat; i++ ) {
+            // every other build uses the file, which is the worst case for the number of ranges
+            long start = System.nanoTime();
+            RangeSet sparse = new RangeSet();
+            for( int n=0; n<builds; n+=2 )
+                sparse.add(n);
+            report("add (sparse)",builds/2,start);
+
+            start = System.nanoTime();
+            RangeSet dense = new RangeSet();
+            for( int n=0; n<builds; n++ )
+                dense.add(n);
+            report("add (dense)",builds,start);
+
+            Random r = new Random(0);
+            start = System.nanoTime();
+            int hits = 0;
+            for( int n=0; n<builds; n++ )
+                if(sparse.includes(r.nextInt(builds)))
+                    hits++;
+            report("includes",builds,start);
+
+            start = System.nanoTime();
+            int merges = 100;
+            for( int j=0; j<merges; j++ ) {
+                RangeSet x = new RangeSet();
+                x.add(sparse);
+                RangeSet y = new RangeSet();
+                for( int n=1; n<builds; n+=20 )
+                    y.add(n);
+                x.add(y);
+            }
+            report("merge",merges,start);
+
+            if(hits==0)     throw new AssertionError();   // keep the loop from being optimized away
+            System.out.println();
+        }
+    }
+
+    private static void report(String name, int n, long start) {
+        long time = System.nanoTime()-start;
+        System.out.printf("%-14s %6dms %12.0f ops/s%n", name, time/1000000, n*1e9/time);
+    }
+}
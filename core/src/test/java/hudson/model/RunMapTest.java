@@ -0,0 +1,245 @@
+/*
+ * The MIT License
+ * 
+ * Copyright (c) 2004-2009, Sun Microsystems, Inc., Kohsuke Kawaguchi
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.model;
+
+import hudson.Util;
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.GregorianCalendar;
+import java.util.List;
+
+/**
+ * Tests the {@link RunMap#LAZY lazy} mode of {@link RunMap}.
+ */
+public class RunMapTest extends TestCase {
+    private boolean lazy;
+    private File buildDir;
+    private final List<File> loaded = new ArrayList<File>();
+
+    /**
+     * Loads {@link FakeRun}s from build.xml, and keeps track of what it loaded.
+     */
+    private final RunMap.Constructor<FakeRun> cons = new RunMap.Constructor<FakeRun>() {
+        public FakeRun create(File dir) throws IOException {
+            loaded.add(dir);
+            if(new File(dir,"broken").exists())
+                throw new IOException("Broken build record in "+dir);
+            FakeRun r = new FakeRun(readNumber(dir),dir);
+            r.onEndBuilding();
+            return r;
+        }
+    };
+
+    protected void setUp() throws Exception {
+        super.setUp();
+        lazy = RunMap.LAZY;
+        RunMap.LAZY = true;
+        buildDir = Util.createTempDir();
+    }
+
+    protected void tearDown() throws Exception {
+        RunMap.LAZY = lazy;
+        Util.deleteRecursive(buildDir);
+        super.tearDown();
+    }
+
+    /**
+     * Builds are only indexed by {@link RunMap#load(File, RunMap.Constructor)}, and loaded as they are accessed.
+     */
+    public void testLoadOnDemand() throws Exception {
+        createBuild(1);
+        createBuild(2);
+        createBuild(3);
+        new File(buildDir,"0000-00-00_00-00-00").mkdirs();   // bogus, skipped
+        new File(buildDir,id(4)).mkdirs();                     // no build.xml, skipped
+
+        RunMap<FakeRun> map = new RunMap<FakeRun>();
+        map.load(buildDir,cons);
+        assertEquals(3,map.size());
+        assertEquals(0,loaded.size());
+
+        // listing build numbers doesn't load anything
+        assertEquals("[3, 2, 1]",map.keySet().toString());
+        assertTrue(map.containsKey(2));
+        assertFalse(map.containsKey(4));
+        assertEquals(0,loaded.size());
+
+        FakeRun b2 = map.get(2);
+        assertEquals(2,b2.getNumber());
+        assertEquals(1,loaded.size());
+
+        // loaded only once
+        assertSame(b2,map.get(2));
+        assertEquals(1,loaded.size());
+
+        // iteration loads the rest
+        List<Integer> numbers = new ArrayList<Integer>();
+        for (FakeRun r : map.values())
+            numbers.add(r.getNumber());
+        assertEquals("[3, 2, 1]",numbers.toString());
+        assertEquals(3,loaded.size());
+    }
+
+    /**
+     * Completed builds can be dropped from the memory and reloaded later,
+     * but builds in progress stay in the memory.
+     */
+    public void testEvictAndReload() throws Exception {
+        createBuild(1);
+        createBuild(2);
+
+        RunMap<FakeRun> map = new RunMap<FakeRun>();
+        map.load(buildDir,cons);
+
+        FakeRun b1 = map.get(1);
+        map.clearSoftReferences();
+        FakeRun b1a = map.get(1);
+        assertNotSame(b1,b1a);
+        assertEquals(1,b1a.getNumber());
+        assertEquals(b1.getRootDir(),b1a.getRootDir());
+        assertEquals(2,loaded.size());
+
+        // a new build is strongly held while it's running
+        FakeRun b3 = new FakeRun(3,createBuild(3));
+        map.put(b3);
+        assertEquals(Integer.valueOf(3),map.firstKey());
+        map.clearSoftReferences();
+        assertSame(b3,map.get(3));
+        assertEquals(2,loaded.size());
+
+        // once it's completed, it can be reloaded from the disk
+        b3.onEndBuilding();
+        assertSame(b3,map.get(3));
+        map.clearSoftReferences();
+        FakeRun b3a = map.get(3);
+        assertNotSame(b3,b3a);
+        assertEquals(3,b3a.getNumber());
+        assertEquals(3,loaded.size());
+    }
+
+    /**
+     * Builds that fail to load are dropped from the map.
+     */
+    public void testBrokenBuild() throws Exception {
+        createBuild(1);
+        new File(createBuild(2),"broken").createNewFile();
+        createBuild(3);
+
+        RunMap<FakeRun> map = new RunMap<FakeRun>();
+        map.load(buildDir,cons);
+        assertEquals(3,map.size());
+
+        List<Integer> numbers = new ArrayList<Integer>();
+        for (FakeRun r : map.values())
+            numbers.add(r.getNumber());
+        assertEquals("[3, 1]",numbers.toString());
+
+        assertEquals(2,map.size());
+        assertNull(map.get(2));
+        assertFalse(map.containsKey(2));
+    }
+
+    /**
+     * Lookups that {@link Job#getBuildByNumber(int)}, {@link Job#getFirstBuild()}
+     * and {@link Job#getLastBuild()} rely on.
+     */
+    public void testLookup() throws Exception {
+        RunMap<FakeRun> map = new RunMap<FakeRun>();
+        map.load(buildDir,cons);
+        assertTrue(map.isEmpty());
+
+        createBuild(1);
+        createBuild(2);
+        createBuild(5);
+        map.load(buildDir,cons);
+
+        // newest first
+        assertEquals(Integer.valueOf(5),map.firstKey());
+        assertEquals(Integer.valueOf(1),map.lastKey());
+        assertEquals(5,map.get(map.firstKey()).getNumber());
+        assertEquals(1,map.get(map.lastKey()).getNumber());
+
+        assertEquals(2,map.get(2).getNumber());
+        assertNull(map.get(3));
+        assertNull(map.get("2"));
+
+        // neighbors, as used by Run.getPreviousBuild() and Run.getNextBuild()
+        assertEquals("[2, 1]",map.tailMap(4).keySet().toString());
+        assertEquals("[5]",map.headMap(2).keySet().toString());
+        assertEquals(2,map.tailMap(4).get(map.tailMap(4).firstKey()).getNumber());
+        assertEquals(5,map.headMap(2).get(map.headMap(2).lastKey()).getNumber());
+    }
+
+    /**
+     * Creates a build directory with build.xml, which only has the build number.
+     */
+    private File createBuild(int n) throws IOException {
+        File dir = new File(buildDir,id(n));
+        dir.mkdirs();
+        FileWriter w = new FileWriter(new File(dir,"build.xml"));
+        try {
+            w.write("<?xml version='1.0' encoding='UTF-8'?>\n<build>\n  <actions/>\n  <number>"+n+"</number>\n</build>\n");
+        } finally {
+            w.close();
+        }
+        return dir;
+    }
+
+    private static int readNumber(File dir) throws IOException {
+        String xml = Util.loadFile(new File(dir,"build.xml"));
+        int s = xml.indexOf("<number>")+"<number>".length();
+        return Integer.parseInt(xml.substring(s,xml.indexOf("</number>")));
+    }
+
+    /**
+     * Build ID of the n-th build, a day apart from each other.
+     */
+    private static String id(int n) {
+        return Run.ID_FORMATTER.get().format(new GregorianCalendar(2009,0,n).getTime());
+    }
+
+    private static abstract class FakeJob extends Job<FakeJob,FakeRun> {
+        FakeJob() {
+            super(null,null);
+        }
+    }
+
+    private static final class FakeRun extends Run<FakeJob,FakeRun> {
+        private final File dir;
+
+        FakeRun(int number, File dir) {
+            super(null,0L);
+            this.number = number;
+            this.dir = dir;
+        }
+
+        public File getRootDir() {
+            return dir;
+        }
+    }
+}
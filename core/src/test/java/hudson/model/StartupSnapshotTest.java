@@ -0,0 +1,164 @@
+/*
+ * The MIT License
+ * 
+ * Copyright (c) 2004-2009, Sun Microsystems, Inc., Kohsuke Kawaguchi
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.model;
+
+import com.thoughtworks.xstream.XStream;
+import hudson.Util;
+import hudson.util.XStream2;
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public class StartupSnapshotTest extends TestCase {
+    private File dir;
+    private File file;
+    private final XStream xs = new XStream2();
+
+    protected void setUp() throws Exception {
+        dir = Util.createTempDir();
+        file = new File(dir,"jobs.snapshot");
+    }
+
+    protected void tearDown() throws Exception {
+        Util.deleteRecursive(dir);
+    }
+
+    public void testRoundTrip() throws Exception {
+        File a = write("a", new Foo("alpha",1,"x","y"));
+        File b = write("b", new Foo("beta",2));
+
+        StartupSnapshot s = StartupSnapshot.open(file);
+        assertEquals(new Foo("alpha",1,"x","y"),s.read("a",a,xs));
+        assertEquals(new Foo("beta",2),s.read("b",b,xs));
+        assertEquals(0,s.getHits());
+        assertEquals(2,s.getMisses());
+        s.save();
+        assertTrue(file.exists());
+
+        // the second boot doesn't parse anything
+        s = StartupSnapshot.open(file);
+        assertEquals(new Foo("alpha",1,"x","y"),s.read("a",a,xs));
+        assertEquals(new Foo("beta",2),s.read("b",b,xs));
+        assertEquals(2,s.getHits());
+        assertEquals(0,s.getMisses());
+    }
+
+    /**
+     * An edit that keeps the size and the time stamp of the file is still detected.
+     */
+    public void testSameSizeAndTimestamp() throws Exception {
+        File a = write("a", new Foo("alpha",1));
+        long timestamp = a.lastModified();
+        StartupSnapshot s = StartupSnapshot.open(file);
+        s.read("a",a,xs);
+        s.save();
+
+        long size = a.length();
+        write("a", new Foo("omega",1));
+        a.setLastModified(timestamp);
+        assertEquals(size,a.length());
+        assertEquals(timestamp,a.lastModified());
+
+        s = StartupSnapshot.open(file);
+        assertEquals(new Foo("omega",1),s.read("a",a,xs));
+        assertEquals(0,s.getHits());
+        assertEquals(1,s.getMisses());
+    }
+
+    /**
+     * Changed files are parsed again, files that are only touched are not.
+     */
+    public void testValidation() throws Exception {
+        File a = write("a", new Foo("alpha",1));
+        File b = write("b", new Foo("beta",2));
+        StartupSnapshot s = StartupSnapshot.open(file);
+        s.read("a",a,xs);
+        s.read("b",b,xs);
+        s.save();
+
+        write("a", new Foo("gamma",3));
+        a.setLastModified(a.lastModified()+10000);
+        b.setLastModified(b.lastModified()+10000);
+
+        s = StartupSnapshot.open(file);
+        assertEquals(new Foo("gamma",3),s.read("a",a,xs));
+        assertEquals(new Foo("beta",2),s.read("b",b,xs));
+        assertEquals(1,s.getHits());
+        assertEquals(1,s.getMisses());
+        s.save();
+
+        s = StartupSnapshot.open(file);
+        assertEquals(new Foo("gamma",3),s.read("a",a,xs));
+        assertEquals(2,s.getHits());
+    }
+
+    /**
+     * A broken snapshot is ignored.
+     */
+    public void testCorrupted() throws Exception {
+        File a = write("a", new Foo("alpha",1));
+        FileOutputStream o = new FileOutputStream(file);
+        o.write(new byte[]{0x48,0x53,0x4E,0x50,0,0,0,1,0,0,0,5});
+        o.close();
+
+        StartupSnapshot s = StartupSnapshot.open(file);
+        assertEquals(new Foo("alpha",1),s.read("a",a,xs));
+        assertEquals(1,s.getMisses());
+    }
+
+    private File write(String name, Foo foo) throws Exception {
+        File d = new File(dir,name);
+        d.mkdirs();
+        File f = new File(d,"config.xml");
+        FileOutputStream o = new FileOutputStream(f);
+        o.write(("<?xml version='1.0' encoding='UTF-8'?>\n"+xs.toXML(foo)).getBytes("UTF-8"));
+        o.close();
+        return f;
+    }
+
+    public static final class Foo {
+        String name;
+        int number;
+        List<String> tags;
+
+        public Foo(String name, int number, String... tags) {
+            this.name = name;
+            this.number = number;
+            this.tags = new ArrayList<String>(Arrays.asList(tags));
+        }
+
+        public boolean equals(Object o) {
+            Foo that = (Foo) o;
+            return name.equals(that.name) && number==that.number && tags.equals(that.tags);
+        }
+
+        public int hashCode() {
+            return name.hashCode();
+        }
+    }
+}
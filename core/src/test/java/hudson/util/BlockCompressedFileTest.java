@@ -0,0 +1,164 @@
+/*
+ * The MIT License
+ * 
+ * Copyright (c) 2004-2009, Sun Microsystems, Inc., Kohsuke Kawaguchi
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.util;
+
+import hudson.Util;
+import junit.framework.TestCase;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+public class BlockCompressedFileTest extends TestCase {
+    private File dir;
+
+    protected void setUp() throws Exception {
+        dir = Util.createTempDir();
+    }
+
+    protected void tearDown() throws Exception {
+        Util.deleteRecursive(dir);
+    }
+
+    /**
+     * Reading from any offset, including the block boundaries, gives the same data as the original.
+     */
+    public void testRandomAccess() throws Exception {
+        byte[] data = createLog(BlockDeflaterOutputStream.BLOCK_SIZE*3+1000);
+        BlockCompressedFile f = compress(data);
+
+        assertEquals(data.length,f.length());
+        assertTrue(f.getFile().length()<data.length*3/4);
+        assertTrue(Arrays.equals(data,readAll(f.read(0))));
+
+        int b = BlockDeflaterOutputStream.BLOCK_SIZE;
+        for (long start : new long[]{1,b-1,b,b+1,2*b+17,data.length-1,data.length,data.length+10}) {
+            byte[] tail = readAll(f.read(start));
+            int from = (int)Math.min(start,data.length);
+            byte[] expected = new byte[data.length-from];
+            System.arraycopy(data,from,expected,0,expected.length);
+            assertTrue("start="+start,Arrays.equals(expected,tail));
+        }
+    }
+
+    /**
+     * The tail found through the index matches what reading the whole file line by line gives.
+     */
+    public void testTail() throws Exception {
+        for (boolean terminated : new boolean[]{true,false}) {
+            byte[] data = createLog(BlockDeflaterOutputStream.BLOCK_SIZE*2+500);
+            if(!terminated)
+                data = copyOf(data,data.length-1);   // drop the last '\n'
+            BlockCompressedFile f = compress(data);
+            List<String> all = lines(new ByteArrayInputStream(data));
+
+            for (int n : new int[]{1,10,all.size()-1,all.size(),all.size()+5}) {
+                long start = f.findTail(n);
+                List<String> tail = lines(f.read(start));
+                assertEquals(all.subList(Math.max(0,all.size()-n),all.size()),tail);
+                assertEquals(Math.max(0,all.size()-n),f.countLines(start));
+            }
+        }
+    }
+
+    public void testEmpty() throws Exception {
+        BlockCompressedFile f = compress(new byte[0]);
+        assertEquals(0,f.length());
+        assertEquals(0,readAll(f.read(0)).length);
+        assertEquals(0,f.findTail(10));
+        assertEquals(0,f.countLines(0));
+    }
+
+    /**
+     * The compressed file can also be read as a plain {@link BlockInflaterInputStream}.
+     */
+    public void testStream() throws Exception {
+        byte[] data = createLog(BlockDeflaterOutputStream.BLOCK_SIZE+10);
+        BlockCompressedFile f = compress(data);
+        assertTrue(Arrays.equals(data,readAll(new BlockInflaterInputStream(new FileInputStream(f.getFile())))));
+    }
+
+    private BlockCompressedFile compress(byte[] data) throws IOException {
+        File src = new File(dir,"log");
+        FileOutputStream out = new FileOutputStream(src);
+        out.write(data);
+        out.close();
+
+        BlockCompressedFile f = new BlockCompressedFile(new File(dir,"log.blk"));
+        f.compress(src);
+        assertFalse(src.exists());
+        assertTrue(f.exists());
+        return f;
+    }
+
+    private static byte[] createLog(int size) {
+        Random r = new Random(0);
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        for (int i=0; baos.size()<size; i++) {
+            StringBuilder line = new StringBuilder("[INFO] line "+i+" ");
+            for (int j=r.nextInt(80); j>0; j--)
+                line.append((char)('a'+r.nextInt(26)));
+            line.append('\n');
+            byte[] b = line.toString().getBytes();
+            baos.write(b,0,b.length);
+        }
+        return baos.toByteArray();
+    }
+
+    private static List<String> lines(InputStream in) throws IOException {
+        List<String> r = new ArrayList<String>();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(in));
+        String line;
+        while((line=reader.readLine())!=null)
+            r.add(line);
+        reader.close();
+        return r;
+    }
+
+    private static byte[] copyOf(byte[] data, int len) {
+        byte[] r = new byte[len];
+        System.arraycopy(data,0,r,0,len);
+        return r;
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        byte[] buf = new byte[1000];
+        int len;
+        while((len=in.read(buf))>=0)
+            baos.write(buf,0,len);
+        in.close();
+        return baos.toByteArray();
+    }
+}
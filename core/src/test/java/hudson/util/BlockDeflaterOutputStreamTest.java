@@ -0,0 +1,110 @@
+/*
+ * The MIT License
+ * 
+ * Copyright (c) 2004-2009, Sun Microsystems, Inc., Kohsuke Kawaguchi
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.util;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Random;
+
+public class BlockDeflaterOutputStreamTest extends TestCase {
+    /**
+     * Data spanning many blocks, compressible and not, at all levels.
+     */
+    public void testRoundTrip() throws Exception {
+        Random r = new Random(0);
+        byte[] text = new byte[BlockDeflaterOutputStream.BLOCK_SIZE*5+123];
+        for (int i=0; i<text.length; i++)
+            text[i] = (byte)('a'+r.nextInt(4));
+        byte[] noise = new byte[BlockDeflaterOutputStream.BLOCK_SIZE*2+7];
+        r.nextBytes(noise);
+
+        for (int level : new int[]{-1,0,1,9}) {
+            for (byte[] data : new byte[][]{text,noise,new byte[0]}) {
+                ByteArrayOutputStream baos = new ByteArrayOutputStream();
+                OutputStream out = new BlockDeflaterOutputStream(baos,level);
+                // mix single byte and bulk writes
+                out.write(data,0,Math.min(data.length,10));
+                for (int i=10; i<Math.min(data.length,100); i++)
+                    out.write(data[i]);
+                if(data.length>100)
+                    out.write(data,100,data.length-100);
+                out.close();
+
+                if(level!=0 && data==text)
+                    assertTrue(baos.size()<data.length/2);
+
+                assertTrue(Arrays.equals(data,readAll(new BlockInflaterInputStream(new ByteArrayInputStream(baos.toByteArray())))));
+            }
+        }
+    }
+
+    /**
+     * Flush in the middle makes the data written so far readable.
+     */
+    public void testFlush() throws Exception {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        OutputStream out = new BlockDeflaterOutputStream(baos,1);
+        out.write("hello".getBytes());
+        out.flush();
+
+        InputStream in = new BlockInflaterInputStream(new ByteArrayInputStream(baos.toByteArray()));
+        byte[] buf = new byte[5];
+        assertEquals(5,in.read(buf));
+        assertEquals("hello",new String(buf));
+    }
+
+    /**
+     * A truncated stream must not look like a successful end of the stream.
+     */
+    public void testTruncated() throws Exception {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        OutputStream out = new BlockDeflaterOutputStream(baos,1);
+        out.write(new byte[1000]);
+        out.close();
+        byte[] b = baos.toByteArray();
+
+        try {
+            readAll(new BlockInflaterInputStream(new ByteArrayInputStream(b,0,b.length-8)));
+            fail();
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        byte[] buf = new byte[1000];
+        int len;
+        while((len=in.read(buf))>=0)
+            baos.write(buf,0,len);
+        in.close();
+        return baos.toByteArray();
+    }
+}
@@ -0,0 +1,171 @@
+/*
+ * The MIT License
+ * 
+ * Copyright (c) 2004-2009, Sun Microsystems, Inc., Kohsuke Kawaguchi
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.util;
+
+import com.thoughtworks.xstream.XStream;
+import hudson.Util;
+import hudson.XmlFile;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Measures how fast build records are read with {@link RobustReflectionConverter},
+ * against the stock reflection converter of {@link XStream}.
+ *
+ * <p>
+ * The records are shaped like build.xml files: a handful of scalar fields,
+ * a list of actions, and a map of environment variables.
+ *
+ * <p>
+ * Usage: RobustReflectionConverterBenchmark [number of files (3000)] [repeat (10)]
+ */
+public class RobustReflectionConverterBenchmark {
+    public static void main(String[] args) throws Exception {
+        int files = args.length>0 ? Integer.parseInt(args[0]) : 3000;
+        int repeat = args.length>1 ? Integer.parseInt(args[1]) : 10;
+
+        File dir = Util.createTempDir();
+        try {
+            System.out.println("Creating "+files+" build records in "+dir);
+            File[] records = createRecords(dir,files);
+
+            XStream stock = configure(new XStream());
+            XStream robust = configure(new XStream2());
+
+            // warm up both, so that the JIT and the caches are ready before we measure
+            for( int i=0; i<3; i++ ) {
+                read(stock,records);
+                read(robust,records);
+            }
+
+            measure("XStream",stock,records,repeat);
+            measure("XStream2",robust,records,repeat);
+        } finally {
+            Util.deleteRecursive(dir);
+        }
+    }
+
+    private static XStream configure(XStream xs) {
+        xs.alias("build",Build.class);
+        xs.alias("parameters",ParametersAction.class);
+        xs.alias("cause",CauseAction.class);
+        return xs;
+    }
+
+    private static void measure(String name, XStream xs, File[] records, int repeat) throws Exception {
+        double[] rates = new double[repeat];
+        for( int i=0; i<repeat; i++ ) {
+            long start = System.nanoTime();
+            read(xs,records);
+            rates[i] = records.length*1000000000.0/(System.nanoTime()-start);
+        }
+
+        double mean = 0;
+        for (double r : rates)  mean += r;
+        mean /= repeat;
+        double var = 0;
+        for (double r : rates)  var += (r-mean)*(r-mean);
+        System.out.printf("%-10s %10.1f files/s +- %.1f%n", name, mean, Math.sqrt(var/repeat));
+    }
+
+    private static void read(XStream xs, File[] records) throws Exception {
+        for (File f : records) {
+            Build b = (Build)new XmlFile(xs,f).read();
+            if(b.actions.isEmpty())
+                throw new AssertionError();   // keep the loop from being optimized away
+        }
+    }
+
+    private static File[] createRecords(File dir, int n) throws Exception {
+        // written with XStream2, which produces XML that both can read
+        XStream xs = configure(new XStream2());
+        Random r = new Random(0);
+        File[] records = new File[n];
+        for( int i=0; i<n; i++ ) {
+            Build b = new Build();
+            b.number = i+1;
+            b.timestamp = 1234567890000L+i*60000L;
+            b.duration = r.nextInt(3600000);
+            b.result = Result.values()[r.nextInt(Result.values().length)];
+            b.description = r.nextBoolean() ? null : "build #"+b.number;
+            b.keepLog = r.nextInt(10)==0;
+
+            CauseAction c = new CauseAction();
+            c.userName = "user"+r.nextInt(20);
+            c.shortDescription = "Started by "+c.userName;
+            b.actions.add(c);
+
+            ParametersAction p = new ParametersAction();
+            for( int j=r.nextInt(8); j>=0; j-- ) {
+                Parameter v = new Parameter();
+                v.name = "PARAM"+j;
+                v.value = Integer.toHexString(r.nextInt());
+                v.description = "parameter "+j;
+                p.parameters.add(v);
+            }
+            b.actions.add(p);
+
+            for( int j=0; j<20; j++ )
+                b.env.put("VAR"+j,"value"+r.nextInt(1000));
+
+            records[i] = new File(dir,"builds/"+b.number+"/build.xml");
+            records[i].getParentFile().mkdirs();
+            new XmlFile(xs,records[i]).write(b);
+        }
+        return records;
+    }
+
+    enum Result { SUCCESS, UNSTABLE, FAILURE, NOT_BUILT, ABORTED }
+
+    static class Build {
+        int number;
+        long timestamp;
+        long duration;
+        Result result;
+        String description;
+        boolean keepLog;
+        List<Object> actions = new ArrayList<Object>();
+        Map<String,String> env = new HashMap<String,String>();
+    }
+
+    static class CauseAction {
+        String userName;
+        String shortDescription;
+    }
+
+    static class ParametersAction {
+        List<Parameter> parameters = new ArrayList<Parameter>();
+    }
+
+    static class Parameter {
+        String name;
+        String value;
+        String description;
+    }
+}
@@ -26,6 +26,8 @@ package hudson.util;
 import junit.framework.TestCase;
 import com.thoughtworks.xstream.XStream;
 import com.thoughtworks.xstream.converters.ConversionException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -58,4 +60,37 @@ public class RobustReflectionConverterTest extends TestCase {
             assertTrue(e.getMessage().contains("z"));
         }
     }
+
+    /**
+     * The second read goes through the cached field plans, and must produce the same result as the first.
+     */
+    public void testCachedPlans() {
+        XStream2 xs = new XStream2();
+        xs.alias("bean", Bean.class);
+        xs.aliasField("nick", Bean.class, "name");
+        String xml = "<bean><id>5</id><nick>foo</nick><base>3</base>"
+                +"<items class='java.util.LinkedList'><string>a</string></items><unknown>x</unknown></bean>";
+        for (int i=0; i<2; i++) {
+            Bean b = (Bean) xs.fromXML(xml);
+            assertEquals(5,b.id);
+            assertEquals("foo",b.name);
+            assertEquals(3,b.base);
+            assertEquals("java.util.LinkedList",b.items.getClass().getName());
+            assertEquals("a",b.items.get(0));
+        }
+    }
+
+    public static class BaseBean {
+        int base;
+    }
+
+    public static class Bean extends BaseBean {
+        final int id;
+        String name;
+        List<String> items = new ArrayList<String>();
+
+        public Bean() {
+            id = 0;
+        }
+    }
 }
@@ -81,10 +81,17 @@ public class MavenFingerprinter extends MavenReporter {
      * Mojos perform different dependency resolution, so we need to check this for each mojo.
      */
     public boolean postExecute(MavenBuildProxy build, MavenProject pom, MojoInfo mojo, BuildListener listener, Throwable error) throws InterruptedException, IOException {
-        record(pom.getArtifacts(),used);
-        record(pom.getArtifact(),produced);
-        record(pom.getAttachedArtifacts(),produced);
-        record(pom.getGroupId(),pom.getFile(),produced);
+        Map<String,String> u = new HashMap<String,String>();
+        Map<String,String> p = new HashMap<String,String>();
+        record(pom.getArtifacts(),u);
+        record(pom.getArtifact(),p);
+        record(pom.getAttachedArtifacts(),p);
+        record(pom.getGroupId(),pom.getFile(),p);
+
+        // compute the digests of all the new files at once
+        FilePath base = new FilePath(pom.getBasedir());
+        digest(base,u,used);
+        digest(base,p,produced);
 
         return true;
     }
@@ -117,32 +124,44 @@ public class MavenFingerprinter extends MavenReporter {
         return true;
     }
 
-    private void record(Collection<Artifact> artifacts, Map<String,String> record) throws IOException, InterruptedException {
+    private void record(Collection<Artifact> artifacts, Map<String,String> record) {
         for (Artifact a : artifacts)
             record(a,record);
     }
 
     /**
-     * Records the fingerprint of the given {@link Artifact}.
+     * Records the file of the given {@link Artifact}, to compute its fingerprint later.
      *
      * <p>
      * This method contains the logic to avoid doubly recording the fingerprint
      * of the same file.
+     *
+     * @param record
+     *      Receives the path of the file, keyed by the name of the fingerprint.
      */
-    private void record(Artifact a, Map<String,String> record) throws IOException, InterruptedException {
+    private void record(Artifact a, Map<String,String> record) {
         File f = a.getFile();
         if(files==null)
             throw new InternalError();
         record(a.getGroupId(), f, record);
     }
 
-    private void record(String groupId, File f, Map<String, String> record) throws IOException, InterruptedException {
+    private void record(String groupId, File f, Map<String, String> record) {
         if(f==null || !f.exists() || f.isDirectory() || !files.add(f))
             return;
 
         // new file
-        String digest = new FilePath(f).digest();
-        record.put(groupId+':'+f.getName(),digest);
+        record.put(groupId+':'+f.getName(),f.getAbsolutePath());
+    }
+
+    /**
+     * Computes the digests of the files recorded by {@link #record(String, File, Map)}
+     * and puts them into the fingerprint map.
+     */
+    private void digest(FilePath base, Map<String,String> files, Map<String,String> fingerprints) throws IOException, InterruptedException {
+        Map<String,String> digests = base.digest(files.values());
+        for (Entry<String,String> e : files.entrySet())
+            fingerprints.put(e.getKey(),digests.get(e.getValue()));
     }
 
     @Extension
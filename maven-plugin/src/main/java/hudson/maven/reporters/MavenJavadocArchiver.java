@@ -85,7 +85,7 @@ public class MavenJavadocArchiver extends MavenReporter {
             target = target.child("javadoc");
 
             try {
-                new FilePath(destDir).copyRecursiveTo("**/*",target);
+                new FilePath(destDir).syncRecursiveTo("**/*",null,target);
             } catch (IOException e) {
                 Util.displayIOException(e,listener);
                 e.printStackTrace(listener.fatalError(Messages.MavenJavadocArchiver_FailedToCopy(destDir,target)));
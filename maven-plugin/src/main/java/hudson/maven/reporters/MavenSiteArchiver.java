@@ -70,7 +70,7 @@ public class MavenSiteArchiver extends MavenReporter {
 
             try {
                 listener.getLogger().println("[HUDSON] Archiving site");
-                new FilePath(destDir).copyRecursiveTo("**/*",target);
+                new FilePath(destDir).syncRecursiveTo("**/*",null,target);
             } catch (IOException e) {
                 Util.displayIOException(e,listener);
                 e.printStackTrace(listener.fatalError("Unable to copy site from %s to %s",destDir,target));
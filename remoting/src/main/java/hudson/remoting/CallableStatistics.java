@@ -0,0 +1,182 @@
+/*
+ * The MIT License
+ * 
+ * Copyright (c) 2004-2009, Sun Microsystems, Inc., Kohsuke Kawaguchi
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.remoting;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Statistics of the calls made through a {@link Channel} for one type of {@link Callable}.
+ *
+ * <p>
+ * Latency is measured on the calling side, from the time the request is sent
+ * until the response arrives, and sizes are of the serialized {@link Callable}
+ * and of its serialized result.
+ *
+ * @see Channel#getCallableStatistics()
+ */
+public final class CallableStatistics {
+    private final String name;
+
+    private final AtomicLong calls = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final AtomicLong totalTime = new AtomicLong();
+    private final AtomicLong maxTime = new AtomicLong();
+    private final AtomicLong requestBytes = new AtomicLong();
+    private final AtomicLong responseBytes = new AtomicLong();
+    private final AtomicLongArray histogram = new AtomicLongArray(BUCKETS.length+1);
+
+    /*package*/ CallableStatistics(String name) {
+        this.name = name;
+    }
+
+    /**
+     * Name of the {@link Callable} class. Methods called through {@link Channel#export(Class, Object) exported objects}
+     * are distinguished by their method names, like {@code ...RPCRequest#getName}.
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Number of calls completed, including the failed ones.
+     */
+    public long getCalls() {
+        return calls.get();
+    }
+
+    /**
+     * Number of calls that threw an exception, or were aborted.
+     */
+    public long getFailures() {
+        return failures.get();
+    }
+
+    /**
+     * Number of calls sent and waiting for the response right now.
+     */
+    public int getInFlight() {
+        return inFlight.get();
+    }
+
+    /**
+     * Total time spent in completed calls, in milliseconds.
+     */
+    public long getTotalTime() {
+        return totalTime.get()/1000000;
+    }
+
+    /**
+     * Average time of a completed call, in milliseconds.
+     */
+    public double getAverageTime() {
+        long n = calls.get();
+        return n==0 ? 0 : totalTime.get()/1000000.0/n;
+    }
+
+    /**
+     * The longest time of a completed call, in milliseconds.
+     */
+    public long getMaxTime() {
+        return maxTime.get()/1000000;
+    }
+
+    /**
+     * Total size of the serialized requests, in bytes.
+     */
+    public long getRequestBytes() {
+        return requestBytes.get();
+    }
+
+    /**
+     * Total size of the serialized responses, in bytes.
+     */
+    public long getResponseBytes() {
+        return responseBytes.get();
+    }
+
+    /**
+     * Upper bounds of the buckets of {@link #getHistogram()}, in milliseconds.
+     * The last bucket of the histogram has no upper bound.
+     */
+    public long[] getHistogramBounds() {
+        return BUCKETS.clone();
+    }
+
+    /**
+     * Number of completed calls by their latency. The i-th element counts the calls that took
+     * less than {@code getHistogramBounds()[i]} milliseconds (and no less than the bound before it).
+     */
+    public long[] getHistogram() {
+        long[] r = new long[histogram.length()];
+        for( int i=0; i<r.length; i++ )
+            r[i] = histogram.get(i);
+        return r;
+    }
+
+    /*package*/ void onSent(int size) {
+        inFlight.incrementAndGet();
+        requestBytes.addAndGet(size);
+    }
+
+    /*package*/ void onCompleted(long nanos, int size, boolean failed) {
+        inFlight.decrementAndGet();
+        calls.incrementAndGet();
+        if(failed)
+            failures.incrementAndGet();
+        responseBytes.addAndGet(size);
+        totalTime.addAndGet(nanos);
+
+        long max;
+        while((max=maxTime.get())<nanos && !maxTime.compareAndSet(max,nanos))
+            ;
+
+        long ms = nanos/1000000;
+        int i=0;
+        while(i<BUCKETS.length && ms>=BUCKETS[i])
+            i++;
+        histogram.incrementAndGet(i);
+    }
+
+    /*package*/ void reset() {
+        calls.set(0);
+        failures.set(0);
+        totalTime.set(0);
+        maxTime.set(0);
+        requestBytes.set(0);
+        responseBytes.set(0);
+        for( int i=0; i<histogram.length(); i++ )
+            histogram.set(i,0);
+        // in-flight calls are still in flight
+    }
+
+    public String toString() {
+        return name+": calls="+getCalls()+" failures="+getFailures()+" inFlight="+getInFlight()
+            +" avg="+getAverageTime()+"ms max="+getMaxTime()+"ms request="+getRequestBytes()+"B response="+getResponseBytes()+"B";
+    }
+
+    private static final long[] BUCKETS = {1,10,100,1000,10000};
+}
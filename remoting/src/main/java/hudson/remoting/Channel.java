@@ -24,24 +24,41 @@
 package hudson.remoting;
 
 import hudson.remoting.ExportTable.ExportList;
+import hudson.remoting.RemoteInvocationHandler.RPCRequest;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
 import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
+import java.io.ObjectStreamConstants;
 import java.io.OutputStream;
 import java.io.PrintWriter;
+import java.io.SequenceInputStream;
 import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Hashtable;
+import java.util.LinkedList;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.Vector;
 import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
 import java.net.URL;
 
 /**
@@ -96,8 +113,18 @@ import java.net.URL;
  * @author Kohsuke Kawaguchi
  */
 public class Channel implements VirtualChannel, IChannel {
+    /**
+     * Object streams connected to the remote peer. Null if this channel only talks in frames.
+     */
     private final ObjectInputStream ois;
     private final ObjectOutputStream oos;
+    /**
+     * Where frames are read from and written to. Either the object streams above, or the
+     * plain streams for channels that only talk in frames.
+     * {@link #in} is null if the incoming frames are delivered by {@link NioChannelHub}.
+     */
+    private final InputStream in;
+    private final OutputStream out;
     private final String name;
     /*package*/ final boolean isRestricted;
     /*package*/ final ExecutorService executor;
@@ -137,6 +164,72 @@ public class Channel implements VirtualChannel, IChannel {
     private final Vector<Listener> listeners = new Vector<Listener>();
     private int gcCounter;
 
+    /**
+     * {@link ProxyOutputStream}s that have buffered data that's not sent yet.
+     * Guarded by itself.
+     */
+    private final Set<ProxyOutputStream> pendingOutput = new HashSet<ProxyOutputStream>();
+
+    /**
+     * {@link FrameEncoder} of the current thread.
+     */
+    private final ThreadLocal<FrameEncoder> frameEncoder = new ThreadLocal<FrameEncoder>();
+
+    /**
+     * True once the outgoing stream has switched to frames.
+     * Changes only once, while holding the lock on this channel.
+     *
+     * @see #FRAMING
+     */
+    private volatile boolean framedOut;
+
+    /**
+     * True once the incoming stream has switched to frames.
+     */
+    private volatile boolean framedIn;
+
+    /**
+     * True if the outgoing frames are compressed. Set during the negotiation of frames
+     * if either side asked for compression.
+     *
+     * @see #COMPRESS
+     */
+    private volatile boolean compressOut;
+
+    /**
+     * Serializes the writing of frames. Unlike the lock on this channel,
+     * this is only held while the already serialized bytes are written.
+     */
+    private final Object frameLock = new Object();
+
+    /**
+     * Lanes that have incoming frames queued or running, by their lane number.
+     * Guarded by itself.
+     *
+     * @see Command#getLane()
+     */
+    private final Map<Integer,Lane> lanes = new HashMap<Integer,Lane>();
+
+    /**
+     * Number of frames received in non-zero lanes that haven't finished executing yet.
+     * Guarded by {@link #lanes}.
+     */
+    private int framesInFlight;
+
+    /**
+     * Run once {@link #framesInFlight} drops to 0.
+     * Guarded by {@link #lanes}.
+     *
+     * @see #whenLanesIdle(Runnable)
+     */
+    private final List<Runnable> lanesIdleListeners = new ArrayList<Runnable>();
+
+    /**
+     * Flow control windows of the {@link ProxyOutputStream}s that write to the remote side,
+     * keyed by the object ID of the receiving stream.
+     */
+    private final Map<Integer,PipeWindow> pipeWindows = new Hashtable<Integer,PipeWindow>();
+
     /**
      * Total number of nanoseconds spent for remote class loading.
      * <p>
@@ -159,6 +252,24 @@ public class Channel implements VirtualChannel, IChannel {
      */
     public final AtomicInteger classLoadingCount = new AtomicInteger();
 
+    /**
+     * Number of classes that were defined from the images sent along with other classes,
+     * each of which saved a round trip that would have been counted in {@link #classLoadingCount}.
+     */
+    public final AtomicInteger classPrefetchHitCount = new AtomicInteger();
+
+    /**
+     * Number of jars that were found in the {@link #setJarCache(JarCache) jar cache}
+     * during remote classloading, instead of being fetched from the remote peer.
+     */
+    public final AtomicInteger jarCacheHitCount = new AtomicInteger();
+
+    /**
+     * Number of jars that weren't in the {@link #setJarCache(JarCache) jar cache}
+     * and had to be fetched from the remote peer. Used in a pair with {@link #jarCacheHitCount}.
+     */
+    public final AtomicInteger jarCacheMissCount = new AtomicInteger();
+
     /**
      * Total number of nanoseconds spent for remote resource loading.
      * @see #classLoadingTime
@@ -171,11 +282,45 @@ public class Channel implements VirtualChannel, IChannel {
      */
     public final AtomicInteger resourceLoadingCount = new AtomicInteger();
 
+    /**
+     * Total number of bytes of the frames sent, before compression.
+     * Commands sent before the channel switched to frames are not counted.
+     */
+    public final AtomicLong rawBytesSent = new AtomicLong();
+
+    /**
+     * Total number of bytes of the frames sent, as they were written to the stream.
+     * The ratio to {@link #rawBytesSent} shows how well the compression works.
+     */
+    public final AtomicLong wireBytesSent = new AtomicLong();
+
+    /**
+     * Total number of bytes of the frames received, after decompression.
+     * @see #rawBytesSent
+     */
+    public final AtomicLong rawBytesReceived = new AtomicLong();
+
+    /**
+     * Total number of bytes of the frames received, as they were read from the stream.
+     * @see #wireBytesSent
+     */
+    public final AtomicLong wireBytesReceived = new AtomicLong();
+
+    /**
+     * Statistics of the calls made through this channel, keyed by the {@link CallableStatistics#getName() name}.
+     */
+    private final Map<String,CallableStatistics> callableStatistics = new ConcurrentHashMap<String,CallableStatistics>();
+
     /**
      * Property bag that contains application-specific stuff.
      */
     private final Hashtable<Object,Object> properties = new Hashtable<Object,Object>();
 
+    /**
+     * If non-null, jars that the remote classloading needs are kept here across channels.
+     */
+    private volatile JarCache jarCache;
+
     /**
      * Proxy to the remote {@link Channel} object.
      */
@@ -325,9 +470,13 @@ public class Channel implements VirtualChannel, IChannel {
                                     throw new IOException("Protocol negotiation failure");
                             }
                             this.oos = oos;
+                            this.out = oos;
 
                             this.ois = new ObjectInputStream(mode.wrap(is));
+                            this.in = ois;
                             new ReaderThread(name).start();
+                            if(FRAMING)
+                                negotiateFraming();
                             return;
                         }
                     } else {
@@ -342,6 +491,42 @@ public class Channel implements VirtualChannel, IChannel {
         }
     }
 
+    /**
+     * Creates a channel that talks in frames right from the start, without the preamble
+     * and the object stream. The remote peer has to be created in the same way.
+     *
+     * @param is
+     *      Stream connected to the remote peer, or null if the incoming frames
+     *      are delivered through {@link #receiveFrame(int, byte[], int)}.
+     */
+    private Channel(String name, ExecutorService exec, boolean restricted, InputStream is, OutputStream os) throws IOException {
+        this.name = name;
+        this.executor = exec;
+        this.isRestricted = restricted;
+        this.ois = null;
+        this.oos = null;
+        this.in = is!=null ? new DataInputStream(is) : null;
+        this.out = os;
+        this.framedIn = this.framedOut = true;
+
+        if(export(this,false)!=1)
+            throw new AssertionError(); // export number 1 is reserved for the channel itself
+        remoteChannel = RemoteInvocationHandler.wrap(this,1,IChannel.class,false);
+
+        if(in!=null)
+            new ReaderThread(name).start();
+        negotiateCompression();
+    }
+
+    /**
+     * Creates a channel that only talks in frames.
+     *
+     * @see NioChannelHub
+     */
+    /*package*/ static Channel framed(String name, ExecutorService exec, InputStream is, OutputStream os) throws IOException {
+        return new Channel(name,exec,false,is,os);
+    }
+
     /**
      * Callback "interface" for changes in the state of {@link Channel}.
      */
@@ -356,6 +541,10 @@ public class Channel implements VirtualChannel, IChannel {
         public void onClosed(Channel channel, IOException cause) {}
     }
 
+    /*package*/ boolean isInClosed() {
+        return inClosed;
+    }
+
     /*package*/ boolean isOutClosed() {
         return outClosed;
     }
@@ -365,9 +554,34 @@ public class Channel implements VirtualChannel, IChannel {
      *
      * <p>
      * This is the lowest layer of abstraction in {@link Channel}.
-     * {@link Command}s are executed on a remote system in the order they are sent.
+     * {@link Command}s are executed on a remote system in the order they are sent,
+     * except that once the channel switches to frames, commands in different
+     * {@link Command#getLane() lanes} may execute concurrently.
+     */
+    /*package*/ void send(Command cmd) throws IOException {
+        send(cmd,false);
+    }
+
+    /**
+     * @param last
+     *      True if this is the last command to be sent. No further command will be allowed.
      */
-    /*package*/ synchronized void send(Command cmd) throws IOException {
+    private void send(Command cmd, boolean last) throws IOException {
+        if(!framedOut) {
+            synchronized (this) {
+                if(!framedOut) {
+                    sendObject(cmd,last);
+                    return;
+                }
+            }
+        }
+        sendFrame(cmd,last);
+    }
+
+    /**
+     * Writes a command directly to the object stream.
+     */
+    private synchronized void sendObject(Command cmd, boolean last) throws IOException {
         if(outClosed)
             throw new IOException("already closed");
         if(logger.isLoggable(Level.FINE))
@@ -383,10 +597,320 @@ public class Channel implements VirtualChannel, IChannel {
         // in this command. Otherwise it'll keep objects in memory unnecessarily.
         // However, this may fail if the command was the close, because that's supposed to be the last command
         // ever sent. See the comment from jglick on HUDSON-3077 about what happens if we do oos.reset(). 
-        if(!(cmd instanceof CloseCommand))
+        if(last)
+            outClosed = true;
+        else
             oos.reset();
     }
 
+    /**
+     * Serializes a command into its own frame and writes it to the stream.
+     *
+     * <p>
+     * A frame is written as block data, so it follows the last object sent
+     * before the switch. Serialization happens before taking the lock, so a large
+     * command doesn't hold up other senders.
+     *
+     * <p>
+     * A compressed frame is marked by a negative length, and carries its uncompressed
+     * length after the lane number.
+     */
+    private void sendFrame(Command cmd, boolean last) throws IOException {
+        if(outClosed)
+            throw new IOException("already closed");
+        if(logger.isLoggable(Level.FINE))
+            logger.fine("Send "+cmd);
+
+        byte[] raw;
+        Channel old = Channel.setCurrent(this);
+        try {
+            FrameEncoder e = frameEncoder.get();
+            if(e==null || e.busy) {
+                // first frame from this thread, or a frame sent while serializing another one
+                e = new FrameEncoder();
+                if(frameEncoder.get()==null)
+                    frameEncoder.set(e);
+            }
+            boolean ok = false;
+            try {
+                raw = e.encode(cmd);
+                ok = true;
+            } finally {
+                // don't keep a stream in an unknown state, or a buffer grown by an unusually large frame
+                if((!ok || e.capacity()>MAX_ENCODER_BUFFER) && frameEncoder.get()==e)
+                    frameEncoder.remove();
+            }
+        } finally {
+            Channel.setCurrent(old);
+        }
+
+        byte[] compressed = null;
+        if(compressOut && raw.length>=COMPRESSION_THRESHOLD)
+            compressed = deflate(raw);
+
+        synchronized (frameLock) {
+            if(outClosed)
+                throw new IOException("already closed");
+            if(compressed!=null) {
+                writeInt(-compressed.length);
+                writeInt(cmd.getLane());
+                writeInt(raw.length);
+                out.write(compressed);
+            } else {
+                writeInt(raw.length);
+                writeInt(cmd.getLane());
+                out.write(raw);
+            }
+            out.flush();
+            if(last)
+                outClosed = true;
+        }
+        rawBytesSent.addAndGet(raw.length);
+        wireBytesSent.addAndGet(compressed!=null ? compressed.length : raw.length);
+    }
+
+    /**
+     * Serializes commands into frames, reusing one {@link ObjectOutputStream}
+     * instead of setting up a new one for each frame.
+     *
+     * <p>
+     * Frames are decoded independently of each other, possibly in parallel in different lanes,
+     * so the stream is reset before each frame and the frame leaves out the stream header.
+     * See {@link #decode(byte[])} for the other side.
+     */
+    private static final class FrameEncoder extends ByteArrayOutputStream {
+        private final ObjectOutputStream oos;
+        private boolean busy;
+
+        FrameEncoder() throws IOException {
+            super(1024);
+            oos = new ObjectOutputStream(this);
+        }
+
+        byte[] encode(Command cmd) throws IOException {
+            busy = true;
+            try {
+                count = 0;  // drop the stream header, or what's left of the previous frame
+                oos.reset();
+                oos.writeObject(cmd);
+                oos.flush();
+                return toByteArray();
+            } finally {
+                busy = false;
+            }
+        }
+
+        int capacity() {
+            return buf.length;
+        }
+    }
+
+    private void writeInt(int v) throws IOException {
+        out.write(v>>>24);
+        out.write(v>>>16);
+        out.write(v>>>8);
+        out.write(v);
+    }
+
+    /**
+     * Compresses a frame.
+     *
+     * <p>
+     * Each frame is compressed on its own, because {@link Deflater} can't flush
+     * the compressed data without ending the stream.
+     *
+     * @return
+     *      null if the compression doesn't make the frame any smaller.
+     */
+    private static byte[] deflate(byte[] raw) {
+        Deflater d = new Deflater(Deflater.BEST_SPEED);
+        try {
+            d.setInput(raw);
+            d.finish();
+            ByteArrayOutputStream out = new ByteArrayOutputStream(raw.length/2);
+            byte[] buf = new byte[4096];
+            while(!d.finished()) {
+                out.write(buf,0,d.deflate(buf));
+                if(out.size()>=raw.length)
+                    return null;
+            }
+            return out.toByteArray();
+        } finally {
+            d.end();
+        }
+    }
+
+    private static byte[] inflate(byte[] compressed, int len) throws IOException {
+        Inflater i = new Inflater();
+        try {
+            i.setInput(compressed);
+            byte[] raw = new byte[len];
+            int n = 0;
+            while(n<len && !i.finished()) {
+                int r = i.inflate(raw,n,len-n);
+                if(r==0 && (i.needsInput() || i.needsDictionary()))
+                    throw new IOException("Truncated compressed frame");
+                n += r;
+            }
+            if(n!=len)
+                throw new IOException("Compressed frame expanded to "+n+" bytes, not "+len);
+            return raw;
+        } catch (DataFormatException e) {
+            throw (IOException)new IOException("Corrupt compressed frame").initCause(e);
+        } finally {
+            i.end();
+        }
+    }
+
+    /**
+     * Asks the remote peer whether it can read frames, and if so, switches
+     * the outgoing stream to frames.
+     *
+     * This is done asynchronously, so that the channel is usable right away.
+     */
+    private void negotiateFraming() {
+        executor.execute(new Runnable() {
+            public void run() {
+                try {
+                    if(!remoteChannel.isFramingSupported())
+                        return;
+                    compressOut = isCompressionWanted();
+                    synchronized (Channel.this) {
+                        // this is the last object on the stream. everything after this is a frame.
+                        sendObject(new FramingCommand(),false);
+                        framedOut = true;
+                    }
+                } catch (IOException e) {
+                    logger.log(Level.FINE, "Failed to switch "+name+" to frames",e);
+                } catch (RuntimeException e) {
+                    // most likely the other side is an older version without the isFramingSupported method
+                    logger.log(Level.FINE, "Not switching "+name+" to frames",e);
+                }
+            }
+        });
+    }
+
+    /**
+     * Decides whether to compress outgoing frames, for channels that talk in frames from the start.
+     */
+    private void negotiateCompression() {
+        executor.execute(new Runnable() {
+            public void run() {
+                compressOut = isCompressionWanted();
+            }
+        });
+    }
+
+    /**
+     * Does either side want compression, and can the remote peer read compressed frames?
+     */
+    private boolean isCompressionWanted() {
+        try {
+            return remoteChannel.isCompressionRequested() || isCompressionRequested();
+        } catch (RuntimeException e) {
+            // the other side is an older version that doesn't understand compressed frames
+            logger.log(Level.FINE, "Not compressing "+name,e);
+            return false;
+        }
+    }
+
+    /**
+     * Does this channel accept frames? Used by the remote peer to decide
+     * whether to switch to frames.
+     */
+    public boolean isFramingSupported() {
+        return FRAMING;
+    }
+
+    /**
+     * Does this channel want the frames in both directions compressed?
+     * Used by the remote peer to decide whether to compress the frames it sends.
+     */
+    public boolean isCompressionRequested() {
+        return COMPRESS;
+    }
+
+    /**
+     * Are the frames sent from this channel compressed?
+     */
+    public boolean isCompressed() {
+        return compressOut && framedOut;
+    }
+
+    /**
+     * Has this channel switched both directions to frames?
+     */
+    public boolean isFramed() {
+        return framedIn && framedOut;
+    }
+
+    /*package*/ void addPendingOutput(ProxyOutputStream os) {
+        synchronized (pendingOutput) {
+            pendingOutput.add(os);
+        }
+    }
+
+    /*package*/ void removePendingOutput(ProxyOutputStream os) {
+        synchronized (pendingOutput) {
+            pendingOutput.remove(os);
+        }
+    }
+
+    /*package*/ void addPipeWindow(PipeWindow w) {
+        pipeWindows.put(w.getOid(),w);
+    }
+
+    /*package*/ void removePipeWindow(PipeWindow w) {
+        pipeWindows.remove(w.getOid());
+    }
+
+    /*package*/ PipeWindow getPipeWindow(int oid) {
+        return pipeWindows.get(oid);
+    }
+
+    /**
+     * Gets the flow control windows of the streams currently writing to the remote side.
+     * This is useful for seeing which streams are waiting for the remote side to catch up.
+     */
+    public List<PipeWindow> getPipeWindows() {
+        synchronized (pipeWindows) {
+            return new ArrayList<PipeWindow>(pipeWindows.values());
+        }
+    }
+
+    /**
+     * Sends the data buffered in {@link ProxyOutputStream}s, so that the data
+     * written so far reaches the other side before the command that we are about to send.
+     *
+     * <p>
+     * This covers the streams written by any thread, as a call often writes through
+     * other threads, such as the ones copying the output of a process.
+     * The buffered data is sent even if the {@link PipeWindow} of the stream is used up,
+     * so that a stalled reader doesn't hold up this command. See {@link ProxyOutputStream#drainNow()}.
+     *
+     * <p>
+     * This must be called without holding the lock on this channel, or else
+     * we can dead lock with a thread that's writing to a stream.
+     */
+    /*package*/ void flushPendingOutput() throws IOException {
+        for (ProxyOutputStream os : getPendingOutput())
+            os.drainNow();
+    }
+
+    /**
+     * Sends the data buffered in all the {@link ProxyOutputStream}s, before the channel is closed.
+     */
+    private void flushAllPendingOutput() throws IOException {
+        for (ProxyOutputStream os : getPendingOutput())
+            os.drain();
+    }
+
+    private ProxyOutputStream[] getPendingOutput() {
+        synchronized (pendingOutput) {
+            return pendingOutput.toArray(new ProxyOutputStream[pendingOutput.size()]);
+        }
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -508,7 +1032,13 @@ public class Channel implements VirtualChannel, IChannel {
         UserRequest<V,T> request=null;
         try {
             request = new UserRequest<V, T>(this, callable);
-            UserResponse<V,T> r = request.call(this);
+            UserResponse<V,T> r;
+            try {
+                r = request.call(this);
+            } catch (IOException e) {
+                request.onFailed();
+                throw e;
+            }
             return r.retrieve(this, UserRequest.getClassLoader(callable));
 
         // re-wrap the exception so that we can capture the stack trace of the caller.
@@ -535,7 +1065,14 @@ public class Channel implements VirtualChannel, IChannel {
      */
     public <V,T extends Throwable>
     Future<V> callAsync(final Callable<V,T> callable) throws IOException {
-        final Future<UserResponse<V,T>> f = new UserRequest<V,T>(this, callable).callAsync(this);
+        UserRequest<V,T> request = new UserRequest<V,T>(this, callable);
+        final Future<UserResponse<V,T>> f;
+        try {
+            f = request.callAsync(this);
+        } catch (IOException e) {
+            request.onFailed();
+            throw e;
+        }
         return new FutureAdapter<V,UserResponse<V,T>>(f) {
             protected V adapt(UserResponse<V,T> r) throws ExecutionException {
                 try {
@@ -565,6 +1102,9 @@ public class Channel implements VirtualChannel, IChannel {
                 }
                 executingCalls.clear();
             }
+            // release writers waiting for acknowledgements that will never come
+            for (PipeWindow w : getPipeWindows())
+                w.kill();
         } finally {
             notifyAll();
 
@@ -641,6 +1181,25 @@ public class Channel implements VirtualChannel, IChannel {
         }
     }
 
+    /**
+     * Tells the remote peer that everything that follows on the stream is a frame.
+     */
+    private static final class FramingCommand extends Command {
+        private FramingCommand() {
+            super(false);
+        }
+
+        protected void execute(Channel channel) {
+            channel.framedIn = true;
+        }
+
+        public String toString() {
+            return "framing";
+        }
+
+        private static final long serialVersionUID = 1L;
+    }
+
     /**
      * Signals the orderly shutdown of the channel, but captures
      * where the termination was initiated as a nested exception.
@@ -653,33 +1212,98 @@ public class Channel implements VirtualChannel, IChannel {
         private static final long serialVersionUID = 1L;
     }
 
+    /**
+     * Gets the cache of the jars used for the remote classloading.
+     *
+     * @return
+     *      null if the jars aren't cached.
+     */
+    public JarCache getJarCache() {
+        return jarCache;
+    }
+
+    /**
+     * Makes the remote classloading keep the jar files that it fetches from the remote peer
+     * in the given cache, and look there first. With the cache, classes are fetched a jar at a time.
+     *
+     * @param jarCache
+     *      null to stop caching.
+     */
+    public void setJarCache(JarCache jarCache) {
+        this.jarCache = jarCache;
+    }
+
+    /**
+     * Gets the statistics of the calls made through this channel, one for each type of {@link Callable},
+     * in the descending order of the total time spent.
+     */
+    public List<CallableStatistics> getCallableStatistics() {
+        List<CallableStatistics> r = new ArrayList<CallableStatistics>(callableStatistics.values());
+        Collections.sort(r,new Comparator<CallableStatistics>() {
+            public int compare(CallableStatistics lhs, CallableStatistics rhs) {
+                long l = lhs.getTotalTime(), r = rhs.getTotalTime();
+                return l>r ? -1 : l<r ? 1 : 0;
+            }
+        });
+        return r;
+    }
+
+    /*package*/ CallableStatistics getCallableStatistics(Callable<?,?> callable) {
+        String name = callable.getClass().getName();
+        if(callable instanceof RPCRequest)
+            name += '#'+((RPCRequest)callable).getMethodName();
+
+        CallableStatistics s = callableStatistics.get(name);
+        if(s==null) {
+            synchronized (callableStatistics) {
+                s = callableStatistics.get(name);
+                if(s==null)
+                    callableStatistics.put(name,s=new CallableStatistics(name));
+            }
+        }
+        return s;
+    }
+
     /**
      * Resets all the performance counters.
      */
     public void resetPerformanceCounters() {
         classLoadingCount.set(0);
+        classPrefetchHitCount.set(0);
+        jarCacheHitCount.set(0);
+        jarCacheMissCount.set(0);
         classLoadingTime.set(0);
         resourceLoadingCount.set(0);
         resourceLoadingTime.set(0);
+        rawBytesSent.set(0);
+        wireBytesSent.set(0);
+        rawBytesReceived.set(0);
+        wireBytesReceived.set(0);
+        for (CallableStatistics s : callableStatistics.values())
+            s.reset();
     }
 
     /**
      * {@inheritDoc}
      */
-    public synchronized void close() throws IOException {
+    public void close() throws IOException {
         if(outClosed)  return;  // already closed
+        flushAllPendingOutput();
 
-        send(new CloseCommand());
-        outClosed = true;   // last command sent. no further command allowed. lock guarantees that no command will slip inbetween
-        try {
-            oos.close();
-        } catch (IOException e) {
-            // there's a race condition here.
-            // the remote peer might have already responded to the close command
-            // and closed the connection, in which case our close invocation
-            // could fail with errors like
-            // "java.io.IOException: The pipe is being closed"
-            // so let's ignore this error.
+        synchronized (this) {
+            if(outClosed)  return;
+
+            send(new CloseCommand(),true);   // last command sent. no further command allowed. lock guarantees that no command will slip inbetween
+            try {
+                out.close();
+            } catch (IOException e) {
+                // there's a race condition here.
+                // the remote peer might have already responded to the close command
+                // and closed the connection, in which case our close invocation
+                // could fail with errors like
+                // "java.io.IOException: The pipe is being closed"
+                // so let's ignore this error.
+            }
         }
 
         // termination is done by CloseCommand when we received it.
@@ -751,6 +1375,10 @@ public class Channel implements VirtualChannel, IChannel {
             Command cmd = null;
             try {
                 while(!inClosed) {
+                    if(framedIn) {
+                        readFrame();
+                        continue;
+                    }
                     try {
                         Channel old = Channel.setCurrent(Channel.this);
                         try {
@@ -761,16 +1389,9 @@ public class Channel implements VirtualChannel, IChannel {
                     } catch (ClassNotFoundException e) {
                         logger.log(Level.SEVERE, "Unable to read a command",e);
                     }
-                    if(logger.isLoggable(Level.FINE))
-                        logger.fine("Received "+cmd);
-                    try {
-                        cmd.execute(Channel.this);
-                    } catch (Throwable t) {
-                        logger.log(Level.SEVERE, "Failed to execute command "+cmd,t);
-                        logger.log(Level.SEVERE, "This command is created here",cmd.createdAt);
-                    }
+                    execute(cmd);
                 }
-                ois.close();
+                in.close();
             } catch (IOException e) {
                 logger.log(Level.SEVERE, "I/O error in channel "+name,e);
                 terminate(e);
@@ -778,6 +1399,174 @@ public class Channel implements VirtualChannel, IChannel {
         }
     }
 
+    /**
+     * Reads one frame from the stream.
+     */
+    private void readFrame() throws IOException {
+        DataInput din = (DataInput)in;
+        int len = din.readInt();
+        int lane = din.readInt();
+        int rawLen = len<0 ? din.readInt() : -1;
+        byte[] data = new byte[Math.abs(len)];
+        din.readFully(data);
+        receiveFrame(lane,data,rawLen);
+    }
+
+    /**
+     * Handles one frame received from the remote peer. Frames in lane 0 are executed right away,
+     * after all the frames received before them. Other frames are queued to their lanes,
+     * which deserialize and execute them on the executor.
+     *
+     * <p>
+     * Frames have to be given in the order they are received, from one thread at a time.
+     *
+     * @param rawLen
+     *      If the frame is compressed, its uncompressed length. Otherwise -1.
+     */
+    /*package*/ void receiveFrame(int lane, byte[] data, int rawLen) throws IOException {
+        wireBytesReceived.addAndGet(data.length);
+        byte[] frame = rawLen<0 ? data : inflate(data,rawLen);
+        rawBytesReceived.addAndGet(frame.length);
+
+        if(lane==0) {
+            Command cmd = decode(frame);
+            try {
+                synchronized (lanes) {
+                    while(framesInFlight>0)
+                        lanes.wait();
+                }
+            } catch (InterruptedException e) {
+                throw (IOException)new IOException("Interrupted while waiting for lanes").initCause(e);
+            }
+            if(cmd!=null)
+                execute(cmd);
+            return;
+        }
+
+        Lane l;
+        boolean start = false;
+        synchronized (lanes) {
+            framesInFlight++;
+            l = lanes.get(lane);
+            if(l==null) {
+                l = new Lane(lane);
+                lanes.put(lane,l);
+            }
+            l.frames.add(frame);
+            if(!l.running)
+                start = l.running = true;
+        }
+        if(start) {
+            try {
+                executor.execute(l);
+            } catch (RejectedExecutionException e) {
+                l.run();    // the executor is shutting down. do it ourselves
+            }
+        }
+    }
+
+    /**
+     * Checks if a frame in lane 0 would be executed by {@link #receiveFrame(int, byte[], int)}
+     * right away, without waiting for the frames in other lanes.
+     *
+     * <p>
+     * Lets {@link NioChannelHub} hold on to the frame and give the worker thread back,
+     * instead of blocking it.
+     *
+     * @param listener
+     *      If this method returns false, this is run once the frames in other lanes are all executed.
+     */
+    /*package*/ boolean whenLanesIdle(Runnable listener) {
+        synchronized (lanes) {
+            if(framesInFlight==0)
+                return true;
+            lanesIdleListeners.add(listener);
+            return false;
+        }
+    }
+
+    private Command decode(byte[] frame) throws IOException {
+        Channel old = Channel.setCurrent(this);
+        try {
+            InputStream in = new SequenceInputStream(new ByteArrayInputStream(STREAM_HEADER),new ByteArrayInputStream(frame));
+            return (Command)new ObjectInputStream(in).readObject();
+        } catch (ClassNotFoundException e) {
+            logger.log(Level.SEVERE, "Unable to read a command",e);
+            return null;
+        } finally {
+            Channel.setCurrent(old);
+        }
+    }
+
+    private void execute(Command cmd) {
+        if(logger.isLoggable(Level.FINE))
+            logger.fine("Received "+cmd);
+        try {
+            cmd.execute(this);
+        } catch (Throwable t) {
+            logger.log(Level.SEVERE, "Failed to execute command "+cmd,t);
+            logger.log(Level.SEVERE, "This command is created here",cmd.createdAt);
+        }
+    }
+
+    /**
+     * Executes the frames of one lane in the order they are received.
+     */
+    private final class Lane implements Runnable {
+        private final int id;
+        /**
+         * Guarded by {@link Channel#lanes}.
+         */
+        private final LinkedList<byte[]> frames = new LinkedList<byte[]>();
+        private boolean running;
+
+        private Lane(int id) {
+            this.id = id;
+        }
+
+        public void run() {
+            while(true) {
+                byte[] frame;
+                synchronized (lanes) {
+                    frame = frames.poll();
+                    if(frame==null) {
+                        running = false;
+                        lanes.remove(id);
+                        return;
+                    }
+                }
+                try {
+                    Command cmd = decode(frame);
+                    if(cmd!=null)
+                        execute(cmd);
+                } catch (IOException e) {
+                    logger.log(Level.SEVERE, "Unable to read a command",e);
+                } finally {
+                    List<Runnable> listeners = null;
+                    synchronized (lanes) {
+                        framesInFlight--;
+                        lanes.notifyAll();
+                        if(framesInFlight==0 && !lanesIdleListeners.isEmpty()) {
+                            listeners = new ArrayList<Runnable>(lanesIdleListeners);
+                            lanesIdleListeners.clear();
+                        }
+                    }
+                    if(listeners!=null)
+                        for (Runnable r : listeners)
+                            r.run();
+                }
+            }
+        }
+    }
+
+    /**
+     * Is the calling thread a {@link Channel} reader thread?
+     */
+    /*package*/ static boolean isReaderThread() {
+        Thread t = Thread.currentThread();
+        return t instanceof ReaderThread || t instanceof NioChannelHub.Worker;
+    }
+
     /*package*/ static Channel setCurrent(Channel channel) {
         Channel old = CURRENT.get();
         CURRENT.set(channel);
@@ -803,6 +1592,44 @@ public class Channel implements VirtualChannel, IChannel {
 
     private static final Logger logger = Logger.getLogger(Channel.class.getName());
 
+    /**
+     * Whether to switch channels to frames when the other side supports it.
+     *
+     * <p>
+     * With frames, each command is serialized separately before it's written, so
+     * senders don't wait for each other's serialization, and commands for different streams
+     * are deserialized and executed concurrently on the receiving side.
+     */
+    public static boolean FRAMING = !Boolean.getBoolean(Channel.class.getName()+".disableFraming");
+
+    /**
+     * Whether to ask for the frames to be compressed in both directions. Only one side needs to ask.
+     * Set by the <tt>-compress</tt> option of the slave agent, and must be set before the channel is created.
+     *
+     * <p>
+     * This helps slaves connected over slow networks, as console output and class files compress well.
+     * See {@link #rawBytesSent} and {@link #wireBytesSent} for how much it saves.
+     */
+    public static boolean COMPRESS = Boolean.getBoolean(Channel.class.getName()+".compress");
+
+    /**
+     * Frames smaller than this are sent uncompressed, as they hardly gain anything.
+     */
+    private static final int COMPRESSION_THRESHOLD = 256;
+
+    /**
+     * {@link FrameEncoder}s whose buffer grows beyond this are thrown away after use.
+     */
+    private static final int MAX_ENCODER_BUFFER = 64*1024;
+
+    /**
+     * Header of a Java serialization stream, which frames leave out.
+     */
+    private static final byte[] STREAM_HEADER = {
+        (byte)(ObjectStreamConstants.STREAM_MAGIC>>>8), (byte)ObjectStreamConstants.STREAM_MAGIC,
+        (byte)(ObjectStreamConstants.STREAM_VERSION>>>8), (byte)ObjectStreamConstants.STREAM_VERSION
+    };
+
 //    static {
 //        ConsoleHandler h = new ConsoleHandler();
 //        h.setFormatter(new Formatter(){
@@ -68,6 +68,19 @@ abstract class Command implements Serializable {
      */
     protected abstract void execute(Channel channel);
 
+    /**
+     * Commands in the same non-zero lane are executed in the order they are sent,
+     * but commands in different lanes may be deserialized and executed concurrently.
+     * A command in lane 0 is executed after all the commands received before it.
+     *
+     * <p>
+     * This only matters once the {@link Channel} switches to frames.
+     * Stream commands use the object ID of the stream as the lane.
+     */
+    /*package*/ int getLane() {
+        return 0;
+    }
+
     private static final long serialVersionUID = 1L;
 
     private final class Source extends Exception {
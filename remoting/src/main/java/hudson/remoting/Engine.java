@@ -25,8 +25,10 @@ package hudson.remoting;
 
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.net.HttpURLConnection;
 import java.net.Socket;
 import java.net.URL;
@@ -86,6 +88,13 @@ public class Engine extends Thread {
 
     private boolean noReconnect;
 
+    private boolean compress;
+
+    /**
+     * Null unless the jar cache is turned on.
+     */
+    private JarCache jarCache;
+
     public Engine(EngineListener listener, List<URL> hudsonUrls, String secretKey, String slaveName) {
         this.listener = listener;
         this.candidateUrls = hudsonUrls;
@@ -107,6 +116,22 @@ public class Engine extends Thread {
         this.noReconnect = noReconnect;
     }
 
+    /**
+     * Sets where to keep the jar files fetched from the master. Null to not keep them.
+     */
+    public void setJarCache(JarCache jarCache) {
+        this.jarCache = jarCache;
+    }
+
+    /**
+     * Asks the master to compress the communication in both directions.
+     *
+     * @see Channel#COMPRESS
+     */
+    public void setCompress(boolean compress) {
+        this.compress = compress;
+    }
+
     @Override
     public void run() {
         try {
@@ -122,6 +147,7 @@ public class Engine extends Thread {
                 listener.status("Locating server among " + candidateUrls);
                 Throwable firstError=null;
                 String port=null;
+                boolean framed=false;
 
                 for (URL url : candidateUrls) {
                     String s = url.toExternalForm();
@@ -139,6 +165,7 @@ public class Engine extends Thread {
                         continue;
                     }
                     port = con.getHeaderField("X-Hudson-JNLP-Port");
+                    framed = "true".equals(con.getHeaderField("X-Hudson-JNLP-Framed"));
                     if(con.getResponseCode()!=200) {
                         if(firstError==null)
                             firstError = new Exception(salURL+" is invalid: "+con.getResponseCode()+" "+con.getResponseMessage());
@@ -166,13 +193,28 @@ public class Engine extends Thread {
 
                 listener.status("Handshaking");
                 DataOutputStream dos = new DataOutputStream(s.getOutputStream());
-                dos.writeUTF("Protocol:JNLP-connect");
+                dos.writeUTF(framed ? "Protocol:JNLP-framed-connect" : "Protocol:JNLP-connect");
                 dos.writeUTF(secretKey);
                 dos.writeUTF(slaveName);
 
-                Channel channel = new Channel("channel", executor,
-                        new BufferedInputStream(s.getInputStream()),
-                        new BufferedOutputStream(s.getOutputStream()));
+                if(compress)
+                    Channel.COMPRESS = true;
+                Channel channel;
+                if(framed) {
+                    // the master services this connection with NioChannelHub,
+                    // which doesn't look for the preamble, so wait for its response here
+                    String response = readLine(s.getInputStream());
+                    if(!response.equals("Welcome"))
+                        throw new IOException("Master rejected the connection: "+response);
+                    channel = Channel.framed("channel", executor,
+                            new BufferedInputStream(s.getInputStream()),
+                            new BufferedOutputStream(s.getOutputStream()));
+                } else {
+                    channel = new Channel("channel", executor,
+                            new BufferedInputStream(s.getInputStream()),
+                            new BufferedOutputStream(s.getOutputStream()));
+                }
+                channel.setJarCache(jarCache);
                 listener.status("Connected");
                 channel.join();
                 listener.status("Terminated");
@@ -188,6 +230,20 @@ public class Engine extends Thread {
         }
     }
 
+    /**
+     * Reads one line, without reading ahead any further.
+     */
+    private static String readLine(InputStream in) throws IOException {
+        ByteArrayOutputStream buf = new ByteArrayOutputStream();
+        while(true) {
+            int ch = in.read();
+            if(ch<0 || ch=='\n')
+                break;
+            buf.write(ch);
+        }
+        return buf.toString("UTF-8").trim();
+    }
+
     /**
      * Connects to TCP slave port, with a few retries.
      */
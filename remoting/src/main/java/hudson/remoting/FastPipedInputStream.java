@@ -44,11 +44,24 @@ public class FastPipedInputStream extends InputStream {
     int writeLaps = 0;
     int writePosition = 0;
 
+    /**
+     * If this pipe receives data from a remote writer that does flow control,
+     * this is notified of the consumed bytes.
+     */
+    PipeWindow.Receiver receiver;
+
     /**
      * Creates an unconnected PipedInputStream with a default buffer size.
      */
     FastPipedInputStream() {
-        this.buffer = new byte[0x10000];
+        this(0x10000);
+    }
+
+    /**
+     * Creates an unconnected PipedInputStream with buffer size <code>bufferSize</code>.
+     */
+    FastPipedInputStream(int bufferSize) {
+        this.buffer = new byte[bufferSize];
     }
 
     /**
@@ -148,6 +161,7 @@ public class FastPipedInputStream extends InputStream {
             throw new IOException("Unconnected pipe");
         }
 
+        int amount;
         while (true) {
             synchronized(buffer) {
                 if(writePosition == readPosition && writeLaps == readLaps) {
@@ -166,7 +180,7 @@ public class FastPipedInputStream extends InputStream {
 
                 // Don't read more than the capacity indicated by len or what's available
                 // in the circular buffer.
-                int amount = Math.min(len, (writePosition > readPosition ? writePosition
+                amount = Math.min(len, (writePosition > readPosition ? writePosition
                         : buffer.length)
                         - readPosition);
                 System.arraycopy(buffer, readPosition, b, off, amount);
@@ -179,9 +193,14 @@ public class FastPipedInputStream extends InputStream {
                 }
 
                 buffer.notifyAll();
-                return amount;
+                break;
             }
         }
+
+        PipeWindow.Receiver r = receiver;
+        if(r!=null)
+            r.consumed(amount);
+        return amount;
     }
 
 }
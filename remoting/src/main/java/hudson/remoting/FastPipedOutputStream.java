@@ -92,6 +92,13 @@ public class FastPipedOutputStream extends OutputStream {
         sink.source = this;
     }
 
+    /**
+     * Gets the flow control receiver of the connected pipe, if any.
+     */
+    PipeWindow.Receiver getReceiver() {
+        return sink!=null ? sink.receiver : null;
+    }
+
     @Override
     protected void finalize() throws Throwable {
         super.finalize();
@@ -34,4 +34,6 @@ package hudson.remoting;
 interface IChannel {
     Object getProperty(Object key);
     Object waitForProperty(Object key) throws InterruptedException;
+    boolean isFramingSupported();
+    boolean isCompressionRequested();
 }
@@ -0,0 +1,217 @@
+/*
+ * The MIT License
+ * 
+ * Copyright (c) 2004-2009, Sun Microsystems, Inc., Kohsuke Kawaguchi
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.remoting;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Keeps the jar files fetched by {@link RemoteClassLoader} on the disk, keyed by their checksum,
+ * so that they don't have to be fetched again by later channels, like when the slave reconnects
+ * or the master restarts.
+ *
+ * <p>
+ * The cache is off unless the slave is started with <tt>-jar-cache DIR</tt>, in which case the jars
+ * are kept in <tt>DIR</tt> on the slave. Without the cache, classes are fetched one by one as before.
+ *
+ * <p>
+ * A jar with the checksum <tt>abcdef...</tt> is stored as <tt>ab/cdef....jar</tt> under the root directory.
+ * Since the name is derived from the contents, a stored file never changes, and
+ * multiple processes can share the same directory.
+ *
+ * <p>
+ * The time stamp of a jar is updated whenever it's used. Once the jars add up to more than
+ * the maximum size, the ones that haven't been used for the longest time are deleted,
+ * except those used within the last hour.
+ *
+ * @see Channel#setJarCache(JarCache)
+ */
+public class JarCache {
+    private final File rootDir;
+    private final long maxSize;
+
+    public JarCache(File rootDir) {
+        this(rootDir,MAX_SIZE);
+    }
+
+    /**
+     * @param maxSize
+     *      Maximum total size of the jars in bytes.
+     */
+    public JarCache(File rootDir, long maxSize) {
+        this.rootDir = rootDir;
+        this.maxSize = maxSize;
+    }
+
+    public File getRootDir() {
+        return rootDir;
+    }
+
+    /**
+     * Gets the cached jar of the given checksum.
+     *
+     * @return
+     *      null if it's not in the cache.
+     */
+    public File get(String checksum) {
+        File f = map(checksum);
+        if(!f.exists())
+            return null;
+        f.setLastModified(System.currentTimeMillis());  // so that it's evicted last
+        return f;
+    }
+
+    /**
+     * Stores a jar in the cache.
+     *
+     * @return
+     *      The stored file, or null if the image doesn't match the checksum,
+     *      which happens when the jar is modified after the checksum is computed.
+     */
+    public File store(String checksum, byte[] image) throws IOException {
+        if(!checksum.equals(checksum(image)))
+            return null;
+
+        File f = map(checksum);
+        File dir = f.getParentFile();
+        dir.mkdirs();
+
+        // write to a temporary file first, so that others never see an incomplete jar
+        File tmp = File.createTempFile("tmp",".jar",dir);
+        try {
+            FileOutputStream fos = new FileOutputStream(tmp);
+            try {
+                fos.write(image);
+            } finally {
+                fos.close();
+            }
+            if(!tmp.renameTo(f) && !f.exists())
+                throw new IOException("Failed to rename "+tmp+" to "+f);
+        } finally {
+            tmp.delete();
+        }
+        trim();
+        return f;
+    }
+
+    /**
+     * Deletes the least recently used jars until the cache fits in the maximum size.
+     */
+    private void trim() {
+        List<File> jars = new ArrayList<File>();
+        long size = 0;
+        File[] dirs = rootDir.listFiles();
+        if(dirs==null)  return;
+        for (File dir : dirs) {
+            File[] files = dir.listFiles();
+            if(files==null) continue;
+            for (File f : files) {
+                if(!f.getName().endsWith(".jar"))   continue;  // including the temporary files of others
+                jars.add(f);
+                size += f.length();
+            }
+        }
+        if(size<=maxSize)   return;
+
+        Collections.sort(jars,new Comparator<File>() {
+            public int compare(File lhs, File rhs) {
+                long l = lhs.lastModified(), r = rhs.lastModified();
+                return l<r ? -1 : l>r ? 1 : 0;
+            }
+        });
+        long threshold = System.currentTimeMillis()-MIN_AGE;
+        for (File f : jars) {
+            if(size<=maxSize || f.lastModified()>threshold)
+                break;  // class loaders that just added a jar may not have opened it yet
+            long len = f.length();
+            // a jar that's in use by a class loader can't be deleted on Windows. it's retried next time
+            if(f.delete())
+                size -= len;
+        }
+    }
+
+    private File map(String checksum) {
+        return new File(rootDir,checksum.substring(0,2)+'/'+checksum.substring(2)+".jar");
+    }
+
+    /**
+     * Computes the checksum used as the key of the cache.
+     */
+    public static String checksum(byte[] image) {
+        MessageDigest md5 = createDigest();
+        md5.update(image);
+        return toHex(md5.digest());
+    }
+
+    /**
+     * Computes the checksum used as the key of the cache. The stream is closed.
+     */
+    public static String checksum(InputStream in) throws IOException {
+        try {
+            MessageDigest md5 = createDigest();
+            byte[] buf = new byte[8192];
+            int len;
+            while((len=in.read(buf))>0)
+                md5.update(buf,0,len);
+            return toHex(md5.digest());
+        } finally {
+            in.close();
+        }
+    }
+
+    private static MessageDigest createDigest() {
+        try {
+            return MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new AssertionError(e);    // MD5 is always available
+        }
+    }
+
+    private static String toHex(byte[] data) {
+        StringBuilder buf = new StringBuilder(data.length*2);
+        for (byte b : data) {
+            buf.append(Character.forDigit((b>>4)&0xF,16));
+            buf.append(Character.forDigit(b&0xF,16));
+        }
+        return buf.toString();
+    }
+
+    /**
+     * Default maximum total size of the cached jars, in bytes.
+     */
+    public static long MAX_SIZE = Long.getLong(JarCache.class.getName()+".maxSize",256*1024*1024);
+
+    /**
+     * Jars used more recently than this many milliseconds ago are never deleted.
+     */
+    private static final long MIN_AGE = 60*60*1000;
+}
@@ -89,6 +89,16 @@ public class Launcher {
         System.out.println("Running in "+mode.name().toLowerCase()+" mode");
     }
 
+    @Option(name="-compress",usage="compress the communication with the master. " +
+            "Useful when the master is connected over a slow network")
+    public void setCompress(boolean b) {
+        Channel.COMPRESS = b;
+    }
+
+    @Option(name="-jar-cache",metaVar="DIR",usage="keep the jar files fetched from the master in this directory, " +
+            "so that they don't have to be fetched again. Off by default. ~/.hudson/cache/jars is a good choice")
+    public File jarCache;
+
     @Option(name="-jnlpUrl",usage="instead of talking to the master via stdin/stdout, " +
             "emulate a JNLP client by making a TCP connection to the master. " +
             "Connection parameters are obtained by parsing the JNLP file.")
@@ -167,6 +177,10 @@ public class Launcher {
         } else
         if(slaveJnlpURL!=null) {
             List<String> jnlpArgs = parseJnlpArguments();
+            if(jarCache!=null) {
+                jnlpArgs.add("-jar-cache");
+                jnlpArgs.add(jarCache.getPath());
+            }
             hudson.remoting.jnlp.Main.main(jnlpArgs.toArray(new String[jnlpArgs.size()]));
         } else
         if(tcpPortFile!=null) {
@@ -272,7 +286,7 @@ public class Launcher {
 
     private void runOnSocket(Socket s) throws IOException, InterruptedException {
         main(new BufferedInputStream(new SocketInputStream(s)),
-             new BufferedOutputStream(new SocketOutputStream(s)), mode,ping);
+             new BufferedOutputStream(new SocketOutputStream(s)), mode,ping,createJarCache());
     }
 
     /**
@@ -294,7 +308,11 @@ public class Launcher {
         // and messing up the stream.
         OutputStream os = System.out;
         System.setOut(System.err);
-        main(System.in,os, mode,ping);
+        main(System.in,os, mode,ping,createJarCache());
+    }
+
+    private JarCache createJarCache() {
+        return jarCache!=null ? new JarCache(jarCache) : null;
     }
 
     private static void ttyCheck() {
@@ -332,8 +350,17 @@ public class Launcher {
     }
 
     public static void main(InputStream is, OutputStream os, Mode mode, boolean performPing) throws IOException, InterruptedException {
+        main(is,os,mode,performPing,null);
+    }
+
+    /**
+     * @param cache
+     *      Where to keep the jar files fetched from the other side. Null to not keep them.
+     */
+    public static void main(InputStream is, OutputStream os, Mode mode, boolean performPing, JarCache cache) throws IOException, InterruptedException {
         ExecutorService executor = Executors.newCachedThreadPool();
         Channel channel = new Channel("channel", executor, mode, is, os);
+        channel.setJarCache(cache);
         System.err.println("channel started");
         if(performPing) {
 //            System.err.println("Starting periodic ping thread");
@@ -0,0 +1,681 @@
+/*
+ * The MIT License
+ * 
+ * Copyright (c) 2004-2009, Sun Microsystems, Inc., Kohsuke Kawaguchi
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.remoting;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Services the sockets of many {@link Channel}s with a few threads.
+ *
+ * <p>
+ * Normally every {@link Channel} has its own thread that blocks on reading the stream.
+ * Channels registered to a hub instead share a small number of selector threads,
+ * which read whatever data arrives on any of the sockets, cut it into frames,
+ * and hand complete frames to a bounded pool of worker threads. Writes are done
+ * by the sending thread when the socket can take the data, and otherwise by
+ * the selector thread as the socket becomes writable.
+ *
+ * <p>
+ * Channels on a hub only talk in frames, so the remote peer has to be created
+ * with {@link Channel#framed(String, ExecutorService, java.io.InputStream, OutputStream)}
+ * or be another hub.
+ */
+public class NioChannelHub {
+    private final Loop[] loops;
+    private final AtomicInteger next = new AtomicInteger();
+
+    /**
+     * Runs the frames received from all the channels.
+     */
+    private final ExecutorService workers;
+
+    private volatile boolean closed;
+
+    /**
+     * @param ioThreads
+     *      Number of selector threads.
+     * @param workerThreads
+     *      Maximum number of threads that process the received frames.
+     */
+    public NioChannelHub(int ioThreads, int workerThreads) throws IOException {
+        workers = new ThreadPoolExecutor(workerThreads, workerThreads, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                    private final AtomicInteger iota = new AtomicInteger();
+                    public Thread newThread(Runnable r) {
+                        return new Worker(r,"NioChannelHub worker #"+iota.incrementAndGet());
+                    }
+                });
+        ((ThreadPoolExecutor)workers).allowCoreThreadTimeOut(true);
+
+        loops = new Loop[ioThreads];
+        for( int i=0; i<loops.length; i++ ) {
+            loops[i] = new Loop(i);
+            loops[i].start();
+        }
+    }
+
+    /**
+     * Creates a hub with the default number of threads.
+     *
+     * @see #IO_THREADS
+     * @see #WORKER_THREADS
+     */
+    public NioChannelHub() throws IOException {
+        this(IO_THREADS,WORKER_THREADS);
+    }
+
+    /**
+     * Creates a {@link Channel} on the given socket, and starts servicing it.
+     *
+     * @param exec
+     *      Used by the channel to execute the commands sent from the remote peer,
+     *      like {@link Channel#Channel(String, ExecutorService, java.io.InputStream, OutputStream)}.
+     */
+    public Channel register(String name, SocketChannel socket, ExecutorService exec) throws IOException {
+        if(closed)
+            throw new IOException("NioChannelHub is already closed");
+        socket.configureBlocking(false);
+        socket.socket().setTcpNoDelay(true);
+
+        Loop loop = loops[(next.getAndIncrement()&Integer.MAX_VALUE)%loops.length];
+        final Connection c = new Connection(loop,socket);
+        c.channel = Channel.framed(name,exec,null,c.new Output());
+        c.channel.addListener(new Channel.Listener() {
+            public void onClosed(Channel channel, IOException cause) {
+                c.closeRead();
+            }
+        });
+        loop.register(c);
+        return c.channel;
+    }
+
+    /**
+     * Stops all the threads, and closes the sockets of the channels that are still registered.
+     */
+    public void close() {
+        closed = true;
+        for (Loop l : loops)
+            l.shutdown();
+        workers.shutdown();
+    }
+
+    /**
+     * Selector thread.
+     */
+    private final class Loop extends Thread {
+        private final Selector selector;
+
+        /**
+         * Changes to the selector, which have to be done on this thread.
+         * Guarded by itself.
+         */
+        private final LinkedList<Runnable> pending = new LinkedList<Runnable>();
+
+        private Loop(int id) throws IOException {
+            super("NioChannelHub selector #"+id);
+            setDaemon(true);
+            selector = Selector.open();
+        }
+
+        private void register(final Connection c) {
+            submit(new Runnable() {
+                public void run() {
+                    try {
+                        c.key = c.socket.register(selector,SelectionKey.OP_READ,c);
+                        c.updateInterest();
+                    } catch (ClosedChannelException e) {
+                        c.abort(e);
+                    }
+                }
+            });
+        }
+
+        /**
+         * Runs the given task on this thread.
+         */
+        private void submit(Runnable r) {
+            synchronized (pending) {
+                pending.add(r);
+            }
+            selector.wakeup();
+        }
+
+        private void shutdown() {
+            submit(new Runnable() {
+                public void run() {
+                    for (SelectionKey k : selector.keys())
+                        ((Connection)k.attachment()).abort(new IOException("NioChannelHub is closed"));
+                    try {
+                        selector.close();
+                    } catch (IOException e) {
+                        LOGGER.log(Level.WARNING, "Failed to close the selector",e);
+                    }
+                }
+            });
+        }
+
+        public void run() {
+            try {
+                while(selector.isOpen()) {
+                    selector.select();
+
+                    while(true) {
+                        Runnable r;
+                        synchronized (pending) {
+                            r = pending.poll();
+                        }
+                        if(r==null) break;
+                        r.run();
+                    }
+                    if(!selector.isOpen())
+                        return;
+
+                    for (Iterator<SelectionKey> itr = selector.selectedKeys().iterator(); itr.hasNext();) {
+                        SelectionKey key = itr.next();
+                        itr.remove();
+                        Connection c = (Connection)key.attachment();
+                        try {
+                            if(key.isValid() && key.isReadable())
+                                c.onReadable();
+                            if(key.isValid() && key.isWritable())
+                                c.onWritable();
+                        } catch (IOException e) {
+                            c.abort(e);
+                        }
+                    }
+                }
+            } catch (IOException e) {
+                LOGGER.log(Level.SEVERE, getName()+" died",e);
+            } catch (RuntimeException e) {
+                LOGGER.log(Level.SEVERE, getName()+" died",e);
+            }
+        }
+    }
+
+    /**
+     * A frame received, or the end of the stream, waiting to be handled by the channel.
+     */
+    private static final class Frame {
+        private final int lane;
+        private final byte[] data;
+        private final int rawLen;
+        /**
+         * If non-null, the stream ended with this problem.
+         */
+        private final IOException error;
+
+        private Frame(int lane, byte[] data, int rawLen) {
+            this.lane = lane;
+            this.data = data;
+            this.rawLen = rawLen;
+            this.error = null;
+        }
+
+        private Frame(IOException error) {
+            this.lane = 0;
+            this.data = new byte[0];
+            this.rawLen = -1;
+            this.error = error;
+        }
+    }
+
+    /**
+     * The socket of one {@link Channel}.
+     *
+     * <p>
+     * The interest of the selection key and the closing of the socket are only
+     * changed on the selector thread.
+     */
+    private final class Connection implements Runnable {
+        private final Loop loop;
+        private final SocketChannel socket;
+        private Channel channel;
+        private SelectionKey key;
+
+        /**
+         * Data read but not yet cut into frames. Only touched by the selector thread.
+         */
+        private ByteBuffer readBuffer = ByteBuffer.allocate(BUFFER_SIZE);
+
+        /**
+         * Frames waiting to be handled, and their total size.
+         * Guarded by this connection.
+         */
+        private final LinkedList<Frame> inbox = new LinkedList<Frame>();
+        private int inboxSize;
+        /**
+         * True if this connection is in the worker queue, or running.
+         */
+        private boolean handling;
+        /**
+         * True if the reading is suspended because too many frames are waiting.
+         */
+        private boolean readSuspended;
+        /**
+         * True once the end of the incoming data is reached, or the channel no longer wants it.
+         */
+        private boolean readClosed;
+
+        /**
+         * Data waiting to be written, and their total size.
+         * Guarded by this connection.
+         */
+        private final LinkedList<ByteBuffer> outbox = new LinkedList<ByteBuffer>();
+        private int outboxSize;
+        private boolean writeClosed;
+
+        private IOException failure;
+
+        private Connection(Loop loop, SocketChannel socket) {
+            this.loop = loop;
+            this.socket = socket;
+        }
+
+        /**
+         * Called on the selector thread.
+         */
+        private void onReadable() throws IOException {
+            int n = socket.read(readBuffer);
+            if(n<0) {
+                closeRead();
+                deliver(new Frame(new EOFException("unexpected stream termination")));
+                return;
+            }
+
+            readBuffer.flip();
+            int needed = 0;
+            while(true) {
+                int pos = readBuffer.position();
+                int remaining = readBuffer.remaining();
+                if(remaining<8) {
+                    needed = 8;
+                    break;
+                }
+                int len = readBuffer.getInt(pos);
+                int lane = readBuffer.getInt(pos+4);
+                if(len==Integer.MIN_VALUE || Math.abs(len)>MAX_FRAME_SIZE)
+                    // don't let a broken peer take down the selector thread, or run us out of memory
+                    throw new IOException("Invalid frame length "+len+" from "+channel);
+                int header = len<0 ? 12 : 8;
+                int size = Math.abs(len);
+                if(remaining<header+size) {
+                    needed = header+size;
+                    break;
+                }
+                int rawLen = len<0 ? readBuffer.getInt(pos+8) : -1;
+                if(len<0 && (rawLen<0 || rawLen>MAX_FRAME_SIZE))
+                    throw new IOException("Invalid uncompressed frame length "+rawLen+" from "+channel);
+                byte[] data = new byte[size];
+                readBuffer.position(pos+header);
+                readBuffer.get(data);
+                deliver(new Frame(lane,data,rawLen));
+            }
+            readBuffer.compact();
+
+            if(needed>readBuffer.capacity()) {
+                // make room for a big frame
+                ByteBuffer bigger = ByteBuffer.allocate(needed);
+                readBuffer.flip();
+                bigger.put(readBuffer);
+                readBuffer = bigger;
+            } else
+            if(readBuffer.position()==0 && readBuffer.capacity()>BUFFER_SIZE) {
+                // done with the big frame
+                readBuffer = ByteBuffer.allocate(BUFFER_SIZE);
+            }
+        }
+
+        /**
+         * Called on the selector thread.
+         */
+        private void onWritable() throws IOException {
+            synchronized (this) {
+                writeOut();
+            }
+            updateInterest();
+        }
+
+        /**
+         * Writes as much queued data as the socket takes without blocking.
+         *
+         * @return
+         *      true if all the queued data is written.
+         */
+        private synchronized boolean writeOut() throws IOException {
+            while(!outbox.isEmpty()) {
+                ByteBuffer b = outbox.getFirst();
+                outboxSize -= socket.write(b);
+                if(b.hasRemaining())
+                    return false;
+                outbox.removeFirst();
+            }
+            notifyAll();
+            if(writeClosed && socket.isOpen())
+                socket.socket().shutdownOutput();
+            return true;
+        }
+
+        /**
+         * Called by the {@link Channel} when it sends a frame.
+         */
+        private synchronized void write(byte[] data) throws IOException {
+            try {
+                while(outboxSize>OUTBOX_LIMIT && failure==null)
+                    wait();
+            } catch (InterruptedException e) {
+                throw (IOException)new IOException("Interrupted while waiting for the socket").initCause(e);
+            }
+            if(failure!=null)
+                throw (IOException)new IOException("Connection is already aborted").initCause(failure);
+            if(writeClosed)
+                throw new IOException("already closed");
+
+            outbox.add(ByteBuffer.wrap(data));
+            outboxSize += data.length;
+            if(outbox.size()>1)
+                return;     // the selector thread is already waiting to write the rest
+
+            // nothing else is being written. try to send it right away
+            try {
+                if(writeOut())
+                    return;
+            } catch (IOException e) {
+                abort(e);
+                throw e;
+            }
+            // let the selector thread write the rest
+            updateInterestLater();
+        }
+
+        private void closeWrite() throws IOException {
+            synchronized (this) {
+                if(writeClosed)   return;
+                writeClosed = true;
+                if(!outbox.isEmpty())
+                    return;     // the socket gets shut down when the data is written
+            }
+            loop.submit(new Runnable() {
+                public void run() {
+                    synchronized (Connection.this) {
+                        try {
+                            writeOut();
+                        } catch (IOException e) {
+                            // the other side may have closed the socket already
+                            LOGGER.log(Level.FINE, "Failed to shut down the output of "+channel,e);
+                        }
+                    }
+                    updateInterest();
+                }
+            });
+        }
+
+        /**
+         * Stops reading. The socket gets closed once everything queued is written.
+         */
+        private void closeRead() {
+            synchronized (this) {
+                readClosed = true;
+            }
+            updateInterestLater();
+        }
+
+        /**
+         * Brings the selection key up to date with the state of this connection,
+         * and closes the socket once there's nothing more to do.
+         * Called on the selector thread.
+         */
+        private void updateInterest() {
+            if(key==null || !key.isValid())
+                return;
+            int ops = 0;
+            boolean done;
+            synchronized (this) {
+                if(!readClosed && !readSuspended)
+                    ops |= SelectionKey.OP_READ;
+                if(!outbox.isEmpty())
+                    ops |= SelectionKey.OP_WRITE;
+                done = readClosed && outbox.isEmpty();
+            }
+            if(done) {
+                key.cancel();
+                try {
+                    socket.close();
+                } catch (IOException e) {
+                    LOGGER.log(Level.FINE, "Failed to close the socket of "+channel,e);
+                }
+            } else {
+                key.interestOps(ops);
+            }
+        }
+
+        /**
+         * Closes the socket right away, and lets the channel know of the problem.
+         */
+        private void abort(final IOException e) {
+            synchronized (this) {
+                if(failure!=null)   return;
+                failure = e;
+                readClosed = true;
+                outbox.clear();
+                outboxSize = 0;
+                notifyAll();
+            }
+            loop.submit(new Runnable() {
+                public void run() {
+                    if(key!=null)
+                        key.cancel();
+                    try {
+                        socket.close();
+                    } catch (IOException x) {
+                        LOGGER.log(Level.FINE, "Failed to close the socket of "+channel,x);
+                    }
+                }
+            });
+            deliver(new Frame(e));
+        }
+
+        /**
+         * Queues a frame for the channel, and makes sure it's handled by a worker.
+         */
+        private void deliver(Frame f) {
+            synchronized (this) {
+                inbox.add(f);
+                inboxSize += f.data.length;
+                if(inboxSize>INBOX_LIMIT && !readSuspended) {
+                    // slow down. let the workers catch up before reading more
+                    readSuspended = true;
+                    updateInterestLater();
+                }
+                if(handling)    return;
+                handling = true;
+            }
+            schedule();
+        }
+
+        private void updateInterestLater() {
+            loop.submit(new Runnable() {
+                public void run() {
+                    updateInterest();
+                }
+            });
+        }
+
+        private void schedule() {
+            try {
+                workers.execute(this);
+            } catch (RejectedExecutionException e) {
+                // the hub is shutting down
+                run();
+            }
+        }
+
+        /**
+         * Puts this connection back to the worker queue, once the channel is ready
+         * to execute the frame in lane 0 that was put on hold.
+         */
+        private final Runnable resume = new Runnable() {
+            public void run() {
+                schedule();
+            }
+        };
+
+        /**
+         * Hands the queued frames to the channel, on a worker thread.
+         *
+         * To be fair to other channels, this only handles a limited number of frames
+         * before going back to the end of the worker queue.
+         *
+         * <p>
+         * A frame in lane 0 has to wait for the frames received before it in other lanes.
+         * Rather than blocking the worker, this leaves the frame in the queue and returns.
+         * {@link #handling} stays true, so only {@link #resume} schedules this connection again.
+         */
+        public void run() {
+            for( int i=0; i<FRAMES_PER_RUN; i++ ) {
+                Frame f;
+                synchronized (this) {
+                    f = inbox.peek();
+                    if(f==null) {
+                        handling = false;
+                        return;
+                    }
+                }
+
+                if(f.error==null && f.lane==0 && !channel.isInClosed() && !channel.whenLanesIdle(resume))
+                    return;     // wait for the other lanes without holding on to the worker thread
+
+                synchronized (this) {
+                    inbox.removeFirst();
+                    inboxSize -= f.data.length;
+                    if(readSuspended && inboxSize<INBOX_LIMIT/2) {
+                        readSuspended = false;
+                        updateInterestLater();
+                    }
+                }
+
+                if(channel.isInClosed())
+                    continue;   // the channel is already done. discard the rest
+                try {
+                    if(f.error!=null)
+                        throw f.error;
+                    channel.receiveFrame(f.lane,f.data,f.rawLen);
+                } catch (IOException e) {
+                    if(!(e instanceof EOFException))
+                        LOGGER.log(Level.SEVERE, "I/O error in channel "+channel,e);
+                    abort(e);
+                    channel.terminate(e);
+                }
+            }
+            schedule();
+        }
+
+        /**
+         * {@link OutputStream} that the {@link Channel} writes frames to.
+         * Each {@link #flush()} queues the data written so far.
+         */
+        private final class Output extends OutputStream {
+            private final ByteArrayOutputStream buf = new ByteArrayOutputStream();
+
+            public void write(int b) {
+                buf.write(b);
+            }
+
+            public void write(byte[] b, int off, int len) {
+                buf.write(b,off,len);
+            }
+
+            public void flush() throws IOException {
+                if(buf.size()==0)   return;
+                byte[] data = buf.toByteArray();
+                buf.reset();
+                Connection.this.write(data);
+            }
+
+            public void close() throws IOException {
+                flush();
+                closeWrite();
+            }
+        }
+    }
+
+    /**
+     * Marks the worker threads, which shouldn't block waiting for the remote peer.
+     */
+    /*package*/ static final class Worker extends Thread {
+        private Worker(Runnable r, String name) {
+            super(r,name);
+            setDaemon(true);
+        }
+    }
+
+    /**
+     * Default number of selector threads.
+     */
+    public static int IO_THREADS = Integer.getInteger(NioChannelHub.class.getName()+".ioThreads",1);
+
+    /**
+     * Default maximum number of worker threads.
+     */
+    public static int WORKER_THREADS = Integer.getInteger(NioChannelHub.class.getName()+".workerThreads",16);
+
+    /**
+     * Frames bigger than this are considered corrupted, and the connection that sent it is aborted.
+     */
+    public static int MAX_FRAME_SIZE = Integer.getInteger(NioChannelHub.class.getName()+".maxFrameSize",64*1024*1024);
+
+    private static final int BUFFER_SIZE = 8*1024;
+
+    /**
+     * Stop reading from a channel when this many bytes worth of frames are waiting to be handled.
+     */
+    private static final int INBOX_LIMIT = 1024*1024;
+
+    /**
+     * Senders wait when this many bytes are waiting to be written to a socket.
+     */
+    private static final int OUTBOX_LIMIT = 1024*1024;
+
+    private static final int FRAMES_PER_RUN = 32;
+
+    private static final Logger LOGGER = Logger.getLogger(NioChannelHub.class.getName());
+}
@@ -75,7 +75,8 @@ public abstract class PingThread extends Thread {
                     Thread.sleep(diff);
             }
         } catch (IOException e) {
-            onDead();
+            if(!isClosed())
+                onDead();
         } catch (InterruptedException e) {
             // use interruption as a way to terminate the ping thread.
             LOGGER.fine(getName()+" is interrupted. Terminating");
@@ -87,12 +88,22 @@ public abstract class PingThread extends Thread {
         try {
             f.get(TIME_OUT,MILLISECONDS);
         } catch (ExecutionException e) {
+            if(isClosed())
+                throw new IOException("Channel is already closed");   // stop pinging
             onDead();
         } catch (TimeoutException e) {
             onDead();
         }
     }
 
+    /**
+     * Has the channel been closed, either by us or by the other side? Then the ping
+     * fails because of that, and there's no dead connection to report.
+     */
+    private boolean isClosed() {
+        return channel.isInClosed() || channel.isOutClosed();
+    }
+
     /**
      * Called when ping failed.
      */
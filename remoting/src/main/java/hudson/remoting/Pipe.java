@@ -23,6 +23,7 @@
  */
 package hudson.remoting;
 
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.ObjectInputStream;
@@ -77,6 +78,11 @@ import java.util.logging.Logger;
  * to send data, instead of typed proxy object. This allows the writer to send data
  * without blocking until the arrival of the data is confirmed.
  *
+ * <p>
+ * The reading side advertises its buffer size as a {@link PipeWindow}, so the writer
+ * never sends more than what the reader can buffer. This keeps the reader's
+ * {@link Channel} from blocking on a full pipe.
+ *
  * @author Kohsuke Kawaguchi
  */
 public final class Pipe implements Serializable {
@@ -107,7 +113,7 @@ public final class Pipe implements Serializable {
      */
     public static Pipe createRemoteToLocal() {
         // OutputStream will be created on the target
-        return new Pipe(new FastPipedInputStream(),null);
+        return new Pipe(new FastPipedInputStream(PipeWindow.SIZE+PipeWindow.MAX_OVERDRAFT),null);
     }
 
     /**
@@ -120,11 +126,17 @@ public final class Pipe implements Serializable {
     private void writeObject(ObjectOutputStream oos) throws IOException {
         if(in!=null && out==null) {
             // remote will write to local
-            FastPipedOutputStream pos = new FastPipedOutputStream((FastPipedInputStream)in);
-            int oid = Channel.current().export(pos,false);  // this export is unexported in ProxyOutputStream.finalize() 
+            FastPipedInputStream pis = (FastPipedInputStream) in;
+            FastPipedOutputStream pos = new FastPipedOutputStream();
+            pos.connect(pis);
+            Channel channel = Channel.current();
+            int oid = channel.export(pos,false);  // this export is unexported in ProxyOutputStream.finalize() 
+            int window = pis.buffer.length-PipeWindow.MAX_OVERDRAFT;
+            pis.receiver = new PipeWindow.Receiver(channel,oid,window);
 
             oos.writeBoolean(true); // marker
             oos.writeInt(oid);
+            oos.writeInt(window); // older versions don't read this
         } else {
             // remote will read from local
             int oid = Channel.current().export(out);
@@ -140,8 +152,15 @@ public final class Pipe implements Serializable {
 
         if(ois.readBoolean()) {
             // local will write to remote
+            int oid = ois.readInt();
+            int window;
+            try {
+                window = ois.readInt();
+            } catch (EOFException e) {
+                window = 0; // older versions don't send the window
+            }
             in = null;
-            out = new ProxyOutputStream(channel, ois.readInt());
+            out = new ProxyOutputStream(channel, oid, window);
         } else {
             // local will read from remote.
             // tell the remote system about this local read pipe
@@ -151,11 +170,12 @@ public final class Pipe implements Serializable {
 
             // we want 'oidRos' to send data to this PipedOutputStream
             FastPipedOutputStream pos = new FastPipedOutputStream();
-            FastPipedInputStream pis = new FastPipedInputStream(pos);
+            FastPipedInputStream pis = new FastPipedInputStream(pos,PipeWindow.SIZE+PipeWindow.MAX_OVERDRAFT);
             final int oidPos = channel.export(pos);
+            pis.receiver = new PipeWindow.Receiver(channel,oidPos,PipeWindow.SIZE);
 
             // tell 'ros' to connect to our 'pos'.
-            channel.send(new ConnectCommand(oidRos, oidPos));
+            channel.send(new ConnectCommand(oidRos, oidPos, PipeWindow.SIZE));
 
             out = null;
             in = pis;
@@ -166,23 +186,34 @@ public final class Pipe implements Serializable {
 
     private static final Logger logger = Logger.getLogger(Pipe.class.getName());
 
-    private static class ConnectCommand extends Command {
-        private final int oidRos;
-        private final int oidPos;
+    static class ConnectCommand extends Command {
+        final int oidRos;
+        final int oidPos;
+        /**
+         * Window advertised by the reader. Older versions don't send this, so it reads as 0.
+         */
+        final int window;
 
-        public ConnectCommand(int oidRos, int oidPos) {
+        public ConnectCommand(int oidRos, int oidPos, int window) {
             this.oidRos = oidRos;
             this.oidPos = oidPos;
+            this.window = window;
         }
 
         protected void execute(Channel channel) {
             try {
                 ProxyOutputStream ros = (ProxyOutputStream) channel.getExportedObject(oidRos);
                 channel.unexport(oidRos);
-                ros.connect(channel, oidPos);
+                ros.connect(channel, oidPos, window);
             } catch (IOException e) {
                 logger.log(Level.SEVERE,"Failed to connect to pipe",e);
             }
         }
+
+        /**
+         * The value computed from the class before {@link #window} was added,
+         * so that this command can still be exchanged with older versions.
+         */
+        private static final long serialVersionUID = -9128735897846418140L;
     }
 }
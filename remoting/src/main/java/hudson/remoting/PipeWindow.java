@@ -0,0 +1,292 @@
+/*
+ * The MIT License
+ * 
+ * Copyright (c) 2004-2009, Sun Microsystems, Inc., Kohsuke Kawaguchi
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.remoting;
+
+import java.io.IOException;
+
+/**
+ * Credit-based flow control of the data sent to a remote {@link java.io.OutputStream},
+ * as seen from the writer side.
+ *
+ * <p>
+ * The receiver advertises how many bytes it's willing to have in flight, and
+ * the writer may only send that much data before the receiver acknowledges
+ * that it has consumed some of it. This bounds the memory used per stream
+ * on the receiver, and for {@link Pipe}s, it keeps the receiver's
+ * {@link Channel} reader thread from blocking on a full pipe buffer.
+ *
+ * <p>
+ * Instances are also exposed via {@link Channel#getPipeWindows()} for monitoring.
+ */
+public final class PipeWindow {
+    /**
+     * Object ID of the stream on the receiver side.
+     */
+    private final int oid;
+    private final int size;
+
+    /**
+     * Bytes that we can still send without waiting for an acknowledgement.
+     * This can temporarily go negative when the channel reader thread has to send,
+     * since it can't wait for acknowledgements that it needs to read itself,
+     * and when buffered data is sent ahead of a command. See {@link #overdraw()}.
+     */
+    private int available;
+
+    private long bytesSent;
+    private int stallCount;
+    private long stallTime;
+
+    private boolean dead;
+
+    /**
+     * Number of threads in {@link #overdraw()}, and whether a writer is waiting for the window.
+     */
+    private int overdrafts;
+    private boolean waiting;
+
+    /*package*/ PipeWindow(int oid, int size) {
+        this.oid = oid;
+        this.size = size;
+        this.available = size;
+    }
+
+    /**
+     * Object ID of the receiving stream on the remote side.
+     */
+    public int getOid() {
+        return oid;
+    }
+
+    /**
+     * Maximum number of bytes allowed to be in flight.
+     */
+    public int getSize() {
+        return size;
+    }
+
+    /**
+     * Number of bytes that can be sent right now without waiting.
+     */
+    public synchronized int getAvailable() {
+        return available;
+    }
+
+    /**
+     * Total number of bytes sent through this window.
+     */
+    public synchronized long getBytesSent() {
+        return bytesSent;
+    }
+
+    /**
+     * Number of times the writer had to wait for the receiver to catch up.
+     */
+    public synchronized int getStallCount() {
+        return stallCount;
+    }
+
+    /**
+     * Total number of milliseconds the writer spent waiting for the receiver to catch up.
+     */
+    public synchronized long getStallTime() {
+        return stallTime;
+    }
+
+    /**
+     * Largest chunk that should be sent at once.
+     *
+     * The receiver acknowledges consumed data in batches of a quarter of the window,
+     * so chunks no larger than that can always make progress.
+     */
+    /*package*/ int getMaxChunk() {
+        return Math.max(1,size/4);
+    }
+
+    /**
+     * Can the given number of bytes be sent right now?
+     */
+    /*package*/ synchronized boolean canSend(int len) {
+        return dead || available>=len;
+    }
+
+    /**
+     * Waits until the given number of bytes can be sent, and takes them from the window.
+     *
+     * <p>
+     * While someone is in {@link #overdraw()}, this doesn't wait as long as
+     * the window isn't overdrawn by more than {@link #MAX_OVERDRAFT}.
+     *
+     * @param wait
+     *      false to take the bytes right away, even if that overdraws the window.
+     */
+    /*package*/ synchronized void take(int len, boolean wait) throws IOException {
+        if(wait && !dead && available<len && !(overdrafts>0 && available-len>=-MAX_OVERDRAFT)) {
+            stallCount++;
+            waiting = true;
+            long start = System.currentTimeMillis();
+            try {
+                while(!dead && available<len)
+                    wait();
+            } catch (InterruptedException e) {
+                throw (IOException)new IOException("Interrupted while waiting for the pipe window").initCause(e);
+            } finally {
+                waiting = false;
+                stallTime += System.currentTimeMillis()-start;
+            }
+        }
+        if(dead)
+            throw new IOException("Pipe is already closed");
+        available -= len;
+        bytesSent += len;
+    }
+
+    /**
+     * Lets data be sent without waiting for the receiver, until {@link #endOverdraw()}.
+     *
+     * @return
+     *      false if a writer is already waiting for the window.
+     */
+    /*package*/ synchronized boolean overdraw() {
+        if(waiting)
+            return false;
+        overdrafts++;
+        return true;
+    }
+
+    /*package*/ synchronized void endOverdraw() {
+        overdrafts--;
+    }
+
+    /**
+     * Called when the receiver acknowledges that it has consumed data.
+     */
+    /*package*/ synchronized void release(int len) {
+        available += len;
+        notifyAll();
+    }
+
+    /**
+     * Called when the stream or the channel is closed, to release waiting writers.
+     */
+    /*package*/ synchronized void kill() {
+        dead = true;
+        notifyAll();
+    }
+
+    /**
+     * Receiver side of the flow control, which acknowledges the consumed data in batches.
+     *
+     * <p>
+     * It stays silent until the writer is known to do flow control,
+     * because an older writer wouldn't understand {@link Ack}.
+     */
+    /*package*/ static final class Receiver {
+        private final Channel channel;
+        private final int oid;
+        private final int batch;
+        private int unacked;
+        private volatile boolean enabled;
+
+        /*package*/ Receiver(Channel channel, int oid, int size) {
+            this.channel = channel;
+            this.oid = oid;
+            this.batch = Math.max(1,size/4);
+        }
+
+        /*package*/ void enable() {
+            enabled = true;
+        }
+
+        /**
+         * Called when the given number of bytes are consumed from the stream.
+         */
+        /*package*/ void consumed(int len) {
+            if(!enabled)
+                return;
+            int n;
+            synchronized (this) {
+                unacked += len;
+                if(unacked<batch)
+                    return;
+                n = unacked;
+                unacked = 0;
+            }
+            try {
+                channel.send(new Ack(oid,n));
+            } catch (IOException e) {
+                // the channel is gone, so nobody is waiting for this
+            }
+        }
+    }
+
+    /**
+     * {@link Command} for giving the writer more credit.
+     */
+    /*package*/ static final class Ack extends Command {
+        private final int oid;
+        private final int size;
+
+        /*package*/ Ack(int oid, int size) {
+            super(false);
+            this.oid = oid;
+            this.size = size;
+        }
+
+        protected void execute(Channel channel) {
+            PipeWindow w = channel.getPipeWindow(oid);
+            if(w!=null)
+                w.release(size);
+        }
+
+        @Override
+        int getLane() {
+            return -oid;    // the oid is from the other side, so keep it apart from our own
+        }
+
+        public String toString() {
+            return "Pipe.Ack("+oid+","+size+")";
+        }
+
+        private static final long serialVersionUID = 1L;
+    }
+
+    public synchronized String toString() {
+        return "PipeWindow[oid="+oid+",size="+size+",available="+available+",sent="+bytesSent
+                +",stalls="+stallCount+",stallTime="+stallTime+"ms]";
+    }
+
+    /**
+     * Default number of bytes a receiver allows to be in flight per stream.
+     */
+    public static int SIZE = Integer.getInteger(PipeWindow.class.getName()+".size",256*1024);
+
+    /**
+     * How much the writer may overdraw the window to send buffered data ahead of a command.
+     * Receivers that block when they get more than the window, such as pipes, keep this much room
+     * on top of the window, so that executing such data never waits for the reader.
+     * Both sides must agree on this value, so it's not configurable.
+     */
+    /*package*/ static final int MAX_OVERDRAFT = 64*1024;
+}
@@ -26,21 +26,57 @@ package hudson.remoting;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 /**
  * {@link OutputStream} that sends bits to an exported
  * {@link OutputStream} on a remote machine.
+ *
+ * <p>
+ * Once connected, small writes are coalesced into chunks of up to {@link #BUFFER_SIZE} bytes,
+ * so that a stream of short lines (such as a build console) doesn't turn into
+ * a stream of tiny commands. The buffered data is sent when the buffer fills up, when the stream
+ * is flushed or closed, when {@link Channel} sends a {@link Request} or a {@link Response}
+ * (so that the remote side never sees the completion of a call before the data written by it),
+ * and otherwise at the latest {@link #FLUSH_DELAY} milliseconds after it's written.
+ *
+ * <p>
+ * If the receiver advertises a window, the data in flight is bounded by it
+ * and the writer waits for the receiver to catch up. See {@link PipeWindow}.
  */
 final class ProxyOutputStream extends OutputStream {
     private Channel channel;
     private int oid;
 
+    /**
+     * Flow control of the data sent to the remote stream,
+     * or null if the receiver doesn't do flow control.
+     */
+    private volatile PipeWindow window;
+
     /**
      * If bytes are written to this stream before it's connected
      * to a remote object, bytes will be stored in this buffer.
      */
     private ByteArrayOutputStream tmp;
 
+    /**
+     * Bytes written after the connection that are waiting to be sent.
+     * Allocated lazily.
+     */
+    private byte[] buf;
+    private int count;
+
+    /**
+     * Sends the buffered data when it's been sitting for too long.
+     * Non-null while {@link #count}&gt;0.
+     */
+    private TimerTask deadline;
+
     /**
      * Set to true if the stream is closed.
      */
@@ -49,7 +85,7 @@ final class ProxyOutputStream extends OutputStream {
     /**
      * Creates unconnected {@link ProxyOutputStream}.
      * The returned stream accepts data right away, and
-     * when it's {@link #connect(Channel,int) connected} later,
+     * when it's {@link #connect(Channel,int,int) connected} later,
      * the data will be sent at once to the remote stream.
      */
     public ProxyOutputStream() {
@@ -62,36 +98,73 @@ final class ProxyOutputStream extends OutputStream {
      *      The object id of the exported {@link OutputStream}.
      */
     public ProxyOutputStream(Channel channel, int oid) throws IOException {
-        connect(channel,oid);
+        this(channel,oid,0);
+    }
+
+    /**
+     * Creates an already connected {@link ProxyOutputStream} with flow control.
+     *
+     * @param windowSize
+     *      The window advertised by the receiver, or 0 if the receiver doesn't do flow control.
+     */
+    public ProxyOutputStream(Channel channel, int oid, int windowSize) throws IOException {
+        connect(channel,oid,windowSize);
     }
 
     /**
      * Connects this stream to the specified remote object.
+     *
+     * @param windowSize
+     *      The window advertised by the receiver, or 0 if the receiver doesn't do flow control.
      */
-    synchronized void connect(Channel channel, int oid) throws IOException {
+    synchronized void connect(Channel channel, int oid, int windowSize) throws IOException {
         if(this.channel!=null)
             throw new IllegalStateException("Cannot connect twice");
         if(oid==0)
             throw new IllegalArgumentException("oid=0");
         this.channel = channel;
         this.oid = oid;
+        if(windowSize>0) {
+            window = new PipeWindow(oid,windowSize);
+            channel.addPipeWindow(window);
+        }
 
         // if we already have bytes to write, do so now.
         if(tmp!=null) {
-            channel.send(new Chunk(oid,tmp.toByteArray()));
+            sendChunk(tmp.toByteArray());
             tmp = null;
         }
         if(closed)  // already marked closed?
             doClose();
     }
 
-    public void write(int b) throws IOException {
-        write(new byte[]{(byte)b},0,1);
+    public synchronized void write(int b) throws IOException {
+        if(closed)
+            throw new IOException("stream is already closed");
+        if(channel==null || BUFFER_SIZE<=1) {
+            write(new byte[]{(byte)b});
+            return;
+        }
+        if(count==BUFFER_SIZE)
+            drain();
+        append();
+        buf[count++] = (byte)b;
     }
 
-    public void write(byte b[], int off, int len) throws IOException {
+    public synchronized void write(byte b[], int off, int len) throws IOException {
         if(closed)
             throw new IOException("stream is already closed");
+        if(channel!=null && len<BUFFER_SIZE) {
+            if(len==0)
+                return;
+            if(count+len>BUFFER_SIZE)
+                drain();
+            append();
+            System.arraycopy(b,off,buf,count,len);
+            count += len;
+            return;
+        }
+
         if(off==0 && len==b.length)
             write(b);
         else {
@@ -108,34 +181,146 @@ final class ProxyOutputStream extends OutputStream {
             if(tmp==null)
                 tmp = new ByteArrayOutputStream();
             tmp.write(b);
+        } else if(b.length<BUFFER_SIZE) {
+            write(b,0,b.length);
         } else {
-            channel.send(new Chunk(oid,b));
+            drain();
+            sendChunk(b);
         }
     }
 
+    /**
+     * Sends the given bytes, in pieces small enough for the window, if any.
+     */
+    private void sendChunk(byte[] b) throws IOException {
+        if(window==null) {
+            channel.send(new Chunk(oid,b,false));
+            return;
+        }
 
-    public void flush() throws IOException {
-        if(channel!=null)
+        // the reader thread must never wait, as it's the one that receives acknowledgements
+        boolean wait = !Channel.isReaderThread();
+        int max = window.getMaxChunk();
+        for( int off=0; off<b.length; off+=max ) {
+            int len = Math.min(max,b.length-off);
+            byte[] c = b;
+            if(len!=b.length) {
+                c = new byte[len];
+                System.arraycopy(b,off,c,0,len);
+            }
+            window.take(len,wait);
+            channel.send(new Chunk(oid,c,true));
+        }
+    }
+
+    /**
+     * Makes room for more data in the buffer, and if it was empty,
+     * arranges the buffered data to be sent eventually.
+     */
+    private void append() {
+        if(buf==null)
+            buf = new byte[BUFFER_SIZE];
+        if(count==0) {
+            channel.addPendingOutput(this);
+            final Channel channel = this.channel;
+            deadline = new TimerTask() {
+                public void run() {
+                    // draining can wait for the pipe window, so don't do it on the shared timer thread
+                    try {
+                        channel.executor.execute(new Runnable() {
+                            public void run() {
+                                try {
+                                    drain();
+                                } catch (IOException e) {
+                                    LOGGER.log(Level.FINE, "Failed to send the buffered data",e);
+                                }
+                            }
+                        });
+                    } catch (RejectedExecutionException e) {
+                        // the channel is shutting down
+                    }
+                }
+            };
+            TIMER.schedule(deadline,FLUSH_DELAY);
+        }
+    }
+
+    /**
+     * Sends the buffered data, if any.
+     */
+    /*package*/ synchronized void drain() throws IOException {
+        if(count==0)
+            return;
+        Channel channel = this.channel;
+        byte[] data = new byte[count];
+        System.arraycopy(buf,0,data,0,count);
+        count = 0;
+        deadline.cancel();
+        deadline = null;
+        channel.removePendingOutput(this);
+        sendChunk(data);
+    }
+
+    /**
+     * Sends the buffered data, if any, without waiting for the receiver to catch up.
+     *
+     * <p>
+     * This is used before {@link Channel} sends a command, which shouldn't be held up by a stalled reader.
+     * The window may be overdrawn by up to {@link PipeWindow#MAX_OVERDRAFT}, and other writers don't wait
+     * for the window in the mean time either, so that we never wait for the lock held by such a writer.
+     * If a writer is already waiting for the window, nothing is buffered, as the writer holds the lock.
+     */
+    /*package*/ void drainNow() throws IOException {
+        PipeWindow w = window;
+        if(w==null) {
+            drain();
+            return;
+        }
+        if(!w.overdraw())
+            return;
+        try {
+            drain();
+        } finally {
+            w.endOverdraw();
+        }
+    }
+
+    public synchronized void flush() throws IOException {
+        if(channel!=null) {
+            drain();
             channel.send(new Flush(oid));
+        }
     }
 
     public synchronized void close() throws IOException {
+        if(channel!=null && !closed)
+            drain();
         closed = true;
         if(channel!=null)
             doClose();
     }
 
     private void doClose() throws IOException {
+        releaseWindow();
         channel.send(new EOF(oid));
         channel = null;
         oid = -1;
     }
 
+    private void releaseWindow() {
+        if(window!=null) {
+            window.kill();
+            channel.removePipeWindow(window);
+            window = null;
+        }
+    }
+
     @Override
     protected void finalize() throws Throwable {
         super.finalize();
         // if we haven't done so, release the exported object on the remote side.
         if(channel!=null) {
+            releaseWindow();
             channel.send(new Unexport(oid));
             channel = null;
             oid = -1;
@@ -148,14 +333,20 @@ final class ProxyOutputStream extends OutputStream {
     private static final class Chunk extends Command {
         private final int oid;
         private final byte[] buf;
+        /**
+         * True if the writer does flow control and wants this chunk acknowledged.
+         * Chunks from older writers don't have this field, so it reads as false.
+         */
+        private final boolean ack;
 
-        public Chunk(int oid, byte[] buf) {
+        public Chunk(int oid, byte[] buf, boolean ack) {
             // to improve the performance when a channel is used purely as a pipe,
             // don't record the stack trace. On FilePath.writeToTar case, the stack trace and the OOS header
             // takes up about 1.5K.
             super(false);
             this.oid = oid;
             this.buf = buf;
+            this.ack = ack;
         }
 
         protected void execute(Channel channel) {
@@ -165,6 +356,27 @@ final class ProxyOutputStream extends OutputStream {
             } catch (IOException e) {
                 // ignore errors
             }
+
+            if(ack) {
+                PipeWindow.Receiver r = null;
+                if(os instanceof FastPipedOutputStream)
+                    r = ((FastPipedOutputStream)os).getReceiver();
+                if(r!=null) {
+                    // the pipe acknowledges the data as it gets read
+                    r.enable();
+                } else {
+                    try {
+                        channel.send(new PipeWindow.Ack(oid,buf.length));
+                    } catch (IOException e) {
+                        // the channel is gone, so nobody is waiting for this
+                    }
+                }
+            }
+        }
+
+        @Override
+        int getLane() {
+            return oid;
         }
 
         public String toString() {
@@ -194,6 +406,11 @@ final class ProxyOutputStream extends OutputStream {
             }
         }
 
+        @Override
+        int getLane() {
+            return oid;
+        }
+
         public String toString() {
             return "Pipe.Flush("+oid+")";
         }
@@ -218,6 +435,11 @@ final class ProxyOutputStream extends OutputStream {
             channel.unexport(oid);
         }
 
+        @Override
+        int getLane() {
+            return oid;
+        }
+
         public String toString() {
             return "Pipe.Unexport("+oid+")";
         }
@@ -246,10 +468,30 @@ final class ProxyOutputStream extends OutputStream {
             }
         }
 
+        @Override
+        int getLane() {
+            return oid;
+        }
+
         public String toString() {
             return "Pipe.EOF("+oid+")";
         }
 
         private static final long serialVersionUID = 1L;
     }
+
+    /**
+     * Writes are coalesced into chunks of up to this many bytes.
+     * Set to 0 to send every write as a separate command.
+     */
+    public static int BUFFER_SIZE = Integer.getInteger(ProxyOutputStream.class.getName()+".bufferSize",8192);
+
+    /**
+     * Coalesced data is sent at the latest this many milliseconds after it's written.
+     */
+    public static int FLUSH_DELAY = Integer.getInteger(ProxyOutputStream.class.getName()+".flushDelay",50);
+
+    private static final Timer TIMER = new Timer("ProxyOutputStream flusher",true);
+
+    private static final Logger LOGGER = Logger.getLogger(ProxyOutputStream.class.getName());
 }
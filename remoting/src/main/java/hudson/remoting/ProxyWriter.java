@@ -153,6 +153,11 @@ final class ProxyWriter extends Writer {
             }
         }
 
+        @Override
+        int getLane() {
+            return oid;
+        }
+
         public String toString() {
             return "Pipe.Chunk("+oid+","+buf.length+")";
         }
@@ -180,6 +185,11 @@ final class ProxyWriter extends Writer {
             }
         }
 
+        @Override
+        int getLane() {
+            return oid;
+        }
+
         public String toString() {
             return "Pipe.EOF("+oid+")";
         }
@@ -23,7 +23,9 @@
  */
 package hudson.remoting;
 
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
@@ -31,15 +33,21 @@ import java.io.InputStream;
 import java.io.Serializable;
 import java.net.URL;
 import java.net.MalformedURLException;
+import java.net.URISyntaxException;
 import java.net.URLClassLoader;
 import java.util.Enumeration;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.Vector;
 import java.util.List;
 import java.util.ArrayList;
 import java.util.Set;
 import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 /**
  * Loads class files from the other peer through {@link Channel}.
@@ -73,6 +81,25 @@ final class RemoteClassLoader extends URLClassLoader {
      */
     private final Set<URL> prefetchedJars = new HashSet<URL>();
 
+    /**
+     * Class images that came along with other classes, and haven't been defined yet, keyed by their names.
+     * The oldest ones are dropped once they add up to more than {@link #MAX_PREFETCHED_SIZE} bytes,
+     * which only means that they are fetched again if they are needed after all.
+     *
+     * @see IClassLoader#fetch2(String, boolean)
+     */
+    private final LinkedHashMap<String,byte[]> prefetchedClasses = new LinkedHashMap<String,byte[]>();
+    /**
+     * Total size of {@link #prefetchedClasses}. Guarded by {@link #prefetchedClasses}.
+     */
+    private int prefetchedSize;
+
+    /**
+     * False if the other side is an older version that doesn't support
+     * {@link IClassLoader#fetch2(String, boolean)} and {@link IClassLoader#getJarChecksum(URL)}.
+     */
+    private volatile boolean checksumSupported = true;
+
     public static ClassLoader create(ClassLoader parent, IClassLoader proxy) {
         if(proxy instanceof ClassLoaderProxy) {
             // when the remote sends 'RemoteIClassLoader' as the proxy, on this side we get it
@@ -96,11 +123,22 @@ final class RemoteClassLoader extends URLClassLoader {
         } catch (ClassNotFoundException e) {
             if(channel.isRestricted)
                 throw e;
-            // delegate to remote
-            long startTime = System.nanoTime();
-            byte[] bytes = proxy.fetch(name);
-            channel.classLoadingTime.addAndGet(System.nanoTime()-startTime);
-            channel.classLoadingCount.incrementAndGet();
+
+            byte[] bytes;
+            synchronized (prefetchedClasses) {
+                bytes = prefetchedClasses.remove(name);
+                if(bytes!=null)
+                    prefetchedSize -= bytes.length;
+            }
+            if(bytes!=null) {
+                channel.classPrefetchHitCount.incrementAndGet();
+            } else {
+                // delegate to remote
+                long startTime = System.nanoTime();
+                bytes = fetch(name);
+                channel.classLoadingTime.addAndGet(System.nanoTime()-startTime);
+                channel.classLoadingCount.incrementAndGet();
+            }
 
             // define package
             definePackage(name);
@@ -109,6 +147,50 @@ final class RemoteClassLoader extends URLClassLoader {
         }
     }
 
+    /**
+     * Fetches a class from the other side, along with the classes that it refers to,
+     * or the jar that it comes from if the jars are cached.
+     */
+    private byte[] fetch(String name) throws ClassNotFoundException {
+        if(!checksumSupported)
+            return proxy.fetch(name);
+
+        JarCache cache = channel.getJarCache();
+        ClassFile[] classes;
+        try {
+            classes = proxy.fetch2(name,cache!=null);
+        } catch (RuntimeException x) {
+            // the other side is an older version
+            checksumSupported = false;
+            return proxy.fetch(name);
+        }
+
+        ClassFile cf = classes[0];
+        if(cf.jar!=null && cache!=null) {
+            // the rest of the classes in the same jar will be loaded locally
+            try {
+                loadJar(cf.jar,cf.checksum,cache);
+            } catch (IOException x) {
+                throw new ClassNotFoundException("Failed to fetch "+cf.jar,x);
+            }
+        }
+        synchronized (prefetchedClasses) {
+            for( int i=1; i<classes.length; i++ ) {
+                if(findLoadedClass(classes[i].name)!=null)
+                    continue;
+                byte[] old = prefetchedClasses.put(classes[i].name,classes[i].image);
+                if(old!=null)
+                    prefetchedSize -= old.length;
+                prefetchedSize += classes[i].image.length;
+            }
+            for (Iterator<byte[]> itr = prefetchedClasses.values().iterator(); prefetchedSize>MAX_PREFETCHED_SIZE && itr.hasNext();) {
+                prefetchedSize -= itr.next().length;
+                itr.remove();
+            }
+        }
+        return cf.image;
+    }
+
     /**
      * Defining a package is necessary to make {@link Class#getPackage()} work,
      * which is often used to retrieve package-level annotations.
@@ -216,29 +298,117 @@ final class RemoteClassLoader extends URLClassLoader {
      * @see Channel#preloadJar(Callable, Class[]) 
      */
     /*package*/ boolean prefetch(URL jar) throws IOException {
+        String checksum = null;
+        JarCache cache = channel.getJarCache();
+        if(cache!=null && checksumSupported) {
+            synchronized (prefetchedJars) {
+                if(prefetchedJars.contains(jar))
+                    return false;
+            }
+            try {
+                checksum = proxy.getJarChecksum(jar);
+            } catch (RuntimeException x) {
+                // the other side is an older version
+                checksumSupported = false;
+            }
+        }
+        return loadJar(jar,checksum,cache);
+    }
+
+    /**
+     * Adds the given jar on the other side to this class loader, from {@link JarCache} if possible.
+     *
+     * @param checksum
+     *      Checksum of the jar, or null if not known.
+     * @return
+     *      false if the jar is already added.
+     */
+    private boolean loadJar(URL jar, String checksum, JarCache cache) throws IOException {
         synchronized (prefetchedJars) {
             if(prefetchedJars.contains(jar))
                 return false;
 
-            String p = jar.getPath().replace('\\','/');
-            p = p.substring(p.lastIndexOf('/')+1);
-            File localJar = makeResource(p,proxy.fetchJar(jar));
+            File localJar = null;
+            if(checksum!=null && cache!=null) {
+                localJar = cache.get(checksum);
+                if(localJar!=null) {
+                    channel.jarCacheHitCount.incrementAndGet();
+                } else {
+                    channel.jarCacheMissCount.incrementAndGet();
+                    byte[] image = proxy.fetchJar(jar);
+                    try {
+                        localJar = cache.store(checksum,image);
+                    } catch (IOException e) {
+                        LOGGER.log(Level.WARNING, "Failed to store "+jar+" in "+cache.getRootDir(),e);
+                    }
+                    if(localJar==null)
+                        localJar = makeJar(jar,image);  // the jar has changed, or the cache isn't writable
+                }
+            } else {
+                localJar = makeJar(jar,proxy.fetchJar(jar));
+            }
             addURL(localJar.toURI().toURL());
             prefetchedJars.add(jar);
             return true;
         }
     }
 
+    private File makeJar(URL jar, byte[] image) throws IOException {
+        String p = jar.getPath().replace('\\','/');
+        p = p.substring(p.lastIndexOf('/')+1);
+        return makeResource(p,image);
+    }
+
     /**
      * Remoting interface.
      */
     /*package*/ static interface IClassLoader {
         byte[] fetchJar(URL url) throws IOException;
         byte[] fetch(String className) throws ClassNotFoundException;
+        /**
+         * Fetches a class in one round trip with the classes that are likely to be needed next.
+         *
+         * @param jarCache
+         *      True if the caller has a {@link JarCache}. If the class comes from a jar, only the class
+         *      and the checksum of its jar are returned, so that the caller can load the rest of the jar from the cache.
+         * @return
+         *      The requested class first, then the classes that it statically refers to, transitively,
+         *      up to {@link ClassLoaderProxy#PREFETCH_LIMIT}, leaving out the ones that the caller surely has.
+         */
+        ClassFile[] fetch2(String className, boolean jarCache) throws ClassNotFoundException;
+        /**
+         * Gets the {@link JarCache#checksum(byte[]) checksum} of the given jar.
+         */
+        String getJarChecksum(URL jar) throws IOException;
         byte[] getResource(String name) throws IOException;
         byte[][] getResources(String name) throws IOException;
     }
 
+    /**
+     * A class file, and the jar it comes from.
+     */
+    /*package*/ static final class ClassFile implements Serializable {
+        final String name;
+        final byte[] image;
+        /**
+         * The jar that contains the class, or null if the class doesn't come from a local jar file.
+         */
+        final URL jar;
+        /**
+         * The checksum of {@link #jar}.
+         */
+        final String checksum;
+
+        ClassFile(String name, byte[] image, URL jar, String checksum) {
+            this.name = name;
+            this.image = image;
+            this.jar = jar;
+            this.checksum = checksum;
+        }
+
+        private static final long serialVersionUID = 1L;
+    }
+
     public static IClassLoader export(ClassLoader cl, Channel local) {
         if (cl instanceof RemoteClassLoader) {
             // check if this is a remote classloader from the channel
@@ -261,6 +431,49 @@ final class RemoteClassLoader extends URLClassLoader {
     /*package*/ static final class ClassLoaderProxy implements IClassLoader {
         private final ClassLoader cl;
 
+        /**
+         * Names of the classes that were sent to the other side, which aren't prefetched again.
+         * Only the most recently sent {@link #MAX_SENT} are remembered. Forgetting the others
+         * just means that they may be sent again.
+         */
+        private final Map<String,Boolean> sent = new LinkedHashMap<String,Boolean>(16,0.75f,true) {
+            protected boolean removeEldestEntry(Map.Entry<String,Boolean> eldest) {
+                return size()>MAX_SENT;
+            }
+        };
+
+        /**
+         * Checksums of the jar files computed so far, shared by all the channels.
+         */
+        private static final Map<URL,Checksum> checksums = new HashMap<URL,Checksum>();
+
+        /**
+         * Maximum number of classes sent in advance along with the requested one.
+         */
+        public static int PREFETCH_LIMIT = Integer.getInteger(RemoteClassLoader.class.getName()+".prefetchLimit",64);
+
+        /**
+         * Maximum number of class names kept in {@link #sent}.
+         */
+        private static final int MAX_SENT = 4096;
+
+        private static final String[] SYSTEM_PACKAGES = {"java.","javax.","sun.","com.sun.","jdk.","org.w3c.","org.xml."};
+
+        /**
+         * Where the remoting classes are loaded from, which the other side has, too.
+         */
+        private static final String REMOTING_LOCATION = getRemotingLocation();
+
+        private static String getRemotingLocation() {
+            try {
+                return Channel.class.getProtectionDomain().getCodeSource().getLocation().toExternalForm();
+            } catch (SecurityException e) {
+                return null;
+            } catch (NullPointerException e) {
+                return null;    // no code source
+            }
+        }
+
         public ClassLoaderProxy(ClassLoader cl) {
             this.cl = cl;
         }
@@ -281,6 +494,184 @@ final class RemoteClassLoader extends URLClassLoader {
             }
         }
 
+        public ClassFile[] fetch2(String className, boolean jarCache) throws ClassNotFoundException {
+            ClassFile main = fetchWithJar(className);
+            if(jarCache && main.jar!=null)
+                return new ClassFile[]{main};
+
+            List<ClassFile> r = new ArrayList<ClassFile>();
+            r.add(main);
+            Set<String> seen = new HashSet<String>();
+            seen.add(className);
+
+            // breadth first, so that the classes closer to the requested one make it within the limit
+            for( int i=0; i<r.size() && r.size()<=PREFETCH_LIMIT; i++ ) {
+                for (String n : getReferencedClasses(r.get(i).image)) {
+                    if(r.size()>PREFETCH_LIMIT)
+                        break;
+                    if(!seen.add(n) || !isPrefetchable(n))
+                        continue;
+                    synchronized (sent) {
+                        if(sent.get(n)!=null)
+                            continue;   // get() rather than containsKey(), to keep it from being forgotten
+                    }
+                    InputStream in = cl.getResourceAsStream(n.replace('.','/')+".class");
+                    if(in==null)
+                        continue;
+                    try {
+                        r.add(new ClassFile(n,readFully(in),null,null));
+                    } catch (IOException e) {
+                        // the other side will ask for it if it needs it
+                    }
+                }
+            }
+
+            synchronized (sent) {
+                for (ClassFile cf : r)
+                    sent.put(cf.name,Boolean.TRUE);
+            }
+            return r.toArray(new ClassFile[r.size()]);
+        }
+
+        /**
+         * Fetches a class along with the jar that it comes from.
+         */
+        private ClassFile fetchWithJar(String className) throws ClassNotFoundException {
+            byte[] image = fetch(className);
+            URL res = cl.getResource(className.replace('.', '/') + ".class");
+            URL jar = res!=null ? toJar(res) : null;
+            if(jar!=null) {
+                try {
+                    return new ClassFile(className,image,jar,getJarChecksum(jar));
+                } catch (IOException e) {
+                    // just send the class
+                }
+            }
+            return new ClassFile(className,image,null,null);
+        }
+
+        /**
+         * Would the other side need to fetch this class? It doesn't for the classes of the JRE and of the remoting.
+         */
+        private boolean isPrefetchable(String name) {
+            for (String prefix : SYSTEM_PACKAGES)
+                if(name.startsWith(prefix))
+                    return false;
+            if(REMOTING_LOCATION!=null) {
+                URL res = cl.getResource(name.replace('.','/')+".class");
+                if(res!=null && res.toExternalForm().contains(REMOTING_LOCATION))
+                    return false;
+            }
+            return true;
+        }
+
+        /**
+         * Lists the classes that the given class file refers to, from its constant pool.
+         */
+        /*package*/ static Set<String> getReferencedClasses(byte[] image) {
+            Set<String> r = new LinkedHashSet<String>();
+            try {
+                DataInputStream in = new DataInputStream(new ByteArrayInputStream(image));
+                in.skipBytes(8);    // magic and version
+                int n = in.readUnsignedShort();
+                String[] utf8 = new String[n];
+                int[] classes = new int[n];
+                int c = 0;
+                for( int i=1; i<n; i++ ) {
+                    int tag = in.readUnsignedByte();
+                    switch (tag) {
+                    case 1: // Utf8
+                        utf8[i] = in.readUTF();
+                        break;
+                    case 7: // Class
+                        classes[c++] = in.readUnsignedShort();
+                        break;
+                    case 8: case 16: case 19: case 20: // String, MethodType, Module, Package
+                        in.skipBytes(2);
+                        break;
+                    case 15: // MethodHandle
+                        in.skipBytes(3);
+                        break;
+                    case 3: case 4: case 9: case 10: case 11: case 12: case 17: case 18:
+                        in.skipBytes(4);
+                        break;
+                    case 5: case 6: // Long and Double take two entries
+                        in.skipBytes(8);
+                        i++;
+                        break;
+                    default:
+                        return r;   // unknown class file format. just use what we've got
+                    }
+                }
+                for( int i=0; i<c; i++ ) {
+                    String name = utf8[classes[i]];
+                    if(name!=null && !name.startsWith("["))
+                        r.add(name.replace('/','.'));
+                }
+                // types that only appear in the field and method signatures, and in the array types
+                for (String d : utf8) {
+                    if(d==null || !(d.startsWith("(") || d.startsWith("[") || (d.startsWith("L") && d.endsWith(";"))))
+                        continue;
+                    int idx = 0;
+                    while((idx=d.indexOf('L',idx))>=0) {
+                        int end = d.indexOf(';',idx);
+                        if(end<0)   break;
+                        String name = d.substring(idx+1,end);
+                        int lt = name.indexOf('<');
+                        if(lt>=0)   name = name.substring(0,lt); // generic signature
+                        r.add(name.replace('/','.'));
+                        idx = end;
+                    }
+                }
+            } catch (IOException e) {
+                // malformed class file. just use what we've got
+            } catch (ArrayIndexOutOfBoundsException e) {
+                // ditto
+            }
+            return r;
+        }
+
+        public String getJarChecksum(URL jar) throws IOException {
+            File f = toFile(jar);
+            synchronized (checksums) {
+                Checksum c = checksums.get(jar);
+                if(c!=null && (f==null || (c.timestamp==f.lastModified() && c.length==f.length())))
+                    return c.value;
+            }
+            Checksum c = new Checksum(JarCache.checksum(jar.openStream()),f);
+            synchronized (checksums) {
+                checksums.put(jar,c);
+            }
+            return c.value;
+        }
+
+        /**
+         * If the given resource is in a jar file, returns the URL of the jar file.
+         */
+        private static URL toJar(URL res) {
+            String s = res.toExternalForm();
+            int idx = s.indexOf("!/");
+            if(!s.startsWith("jar:file:") || idx<0)
+                return null;
+            try {
+                return new URL(s.substring(4,idx));
+            } catch (MalformedURLException e) {
+                return null;
+            }
+        }
+
+        private static File toFile(URL url) {
+            if(!url.getProtocol().equals("file"))
+                return null;
+            try {
+                return new File(url.toURI());
+            } catch (URISyntaxException e) {
+                return null;
+            } catch (IllegalArgumentException e) {
+                return null;
+            }
+        }
+
 
         public byte[] getResource(String name) throws IOException {
             InputStream in = cl.getResourceAsStream(name);
@@ -324,6 +715,21 @@ final class RemoteClassLoader extends URLClassLoader {
         }
     }
 
+    /**
+     * Checksum of a jar, and the time stamp and the length of the jar when it was computed.
+     */
+    private static final class Checksum {
+        final String value;
+        final long timestamp;
+        final long length;
+
+        Checksum(String value, File f) {
+            this.value = value;
+            this.timestamp = f!=null ? f.lastModified() : 0;
+            this.length = f!=null ? f.length() : 0;
+        }
+    }
+
     /**
      * {@link IClassLoader} to be shipped back to the channel where it came from.
      *
@@ -349,6 +755,14 @@ final class RemoteClassLoader extends URLClassLoader {
             return proxy.fetch(className);
         }
 
+        public ClassFile[] fetch2(String className, boolean jarCache) throws ClassNotFoundException {
+            return proxy.fetch2(className,jarCache);
+        }
+
+        public String getJarChecksum(URL jar) throws IOException {
+            return proxy.getJarChecksum(jar);
+        }
+
         public byte[] getResource(String name) throws IOException {
             return proxy.getResource(name);
         }
@@ -364,4 +778,10 @@ final class RemoteClassLoader extends URLClassLoader {
         private static final long serialVersionUID = 1L;
     }
 
+    /**
+     * Maximum total size of the class images kept in {@link #prefetchedClasses}.
+     */
+    private static final int MAX_PREFETCHED_SIZE = 1024*1024;
+
+    private static final Logger LOGGER = Logger.getLogger(RemoteClassLoader.class.getName());
 }
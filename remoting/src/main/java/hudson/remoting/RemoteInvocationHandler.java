@@ -287,6 +287,10 @@ final class RemoteInvocationHandler implements InvocationHandler, Serializable {
             return null;
         }
 
+        /*package*/ String getMethodName() {
+            return methodName;
+        }
+
         public String toString() {
             return "RPCRequest("+oid+","+methodName+")";
         }
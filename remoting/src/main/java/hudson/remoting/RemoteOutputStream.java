@@ -23,6 +23,7 @@
  */
 package hudson.remoting;
 
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
@@ -81,13 +82,21 @@ public final class RemoteOutputStream extends OutputStream implements Serializab
     private void writeObject(ObjectOutputStream oos) throws IOException {
         int id = Channel.current().export(core,false); // this export is unexported in ProxyOutputStream.finalize() 
         oos.writeInt(id);
+        oos.writeInt(PipeWindow.SIZE); // window. older versions don't read this
     }
 
     private void readObject(ObjectInputStream ois) throws IOException, ClassNotFoundException {
         final Channel channel = Channel.current();
         assert channel !=null;
 
-        this.core = new ProxyOutputStream(channel, ois.readInt());
+        int id = ois.readInt();
+        int window;
+        try {
+            window = ois.readInt();
+        } catch (EOFException e) {
+            window = 0; // older versions don't send the window
+        }
+        this.core = new ProxyOutputStream(channel, id, window);
     }
 
     private static final long serialVersionUID = 1L;
@@ -93,16 +93,29 @@ abstract class Request<RSP extends Serializable,EXC extends Throwable> extends C
      *      If the {@link #perform(Channel)} throws an exception.
      */
     public final RSP call(Channel channel) throws EXC, InterruptedException, IOException {
-        // Channel.send() locks channel, and there are other call sequences
-        // (  like Channel.terminate()->Request.abort()->Request.onCompleted()  )
-        // that locks channel -> request, so lock objects in the same order
-        synchronized(channel) {
+        channel.flushPendingOutput();
+
+        if(channel.isFramed()) {
+            // sending frames doesn't lock the channel, so there's no need to
+            // hold everyone else up while we serialize this request
             synchronized(this) {
                 response=null;
 
                 channel.pendingCalls.put(id,this);
                 channel.send(this);
             }
+        } else {
+            // Channel.send() locks channel, and there are other call sequences
+            // (  like Channel.terminate()->Request.abort()->Request.onCompleted()  )
+            // that locks channel -> request, so lock objects in the same order
+            synchronized(channel) {
+                synchronized(this) {
+                    response=null;
+
+                    channel.pendingCalls.put(id,this);
+                    channel.send(this);
+                }
+            }
         }
 
         synchronized(this) {
@@ -149,6 +162,7 @@ abstract class Request<RSP extends Serializable,EXC extends Throwable> extends C
      *      If there's an error during the communication.
      */
     public final hudson.remoting.Future<RSP> callAsync(final Channel channel) throws IOException {
+        channel.flushPendingOutput();
         response=null;
 
         channel.pendingCalls.put(id,this);
@@ -240,8 +254,11 @@ abstract class Request<RSP extends Serializable,EXC extends Throwable> extends C
                         // error return
                         rsp = new Response<RSP,Throwable>(id,t);
                     }
-                    if(!channel.isOutClosed())
+                    if(!channel.isOutClosed()) {
+                        // data written to remote streams during the call should arrive before the response
+                        channel.flushPendingOutput();
                         channel.send(rsp);
+                    }
                 } catch (IOException e) {
                     // communication error.
                     // this means the caller will block forever
@@ -0,0 +1,89 @@
+/*
+ * The MIT License
+ * 
+ * Copyright (c) 2004-2009, Sun Microsystems, Inc., Kohsuke Kawaguchi
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.remoting;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Creates streams of a {@link Socket} that can be read and written at the same time.
+ *
+ * <p>
+ * The streams of a socket that comes from a {@link SocketChannel} (like when it's accepted by a
+ * {@link java.nio.channels.ServerSocketChannel}) hold the same lock while they block, so a thread
+ * that waits for incoming data prevents other threads from writing. This class works around that.
+ * Closing the {@link OutputStream} only shuts down the output side of the socket.
+ */
+public class SocketChannelStream {
+    public static InputStream in(Socket s) throws IOException {
+        final SocketChannel ch = s.getChannel();
+        if(ch==null)
+            return s.getInputStream();
+
+        return Channels.newInputStream(new ReadableByteChannel() {
+            public int read(ByteBuffer dst) throws IOException {
+                return ch.read(dst);
+            }
+
+            public boolean isOpen() {
+                return ch.isOpen();
+            }
+
+            public void close() throws IOException {
+                ch.close();
+            }
+        });
+    }
+
+    public static OutputStream out(Socket s) throws IOException {
+        final SocketChannel ch = s.getChannel();
+        if(ch==null)
+            return s.getOutputStream();
+
+        return Channels.newOutputStream(new WritableByteChannel() {
+            public int write(ByteBuffer src) throws IOException {
+                return ch.write(src);
+            }
+
+            public boolean isOpen() {
+                return ch.isOpen() && !ch.socket().isOutputShutdown();
+            }
+
+            /**
+             * Only shuts down the output, so that the remaining input can still be read.
+             */
+            public void close() throws IOException {
+                if(ch.isOpen())
+                    ch.socket().shutdownOutput();
+            }
+        });
+    }
+}
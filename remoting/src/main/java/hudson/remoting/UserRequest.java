@@ -55,6 +55,13 @@ final class UserRequest<RSP,EXC extends Throwable> extends Request<UserResponse<
      */
     private transient final ExportList exports;
 
+    /**
+     * Where the call is recorded. Only on the calling side.
+     */
+    private transient final CallableStatistics statistics;
+    private transient final long startTime;
+    private transient boolean recorded;
+
     public UserRequest(Channel local, Callable<?,EXC> c) throws IOException {
         exports = local.startExportRecording();
         try {
@@ -66,6 +73,10 @@ final class UserRequest<RSP,EXC extends Throwable> extends Request<UserResponse<
         this.toString = c.toString();
         ClassLoader cl = getClassLoader(c);
         classLoaderProxy = RemoteClassLoader.export(cl,local);
+
+        statistics = local.getCallableStatistics(c);
+        statistics.onSent(request.length);
+        startTime = System.nanoTime();
     }
 
     /*package*/ static ClassLoader getClassLoader(Callable<?,?> c) {
@@ -148,6 +159,27 @@ final class UserRequest<RSP,EXC extends Throwable> extends Request<UserResponse<
         }
     }
 
+    @Override
+    /*package*/ synchronized void onCompleted(Response<UserResponse<RSP,EXC>,EXC> response) {
+        super.onCompleted(response);
+        UserResponse<RSP,EXC> r = response.returnValue;
+        record(r!=null ? r.size() : 0, r==null || r.isException());
+    }
+
+    /**
+     * Records a call that failed before the response arrives, such as when the request couldn't be sent.
+     */
+    /*package*/ synchronized void onFailed() {
+        record(0,true);
+    }
+
+    private void record(int size, boolean failed) {
+        if(statistics==null || recorded)
+            return;
+        recorded = true;
+        statistics.onCompleted(System.nanoTime()-startTime,size,failed);
+    }
+
     public void releaseExports() {
         exports.release();
     }
@@ -168,6 +200,17 @@ final class UserResponse<RSP,EXC extends Throwable> implements Serializable {
         this.isException = isException;
     }
 
+    /**
+     * Size of the serialized response.
+     */
+    /*package*/ int size() {
+        return response.length;
+    }
+
+    /*package*/ boolean isException() {
+        return isException;
+    }
+
     /**
      * Deserializes the response byte stream into an object.
      */
@@ -33,10 +33,12 @@ import java.util.logging.Level;
 import java.util.List;
 import java.util.ArrayList;
 import java.net.URL;
+import java.io.File;
 import java.io.IOException;
 
 import hudson.remoting.Engine;
 import hudson.remoting.EngineListener;
+import hudson.remoting.JarCache;
 
 /**
  * Entry point to JNLP slave agent.
@@ -67,6 +69,14 @@ public class Main {
             usage="If the connection ends, don't retry and just exit.")
     public boolean noReconnect = false;
 
+    @Option(name="-jar-cache",metaVar="DIR",
+            usage="Keep the jar files fetched from Hudson in this directory. Off by default. ~/.hudson/cache/jars is a good choice")
+    public File jarCache;
+
+    @Option(name="-compress",
+            usage="Compress the communication with Hudson. Useful over slow networks.")
+    public boolean compress = false;
+
     /**
      * 4 mandatory parameters.
      * Host name (deprecated), Hudson URL, secret key, and slave name.
@@ -111,6 +121,9 @@ public class Main {
         if(tunnel!=null)
             engine.setTunnel(tunnel);
         engine.setNoReconnect(noReconnect);
+        engine.setCompress(compress);
+        if(jarCache!=null)
+            engine.setJarCache(new JarCache(jarCache));
         engine.start();
         engine.join();
     }
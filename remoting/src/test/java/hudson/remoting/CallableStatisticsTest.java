@@ -0,0 +1,99 @@
+/*
+ * The MIT License
+ * 
+ * Copyright (c) 2004-2009, Sun Microsystems, Inc., Kohsuke Kawaguchi
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.remoting;
+
+import junit.framework.Test;
+
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Tests {@link CallableStatistics}.
+ */
+public class CallableStatisticsTest extends RmiTestBase {
+    public void testStatistics() throws Exception {
+        channel.resetPerformanceCounters();
+
+        for( int i=0; i<10; i++ )
+            assertEquals(1000,channel.call(new Echo(new byte[1000])).length);
+        for( int i=0; i<3; i++ ) {
+            try {
+                channel.callAsync(new Fail()).get();
+                fail();
+            } catch (ExecutionException e) {
+                assertEquals("failed",e.getCause().getMessage());
+            }
+        }
+
+        CallableStatistics echo = find(Echo.class.getName());
+        assertEquals(10,echo.getCalls());
+        assertEquals(0,echo.getFailures());
+        assertEquals(0,echo.getInFlight());
+        assertTrue(echo.getRequestBytes()>10*1000);
+        assertTrue(echo.getResponseBytes()>10*1000);
+        assertEquals(10,sum(echo.getHistogram()));
+        assertEquals(echo.getHistogramBounds().length+1,echo.getHistogram().length);
+
+        CallableStatistics f = find(Fail.class.getName());
+        assertEquals(3,f.getCalls());
+        assertEquals(3,f.getFailures());
+        assertEquals(0,f.getInFlight());
+    }
+
+    private CallableStatistics find(String name) {
+        for (CallableStatistics s : channel.getCallableStatistics())
+            if(s.getName().equals(name))
+                return s;
+        fail("no statistics for "+name);
+        return null;
+    }
+
+    private static long sum(long[] a) {
+        long r = 0;
+        for (long l : a)
+            r += l;
+        return r;
+    }
+
+    private static class Echo implements Callable<byte[],RuntimeException> {
+        private final byte[] data;
+
+        Echo(byte[] data) {
+            this.data = data;
+        }
+
+        public byte[] call() {
+            return data;
+        }
+    }
+
+    private static class Fail implements Callable<Object,RuntimeException> {
+        public Object call() {
+            throw new IllegalStateException("failed");
+        }
+    }
+
+    public static Test suite() throws Exception {
+        return buildSuite(CallableStatisticsTest.class);
+    }
+}
@@ -25,9 +25,14 @@ package hudson.remoting;
 
 import junit.framework.Assert;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.IOException;
-import java.io.PipedInputStream;
-import java.io.PipedOutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 
@@ -43,7 +48,8 @@ interface ChannelRunner {
 
     Class<? extends ChannelRunner>[] LIST = new Class[] {
         InProcess.class,
-        Fork.class
+        Fork.class,
+        Nio.class
     };
 
 
@@ -58,11 +64,13 @@ interface ChannelRunner {
         private Exception failure;
 
         public Channel start() throws Exception {
-            final PipedInputStream in1 = new PipedInputStream();
-            final PipedOutputStream out1 = new PipedOutputStream(in1);
+            // java.io pipes break when a thread that wrote to them dies,
+            // and channels are written by short-lived threads, too
+            final FastPipedInputStream in1 = new FastPipedInputStream();
+            final FastPipedOutputStream out1 = new FastPipedOutputStream(in1);
 
-            final PipedInputStream in2 = new PipedInputStream();
-            final PipedOutputStream out2 = new PipedOutputStream(in2);
+            final FastPipedInputStream in2 = new FastPipedInputStream();
+            final FastPipedOutputStream out2 = new FastPipedOutputStream(in2);
 
             executor = Executors.newCachedThreadPool();
 
@@ -140,4 +148,45 @@ interface ChannelRunner {
             return "fork";
         }
     }
+
+    /**
+     * Runs a channel in the same JVM over a loopback socket, where one side is
+     * serviced by {@link NioChannelHub}.
+     */
+    static class Nio implements ChannelRunner {
+        private ExecutorService executor;
+        private NioChannelHub hub;
+        private Channel south;
+
+        public Channel start() throws Exception {
+            executor = Executors.newCachedThreadPool();
+            hub = new NioChannelHub(1,4);
+
+            ServerSocketChannel ss = ServerSocketChannel.open();
+            ss.socket().bind(new InetSocketAddress(InetAddress.getByName("localhost"),0));
+            Socket s = new Socket(InetAddress.getByName("localhost"),ss.socket().getLocalPort());
+            SocketChannel sc = ss.accept();
+            ss.close();
+
+            south = Channel.framed("south", executor,
+                    new BufferedInputStream(s.getInputStream()), new BufferedOutputStream(s.getOutputStream()));
+            return hub.register("north", sc, executor);
+        }
+
+        public void stop(Channel channel) throws Exception {
+            channel.close();
+            channel.join();
+            System.out.println("north completed");
+
+            south.join();
+            System.out.println("south completed");
+
+            hub.close();
+            executor.shutdown();
+        }
+
+        public String getName() {
+            return "nio";
+        }
+    }
 }
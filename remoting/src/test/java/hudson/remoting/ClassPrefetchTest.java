@@ -0,0 +1,253 @@
+/*
+ * The MIT License
+ * 
+ * Copyright (c) 2004-2009, Sun Microsystems, Inc., Kohsuke Kawaguchi
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.remoting;
+
+import hudson.remoting.RemoteClassLoader.ClassFile;
+import hudson.remoting.RemoteClassLoader.ClassLoaderProxy;
+import junit.framework.TestCase;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Serializable;
+import java.lang.reflect.Constructor;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Tests the classes sent in advance by {@link ClassLoaderProxy#fetch2(String, boolean)}.
+ */
+public class ClassPrefetchTest extends TestCase {
+    public void testReferencedClasses() throws Exception {
+        ClassLoaderProxy proxy = new ClassLoaderProxy(getClass().getClassLoader());
+        Set<String> refs = ClassLoaderProxy.getReferencedClasses(proxy.fetch(Task.class.getName()));
+        assertTrue(refs.contains(Scanner.class.getName()));
+        assertTrue(refs.contains(Callable.class.getName()));
+        assertTrue(refs.contains(String.class.getName()));
+        assertTrue(refs.contains(File.class.getName()));
+
+        refs = ClassLoaderProxy.getReferencedClasses(proxy.fetch(Scanner.class.getName()));
+        assertTrue(refs.contains(Pattern.class.getName()));
+        assertTrue(refs.contains(Match.class.getName()));
+    }
+
+    public void testFetch2() throws Exception {
+        ClassLoaderProxy proxy = new ClassLoaderProxy(getClass().getClassLoader());
+        Set<String> names = new HashSet<String>();
+        ClassFile[] classes = proxy.fetch2(Task.class.getName(), false);
+        assertEquals(Task.class.getName(),classes[0].name);
+        for (ClassFile cf : classes)
+            names.add(cf.name);
+
+        assertTrue(names.contains(Scanner.class.getName()));
+        assertTrue(names.contains(Match.class.getName()));
+        assertTrue(names.contains(Pattern.class.getName()));    // transitively
+        // the other side always has these
+        assertFalse(names.contains(Callable.class.getName()));
+        assertFalse(names.contains(String.class.getName()));
+
+        // classes that were already sent aren't sent again
+        classes = proxy.fetch2(Pattern.class.getName(), false);
+        assertEquals(1,classes.length);
+    }
+
+    /**
+     * Counts the round trips needed to load the classes of {@link Task} on the other side of a channel.
+     */
+    public void testRoundTrips() throws Exception {
+        int limit = ClassLoaderProxy.PREFETCH_LIMIT;
+        try {
+            // without the prefetch, every class is a round trip
+            ClassLoaderProxy.PREFETCH_LIMIT = 0;
+            int[] r = callTask();
+            assertEquals(4,r[0]);
+            assertEquals(0,r[1]);
+
+            ClassLoaderProxy.PREFETCH_LIMIT = limit;
+            r = callTask();
+            assertEquals(1,r[0]);
+            assertEquals(3,r[1]);
+        } finally {
+            ClassLoaderProxy.PREFETCH_LIMIT = limit;
+        }
+    }
+
+    /**
+     * Runs {@link Task} on a new channel, from a class loader that the other side doesn't have.
+     *
+     * @return
+     *      The number of round trips and the number of prefetched classes used on the other side.
+     */
+    private int[] callTask() throws Exception {
+        ChannelRunner runner = new ChannelRunner.InProcess();
+        Channel channel = runner.start();
+        try {
+            Class<?> c = new RenamingClassLoader(getClass().getClassLoader()).loadClass(RenamingClassLoader.rename(Task.class.getName()));
+            Constructor<?> con = c.getDeclaredConstructor(String.class);
+            con.setAccessible(true);
+            channel.call((Callable<?,IOException>)con.newInstance(""));
+            return channel.call(new GetCounts());
+        } finally {
+            runner.stop(channel);
+        }
+    }
+
+    private static class GetCounts implements Callable<int[],RuntimeException> {
+        public int[] call() {
+            Channel ch = Channel.current();
+            return new int[]{ch.classLoadingCount.get(),ch.classPrefetchHitCount.get()};
+        }
+
+        private static final long serialVersionUID = 1L;
+    }
+
+    /**
+     * Loads copies of the nested classes of this test under a different name,
+     * so that the other side of an in-process channel has to fetch them.
+     * The new name has the same length, so the names in the class files can be replaced in place.
+     */
+    private static class RenamingClassLoader extends ClassLoader {
+        private static final String FROM = ClassPrefetchTest.class.getName().replace('.','/')+"$";
+        private static final String TO = FROM.substring(0,FROM.length()-2)+"X$";
+
+        RenamingClassLoader(ClassLoader parent) {
+            super(parent);
+        }
+
+        static String rename(String name) {
+            return name.replace(FROM.replace('/','.'),TO.replace('/','.'));
+        }
+
+        protected Class<?> findClass(String name) throws ClassNotFoundException {
+            byte[] image = getImage(name.replace('.','/')+".class");
+            if(image==null)
+                throw new ClassNotFoundException(name);
+            return defineClass(name,image,0,image.length);
+        }
+
+        public URL getResource(String name) {
+            return name.startsWith(TO) ? null : super.getResource(name);
+        }
+
+        public InputStream getResourceAsStream(String name) {
+            if(!name.startsWith(TO))
+                return super.getResourceAsStream(name);
+            byte[] image = getImage(name);
+            return image!=null ? new ByteArrayInputStream(image) : null;
+        }
+
+        private byte[] getImage(String name) {
+            if(!name.startsWith(TO))
+                return null;
+            try {
+                InputStream in = getParent().getResourceAsStream(FROM+name.substring(TO.length()));
+                if(in==null)
+                    return null;
+                ByteArrayOutputStream baos = new ByteArrayOutputStream();
+                byte[] buf = new byte[8192];
+                int len;
+                while((len=in.read(buf))>=0)
+                    baos.write(buf,0,len);
+                in.close();
+                byte[] image = baos.toByteArray();
+
+                byte[] from = FROM.getBytes("US-ASCII");
+                byte[] to = TO.getBytes("US-ASCII");
+                for( int i=0; i+from.length<=image.length; i++ ) {
+                    int j=0;
+                    while(j<from.length && image[i+j]==from[j])
+                        j++;
+                    if(j==from.length)
+                        System.arraycopy(to,0,image,i,to.length);
+                }
+                return image;
+            } catch (IOException e) {
+                return null;
+            }
+        }
+    }
+
+    /**
+     * Mimics a typical {@code FileCallable}, which brings in a few helper classes of its own.
+     */
+    static class Task implements Callable<Integer,IOException> {
+        private final String includes;
+
+        Task(String includes) {
+            this.includes = includes;
+        }
+
+        public Integer call() throws IOException {
+            Scanner s = new Scanner(new File("."),includes);
+            return s.scan().size();
+        }
+
+        private static final long serialVersionUID = 1L;
+    }
+
+    static class Scanner {
+        private final File dir;
+        private final Pattern pattern;
+
+        Scanner(File dir, String pattern) {
+            this.dir = dir;
+            this.pattern = new Pattern(pattern);
+        }
+
+        List<Match> scan() {
+            List<Match> r = new ArrayList<Match>();
+            String[] names = dir.list();
+            if(names!=null)
+                for (String n : names)
+                    if(pattern.matches(n))
+                        r.add(new Match(n));
+            return r;
+        }
+    }
+
+    static class Pattern implements Serializable {
+        private final String glob;
+
+        Pattern(String glob) {
+            this.glob = glob;
+        }
+
+        boolean matches(String name) {
+            return name.endsWith(glob);
+        }
+    }
+
+    static class Match {
+        final String name;
+
+        Match(String name) {
+            this.name = name;
+        }
+    }
+}
@@ -0,0 +1,97 @@
+/*
+ * The MIT License
+ * 
+ * Copyright (c) 2004-2009, Sun Microsystems, Inc., Kohsuke Kawaguchi
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.remoting;
+
+import junit.framework.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+
+/**
+ * Tests the compression of frames.
+ */
+public class CompressionTest extends RmiTestBase {
+    private boolean compress;
+
+    protected void setUp() throws Exception {
+        compress = Channel.COMPRESS;
+        Channel.COMPRESS = true;
+        super.setUp();
+    }
+
+    protected void tearDown() throws Exception {
+        super.tearDown();
+        Channel.COMPRESS = compress;
+    }
+
+    public void testCompression() throws Exception {
+        long start = System.currentTimeMillis();
+        while(!channel.isCompressed()) {
+            assertTrue("channel didn't start compressing",System.currentTimeMillis()-start<5000);
+            Thread.sleep(10);
+        }
+        channel.resetPerformanceCounters();
+
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        channel.call(new LoggingCallable(new RemoteOutputStream(baos)));
+
+        String[] lines = baos.toString().split("\n");
+        assertEquals(LoggingCallable.LINES,lines.length);
+        for( int i=0; i<lines.length; i++ )
+            assertEquals(LoggingCallable.line(i),lines[i]);
+
+        // text like this compresses very well
+        assertTrue(channel.rawBytesReceived.get()>baos.size());
+        assertTrue(channel.wireBytesReceived.get()*2<channel.rawBytesReceived.get());
+        assertTrue(channel.wireBytesSent.get()<=channel.rawBytesSent.get());
+    }
+
+    private static class LoggingCallable implements Callable<Object, IOException> {
+        private final OutputStream out;
+
+        public LoggingCallable(OutputStream out) {
+            this.out = out;
+        }
+
+        public Object call() throws IOException {
+            PrintStream ps = new PrintStream(out);
+            for( int i=0; i<LINES; i++ )
+                ps.print(line(i)+"\n");
+            ps.close();
+            return null;
+        }
+
+        static String line(int i) {
+            return "[INFO] Compiling source file "+i+" of "+LINES;
+        }
+
+        static final int LINES = 10000;
+    }
+
+    public static Test suite() throws Exception {
+        return buildSuite(CompressionTest.class);
+    }
+}
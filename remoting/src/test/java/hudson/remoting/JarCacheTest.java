@@ -0,0 +1,130 @@
+/*
+ * The MIT License
+ * 
+ * Copyright (c) 2004-2009, Sun Microsystems, Inc., Kohsuke Kawaguchi
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.remoting;
+
+import hudson.remoting.RemoteClassLoader.ClassFile;
+import hudson.remoting.RemoteClassLoader.ClassLoaderProxy;
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.jar.JarOutputStream;
+import java.util.zip.ZipEntry;
+
+public class JarCacheTest extends TestCase {
+    private File dir;
+
+    protected void setUp() throws Exception {
+        dir = File.createTempFile("jarcache","");
+        dir.delete();
+        dir.mkdirs();
+    }
+
+    protected void tearDown() throws Exception {
+        delete(dir);
+    }
+
+    public void testStore() throws Exception {
+        JarCache cache = new JarCache(dir);
+        byte[] image = "not really a jar".getBytes();
+        String checksum = JarCache.checksum(image);
+        assertNull(cache.get(checksum));
+
+        File f = cache.store(checksum,image);
+        assertEquals(f,cache.get(checksum));
+        assertEquals(checksum,JarCache.checksum(new FileInputStream(f)));
+
+        // a different cache on the same directory sees it, too
+        assertEquals(f,new JarCache(dir).get(checksum));
+    }
+
+    /**
+     * A jar that doesn't match the checksum must not be stored.
+     */
+    public void testModifiedJar() throws Exception {
+        JarCache cache = new JarCache(dir);
+        String checksum = JarCache.checksum("old".getBytes());
+        assertNull(cache.store(checksum,"new".getBytes()));
+        assertNull(cache.get(checksum));
+    }
+
+    /**
+     * The least recently used jars are deleted once the cache is full.
+     */
+    public void testEviction() throws Exception {
+        JarCache cache = new JarCache(dir,250);
+        byte[] a = new byte[100], b = new byte[100], c = new byte[100];
+        a[0] = 1; b[0] = 2; c[0] = 3;
+        long now = System.currentTimeMillis();
+
+        File fa = cache.store(JarCache.checksum(a),a);
+        fa.setLastModified(now-3*60*60*1000);
+        File fb = cache.store(JarCache.checksum(b),b);
+        fb.setLastModified(now-2*60*60*1000);
+        assertEquals(fa,cache.get(JarCache.checksum(a)));    // now a is used more recently than b
+
+        cache.store(JarCache.checksum(c),c);
+        assertNull(cache.get(JarCache.checksum(b)));
+        assertNotNull(cache.get(JarCache.checksum(a)));
+        assertNotNull(cache.get(JarCache.checksum(c)));
+
+        // jars used recently are kept even if the cache is full
+        cache.store(JarCache.checksum(b),b);
+        assertNotNull(cache.get(JarCache.checksum(a)));
+        assertNotNull(cache.get(JarCache.checksum(b)));
+    }
+
+    /**
+     * Classes in a jar are sent with the checksum of the jar.
+     */
+    public void testFetchWithJar() throws Exception {
+        File jar = new File(dir,"test.jar");
+        JarOutputStream jos = new JarOutputStream(new FileOutputStream(jar));
+        jos.putNextEntry(new ZipEntry("foo/Bar.class"));
+        jos.write(new byte[]{1,2,3});
+        jos.close();
+
+        ClassLoaderProxy proxy = new ClassLoaderProxy(new URLClassLoader(new URL[]{jar.toURI().toURL()},null));
+        ClassFile[] classes = proxy.fetch2("foo.Bar",true);
+        assertEquals(1,classes.length);
+        ClassFile cf = classes[0];
+        assertEquals("foo.Bar",cf.name);
+        assertEquals(3,cf.image.length);
+        assertEquals(jar.toURI().toURL(),cf.jar);
+        assertEquals(JarCache.checksum(new FileInputStream(jar)),cf.checksum);
+        assertEquals(cf.checksum,proxy.getJarChecksum(cf.jar));
+    }
+
+    private static void delete(File f) throws IOException {
+        File[] children = f.listFiles();
+        if(children!=null)
+            for (File c : children)
+                delete(c);
+        f.delete();
+    }
+}
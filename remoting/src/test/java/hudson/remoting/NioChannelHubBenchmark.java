@@ -0,0 +1,132 @@
+/*
+ * The MIT License
+ * 
+ * Copyright (c) 2004-2009, Sun Microsystems, Inc., Kohsuke Kawaguchi
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.remoting;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Opens many channels over loopback sockets, and compares the threads, the memory, and the
+ * latency of a trivial call between channels serviced by {@link NioChannelHub} and channels
+ * that have their own reader threads.
+ *
+ * <p>
+ * The slave side of every connection has its own reader thread in both cases,
+ * so the difference in the numbers is what the master side saves.
+ *
+ * <pre>
+ * java hudson.remoting.NioChannelHubBenchmark [channels] [rounds]
+ * </pre>
+ */
+public class NioChannelHubBenchmark {
+    public static void main(String[] args) throws Exception {
+        int channels = args.length>0 ? Integer.parseInt(args[0]) : 500;
+        int rounds = args.length>1 ? Integer.parseInt(args[1]) : 20;
+
+        run(false,channels,rounds);
+        run(true,channels,rounds);
+    }
+
+    private static void run(boolean nio, int n, int rounds) throws Exception {
+        ExecutorService masterExecutor = Executors.newCachedThreadPool();
+        ExecutorService slaveExecutor = Executors.newCachedThreadPool();
+        NioChannelHub hub = nio ? new NioChannelHub() : null;
+
+        System.gc();
+        int threads0 = Thread.activeCount();
+        long memory0 = usedMemory();
+
+        ServerSocketChannel ss = ServerSocketChannel.open();
+        ss.socket().bind(new InetSocketAddress(InetAddress.getByName("localhost"),0),n);
+        List<Channel> masters = new ArrayList<Channel>();
+        List<Channel> slaves = new ArrayList<Channel>();
+        for( int i=0; i<n; i++ ) {
+            Socket s = new Socket(InetAddress.getByName("localhost"),ss.socket().getLocalPort());
+            SocketChannel sc = ss.accept();
+            slaves.add(Channel.framed("slave"+i, slaveExecutor,
+                    new BufferedInputStream(s.getInputStream()), new BufferedOutputStream(s.getOutputStream())));
+            if(nio)
+                masters.add(hub.register("master"+i, sc, masterExecutor));
+            else
+                masters.add(Channel.framed("master"+i, masterExecutor,
+                        new BufferedInputStream(SocketChannelStream.in(sc.socket())),
+                        new BufferedOutputStream(SocketChannelStream.out(sc.socket()))));
+        }
+        ss.close();
+
+        // warm up
+        for (Channel c : masters)
+            c.call(new Echo());
+
+        long[] latencies = new long[n*rounds];
+        int k=0;
+        for( int r=0; r<rounds; r++ ) {
+            for (Channel c : masters) {
+                long start = System.nanoTime();
+                c.call(new Echo());
+                latencies[k++] = System.nanoTime()-start;
+            }
+        }
+        Arrays.sort(latencies);
+
+        System.gc();
+        System.out.printf("%s: %d channels, %d threads, %d KB heap, call latency median %d us, 99%% %d us%n",
+                nio ? "NioChannelHub" : "reader threads", n,
+                Thread.activeCount()-threads0, (usedMemory()-memory0)/1024,
+                latencies[latencies.length/2]/1000, latencies[latencies.length*99/100]/1000);
+
+        for (Channel c : masters)
+            c.close();
+        for (Channel c : masters)
+            c.join();
+        for (Channel c : slaves)
+            c.join();
+        if(hub!=null)
+            hub.close();
+        masterExecutor.shutdown();
+        slaveExecutor.shutdown();
+    }
+
+    private static long usedMemory() {
+        Runtime r = Runtime.getRuntime();
+        return r.totalMemory()-r.freeMemory();
+    }
+
+    private static class Echo implements Callable<Integer,RuntimeException> {
+        public Integer call() {
+            return 1;
+        }
+        private static final long serialVersionUID = 1L;
+    }
+}
@@ -0,0 +1,118 @@
+/*
+ * The MIT License
+ * 
+ * Copyright (c) 2004-2009, Sun Microsystems, Inc., Kohsuke Kawaguchi
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.remoting;
+
+import junit.framework.TestCase;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Tests the handling of broken peers by {@link NioChannelHub}.
+ */
+public class NioChannelHubTest extends TestCase {
+    private ExecutorService executor;
+    private NioChannelHub hub;
+    private ServerSocketChannel ss;
+
+    protected void setUp() throws Exception {
+        executor = Executors.newCachedThreadPool();
+        hub = new NioChannelHub(1,4);
+        ss = ServerSocketChannel.open();
+        ss.socket().bind(new InetSocketAddress(InetAddress.getByName("localhost"),0));
+    }
+
+    protected void tearDown() throws Exception {
+        ss.close();
+        hub.close();
+        executor.shutdownNow();
+    }
+
+    public void testNegativeFrameLength() throws Exception {
+        verifyInvalidFrame(Integer.MIN_VALUE);
+    }
+
+    public void testHugeFrameLength() throws Exception {
+        verifyInvalidFrame(Integer.MAX_VALUE-16);
+    }
+
+    /**
+     * A frame with an invalid length only aborts the connection it came from.
+     */
+    private void verifyInvalidFrame(int len) throws Exception {
+        Socket good = new Socket(InetAddress.getByName("localhost"),ss.socket().getLocalPort());
+        Channel north = hub.register("good", ss.accept(), executor);
+        Channel south = Channel.framed("south", executor,
+                new BufferedInputStream(good.getInputStream()), new BufferedOutputStream(good.getOutputStream()));
+
+        Socket bad = new Socket(InetAddress.getByName("localhost"),ss.socket().getLocalPort());
+        final IOException[] cause = new IOException[1];
+        Channel broken = hub.register("bad", ss.accept(), executor);
+        broken.addListener(new Channel.Listener() {
+            public void onClosed(Channel channel, IOException c) {
+                synchronized (cause) {
+                    cause[0] = c;
+                    cause.notifyAll();
+                }
+            }
+        });
+
+        DataOutputStream out = new DataOutputStream(bad.getOutputStream());
+        out.writeInt(len);
+        out.writeInt(0);
+        out.writeInt(16);
+        out.flush();
+
+        synchronized (cause) {
+            long end = System.currentTimeMillis()+10000;
+            while(cause[0]==null && System.currentTimeMillis()<end)
+                cause.wait(1000);
+        }
+        assertNotNull(cause[0]);
+        bad.close();
+
+        // the other channels are still serviced
+        assertEquals(5,(int)south.call(new Five()));
+        assertEquals(5,(int)north.call(new Five()));
+        north.close();
+        north.join();
+        south.join();
+        good.close();
+    }
+
+    private static class Five implements Callable<Integer,RuntimeException> {
+        public Integer call() {
+            return 5;
+        }
+    }
+}
@@ -0,0 +1,54 @@
+/*
+ * The MIT License
+ * 
+ * Copyright (c) 2004-2009, Sun Microsystems, Inc., Kohsuke Kawaguchi
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.remoting;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayInputStream;
+import java.io.ObjectInputStream;
+
+/**
+ * Tests the serialized form of {@link Pipe}, which doesn't need a channel.
+ */
+public class PipeSerializationTest extends TestCase {
+    /**
+     * {@link Pipe.ConnectCommand} from a version without the flow control
+     * is still read, with no window.
+     */
+    public void testConnectCommandFromOlderVersion() throws Exception {
+        // Pipe.ConnectCommand(3,5) serialized by the older version, with Command.createdAt set to null
+        String hex = "aced000573720023687564736f6e2e72656d6f74696e672e5069706524436f6e6e656374436f6d6d616e6481"
+                + "5037112881f5240200024900066f6964506f734900066f6964526f7378720017687564736f6e2e72656d6f74696e"
+                + "672e436f6d6d616e6400000000000000010200014c00096372656174656441747400154c6a6176612f6c616e672f"
+                + "457863657074696f6e3b7870700000000500000003";
+        byte[] data = new byte[hex.length()/2];
+        for (int i=0; i<data.length; i++)
+            data[i] = (byte)Integer.parseInt(hex.substring(i*2,i*2+2),16);
+
+        Pipe.ConnectCommand c = (Pipe.ConnectCommand)new ObjectInputStream(new ByteArrayInputStream(data)).readObject();
+        assertEquals(3,c.oidRos);
+        assertEquals(5,c.oidPos);
+        assertEquals(0,c.window);
+    }
+}
@@ -29,6 +29,7 @@ import java.io.OutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.Arrays;
+import java.util.List;
 
 /**
  * Test {@link Pipe}.
@@ -103,6 +104,105 @@ public class PipeTest extends RmiTestBase {
 
     }
 
+    /**
+     * The writer must not get ahead of a slow reader by more than the window.
+     */
+    public void testFlowControl() throws Exception {
+        Pipe p = Pipe.createLocalToRemote();
+        Future<Integer> f = channel.callAsync(new SlowReadingCallable(p));
+
+        Thread.sleep(2000); // wait for remote to connect to local.
+        OutputStream os = p.getOut();
+        byte[] buf = new byte[8192];
+        for( int i=0; i<1024; i++ )
+            os.write(buf);
+
+        List<PipeWindow> windows = channel.getPipeWindows();
+        assertEquals(1,windows.size());
+        PipeWindow w = windows.get(0);
+        assertEquals(1024*8192,w.getBytesSent());
+        assertTrue(w.getStallCount()>0);
+        assertTrue(w.getAvailable()>=0);
+
+        os.close();
+        assertEquals(1024*8192,(int)f.get());
+        assertTrue(channel.getPipeWindows().isEmpty());
+    }
+
+    /**
+     * A reader that doesn't keep up must not hold up other calls, even when the writer
+     * has data buffered or is waiting for the window.
+     */
+    public void testStalledReaderDoesNotBlockCalls() throws Exception {
+        Pipe p = Pipe.createLocalToRemote();
+        Future<Integer> f = channel.callAsync(new SlowReadingCallable(p,10000));
+
+        Thread.sleep(2000); // wait for remote to connect to local.
+        final OutputStream os = p.getOut();
+        os.write(new byte[PipeWindow.SIZE]);  // use up the window
+        os.write(new byte[10]);               // and buffer some more
+        assertCallsAreFast();
+
+        // a writer waiting for the window
+        Thread t = new Thread() {
+            public void run() {
+                try {
+                    os.write(new byte[PipeWindow.SIZE]);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        };
+        t.start();
+        Thread.sleep(500);
+        assertCallsAreFast();
+
+        t.join();
+        os.close();
+        assertEquals(2*PipeWindow.SIZE+10,(int)f.get());
+    }
+
+    private void assertCallsAreFast() throws Exception {
+        long start = System.currentTimeMillis();
+        assertEquals(1,(int)channel.call(new Nop()));
+        assertTrue("call was held up by the reader",System.currentTimeMillis()-start<3000);
+    }
+
+    private static class Nop implements Callable<Integer, RuntimeException> {
+        public Integer call() {
+            return 1;
+        }
+    }
+
+    private static class SlowReadingCallable implements Callable<Integer, IOException> {
+        private final Pipe pipe;
+        private final long sleep;
+
+        public SlowReadingCallable(Pipe pipe) {
+            this(pipe,4000);
+        }
+
+        public SlowReadingCallable(Pipe pipe, long sleep) {
+            this.pipe = pipe;
+            this.sleep = sleep;
+        }
+
+        public Integer call() throws IOException {
+            try {
+                Thread.sleep(sleep); // let the writer run into the window
+            } catch (InterruptedException e) {
+                throw new IOException(e.getMessage());
+            }
+            InputStream in = pipe.getIn();
+            byte[] buf = new byte[4096];
+            int total=0,len;
+            while((len=in.read(buf))>=0)
+                total += len;
+            in.close();
+            return total;
+        }
+    }
+
     private static void write(Pipe pipe) throws IOException {
         OutputStream os = pipe.getOut();
         byte[] buf = new byte[384];
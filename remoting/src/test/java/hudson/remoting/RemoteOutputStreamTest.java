@@ -0,0 +1,166 @@
+/*
+ * The MIT License
+ * 
+ * Copyright (c) 2004-2009, Sun Microsystems, Inc., Kohsuke Kawaguchi
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.remoting;
+
+import junit.framework.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Test {@link RemoteOutputStream} and the write coalescing in {@link ProxyOutputStream}.
+ */
+public class RemoteOutputStreamTest extends RmiTestBase {
+    /**
+     * Data written by a call without flushing must arrive before the call completes.
+     */
+    public void testWritesArriveBeforeResponse() throws Exception {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        int len = channel.call(new WritingCallable(new RemoteOutputStream(baos),0));
+        assertEquals(len,baos.size());
+        assertContent(baos.toByteArray());
+    }
+
+    /**
+     * Same as {@link #testWritesArriveBeforeResponse()}, but after the channel switched to frames,
+     * where the stream data and the response are executed in different lanes.
+     */
+    public void testWritesArriveBeforeResponseWithFrames() throws Exception {
+        long start = System.currentTimeMillis();
+        while(!channel.isFramed()) {
+            assertTrue("channel didn't switch to frames",System.currentTimeMillis()-start<5000);
+            Thread.sleep(10);
+        }
+
+        for( int i=0; i<10; i++ )
+            testWritesArriveBeforeResponse();
+    }
+
+    /**
+     * Same as {@link #testWritesArriveBeforeResponse()}, but the data is written by another thread,
+     * like the output of a process copied by a {@link Thread}.
+     */
+    public void testWritesFromOtherThreadArriveBeforeResponse() throws Exception {
+        for( int i=0; i<10; i++ ) {
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            int len = channel.call(new ForkingCallable(new WritingCallable(new RemoteOutputStream(baos),0)));
+            assertEquals(len,baos.size());
+            assertContent(baos.toByteArray());
+        }
+    }
+
+    /**
+     * Buffered data must be sent eventually even if nobody flushes the stream.
+     */
+    public void testFlushDeadline() throws Exception {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        Future<Integer> f = channel.callAsync(new WritingCallable(new RemoteOutputStream(baos),5000));
+
+        long start = System.currentTimeMillis();
+        while(baos.size()<WritingCallable.LENGTH) {
+            assertTrue("data didn't arrive in time",System.currentTimeMillis()-start<3000);
+            Thread.sleep(10);
+        }
+        assertContent(baos.toByteArray());
+        f.get();
+    }
+
+    private static void assertContent(byte[] data) {
+        assertEquals(WritingCallable.LENGTH,data.length);
+        for( int i=0; i<data.length; i++ )
+            assertEquals((byte)i,data[i]);
+    }
+
+    private static class WritingCallable implements Callable<Integer, IOException> {
+        private final OutputStream out;
+        private final long sleep;
+
+        public WritingCallable(OutputStream out, long sleep) {
+            this.out = out;
+            this.sleep = sleep;
+        }
+
+        public Integer call() throws IOException {
+            // a mix of tiny writes and writes bigger than the buffer,
+            // ending with tiny writes that stay in the buffer
+            int i=0;
+            byte[] buf = new byte[20000];
+            while(i<LENGTH/2) {
+                int len = Math.min(LENGTH/2-i, (i%3==0) ? buf.length : 7);
+                for( int j=0; j<len; j++ )
+                    buf[j] = (byte)(i+j);
+                out.write(buf,0,len);
+                i += len;
+            }
+            while(i<LENGTH)
+                out.write(i++);
+            try {
+                Thread.sleep(sleep);
+            } catch (InterruptedException e) {
+                throw new IOException(e.getMessage());
+            }
+            return LENGTH;
+        }
+
+        static final int LENGTH = 100000;
+    }
+
+    /**
+     * Runs another callable in a new thread, and waits for it to complete.
+     */
+    private static class ForkingCallable implements Callable<Integer, IOException> {
+        private final WritingCallable task;
+
+        public ForkingCallable(WritingCallable task) {
+            this.task = task;
+        }
+
+        public Integer call() throws IOException {
+            final Object[] result = new Object[1];
+            Thread t = new Thread() {
+                public void run() {
+                    try {
+                        result[0] = task.call();
+                    } catch (IOException e) {
+                        result[0] = e;
+                    }
+                }
+            };
+            t.start();
+            try {
+                t.join();
+            } catch (InterruptedException e) {
+                throw new IOException(e.getMessage());
+            }
+            if(result[0] instanceof IOException)
+                throw (IOException)result[0];
+            return (Integer)result[0];
+        }
+    }
+
+    public static Test suite() throws Exception {
+        return buildSuite(RemoteOutputStreamTest.class);
+    }
+}
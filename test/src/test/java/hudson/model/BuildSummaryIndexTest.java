@@ -0,0 +1,148 @@
+/*
+ * The MIT License
+ * 
+ * Copyright (c) 2004-2009, Sun Microsystems, Inc., Kohsuke Kawaguchi
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.model;
+
+import hudson.model.BuildSummaryIndex.Kind;
+import org.apache.commons.io.FileUtils;
+import org.jvnet.hudson.test.FailureBuilder;
+import org.jvnet.hudson.test.HudsonTestCase;
+
+import java.io.File;
+
+public class BuildSummaryIndexTest extends HudsonTestCase {
+    /**
+     * Builds are indexed as they complete, and permalinks are resolved through the index.
+     */
+    public void testCompletion() throws Exception {
+        FreeStyleProject p = createFreeStyleProject();
+        BuildSummaryIndex index = p.getBuildSummaryIndex();
+        assertEquals(0,index.getNewest());
+        assertNull(index.getLast(Kind.COMPLETED));
+
+        FreeStyleBuild b1 = assertBuildStatusSuccess(p.scheduleBuild2(0).get());
+        assertEquals(1,index.getNewest());
+        assertEquals(Result.SUCCESS,index.get(1).result);
+        assertEquals(b1.getTimeInMillis(),index.get(1).timestamp);
+        assertEquals(b1.getDuration(),index.get(1).duration);
+
+        p.getBuildersList().add(new FailureBuilder());
+        FreeStyleBuild b2 = assertBuildStatus(Result.FAILURE,p.scheduleBuild2(0).get());
+        assertEquals(2,index.getNewest());
+        assertEquals(Result.FAILURE,index.get(2).result);
+        assertEquals(1,index.getLast(Kind.SUCCESSFUL).number);
+        assertEquals(1,index.getLast(Kind.STABLE).number);
+        assertEquals(2,index.getLast(Kind.FAILED).number);
+        assertEquals(2,index.getLast(Kind.COMPLETED).number);
+
+        assertSame(b1,p.getLastSuccessfulBuild());
+        assertSame(b1,p.getLastStableBuild());
+        assertSame(b2,p.getLastFailedBuild());
+        assertSame(b2,p.getLastCompletedBuild());
+
+        // the same index is loaded back from the disk
+        assertTrue(getFile(p).exists());
+        assertEquals(index.getSummaries().toString(),BuildSummaryIndex.load(p).getSummaries().toString());
+    }
+
+    /**
+     * Deleted builds are dropped from the index.
+     */
+    public void testDeletion() throws Exception {
+        FreeStyleProject p = createFreeStyleProject();
+        FreeStyleBuild b1 = assertBuildStatusSuccess(p.scheduleBuild2(0).get());
+        FreeStyleBuild b2 = assertBuildStatusSuccess(p.scheduleBuild2(0).get());
+
+        BuildSummaryIndex index = p.getBuildSummaryIndex();
+        assertEquals(2,index.getLast(Kind.SUCCESSFUL).number);
+
+        b2.delete();
+        assertNull(index.get(2));
+        assertEquals(1,index.getNewest());
+        assertEquals(1,index.getLast(Kind.SUCCESSFUL).number);
+        assertSame(b1,p.getLastSuccessfulBuild());
+
+        b1.delete();
+        assertEquals(0,index.getNewest());
+        assertNull(index.getLast(Kind.SUCCESSFUL));
+        assertNull(p.getLastSuccessfulBuild());
+
+        // deletions are persisted, too
+        assertTrue(BuildSummaryIndex.load(p).getSummaries().isEmpty());
+    }
+
+    /**
+     * The index is rebuilt from the builds when the file is missing.
+     */
+    public void testMissingFile() throws Exception {
+        FreeStyleProject p = createFreeStyleProject();
+        assertBuildStatusSuccess(p.scheduleBuild2(0).get());
+        p.getBuildersList().add(new FailureBuilder());
+        assertBuildStatus(Result.FAILURE,p.scheduleBuild2(0).get());
+        String expected = p.getBuildSummaryIndex().getSummaries().toString();
+
+        File file = getFile(p);
+        assertTrue(file.delete());
+
+        BuildSummaryIndex index = BuildSummaryIndex.load(p);
+        assertEquals(expected,index.getSummaries().toString());
+        assertEquals(1,index.getLast(Kind.SUCCESSFUL).number);
+        assertEquals(2,index.getLast(Kind.FAILED).number);
+        assertTrue(file.exists());
+    }
+
+    /**
+     * Malformed lines are ignored, and the index is brought back in sync with the builds.
+     */
+    public void testCorruptFile() throws Exception {
+        FreeStyleProject p = createFreeStyleProject();
+        assertBuildStatusSuccess(p.scheduleBuild2(0).get());
+        p.getBuildersList().add(new FailureBuilder());
+        assertBuildStatus(Result.FAILURE,p.scheduleBuild2(0).get());
+        String expected = p.getBuildSummaryIndex().getSummaries().toString();
+
+        File file = getFile(p);
+        FileUtils.writeStringToFile(file,
+            "garbage\n"+
+            "1 SUCCESS\n"+
+            "x SUCCESS 0 0\n"+
+            "-y\n"+
+            "99 SUCCESS 0 0\n"+     // a build that doesn't exist
+            "\n", "UTF-8");
+
+        BuildSummaryIndex index = BuildSummaryIndex.load(p);
+        assertEquals(expected,index.getSummaries().toString());
+        assertNull(index.get(99));
+        assertEquals(2,index.getNewest());
+        assertEquals(1,index.getLast(Kind.SUCCESSFUL).number);
+        assertEquals(2,index.getLast(Kind.FAILED).number);
+
+        // the file is rewritten with just the good entries
+        assertEquals(expected,BuildSummaryIndex.load(p).getSummaries().toString());
+        assertEquals(2,FileUtils.readLines(file,"UTF-8").size());
+    }
+
+    private File getFile(Job<?,?> job) {
+        return new File(job.getBuildDir(),"summary.log");
+    }
+}
@@ -0,0 +1,121 @@
+/*
+ * The MIT License
+ * 
+ * Copyright (c) 2004-2009, Sun Microsystems, Inc., Kohsuke Kawaguchi
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.model;
+
+import com.gargoylesoftware.htmlunit.html.HtmlForm;
+import hudson.model.Node.Mode;
+import hudson.slaves.DumbSlave;
+import hudson.slaves.JNLPLauncher;
+import hudson.slaves.RetentionStrategy;
+import org.jvnet.hudson.test.HudsonTestCase;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+public class LabelTest extends HudsonTestCase {
+    /**
+     * {@link Label#getNodes()} follows nodes and labels as they come and go.
+     */
+    public void testGetNodes() throws Exception {
+        Label foo = hudson.getLabel("foo");
+        Label bar = hudson.getLabel("bar");
+        assertNodes(foo);
+
+        DumbSlave s1 = createSlave("s1","foo bar");
+        DumbSlave s2 = createSlave("s2","foo");
+        hudson.addNode(s1);
+        hudson.addNode(s2);
+        assertNodes(foo,s1,s2);
+        assertNodes(bar,s1);
+        assertNodes(s1.getSelfLabel(),s1);
+        assertConsistent();
+
+        // reconfigure s1 the way Computer.doConfigSubmit does.
+        // the new instance is equal to the old one, but only the new one should be in the labels
+        DumbSlave s1a = createSlave("s1","bar baz");
+        List<Node> nodes = new ArrayList<Node>(hudson.getNodes());
+        nodes.set(nodes.indexOf(s1),s1a);
+        hudson.setNodes(nodes);
+        assertNodes(foo,s2);
+        assertNodes(bar,s1a);
+        assertNodes(hudson.getLabel("baz"),s1a);
+        assertNodes(s1a.getSelfLabel(),s1a);
+        assertConsistent();
+
+        // labels of the master
+        HtmlForm form = new WebClient().goTo("configure").getFormByName("config");
+        form.getInputByName("_.labelString").setValueAttribute("foo");
+        submit(form);
+        assertNodes(foo,hudson,s2);
+        assertConsistent();
+
+        hudson.removeNode(s2);
+        assertNodes(foo,hudson);
+        assertNodes(s2.getSelfLabel());
+        assertConsistent();
+
+        hudson.removeNode(s1a);
+        assertNodes(bar);
+        assertFalse(hudson.getLabels().contains(bar));
+        assertConsistent();
+    }
+
+    private DumbSlave createSlave(String name, String labels) throws Exception {
+        return new DumbSlave(name,"dummy",createTmpDir().getPath(),"1",Mode.NORMAL,labels,
+                new JNLPLauncher(),RetentionStrategy.NOOP);
+    }
+
+    /**
+     * Asserts that the label has exactly the given node instances.
+     */
+    private void assertNodes(Label l, Node... expected) {
+        Map<Node,Node> actual = new IdentityHashMap<Node,Node>();
+        for (Node n : l.getNodes())
+            actual.put(n,n);
+        assertEquals(l.getNodes().toString(),expected.length,actual.size());
+        for (Node n : expected)
+            assertTrue(n.getNodeName()+" is missing from "+l,actual.containsKey(n));
+    }
+
+    /**
+     * Compares every label against a full scan of the nodes.
+     */
+    private void assertConsistent() {
+        List<Node> all = new ArrayList<Node>(hudson.getNodes());
+        all.add(hudson);
+
+        for (Label l : hudson.getLabels()) {
+            List<Node> expected = new ArrayList<Node>();
+            for (Node n : all)
+                if(n.getAssignedLabels().contains(l))
+                    expected.add(n);
+            assertNodes(l,expected.toArray(new Node[expected.size()]));
+        }
+        for (Node n : all)
+            for (Label l : n.getAssignedLabels())
+                assertTrue(l+" is missing "+n.getNodeName(),l.getNodes().contains(n));
+    }
+}
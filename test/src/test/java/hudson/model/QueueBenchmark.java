@@ -0,0 +1,116 @@
+/*
+ * The MIT License
+ * 
+ * Copyright (c) 2004-2009, Sun Microsystems, Inc., Kohsuke Kawaguchi
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.model;
+
+import org.jvnet.hudson.test.HudsonTestCase;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Vector;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Measures the throughput of the scheduling core of {@link Queue}.
+ *
+ * <p>
+ * 500 executors keep popping no-op tasks while a few threads schedule them,
+ * and others keep reading the queue like the queue widget does. Run this before and after
+ * a change to the queue, and compare the rates of schedules and pops.
+ *
+ * <p>
+ * Usage: QueueBenchmark [number of tasks (20000)] [number of executors (500)]
+ */
+public class QueueBenchmark extends HudsonTestCase {
+    private int tasks, executors;
+
+    public static void main(String[] args) throws Throwable {
+        QueueBenchmark b = new QueueBenchmark();
+        b.tasks = args.length>0 ? Integer.parseInt(args[0]) : 20000;
+        b.executors = args.length>1 ? Integer.parseInt(args[1]) : 500;
+        b.setUp();
+        try {
+            b.measure();
+        } finally {
+            b.tearDown();
+        }
+        System.exit(0);
+    }
+
+    private void measure() throws Exception {
+        final Queue q = hudson.getQueue();
+        hudson.setNumExecutors(executors);
+        hudson.setSlaves(hudson.getSlaves());
+
+        final int n = tasks;
+        final List<Future<Queue.Executable>> futures = new Vector<Future<Queue.Executable>>();
+        final AtomicBoolean done = new AtomicBoolean();
+        final AtomicInteger reads = new AtomicInteger();
+
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int i=0; i<4; i++) {
+            threads.add(new Thread() {
+                public void run() {
+                    for (int j=0; j<n/4; j++)
+                        futures.add(q.schedule(new QueueTest.NoopTask(),0).getFuture());
+                }
+            });
+        }
+        for (int i=0; i<4; i++) {
+            threads.add(new Thread() {
+                public void run() {
+                    while (!done.get()) {
+                        q.getItems();
+                        q.getBuildableItems();
+                        reads.incrementAndGet();
+                    }
+                }
+            });
+        }
+
+        long start = System.nanoTime();
+        for (Thread t : threads)
+            t.start();
+        for (Thread t : threads.subList(0,4))
+            t.join();
+        long scheduled = System.nanoTime()-start;
+        for (Future<Queue.Executable> f : futures)
+            f.get(10, TimeUnit.MINUTES);
+        long popped = System.nanoTime()-start;
+        done.set(true);
+        for (Thread t : threads)
+            t.join();
+
+        System.out.printf("%d tasks on %d executors%n", futures.size(), executors);
+        report("schedule", futures.size(), scheduled);
+        report("pop", futures.size(), popped);
+        report("read", reads.get(), popped);
+    }
+
+    private static void report(String op, int count, long nanos) {
+        System.out.printf("%-10s %8d ops %6dms %10d ops/sec%n", op, count, nanos/1000000, count*1000000000L/Math.max(nanos,1));
+    }
+}
@@ -43,7 +43,15 @@ import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.Vector;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * @author Kohsuke Kawaguchi
@@ -103,6 +111,85 @@ public class QueueTest extends HudsonTestCase {
         assertEquals(0,q.getItems().length);
     }
 
+    /**
+     * Executors keep popping no-op tasks while a few threads schedule them,
+     * and others keep reading the queue like the queue widget does.
+     * Every task gets executed, and the readers always see a consistent queue.
+     */
+    public void testConcurrentScheduleAndPop() throws Exception {
+        final Queue q = hudson.getQueue();
+        hudson.setNumExecutors(50);
+        hudson.setSlaves(hudson.getSlaves());
+
+        final int N = 1000;
+        final List<Future<Queue.Executable>> futures = new Vector<Future<Queue.Executable>>();
+        final AtomicBoolean done = new AtomicBoolean();
+        final AtomicInteger inconsistent = new AtomicInteger();
+
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int i=0; i<4; i++) {
+            threads.add(new Thread() {
+                public void run() {
+                    for (int j=0; j<N/4; j++)
+                        futures.add(q.schedule(new NoopTask(),0).getFuture());
+                }
+            });
+        }
+        for (int i=0; i<4; i++) {
+            threads.add(new Thread() {
+                public void run() {
+                    while (!done.get()) {
+                        // an item is never in two states at once
+                        Set<Integer> ids = new HashSet<Integer>();
+                        for (Queue.Item item : q.getItems())
+                            if (!ids.add(item.id))
+                                inconsistent.incrementAndGet();
+                    }
+                }
+            });
+        }
+
+        for (Thread t : threads)
+            t.start();
+        for (Thread t : threads.subList(0,4))
+            t.join();
+        for (Future<Queue.Executable> f : futures)
+            f.get(60, TimeUnit.SECONDS);
+        done.set(true);
+        for (Thread t : threads)
+            t.join();
+
+        assertEquals(N,futures.size());
+        assertEquals(0,inconsistent.get());
+        assertTrue(q.isEmpty());
+        assertEquals(0,q.getItems().length);
+    }
+
+    /**
+     * {@link Queue.Task} that does nothing, and never collapses with others.
+     */
+    static final class NoopTask implements Queue.TransientTask {
+        public Label getAssignedLabel() { return null; }
+        public Node getLastBuiltOn() { return null; }
+        public boolean isBuildBlocked() { return false; }
+        public String getWhyBlocked() { return null; }
+        public String getName() { return "noop"; }
+        public String getFullDisplayName() { return "noop"; }
+        public String getDisplayName() { return "noop"; }
+        public long getEstimatedDuration() { return -1; }
+        public void checkAbortPermission() {}
+        public boolean hasAbortPermission() { return true; }
+        public String getUrl() { return "noop/"; }
+        public ResourceList getResourceList() { return new ResourceList(); }
+
+        public Queue.Executable createExecutable() throws IOException {
+            return new Queue.Executable() {
+                public Queue.Task getParent() { return NoopTask.this; }
+                public void run() {}
+            };
+        }
+    }
+
     public static final class FileItemPersistenceTestServlet extends HttpServlet {
         protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException {
             resp.setContentType("text/html");